@@ -1,4 +1,9 @@
+import imagelab.Coordinator;
+import imagelab.HotFolder;
 import imagelab.ImageLab;
+import imagelab.Server;
+import imagelab.Worker;
+import java.io.IOException;
 /*
  * ImageLab is a framework for student exploration of image processing.
  * copyright (C) 2016,2019 by Aaron Gordon & Jody Paul
@@ -18,13 +23,26 @@ import imagelab.ImageLab;
  *  along with this program.  If not, see https://www.gnu.org/licenses/
  */
 /**
- * Run the ImageLab application.
+ * Run the ImageLab application, or with --serve PORT its HTTP filtering
+ * service (see {@link Server}), or with --coordinate and --work a batch
+ * shared among several JVMs (see {@link Coordinator} and {@link Worker}),
+ * or with --watch a hot folder (see {@link HotFolder}).
  * @author Aaron Gordon
  * @author Jody Paul
- * @version 1.8.2
+ * @version 1.8.3
  */
 public class Run {
-    public static void main(String[] args) {
-        ImageLab.main(args);
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--serve")) {
+            Server.main(args);
+        } else if (args.length > 0 && args[0].equals("--coordinate")) {
+            Coordinator.main(args);
+        } else if (args.length > 0 && args[0].equals("--work")) {
+            Worker.main(args);
+        } else if (args.length > 0 && args[0].equals("--watch")) {
+            HotFolder.main(args);
+        } else {
+            ImageLab.main(args);
+        }
     }
 }
@@ -0,0 +1,59 @@
+package filters;
+
+import imagelab.Composite;
+import imagelab.FilterCache;
+import imagelab.ImageFilter2;
+import imagelab.ImageLab;
+import imagelab.ImgProvider;
+
+/**
+ * An imageLab filter that blends the selected image over another open
+ * image with a blend mode such as multiply or screen.
+ */
+public class Blend implements ImageFilter2 {
+
+  /**
+   * The filtered image.
+   */
+  private ImgProvider filteredImage;
+
+  /**
+   * The filter itself.
+   *
+   * @param first the upper image.
+   * @param second the lower image.
+   */
+  public void filter(final ImgProvider first, final ImgProvider second) {
+    filteredImage = null;
+    Composite.Blend mode = ImageLab.askChoice("Blend mode", Composite.Blend.values());
+    if (mode == null) {
+      return;
+    }
+    Double opacity = ImageLab.askNumber("Opacity in percent (0-100)", 100, 0, 100);
+    if (opacity == null) {
+      return;
+    }
+    filteredImage = FilterCache.getShared().apply(this, new ImgProvider[] {first, second},
+        () -> Composite.blend(first, second, mode, opacity / 100), mode, opacity);
+    filteredImage.showPix("Blend " + mode + " " + opacity.intValue() + "%");
+  } //filter
+
+  /**
+   * Retrieve the filtered image.
+   *
+   * @return the filtered image.
+   */
+  public ImgProvider getImgProvider() {
+    return filteredImage;
+  } //getImgProvider
+
+  /**
+   * Retrieve the name of the filter to add to the menu.
+   *
+   * @return the filter's menu item label
+   */
+  public String getMenuLabel() {
+    return "Blend...";
+  } //getMenuLabel
+
+}
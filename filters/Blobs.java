@@ -0,0 +1,53 @@
+package filters;
+
+import imagelab.Components;
+import imagelab.ImageFilter;
+import imagelab.ImageLab;
+import imagelab.ImgProvider;
+
+/**
+ * An imageLab filter that finds the connected bright regions (blobs)
+ * of the image and draws each one in its own color.
+ */
+public class Blobs implements ImageFilter {
+
+  /**
+   * The filtered image.
+   */
+  private ImgProvider filteredImage;
+
+  /**
+   * The filter itself.
+   *
+   * @param ip the image to be filtered.
+   */
+  public void filter(final ImgProvider ip) {
+    filteredImage = null;
+    Double level = ImageLab.askNumber("Threshold (0-255)", 128, 0, 255);
+    if (level == null) {
+      return;
+    }
+    Components blobs = Components.of(ip, level.intValue());
+    filteredImage = blobs.render();
+    filteredImage.showPix(blobs.getCount() + " Blobs");
+  } //filter
+
+  /**
+   * Retrieve the filtered image.
+   *
+   * @return the filtered image.
+   */
+  public ImgProvider getImgProvider() {
+    return filteredImage;
+  } //getImgProvider
+
+  /**
+   * Retrieve the name of the filter to add to the menu.
+   *
+   * @return the filter's menu item label
+   */
+  public String getMenuLabel() {
+    return "Blobs...";
+  } //getMenuLabel
+
+}
@@ -0,0 +1,53 @@
+package filters;
+
+import imagelab.Composite;
+import imagelab.ImageFilter2;
+import imagelab.ImgProvider;
+import javax.swing.JOptionPane;
+
+/**
+ * An imageLab filter that shows the absolute difference between the
+ * selected image and another open image of the same size.
+ */
+public class Difference implements ImageFilter2 {
+
+  /**
+   * The filtered image.
+   */
+  private ImgProvider filteredImage;
+
+  /**
+   * The filter itself.
+   *
+   * @param first one image.
+   * @param second the other image.
+   */
+  public void filter(final ImgProvider first, final ImgProvider second) {
+    filteredImage = null;
+    if (first.getWidth() != second.getWidth() || first.getHeight() != second.getHeight()) {
+      JOptionPane.showMessageDialog(null, "The images must be the same size");
+      return;
+    }
+    filteredImage = Composite.difference(first, second);
+    filteredImage.showPix("Difference");
+  } //filter
+
+  /**
+   * Retrieve the filtered image.
+   *
+   * @return the filtered image.
+   */
+  public ImgProvider getImgProvider() {
+    return filteredImage;
+  } //getImgProvider
+
+  /**
+   * Retrieve the name of the filter to add to the menu.
+   *
+   * @return the filter's menu item label
+   */
+  public String getMenuLabel() {
+    return "Difference";
+  } //getMenuLabel
+
+}
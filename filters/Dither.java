@@ -0,0 +1,62 @@
+package filters;
+
+import imagelab.FilterCache;
+import imagelab.ImageFilter;
+import imagelab.ImageLab;
+import imagelab.ImgProvider;
+import imagelab.Quantizer;
+
+/**
+ * An imageLab filter that dithers the image to black and white or to a
+ * few colors by error diffusion.
+ */
+public class Dither implements ImageFilter {
+
+  /**
+   * The filtered image.
+   */
+  private ImgProvider filteredImage;
+
+  /**
+   * The filter itself.
+   *
+   * @param ip the image to be filtered.
+   */
+  public void filter(final ImgProvider ip) {
+    filteredImage = null;
+    imagelab.Dither.Kernel kernel = ImageLab.askChoice("Diffusion pattern",
+        imagelab.Dither.Kernel.values());
+    if (kernel == null) {
+      return;
+    }
+    Double colors = ImageLab.askNumber("Number of colors (2 for black and white)", 2, 2, 256);
+    if (colors == null) {
+      return;
+    }
+    int n = colors.intValue();
+    filteredImage = FilterCache.getShared().apply(this, ip, () -> (n == 2)
+        ? imagelab.Dither.blackAndWhite(ip, kernel).toImgProvider()
+        : imagelab.Dither.toPalette(ip, Quantizer.palette(ip, n, Quantizer.Method.MEDIAN_CUT),
+                                    kernel).toImgProvider(), kernel, n);
+    filteredImage.showPix(kernel + " " + n + " Colors");
+  } //filter
+
+  /**
+   * Retrieve the filtered image.
+   *
+   * @return the filtered image.
+   */
+  public ImgProvider getImgProvider() {
+    return filteredImage;
+  } //getImgProvider
+
+  /**
+   * Retrieve the name of the filter to add to the menu.
+   *
+   * @return the filter's menu item label
+   */
+  public String getMenuLabel() {
+    return "Dither...";
+  } //getMenuLabel
+
+}
@@ -0,0 +1,53 @@
+package filters;
+
+import imagelab.Canny;
+import imagelab.FilterCache;
+import imagelab.ImageFilter;
+import imagelab.ImgProvider;
+
+/**
+ * An imageLab filter that finds edges with the Canny edge detector,
+ * drawing them in white on black.
+ */
+public class Edges implements ImageFilter {
+
+  /**
+   * The detector; kept so its buffers are reused from one image to the next.
+   */
+  private final Canny canny = new Canny();
+
+  /**
+   * The filtered image.
+   */
+  private ImgProvider filteredImage;
+
+  /**
+   * The filter itself.
+   *
+   * @param ip the image to be filtered.
+   */
+  public void filter(final ImgProvider ip) {
+    filteredImage = FilterCache.getShared().apply(this, ip,
+        () -> canny.detect(ip).toImgProvider());
+    filteredImage.showPix("Canny Edges");
+  } //filter
+
+  /**
+   * Retrieve the filtered image.
+   *
+   * @return the filtered image.
+   */
+  public ImgProvider getImgProvider() {
+    return filteredImage;
+  } //getImgProvider
+
+  /**
+   * Retrieve the name of the filter to add to the menu.
+   *
+   * @return the filter's menu item label
+   */
+  public String getMenuLabel() {
+    return "Canny Edges";
+  } //getMenuLabel
+
+}
@@ -0,0 +1,55 @@
+package filters;
+
+import imagelab.FilterCache;
+import imagelab.ImageFilter;
+import imagelab.ImageLab;
+import imagelab.ImgProvider;
+import imagelab.Morphology;
+
+/**
+ * An imageLab filter that erodes the image (spreads dark areas),
+ * using an octagonal structuring element of a chosen radius.
+ */
+public class Erode implements ImageFilter {
+
+  /**
+   * The filtered image.
+   */
+  private ImgProvider filteredImage;
+
+  /**
+   * The filter itself.
+   *
+   * @param ip the image to be filtered.
+   */
+  public void filter(final ImgProvider ip) {
+    filteredImage = null;
+    Double radius = ImageLab.askNumber("Radius (pixels)", 3, 0, 1000);
+    if (radius == null) {
+      return;
+    }
+    int r = radius.intValue();
+    filteredImage = FilterCache.getShared().apply(this, ip,
+        () -> Morphology.erode(ip, r, Morphology.Shape.OCTAGON), r);
+    filteredImage.showPix("Erode (radius " + r + ")");
+  } //filter
+
+  /**
+   * Retrieve the filtered image.
+   *
+   * @return the filtered image.
+   */
+  public ImgProvider getImgProvider() {
+    return filteredImage;
+  } //getImgProvider
+
+  /**
+   * Retrieve the name of the filter to add to the menu.
+   *
+   * @return the filter's menu item label
+   */
+  public String getMenuLabel() {
+    return "Erode...";
+  } //getMenuLabel
+
+}
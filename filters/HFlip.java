@@ -1,5 +1,6 @@
 package filters;
 
+import imagelab.Geometry;
 import imagelab.ImageFilter;
 import imagelab.ImgProvider;
 
@@ -19,20 +20,7 @@ public class HFlip implements ImageFilter {
    * @param ip the image to be filtered.
    */
   public void filter(final ImgProvider ip) {
-    short tmp;
-    short[][] im = ip.getBWImage();
-    int height = im.length;
-    int width = im[0].length;
-    for (int r = 0; r < height; r++) {
-      for (int c = 0, x = width - 1; c < x; c++, x--) {
-        tmp = im[r][c];
-        im[r][c] = im[r][x];
-        im[r][x] = tmp;
-      } //for c
-    } //for r;
-
-    filteredImage = new ImgProvider();
-    filteredImage.setBWImage(im);
+    filteredImage = Geometry.flipHorizontal(ip);
     filteredImage.showPix("Flipped Horizontally");
   } //filter
 
@@ -51,7 +39,7 @@ public class HFlip implements ImageFilter {
    * @return the filter's menu item label
    */
   public String getMenuLabel() {
-    return "HFlip(BW)";
+    return "HFlip";
   } //getMenuLabel
 
 }
@@ -0,0 +1,55 @@
+package filters;
+
+import imagelab.FilterCache;
+import imagelab.ImageFilter;
+import imagelab.ImageLab;
+import imagelab.ImgProvider;
+import imagelab.RankFilter;
+
+/**
+ * An imageLab filter that removes noise by replacing each pixel
+ * with the median of the square window around it.
+ */
+public class Median implements ImageFilter {
+
+  /**
+   * The filtered image.
+   */
+  private ImgProvider filteredImage;
+
+  /**
+   * The filter itself.
+   *
+   * @param ip the image to be filtered.
+   */
+  public void filter(final ImgProvider ip) {
+    filteredImage = null;
+    Double radius = ImageLab.askNumber("Radius (pixels)", 2, 0, 1000);
+    if (radius == null) {
+      return;
+    }
+    int r = radius.intValue();
+    filteredImage = FilterCache.getShared().apply(this, ip,
+        () -> RankFilter.median(ip, r), r);
+    filteredImage.showPix("Median (radius " + r + ")");
+  } //filter
+
+  /**
+   * Retrieve the filtered image.
+   *
+   * @return the filtered image.
+   */
+  public ImgProvider getImgProvider() {
+    return filteredImage;
+  } //getImgProvider
+
+  /**
+   * Retrieve the name of the filter to add to the menu.
+   *
+   * @return the filter's menu item label
+   */
+  public String getMenuLabel() {
+    return "Median...";
+  } //getMenuLabel
+
+}
@@ -0,0 +1,55 @@
+package filters;
+
+import imagelab.Composite;
+import imagelab.FilterCache;
+import imagelab.ImageFilter2;
+import imagelab.ImageLab;
+import imagelab.ImgProvider;
+
+/**
+ * An imageLab filter that composites the selected image onto another
+ * open image with one of the Porter-Duff rules, using both alpha planes.
+ */
+public class Overlay implements ImageFilter2 {
+
+  /**
+   * The filtered image.
+   */
+  private ImgProvider filteredImage;
+
+  /**
+   * The filter itself.
+   *
+   * @param first the source image, placed on top.
+   * @param second the destination image, underneath.
+   */
+  public void filter(final ImgProvider first, final ImgProvider second) {
+    filteredImage = null;
+    Composite.Rule rule = ImageLab.askChoice("Compositing rule", Composite.Rule.values());
+    if (rule == null) {
+      return;
+    }
+    filteredImage = FilterCache.getShared().apply(this, new ImgProvider[] {first, second},
+        () -> Composite.composite(first, second, rule), rule);
+    filteredImage.showPix("Composite " + rule);
+  } //filter
+
+  /**
+   * Retrieve the filtered image.
+   *
+   * @return the filtered image.
+   */
+  public ImgProvider getImgProvider() {
+    return filteredImage;
+  } //getImgProvider
+
+  /**
+   * Retrieve the name of the filter to add to the menu.
+   *
+   * @return the filter's menu item label
+   */
+  public String getMenuLabel() {
+    return "Composite...";
+  } //getMenuLabel
+
+}
@@ -0,0 +1,59 @@
+package filters;
+
+import imagelab.FilterCache;
+import imagelab.ImageFilter;
+import imagelab.ImageLab;
+import imagelab.ImgProvider;
+import imagelab.RankFilter;
+
+/**
+ * An imageLab filter that replaces each pixel with a chosen percentile
+ * of the square window around it (0 for the minimum, 100 for the maximum).
+ */
+public class Percentile implements ImageFilter {
+
+  /**
+   * The filtered image.
+   */
+  private ImgProvider filteredImage;
+
+  /**
+   * The filter itself.
+   *
+   * @param ip the image to be filtered.
+   */
+  public void filter(final ImgProvider ip) {
+    filteredImage = null;
+    Double radius = ImageLab.askNumber("Radius (pixels)", 2, 0, 1000);
+    if (radius == null) {
+      return;
+    }
+    Double pct = ImageLab.askNumber("Percentile (0 = min, 100 = max)", 50, 0, 100);
+    if (pct == null) {
+      return;
+    }
+    int r = radius.intValue();
+    filteredImage = FilterCache.getShared().apply(this, ip,
+        () -> RankFilter.percentile(ip, r, pct), r, pct);
+    filteredImage.showPix("Percentile " + pct + " (radius " + r + ")");
+  } //filter
+
+  /**
+   * Retrieve the filtered image.
+   *
+   * @return the filtered image.
+   */
+  public ImgProvider getImgProvider() {
+    return filteredImage;
+  } //getImgProvider
+
+  /**
+   * Retrieve the name of the filter to add to the menu.
+   *
+   * @return the filter's menu item label
+   */
+  public String getMenuLabel() {
+    return "Percentile...";
+  } //getMenuLabel
+
+}
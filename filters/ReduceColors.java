@@ -0,0 +1,55 @@
+package filters;
+
+import imagelab.FilterCache;
+import imagelab.ImageFilter;
+import imagelab.ImageLab;
+import imagelab.ImgProvider;
+import imagelab.Quantizer;
+
+/**
+ * An imageLab filter that reduces the image to a palette of a few
+ * colors chosen by median cut.
+ */
+public class ReduceColors implements ImageFilter {
+
+  /**
+   * The filtered image.
+   */
+  private ImgProvider filteredImage;
+
+  /**
+   * The filter itself.
+   *
+   * @param ip the image to be filtered.
+   */
+  public void filter(final ImgProvider ip) {
+    filteredImage = null;
+    Double colors = ImageLab.askNumber("Number of colors (1-256)", 16, 1, 256);
+    if (colors == null) {
+      return;
+    }
+    int n = colors.intValue();
+    filteredImage = FilterCache.getShared().apply(this, ip,
+        () -> Quantizer.quantize(ip, n, Quantizer.Method.MEDIAN_CUT).toImgProvider(), n);
+    filteredImage.showPix(n + " Colors");
+  } //filter
+
+  /**
+   * Retrieve the filtered image.
+   *
+   * @return the filtered image.
+   */
+  public ImgProvider getImgProvider() {
+    return filteredImage;
+  } //getImgProvider
+
+  /**
+   * Retrieve the name of the filter to add to the menu.
+   *
+   * @return the filter's menu item label
+   */
+  public String getMenuLabel() {
+    return "Reduce Colors...";
+  } //getMenuLabel
+
+}
@@ -0,0 +1,56 @@
+package filters;
+
+import imagelab.FilterCache;
+import imagelab.ImageFilter;
+import imagelab.ImageLab;
+import imagelab.ImgProvider;
+import imagelab.Resample;
+
+/**
+ * An imageLab filter that resizes the image by a percentage,
+ * using Lanczos resampling.
+ */
+public class Resize implements ImageFilter {
+
+  /**
+   * The filtered image.
+   */
+  private ImgProvider filteredImage;
+
+  /**
+   * The filter itself.
+   *
+   * @param ip the image to be filtered.
+   */
+  public void filter(final ImgProvider ip) {
+    filteredImage = null;
+    Double percent = ImageLab.askNumber("New size (percent)", 50, 1, 1000);
+    if (percent == null) {
+      return;
+    }
+    int width = Math.max(1, (int) Math.round(ip.getWidth() * percent / 100));
+    int height = Math.max(1, (int) Math.round(ip.getHeight() * percent / 100));
+    filteredImage = FilterCache.getShared().apply(this, ip,
+        () -> Resample.resize(ip, width, height, Resample.Kernel.LANCZOS), width, height);
+    filteredImage.showPix("Resized to " + width + "x" + height);
+  } //filter
+
+  /**
+   * Retrieve the filtered image.
+   *
+   * @return the filtered image.
+   */
+  public ImgProvider getImgProvider() {
+    return filteredImage;
+  } //getImgProvider
+
+  /**
+   * Retrieve the name of the filter to add to the menu.
+   *
+   * @return the filter's menu item label
+   */
+  public String getMenuLabel() {
+    return "Resize...";
+  } //getMenuLabel
+
+}
@@ -0,0 +1,54 @@
+package filters;
+
+import imagelab.FilterCache;
+import imagelab.ImageFilter;
+import imagelab.ImageLab;
+import imagelab.ImgProvider;
+import imagelab.Resample;
+
+/**
+ * An imageLab filter that rotates the image clockwise by any angle,
+ * using bicubic interpolation.
+ */
+public class Rotate implements ImageFilter {
+
+  /**
+   * The filtered image.
+   */
+  private ImgProvider filteredImage;
+
+  /**
+   * The filter itself.
+   *
+   * @param ip the image to be filtered.
+   */
+  public void filter(final ImgProvider ip) {
+    filteredImage = null;
+    Double degrees = ImageLab.askNumber("Angle (degrees clockwise)", 15, -360, 360);
+    if (degrees == null) {
+      return;
+    }
+    filteredImage = FilterCache.getShared().apply(this, ip,
+        () -> Resample.rotate(ip, degrees, Resample.Kernel.BICUBIC), degrees);
+    filteredImage.showPix("Rotated " + degrees);
+  } //filter
+
+  /**
+   * Retrieve the filtered image.
+   *
+   * @return the filtered image.
+   */
+  public ImgProvider getImgProvider() {
+    return filteredImage;
+  } //getImgProvider
+
+  /**
+   * Retrieve the name of the filter to add to the menu.
+   *
+   * @return the filter's menu item label
+   */
+  public String getMenuLabel() {
+    return "Rotate...";
+  } //getMenuLabel
+
+}
@@ -0,0 +1,45 @@
+package filters;
+
+import imagelab.Geometry;
+import imagelab.ImageFilter;
+import imagelab.ImgProvider;
+
+/**
+ * An imageLab filter that rotates the image a half turn.
+ */
+public class Rotate180 implements ImageFilter {
+
+  /**
+   * The filtered image.
+   */
+  private ImgProvider filteredImage;
+
+  /**
+   * The filter itself.
+   *
+   * @param ip the image to be filtered.
+   */
+  public void filter(final ImgProvider ip) {
+    filteredImage = Geometry.rotate180(ip);
+    filteredImage.showPix("Rotated 180");
+  } //filter
+
+  /**
+   * Retrieve the filtered image.
+   *
+   * @return the filtered image.
+   */
+  public ImgProvider getImgProvider() {
+    return filteredImage;
+  } //getImgProvider
+
+  /**
+   * Retrieve the name of the filter to add to the menu.
+   *
+   * @return the filter's menu item label
+   */
+  public String getMenuLabel() {
+    return "Rotate 180";
+  } //getMenuLabel
+
+}
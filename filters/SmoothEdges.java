@@ -0,0 +1,58 @@
+package filters;
+
+import imagelab.Bilateral;
+import imagelab.FilterCache;
+import imagelab.ImageFilter;
+import imagelab.ImageLab;
+import imagelab.ImgProvider;
+
+/**
+ * An imageLab filter that smooths the image while keeping its edges
+ * sharp, using a bilateral grid.
+ */
+public class SmoothEdges implements ImageFilter {
+
+  /**
+   * The filtered image.
+   */
+  private ImgProvider filteredImage;
+
+  /**
+   * The filter itself.
+   *
+   * @param ip the image to be filtered.
+   */
+  public void filter(final ImgProvider ip) {
+    filteredImage = null;
+    Double spatial = ImageLab.askNumber("Smoothing radius in pixels (1-200)", 16, 1, 200);
+    if (spatial == null) {
+      return;
+    }
+    Double range = ImageLab.askNumber("Edge strength kept, in gray levels (1-255)", 24, 1, 255);
+    if (range == null) {
+      return;
+    }
+    filteredImage = FilterCache.getShared().apply(this, ip,
+        () -> Bilateral.filter(ip, spatial, range), spatial, range);
+    filteredImage.showPix("Smooth Edges " + spatial.intValue() + "/" + range.intValue());
+  } //filter
+
+  /**
+   * Retrieve the filtered image.
+   *
+   * @return the filtered image.
+   */
+  public ImgProvider getImgProvider() {
+    return filteredImage;
+  } //getImgProvider
+
+  /**
+   * Retrieve the name of the filter to add to the menu.
+   *
+   * @return the filter's menu item label
+   */
+  public String getMenuLabel() {
+    return "Smooth Edges...";
+  } //getMenuLabel
+
+}
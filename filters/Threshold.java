@@ -0,0 +1,53 @@
+package filters;
+
+import imagelab.BinaryImage;
+import imagelab.ImageFilter;
+import imagelab.ImageLab;
+import imagelab.ImgProvider;
+
+/**
+ * An imageLab filter that turns the image into pure black and white:
+ * pixels at least as bright as a chosen gray level become white.
+ */
+public class Threshold implements ImageFilter {
+
+  /**
+   * The filtered image.
+   */
+  private ImgProvider filteredImage;
+
+  /**
+   * The filter itself.
+   *
+   * @param ip the image to be filtered.
+   */
+  public void filter(final ImgProvider ip) {
+    filteredImage = null;
+    Double level = ImageLab.askNumber("Threshold (0-255)", 128, 0, 255);
+    if (level == null) {
+      return;
+    }
+    BinaryImage mask = BinaryImage.fromImage(ip, level.intValue());
+    filteredImage = mask.toImgProvider();
+    filteredImage.showPix("Threshold " + level.intValue());
+  } //filter
+
+  /**
+   * Retrieve the filtered image.
+   *
+   * @return the filtered image.
+   */
+  public ImgProvider getImgProvider() {
+    return filteredImage;
+  } //getImgProvider
+
+  /**
+   * Retrieve the name of the filter to add to the menu.
+   *
+   * @return the filter's menu item label
+   */
+  public String getMenuLabel() {
+    return "Threshold...";
+  } //getMenuLabel
+
+}
@@ -0,0 +1,45 @@
+package filters;
+
+import imagelab.Geometry;
+import imagelab.ImageFilter;
+import imagelab.ImgProvider;
+
+/**
+ * An imageLab filter that flips the image vertically.
+ */
+public class VFlip implements ImageFilter {
+
+  /**
+   * The filtered image.
+   */
+  private ImgProvider filteredImage;
+
+  /**
+   * The filter itself.
+   *
+   * @param ip the image to be filtered.
+   */
+  public void filter(final ImgProvider ip) {
+    filteredImage = Geometry.flipVertical(ip);
+    filteredImage.showPix("Flipped Vertically");
+  } //filter
+
+  /**
+   * Retrieve the filtered image.
+   *
+   * @return the filtered image.
+   */
+  public ImgProvider getImgProvider() {
+    return filteredImage;
+  } //getImgProvider
+
+  /**
+   * Retrieve the name of the filter to add to the menu.
+   *
+   * @return the filter's menu item label
+   */
+  public String getMenuLabel() {
+    return "VFlip";
+  } //getMenuLabel
+
+}
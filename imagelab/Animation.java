@@ -0,0 +1,577 @@
+package imagelab;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.UnaryOperator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import org.w3c.dom.Node;
+
+/**
+ * Animation reads, filters and writes multi-frame (animated) GIFs.
+ * ImgProvider sees only the first frame of such a file; here every frame
+ * is read in turn and handed out with its own placement, timing and
+ * disposal, exactly as stored, so that writing the frames back gives the
+ * same animation.
+ * <pre>
+ *   Animation.process(new File("in.gif"), new File("out.gif"),
+ *                     ip -> RankFilter.median(ip, 1), true);
+ * </pre>
+ * {@link #process} streams the frames: it reads ahead only as far as a
+ * bounded number of frames in flight, filters those on a pool of threads
+ * (one per processor) when the engine treats frames independently, and
+ * writes the results in their original order as soon as each is ready.
+ * Memory is therefore a few frames, however long the animation.
+ * <p>
+ * Frames are filtered as stored, not composited onto the screen, so an
+ * engine sees partial frames with transparent pixels and must keep each
+ * frame's size.  Written frames reuse their colors when there are few
+ * enough and are quantized by median cut otherwise; pixels less than
+ * half opaque become the frame's transparent color.
+ * @version 1.0
+ */
+public final class Animation {
+    /** Native image metadata format of the GIF plugin. */
+    private static final String IMAGE_FORMAT = "javax_imageio_gif_image_1.0";
+    /** Native stream metadata format of the GIF plugin. */
+    private static final String STREAM_FORMAT = "javax_imageio_gif_stream_1.0";
+    /** Frames in flight by default: enough to keep every processor busy. */
+    static final int IN_FLIGHT = Math.max(2, 2 * Parallel.THREADS);
+
+    /** Utility class; not instantiated. */
+    private Animation() { }
+
+    /** One frame of an animation: its pixels and how it is shown. */
+    public static final class Frame {
+        /** The pixels, the size of the frame rather than the screen. */
+        private final ImgProvider image;
+        /** The GIF metadata of the frame, as read. */
+        private final IIOMetadataNode meta;
+
+        /**
+         * Create a frame.
+         * @param ip the pixels
+         * @param tree its native GIF metadata
+         */
+        Frame(final ImgProvider ip, final IIOMetadataNode tree) {
+            image = ip;
+            meta = tree;
+        }//constructor
+
+        /**
+         * Retrieve the pixels.
+         * @return the frame's image
+         */
+        public ImgProvider getImage() { return image; }
+
+        /**
+         * Retrieve the left edge of the frame on the screen.
+         * @return the x offset in pixels
+         */
+        public int getX() { return number(child(meta, "ImageDescriptor"), "imageLeftPosition", 0); }
+
+        /**
+         * Retrieve the top edge of the frame on the screen.
+         * @return the y offset in pixels
+         */
+        public int getY() { return number(child(meta, "ImageDescriptor"), "imageTopPosition", 0); }
+
+        /**
+         * Retrieve how long the frame is shown.
+         * @return the delay in hundredths of a second
+         */
+        public int getDelay() { return number(child(meta, "GraphicControlExtension"), "delayTime", 0); }
+
+        /**
+         * Retrieve what becomes of the frame when the next is shown.
+         * @return "none", "doNotDispose", "restoreToBackgroundColor" or "restoreToPrevious"
+         */
+        public String getDisposal() {
+            Node gce = child(meta, "GraphicControlExtension");
+            String d = (gce == null) ? null : attribute(gce, "disposalMethod");
+            return (d == null) ? "none" : d;
+        }//getDisposal
+
+        /**
+         * The same frame, shown in the same place for the same time, with
+         * other pixels.
+         * @param ip the new pixels, the same size as the old
+         * @return the new frame
+         */
+        public Frame with(final ImgProvider ip) {
+            ip.ensureLoaded();
+            if (ip.pixwidth != image.pixwidth || ip.pixheight != image.pixheight) {
+                throw new IllegalArgumentException("A frame's new image must keep its size");
+            }
+            return new Frame(ip, meta);
+        }//with
+    }//Frame
+
+    /**
+     * Whether a file is a GIF of more than one frame.  Other formats,
+     * multi-page TIFFs included, are not animations to this class.
+     * @param file the file
+     * @return true for a GIF with several frames; false for anything else
+     * @throws IOException if it cannot be read
+     */
+    public static boolean isAnimated(final File file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = (in == null) ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) return false;
+            ImageReader reader = readers.next();
+            try {
+                if (!reader.getFormatName().equalsIgnoreCase("gif")) return false;
+                reader.setInput(in, false, false);
+                return reader.getNumImages(true) > 1;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }//isAnimated
+
+    /**
+     * Open an animated GIF to read its frames one at a time.
+     * @param file the file
+     * @return its frames
+     * @throws IOException if it is not a readable GIF
+     */
+    public static Frames open(final File file) throws IOException {
+        return new Frames(file);
+    }//open
+
+    /**
+     * Create an animated GIF with the same screen (size, aspect ratio and
+     * color resolution) as another.
+     * @param file the file to write
+     * @param like the animation whose screen to copy
+     * @return a writer to give the frames to
+     * @throws IOException if the file cannot be written
+     */
+    public static FrameWriter create(final File file, final Frames like) throws IOException {
+        return new FrameWriter(file, like.screen);
+    }//create
+
+    /**
+     * Filter every frame of an animated GIF, keeping its timing and
+     * disposal, with as many frames in flight as keep all processors busy.
+     * @param in the animation to read
+     * @param out the file to write
+     * @param op the engine applied to each frame, for example ip -> RankFilter.median(ip, 1);
+     *           it must return an image of the frame's size
+     * @param independent true if the engine may work on several frames at
+     *           once, in any order; false if it must see them one at a time,
+     *           first to last (for instance because it carries state forward)
+     * @throws IOException if reading or writing fails
+     */
+    public static void process(final File in, final File out, final UnaryOperator<ImgProvider> op,
+                               final boolean independent) throws IOException {
+        process(in, out, op, independent, IN_FLIGHT);
+    }//process
+
+    /**
+     * Filter every frame of an animated GIF, keeping its timing and disposal.
+     * Frames are read ahead until inFlight of them are waiting to be
+     * written; each is filtered and converted to indexed color on the
+     * pool, and the oldest is written as soon as it is done.
+     * @param in the animation to read
+     * @param out the file to write
+     * @param op the engine applied to each frame; it must keep the frame's size
+     * @param independent true if the engine may work on several frames at once
+     * @param inFlight the most frames held at a time, at least 1
+     * @throws IOException if reading or writing fails
+     */
+    public static void process(final File in, final File out, final UnaryOperator<ImgProvider> op,
+                               final boolean independent, final int inFlight) throws IOException {
+        int workers = independent ? Math.min(Parallel.THREADS, Math.max(1, inFlight)) : 1;
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "ImageLab frame filter");
+            t.setDaemon(true);
+            return t;
+        });
+        ArrayDeque<Future<Encoded>> pending = new ArrayDeque<Future<Encoded>>();
+        try (Frames src = open(in);
+             FrameWriter dst = create(out, src)) {
+            for (Frame f = src.next(); f != null; f = src.next()) {
+                if (pending.size() >= Math.max(1, inFlight)) dst.write(await(pending.removeFirst()));
+                final Frame frame = f;
+                pending.addLast(pool.submit(() -> encode(frame.with(op.apply(frame.getImage())))));
+            }
+            while (!pending.isEmpty()) dst.write(await(pending.removeFirst()));
+        } finally {
+            for (Future<Encoded> p : pending) p.cancel(true);
+            pool.shutdownNow();
+        }
+    }//process
+
+    /**
+     * Wait for a frame to be filtered.
+     * @param f the work
+     * @return the frame, ready to write
+     * @throws IOException if the work failed
+     */
+    private static Encoded await(final Future<Encoded> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted filtering frames", ie);
+        } catch (ExecutionException ee) {
+            Throwable t = ee.getCause();
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            if (t instanceof Error) throw (Error) t;
+            throw new IOException("Could not filter a frame", t);
+        }
+    }//await
+
+    /** The frames of an animated GIF, read one at a time. */
+    public static final class Frames implements Closeable {
+        /** The file, for messages. */
+        private final File file;
+        /** The file, opened. */
+        private final ImageInputStream in;
+        /** Its reader. */
+        private final ImageReader reader;
+        /** Number of frames. */
+        private final int count;
+        /** The logical screen descriptor. */
+        private final IIOMetadataNode screen;
+        /** Frames read so far. */
+        private int read;
+
+        /**
+         * Open a file.
+         * @param f the file
+         * @throws IOException if it is not a readable GIF
+         */
+        Frames(final File f) throws IOException {
+            file = f;
+            in = ImageIO.createImageInputStream(f);
+            Iterator<ImageReader> readers = (in == null) ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                if (in != null) in.close();
+                throw new IOException("Not a readable image: " + f);
+            }
+            reader = readers.next();
+            reader.setInput(in, false, false);
+            boolean ok = false;
+            try {
+                if (!reader.getFormatName().equalsIgnoreCase("gif")) {
+                    throw new IOException("Not a GIF: " + f);
+                }
+                count = reader.getNumImages(true);
+                IIOMetadata sm = reader.getStreamMetadata();
+                Node lsd = (sm == null) ? null : child(sm.getAsTree(STREAM_FORMAT), "LogicalScreenDescriptor");
+                screen = (lsd == null) ? null : (IIOMetadataNode) lsd;
+                ok = true;
+            } finally {
+                if (!ok) close();
+            }
+        }//constructor
+
+        /**
+         * Retrieve the number of frames.
+         * @return how many frames the file holds
+         */
+        public int getFrameCount() { return count; }
+
+        /**
+         * Retrieve the width of the screen the frames are drawn on.
+         * @return the width in pixels
+         */
+        public int getWidth() { return number(screen, "logicalScreenWidth", 0); }
+
+        /**
+         * Retrieve the height of the screen the frames are drawn on.
+         * @return the height in pixels
+         */
+        public int getHeight() { return number(screen, "logicalScreenHeight", 0); }
+
+        /**
+         * Read the next frame.
+         * @return the frame, or null after the last
+         * @throws IOException if it cannot be decoded
+         */
+        public Frame next() throws IOException {
+            if (read >= count) return null;
+            int i = read++;
+            BufferedImage bi = reader.read(i);
+            IIOMetadataNode tree = (IIOMetadataNode) reader.getImageMetadata(i).getAsTree(IMAGE_FORMAT);
+            int w = bi.getWidth();
+            int h = bi.getHeight();
+            ImgProvider ip = new ImgProvider();
+            ip.setPixels(bi.getRGB(0, 0, w, h, null, 0, w), w, h);
+            ip.imgName = file.getName() + " [" + (i + 1) + "/" + count + "]";
+            return new Frame(ip, tree);
+        }//next
+
+        @Override
+        public void close() throws IOException {
+            reader.dispose();
+            in.close();
+        }//close
+    }//Frames
+
+    /** Writes frames to an animated GIF, in order. */
+    public static final class FrameWriter implements Closeable {
+        /** The file, opened. */
+        private final ImageOutputStream out;
+        /** Its writer. */
+        private final ImageWriter writer;
+        /** The screen to declare, or null for the first frame's size. */
+        private final IIOMetadataNode screen;
+        /** Whether the header has been written. */
+        private boolean started;
+
+        /**
+         * Create a file.
+         * @param file the file
+         * @param lsd the logical screen descriptor to copy, or null
+         * @throws IOException if it cannot be written
+         */
+        FrameWriter(final File file, final IIOMetadataNode lsd) throws IOException {
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("gif");
+            if (!writers.hasNext()) throw new IOException("No ImageIO writer for gif");
+            writer = writers.next();
+            if (file.exists() && !file.delete()) throw new IOException("Cannot replace " + file);
+            out = ImageIO.createImageOutputStream(file);
+            if (out == null) throw new IOException("Cannot write " + file);
+            writer.setOutput(out);
+            screen = lsd;
+        }//constructor
+
+        /**
+         * Add a frame, converting it to indexed color first.
+         * @param f the frame
+         * @throws IOException if it cannot be written
+         */
+        public void write(final Frame f) throws IOException {
+            write(encode(f));
+        }//write
+
+        /**
+         * Add a frame already converted.
+         * @param e the frame
+         * @throws IOException if it cannot be written
+         */
+        void write(final Encoded e) throws IOException {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (!started) {
+                IIOMetadata sm = writer.getDefaultStreamMetadata(param);
+                if (screen != null) {
+                    IIOMetadataNode root = new IIOMetadataNode(STREAM_FORMAT);
+                    root.appendChild(copy(screen));
+                    sm.mergeTree(STREAM_FORMAT, root);
+                }
+                writer.prepareWriteSequence(sm);
+                started = true;
+            }
+            IIOMetadata meta = writer.getDefaultImageMetadata(new ImageTypeSpecifier(e.image), param);
+            meta.mergeTree(IMAGE_FORMAT, e.tree);
+            writer.writeToSequence(new IIOImage(e.image, null, meta), param);
+        }//write
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (started) writer.endWriteSequence();
+            } finally {
+                writer.dispose();
+                out.close();
+            }
+        }//close
+    }//FrameWriter
+
+    /** A frame converted for writing: indexed pixels and metadata to match. */
+    static final class Encoded {
+        /** The pixels, with an IndexColorModel. */
+        final BufferedImage image;
+        /** The frame's metadata, its color table left to the writer. */
+        final IIOMetadataNode tree;
+
+        /**
+         * Hold a converted frame.
+         * @param bi the pixels
+         * @param t the metadata
+         */
+        Encoded(final BufferedImage bi, final IIOMetadataNode t) {
+            image = bi;
+            tree = t;
+        }//constructor
+    }//Encoded
+
+    /**
+     * Convert a frame to indexed color with metadata to match: the frame's
+     * own, less its color table, with the transparent index brought up to date.
+     * @param f the frame
+     * @return the converted frame
+     */
+    static Encoded encode(final Frame f) {
+        BufferedImage bi = indexed(f.getImage());
+        int clear = ((IndexColorModel) bi.getColorModel()).getTransparentPixel();
+        IIOMetadataNode tree = copy(f.meta);
+        Node lct = child(tree, "LocalColorTable");
+        if (lct != null) tree.removeChild(lct);
+        IIOMetadataNode gce = (IIOMetadataNode) child(tree, "GraphicControlExtension");
+        if (gce == null) {
+            gce = new IIOMetadataNode("GraphicControlExtension");
+            gce.setAttribute("disposalMethod", "none");
+            gce.setAttribute("userInputFlag", "FALSE");
+            gce.setAttribute("delayTime", "0");
+            tree.insertBefore(gce, child(tree, "ImageDescriptor").getNextSibling());
+        }
+        gce.setAttribute("transparentColorFlag", (clear >= 0) ? "TRUE" : "FALSE");
+        gce.setAttribute("transparentColorIndex", Integer.toString(Math.max(0, clear)));
+        return new Encoded(bi, tree);
+    }//encode
+
+    /**
+     * Convert an image to 8-bit indexed color.  Its own colors are kept
+     * when there are few enough; otherwise a median cut palette is chosen.
+     * Pixels less than half opaque all take index 0, the transparent color.
+     * @param ip the image
+     * @return the indexed image
+     */
+    static BufferedImage indexed(final ImgProvider ip) {
+        ip.ensureLoaded();
+        int[] pix = ip.pix;
+        int w = ip.pixwidth;
+        int h = ip.pixheight;
+        boolean clear = false;
+        for (int i = 0; i < pix.length && !clear; i++) clear = (pix[i] >>> 24) < 128;
+        int first = clear ? 1 : 0;
+        byte[] index = new byte[pix.length];
+        int[] colors = new int[Palette.MAX_COLORS];
+        int n = exact(pix, first, colors, index);
+        if (n < 0) {
+            Palette pal = Quantizer.palette(ip, Palette.MAX_COLORS - first, Quantizer.Method.MEDIAN_CUT);
+            n = first + pal.size();
+            for (int c = 0; c < pal.size(); c++) colors[first + c] = pal.getColor(c);
+            for (int i = 0; i < pix.length; i++) {
+                int p = pix[i];
+                index[i] = (clear && (p >>> 24) < 128) ? 0
+                    : (byte) (first + pal.nearest((p >> 16) & 255, (p >> 8) & 255, p & 255));
+            }
+        }
+        n = Math.max(n, 2);                     // GIF color tables hold at least two
+        byte[] rs = new byte[n];
+        byte[] gs = new byte[n];
+        byte[] bs = new byte[n];
+        for (int c = 0; c < n; c++) {
+            rs[c] = (byte) (colors[c] >> 16);
+            gs[c] = (byte) (colors[c] >> 8);
+            bs[c] = (byte) colors[c];
+        }
+        IndexColorModel model = clear ? new IndexColorModel(8, n, rs, gs, bs, 0)
+                                      : new IndexColorModel(8, n, rs, gs, bs);
+        BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, model);
+        byte[] data = ((DataBufferByte) bi.getRaster().getDataBuffer()).getData();
+        System.arraycopy(index, 0, data, 0, index.length);
+        return bi;
+    }//indexed
+
+    /**
+     * Index an image by its own colors, if it has few enough.
+     * @param pix the packed ARGB pixels
+     * @param first the first free index (1 if index 0 is the transparent color)
+     * @param colors receives the color of each index
+     * @param index receives the index of each pixel
+     * @return the number of indices used, or -1 if there are too many colors
+     */
+    private static int exact(final int[] pix, final int first, final int[] colors, final byte[] index) {
+        HashMap<Integer, Integer> seen = new HashMap<Integer, Integer>();
+        int n = first;
+        for (int i = 0; i < pix.length; i++) {
+            int p = pix[i];
+            if (first == 1 && (p >>> 24) < 128) {
+                index[i] = 0;
+                continue;
+            }
+            int rgb = p & 0xFFFFFF;
+            Integer at = seen.get(rgb);
+            if (at == null) {
+                if (n == colors.length) return -1;
+                colors[n] = rgb;
+                at = n++;
+                seen.put(rgb, at);
+            }
+            index[i] = (byte) (int) at;
+        }
+        return n;
+    }//exact
+
+    /**
+     * Copy a metadata tree.  IIOMetadataNode.cloneNode leaves the
+     * attributes behind, and the GIF plugin needs them all.
+     * @param node the root of the tree
+     * @return the copy
+     */
+    private static IIOMetadataNode copy(final IIOMetadataNode node) {
+        IIOMetadataNode c = new IIOMetadataNode(node.getNodeName());
+        c.setUserObject(node.getUserObject());
+        c.setNodeValue(node.getNodeValue());
+        for (int i = 0; i < node.getAttributes().getLength(); i++) {
+            Node a = node.getAttributes().item(i);
+            c.setAttribute(a.getNodeName(), a.getNodeValue());
+        }
+        for (Node k = node.getFirstChild(); k != null; k = k.getNextSibling()) {
+            c.appendChild(copy((IIOMetadataNode) k));
+        }
+        return c;
+    }//copy
+
+    /**
+     * Find the first child of a metadata node with a given name.
+     * @param node the parent, or null
+     * @param name the child's name
+     * @return the child, or null
+     */
+    private static Node child(final Node node, final String name) {
+        if (node == null) return null;
+        for (Node c = node.getFirstChild(); c != null; c = c.getNextSibling()) {
+            if (name.equals(c.getNodeName())) return c;
+        }
+        return null;
+    }//child
+
+    /**
+     * Read a metadata attribute.
+     * @param node the node
+     * @param name the attribute name
+     * @return its value, or null
+     */
+    private static String attribute(final Node node, final String name) {
+        Node a = (node.getAttributes() == null) ? null : node.getAttributes().getNamedItem(name);
+        return (a == null) ? null : a.getNodeValue();
+    }//attribute
+
+    /**
+     * Read a numeric metadata attribute.
+     * @param node the node, or null
+     * @param name the attribute name
+     * @param dflt the value if the node or attribute is missing
+     * @return its value
+     */
+    private static int number(final Node node, final String name, final int dflt) {
+        String v = (node == null) ? null : attribute(node, name);
+        return (v == null) ? dflt : Integer.parseInt(v);
+    }//number
+}//Animation
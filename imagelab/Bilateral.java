@@ -0,0 +1,198 @@
+package imagelab;
+
+import java.util.Arrays;
+
+/**
+ * Bilateral smooths an image while keeping its edges, using the
+ * bilateral grid of Chen, Paris and Durand.  Pixels are splatted into a
+ * coarse 3-D grid over x, y and brightness, the grid is blurred with a
+ * small separable kernel along all three axes, and each pixel then reads
+ * its result back out of the grid by trilinear interpolation.  Pixels
+ * of very different brightness land far apart in the grid and so are
+ * not mixed, which is what keeps the edges sharp.
+ * <p>
+ * The grid is smaller than the image by the square of the spatial sigma,
+ * so the cost hardly grows with the smoothing radius.  Splatting runs in
+ * parallel over bands of grid rows (each band owns its rows outright),
+ * blurring over grid planes, and slicing over image rows.  Brightness is
+ * the mean of red, green and blue; the three color channels are smoothed
+ * together and alpha is copied.
+ * @version 1.0
+ */
+public final class Bilateral {
+    /** Values kept per grid cell: red, green and blue sums, and weight. */
+    private static final int CELL = 4;
+    /** Empty cells kept around the data so slicing never leaves the grid. */
+    private static final int PAD = 1;
+    /** Smallest band of rows worth giving to another thread. */
+    private static final int GRAIN = 8;
+    /** Most grid cells made; two grids of this many cells are kept at once. */
+    static final long MAX_CELLS = Long.getLong("imagelab.bilateral.cells", 1L << 22);
+    /** Factor the spatial spacing grows by until the grid fits. */
+    private static final double COARSEN = 1.25;
+
+    /** Utility class; not instantiated. */
+    private Bilateral() { }
+
+    /**
+     * Smooth an image, keeping edges.
+     * @param ip the image
+     * @param spatial spatial sigma in pixels (the grid spacing), at least 1;
+     *        made larger if the grid would not fit in {@link #MAX_CELLS}
+     * @param range brightness sigma in gray levels (the grid spacing), at least 1
+     * @return the smoothed image
+     */
+    public static ImgProvider filter(final ImgProvider ip, final double spatial,
+                                     final double range) {
+        if (!(spatial >= 1) || !(range >= 1)) {
+            throw new IllegalArgumentException("Bilateral sigmas must be at least 1, not "
+                + spatial + " and " + range);
+        }
+        ip.ensureLoaded();
+        final int w = ip.pixwidth;
+        final int h = ip.pixheight;
+        final short[][] r = ip.red;
+        final short[][] g = ip.green;
+        final short[][] b = ip.blue;
+        final double cell = spacing(w, h, spatial, range);
+        final int gw = (int) Math.ceil((w - 1) / cell) + 1 + 2 * PAD;
+        final int gh = (int) Math.ceil((h - 1) / cell) + 1 + 2 * PAD;
+        final int gd = (int) Math.ceil(255 / range) + 1 + 2 * PAD;
+        final float[] grid = new float[gw * gh * gd * CELL];    //fits: see spacing
+
+        // 1. splat: each band of grid rows gathers the image rows nearest it
+        Parallel.forBands(gh, 1, (lo, hi) -> {
+            int y0 = Math.max(0, (int) Math.ceil((lo - PAD - 0.5) * cell));
+            int y1 = Math.min(h, (int) Math.ceil((hi - PAD - 0.5) * cell));
+            for (int y = y0; y < y1; y++) {
+                int gy = (int) Math.round(y / cell) + PAD;
+                if (gy < lo || gy >= hi) continue;
+                for (int x = 0; x < w; x++) {
+                    int gx = (int) Math.round(x / cell) + PAD;
+                    int gz = (int) Math.round((r[y][x] + g[y][x] + b[y][x]) / (3 * range)) + PAD;
+                    int at = ((gy * gw + gx) * gd + gz) * CELL;
+                    grid[at]     += r[y][x];
+                    grid[at + 1] += g[y][x];
+                    grid[at + 2] += b[y][x];
+                    grid[at + 3] += 1;
+                }
+            }
+        });
+
+        // 2. blur with [1 2 1] / 4 along brightness, x and y in turn
+        final float[] tmp = new float[grid.length];
+        blur(grid, tmp, gw, gh, gd, 2);
+        blur(tmp, grid, gw, gh, gd, 0);
+        blur(grid, tmp, gw, gh, gd, 1);
+        final float[] smooth = tmp;
+
+        // 3. slice: read each pixel back by trilinear interpolation
+        final short[][] nr = new short[h][w];
+        final short[][] ng = new short[h][w];
+        final short[][] nb = new short[h][w];
+        final short[][] na = new short[h][];
+        Parallel.forBands(h, GRAIN, (lo, hi) -> {
+            final float[] acc = new float[CELL];
+            for (int y = lo; y < hi; y++) {
+                na[y] = ip.alpha[y].clone();
+                double fy = y / cell + PAD;
+                int iy = Math.min((int) fy, gh - 2);
+                float ty = (float) (fy - iy);
+                for (int x = 0; x < w; x++) {
+                    double fx = x / cell + PAD;
+                    int ix = Math.min((int) fx, gw - 2);
+                    float tx = (float) (fx - ix);
+                    double fz = (r[y][x] + g[y][x] + b[y][x]) / (3 * range) + PAD;
+                    int iz = Math.min((int) fz, gd - 2);
+                    float tz = (float) (fz - iz);
+                    Arrays.fill(acc, 0f);
+                    for (int c = 0; c < 8; c++) {
+                        int dx = c & 1;
+                        int dy = (c >> 1) & 1;
+                        int dz = c >> 2;
+                        float wt = (dx == 0 ? 1 - tx : tx) * (dy == 0 ? 1 - ty : ty)
+                                 * (dz == 0 ? 1 - tz : tz);
+                        int at = (((iy + dy) * gw + ix + dx) * gd + iz + dz) * CELL;
+                        for (int k = 0; k < CELL; k++) acc[k] += wt * smooth[at + k];
+                    }
+                    if (acc[3] > 0) {
+                        nr[y][x] = (short) Math.min(255, Math.round(acc[0] / acc[3]));
+                        ng[y][x] = (short) Math.min(255, Math.round(acc[1] / acc[3]));
+                        nb[y][x] = (short) Math.min(255, Math.round(acc[2] / acc[3]));
+                    } else {
+                        nr[y][x] = r[y][x];
+                        ng[y][x] = g[y][x];
+                        nb[y][x] = b[y][x];
+                    }
+                }
+            }
+        });
+        ImgProvider out = new ImgProvider();
+        out.setPlanes(nr, ng, nb, na);
+        return out;
+    }//filter
+
+    /**
+     * The number of cells in the grid for an image.
+     * @param w image width
+     * @param h image height
+     * @param spatial spatial spacing in pixels
+     * @param range brightness spacing in gray levels
+     * @return the cells, counting padding
+     */
+    static long cells(final int w, final int h, final double spatial, final double range) {
+        long gw = (long) Math.ceil((w - 1) / spatial) + 1 + 2 * PAD;
+        long gh = (long) Math.ceil((h - 1) / spatial) + 1 + 2 * PAD;
+        long gd = (long) Math.ceil(255 / range) + 1 + 2 * PAD;
+        return gw * gh * gd;
+    }//cells
+
+    /**
+     * The spatial spacing actually used: the one asked for, or a coarser
+     * one if the grid would otherwise have more than {@link #MAX_CELLS}
+     * cells.  Small spacings on large photographs would need a grid
+     * bigger than the image itself; coarsening smooths more than asked
+     * but keeps the brightness spacing, and so the edges, as asked.
+     * @param w image width
+     * @param h image height
+     * @param spatial the spatial spacing asked for
+     * @param range the brightness spacing
+     * @return the spatial spacing to use
+     */
+    static double spacing(final int w, final int h, final double spatial, final double range) {
+        double s = spatial;
+        while (cells(w, h, s, range) > MAX_CELLS) s *= COARSEN;
+        return s;
+    }//spacing
+
+    /**
+     * Blur the grid with [1 2 1] / 4 along one axis.  Work is split over
+     * the grid's y planes; the padding cells at the ends of the axis
+     * are left at zero.
+     * @param in the grid to read
+     * @param out the grid to write
+     * @param gw grid width
+     * @param gh grid height
+     * @param gd grid depth
+     * @param axis 0 for x, 1 for y, 2 for brightness
+     */
+    private static void blur(final float[] in, final float[] out, final int gw, final int gh,
+                             final int gd, final int axis) {
+        final int step = (axis == 0) ? gd * CELL : (axis == 1) ? gw * gd * CELL : CELL;
+        Parallel.forBands(gh, 1, (lo, hi) -> {
+            for (int gy = lo; gy < hi; gy++) {
+                for (int gx = 0; gx < gw; gx++) {
+                    for (int gz = 0; gz < gd; gz++) {
+                        int at = ((gy * gw + gx) * gd + gz) * CELL;
+                        int i = (axis == 0) ? gx : (axis == 1) ? gy : gz;
+                        int n = (axis == 0) ? gw : (axis == 1) ? gh : gd;
+                        for (int k = 0; k < CELL; k++) {
+                            out[at + k] = (i == 0 || i == n - 1) ? 0f
+                                : (in[at + k - step] + 2 * in[at + k] + in[at + k + step]) * 0.25f;
+                        }
+                    }
+                }
+            }
+        });
+    }//blur
+}//Bilateral
@@ -0,0 +1,443 @@
+package imagelab;
+
+import java.util.Arrays;
+
+/**
+ * BinaryImage holds a black-and-white mask at one bit per pixel.
+ * Each row is an array of longs; pixel x of a row is bit (x % 64) of
+ * word (x / 64), and bits past the right edge are always 0.
+ * Logical operations, counting and morphology work a whole word
+ * (64 pixels) at a time, and rows are processed in parallel.
+ * A set bit (true) is white; a clear bit is black.
+ * @version 1.0
+ */
+public final class BinaryImage {
+    /** Bits per word. */
+    static final int WORD = 64;
+    /** Sample value of a white pixel. */
+    static final short WHITE = 255;
+    /** Smallest band of rows worth giving to another thread. */
+    private static final int GRAIN = 64;
+
+    /** Width in pixels. */
+    private final int width;
+    /** Height in pixels. */
+    private final int height;
+    /** Words in each row. */
+    private final int words;
+    /** Mask for the used bits of the last word of each row. */
+    private final long tail;
+    /** The bits, one array per row. */
+    final long[][] bits;
+
+    /**
+     * Create an all-black binary image.
+     * @param w width in pixels
+     * @param h height in pixels
+     */
+    public BinaryImage(final int w, final int h) {
+        if (w <= 0 || h <= 0) {
+            throw new IllegalArgumentException("Cannot make a " + w + "x" + h + " binary image");
+        }
+        width  = w;
+        height = h;
+        words  = (w + WORD - 1) / WORD;
+        tail   = (w % WORD == 0) ? -1L : (1L << (w % WORD)) - 1;
+        bits   = new long[h][words];
+    }//constructor
+
+    /**
+     * Threshold an image: pixels whose gray value ((r + g + b) / 3)
+     * is at least threshold become white.
+     * @param ip the image
+     * @param threshold the smallest gray value counted as white
+     * @return the binary image
+     */
+    public static BinaryImage fromImage(final ImgProvider ip, final int threshold) {
+        ip.ensureLoaded();
+        final short[][] r = ip.red;
+        final short[][] g = ip.green;
+        final short[][] b = ip.blue;
+        final BinaryImage bi = new BinaryImage(ip.pixwidth, ip.pixheight);
+        final int sum = 3 * threshold;
+        Parallel.forBands(bi.height, GRAIN, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                long[] out = bi.bits[y];
+                short[] rr = r[y];
+                short[] gr = g[y];
+                short[] br = b[y];
+                for (int x = 0; x < bi.width; x++) {
+                    // (r+g+b)/3 >= t  <=>  r+g+b >= 3t for whole numbers
+                    if (rr[x] + gr[x] + br[x] >= sum) out[x >> 6] |= 1L << x;
+                }
+            }
+        });
+        return bi;
+    }//fromImage
+
+    /**
+     * Threshold a single plane: samples of at least threshold become white.
+     * @param plane the plane
+     * @param threshold the smallest sample counted as white
+     * @return the binary image
+     */
+    public static BinaryImage fromPlane(final short[][] plane, final int threshold) {
+        final BinaryImage bi = new BinaryImage(plane[0].length, plane.length);
+        Parallel.forBands(bi.height, GRAIN, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                long[] out = bi.bits[y];
+                short[] in = plane[y];
+                for (int x = 0; x < bi.width; x++) {
+                    if (in[x] >= threshold) out[x >> 6] |= 1L << x;
+                }
+            }
+        });
+        return bi;
+    }//fromPlane
+
+    /**
+     * Expand to a plane of 0 (black) and 255 (white) samples.
+     * @return the plane
+     */
+    public short[][] toPlane() {
+        final short[][] plane = new short[height][width];
+        Parallel.forBands(height, GRAIN, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                long[] in = bits[y];
+                short[] out = plane[y];
+                for (int x = 0; x < width; x++) {
+                    if ((in[x >> 6] & (1L << x)) != 0) out[x] = WHITE;
+                }
+            }
+        });
+        return plane;
+    }//toPlane
+
+    /**
+     * Expand to an opaque black-and-white image.
+     * @return the image
+     */
+    public ImgProvider toImgProvider() {
+        short[][] plane = toPlane();
+        short[][] opaque = new short[height][width];
+        for (short[] row : opaque) Arrays.fill(row, WHITE);
+        short[][] g = new short[height][];
+        short[][] b = new short[height][];
+        for (int y = 0; y < height; y++) {
+            g[y] = plane[y].clone();
+            b[y] = plane[y].clone();
+        }
+        ImgProvider ip = new ImgProvider();
+        ip.setPlanes(plane, g, b, opaque);
+        return ip;
+    }//toImgProvider
+
+    /**
+     * Retrieve the width.
+     * @return the width in pixels
+     */
+    public int getWidth() { return width; }
+
+    /**
+     * Retrieve the height.
+     * @return the height in pixels
+     */
+    public int getHeight() { return height; }
+
+    /**
+     * Read one pixel.
+     * @param x the column
+     * @param y the row
+     * @return true if the pixel is white
+     */
+    public boolean get(final int x, final int y) {
+        return (bits[y][x >> 6] & (1L << x)) != 0;
+    }//get
+
+    /**
+     * Write one pixel.
+     * @param x the column
+     * @param y the row
+     * @param white true for white, false for black
+     */
+    public void set(final int x, final int y, final boolean white) {
+        if (white) bits[y][x >> 6] |= 1L << x;
+        else       bits[y][x >> 6] &= ~(1L << x);
+    }//set
+
+    /**
+     * Count the white pixels.
+     * @return the number of set bits
+     */
+    public long count() {
+        final long[] partial = new long[height];
+        Parallel.forBands(height, GRAIN, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                long n = 0;
+                for (long word : bits[y]) n += Long.bitCount(word);
+                partial[y] = n;
+            }
+        });
+        long total = 0;
+        for (long n : partial) total += n;
+        return total;
+    }//count
+
+    /** Word-by-word operations on pairs of rows. */
+    private interface WordOp {
+        /**
+         * Combine two words.
+         * @param a a word of this image
+         * @param b the matching word of the other image
+         * @return the combined word
+         */
+        long apply(long a, long b);
+    }
+
+    /**
+     * Combine this image with another of the same size, word by word.
+     * @param other the other image
+     * @param op the combining operation
+     * @return the combined image
+     */
+    private BinaryImage combine(final BinaryImage other, final WordOp op) {
+        if (other.width != width || other.height != height) {
+            throw new IllegalArgumentException("Binary images differ in size: "
+                + width + "x" + height + " and " + other.width + "x" + other.height);
+        }
+        final BinaryImage result = new BinaryImage(width, height);
+        Parallel.forBands(height, GRAIN, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                long[] a = bits[y];
+                long[] b = other.bits[y];
+                long[] out = result.bits[y];
+                for (int i = 0; i < words; i++) out[i] = op.apply(a[i], b[i]);
+                out[words - 1] &= tail;
+            }
+        });
+        return result;
+    }//combine
+
+    /**
+     * Pixels white in both images.
+     * @param other an image of the same size
+     * @return the intersection
+     */
+    public BinaryImage and(final BinaryImage other) {
+        return combine(other, (a, b) -> a & b);
+    }//and
+
+    /**
+     * Pixels white in either image.
+     * @param other an image of the same size
+     * @return the union
+     */
+    public BinaryImage or(final BinaryImage other) {
+        return combine(other, (a, b) -> a | b);
+    }//or
+
+    /**
+     * Pixels white in exactly one of the images.
+     * @param other an image of the same size
+     * @return the symmetric difference
+     */
+    public BinaryImage xor(final BinaryImage other) {
+        return combine(other, (a, b) -> a ^ b);
+    }//xor
+
+    /**
+     * Pixels white in this image but not in the other.
+     * @param other an image of the same size
+     * @return the difference
+     */
+    public BinaryImage andNot(final BinaryImage other) {
+        return combine(other, (a, b) -> a & ~b);
+    }//andNot
+
+    /**
+     * Swap black and white.
+     * @return the complement
+     */
+    public BinaryImage not() {
+        return combine(this, (a, b) -> ~a);
+    }//not
+
+    /**
+     * Make a copy of this image.
+     * @return the copy
+     */
+    public BinaryImage copy() {
+        return combine(this, (a, b) -> a);
+    }//copy
+
+    /**
+     * Dilate with a (2*rx+1) x (2*ry+1) rectangle.
+     * Pixels outside the image count as black.
+     * @param rx the horizontal radius
+     * @param ry the vertical radius
+     * @return the dilated image
+     */
+    public BinaryImage dilate(final int rx, final int ry) {
+        return dilateColumns(dilateRows(this, rx), ry);
+    }//dilate
+
+    /**
+     * Erode with a (2*rx+1) x (2*ry+1) rectangle.
+     * Pixels outside the image do not affect the result.
+     * @param rx the horizontal radius
+     * @param ry the vertical radius
+     * @return the eroded image
+     */
+    public BinaryImage erode(final int rx, final int ry) {
+        return not().dilate(rx, ry).not();
+    }//erode
+
+    /**
+     * Open (erode, then dilate) with a rectangle.
+     * @param rx the horizontal radius
+     * @param ry the vertical radius
+     * @return the opened image
+     */
+    public BinaryImage open(final int rx, final int ry) {
+        return erode(rx, ry).dilate(rx, ry);
+    }//open
+
+    /**
+     * Close (dilate, then erode) with a rectangle.
+     * @param rx the horizontal radius
+     * @param ry the vertical radius
+     * @return the closed image
+     */
+    public BinaryImage close(final int rx, final int ry) {
+        return dilate(rx, ry).erode(rx, ry);
+    }//close
+
+    /**
+     * OR each row with its neighbors up to r pixels either side.
+     * The window is split into the r+1 pixels ending at x and the r+1
+     * starting at x.  A run of length k is the OR of two overlapping runs
+     * whose length is the largest power of two p not above k, and a run of
+     * length 2p is built from two of length p, so each half needs only
+     * about log2(r) shifted copies of the row.
+     * @param src the image
+     * @param r the radius
+     * @return the dilated image
+     */
+    private static BinaryImage dilateRows(final BinaryImage src, final int r) {
+        if (r <= 0) return src;
+        final int n = src.words;
+        final BinaryImage result = new BinaryImage(src.width, src.height);
+        Parallel.forBands(src.height, GRAIN, (lo, hi) -> {
+            long[] ahead = new long[n];
+            long[] behind = new long[n];
+            long[] tmp = new long[n];
+            for (int y = lo; y < hi; y++) {
+                src.runRow(src.bits[y], r + 1, 1, ahead, tmp);
+                src.runRow(src.bits[y], r + 1, -1, behind, tmp);
+                long[] out = result.bits[y];
+                for (int i = 0; i < n; i++) out[i] = ahead[i] | behind[i];
+            }
+        });
+        return result;
+    }//dilateRows
+
+    /**
+     * Compute run[x] = OR of row[x], row[x + dir], ... row[x + (k-1)*dir].
+     * @param row the row
+     * @param k the length of the run
+     * @param dir 1 to look right, -1 to look left
+     * @param run receives the result
+     * @param tmp scratch space the size of a row
+     */
+    private void runRow(final long[] row, final int k, final int dir,
+                        final long[] run, final long[] tmp) {
+        System.arraycopy(row, 0, run, 0, words);
+        int p = 1;
+        while (2 * p <= k) {
+            shift(run, dir * p, tmp);
+            for (int i = 0; i < words; i++) run[i] |= tmp[i];
+            p *= 2;
+        }
+        if (k > p) {
+            shift(run, dir * (k - p), tmp);
+            for (int i = 0; i < words; i++) run[i] |= tmp[i];
+        }
+    }//runRow
+
+    /**
+     * OR each row with the rows up to r above and below it,
+     * using the same doubling scheme as dilateRows.
+     * @param src the image
+     * @param r the radius
+     * @return the dilated image
+     */
+    private static BinaryImage dilateColumns(final BinaryImage src, final int r) {
+        if (r <= 0) return src;
+        return runColumns(src, r + 1, 1).or(runColumns(src, r + 1, -1));
+    }//dilateColumns
+
+    /**
+     * Compute rows where row y is the OR of source rows y, y + dir,
+     * ... y + (k-1)*dir.
+     * @param src the image
+     * @param k the length of the run
+     * @param dir 1 to look down, -1 to look up
+     * @return the new image
+     */
+    private static BinaryImage runColumns(final BinaryImage src, final int k, final int dir) {
+        BinaryImage run = src;
+        int p = 1;
+        while (2 * p <= k) {
+            run = orRows(run, dir * p);
+            p *= 2;
+        }
+        return (k > p) ? orRows(run, dir * (k - p)) : run;
+    }//runColumns
+
+    /**
+     * OR each row with the row d below it (above it if d is negative).
+     * Rows beyond the image are black.
+     * @param src the image
+     * @param d the distance in rows
+     * @return the new image
+     */
+    private static BinaryImage orRows(final BinaryImage src, final int d) {
+        final BinaryImage result = new BinaryImage(src.width, src.height);
+        Parallel.forBands(src.height, GRAIN, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                long[] a = src.bits[y];
+                long[] out = result.bits[y];
+                if (y + d >= 0 && y + d < src.height) {
+                    long[] b = src.bits[y + d];
+                    for (int i = 0; i < src.words; i++) out[i] = a[i] | b[i];
+                } else {
+                    System.arraycopy(a, 0, out, 0, src.words);
+                }
+            }
+        });
+        return result;
+    }//orRows
+
+    /**
+     * Shift a row so that out[x] = in[x + s]; pixels from beyond
+     * either edge are black.
+     * @param in the row
+     * @param s the shift in pixels (may be negative)
+     * @param out receives the shifted row; must not be in
+     */
+    void shift(final long[] in, final int s, final long[] out) {
+        int ws = Math.floorDiv(s, WORD);
+        int bs = Math.floorMod(s, WORD);
+        for (int i = 0; i < words; i++) {
+            int j = i + ws;
+            long lo = (j >= 0 && j < words) ? in[j] : 0;
+            if (bs == 0) {
+                out[i] = lo;
+            } else {
+                long hi = (j + 1 >= 0 && j + 1 < words) ? in[j + 1] : 0;
+                out[i] = (lo >>> bs) | (hi << (WORD - bs));
+            }
+        }
+        out[words - 1] &= tail;
+    }//shift
+}//BinaryImage
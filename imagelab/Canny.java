@@ -0,0 +1,301 @@
+package imagelab;
+
+import java.util.Arrays;
+
+/**
+ * Canny finds edges in an image with the classic four stages:
+ * Gaussian smoothing, Sobel gradient, non-maximum suppression and
+ * hysteresis thresholding.  Every stage runs over row bands in parallel.
+ * A Canny object keeps its working buffers and reuses them for the next
+ * image of the same (or smaller) size, so repeated use allocates nothing.
+ * Hysteresis is iterative: each pass promotes weak edge pixels touching
+ * strong ones, alternating scan direction, until a pass changes nothing.
+ * @version 1.0
+ */
+public class Canny {
+    /** Default Gaussian standard deviation, in pixels. */
+    public static final double DEFAULT_SIGMA = 1.4;
+    /** Default low hysteresis threshold on gradient magnitude. */
+    public static final double DEFAULT_LOW = 30;
+    /** Default high hysteresis threshold on gradient magnitude. */
+    public static final double DEFAULT_HIGH = 90;
+
+    /** Pixel is not an edge. */
+    static final byte NOT_EDGE = 0;
+    /** Pixel is a weak edge candidate. */
+    static final byte WEAK = 1;
+    /** Pixel is a confirmed edge. */
+    static final byte STRONG = 2;
+
+    /** tan(22.5 degrees), bounding the horizontal direction sector. */
+    private static final double TAN_22 = Math.tan(Math.PI / 8);
+    /** tan(67.5 degrees), bounding the vertical direction sector. */
+    private static final double TAN_67 = Math.tan(3 * Math.PI / 8);
+    /** Smallest band of rows worth giving to another thread. */
+    private static final int GRAIN = 16;
+    /** Gaussian kernel radius in standard deviations. */
+    private static final double KERNEL_SIGMAS = 3;
+
+    /** Gaussian standard deviation. */
+    private final double sigma;
+    /** Low hysteresis threshold. */
+    private final double low;
+    /** High hysteresis threshold. */
+    private final double high;
+
+    /** Gray image, later reused for the smoothed image. */
+    private float[] gray = new float[0];
+    /** Intermediate of the separable blur. */
+    private float[] blur = new float[0];
+    /** Gradient magnitude. */
+    private float[] mag = new float[0];
+    /** Gradient direction sector, 0 to 3. */
+    private byte[] dir = new byte[0];
+    /** Edge state: NOT_EDGE, WEAK or STRONG. */
+    private byte[] state = new byte[0];
+
+    /** Create a detector with the default settings. */
+    public Canny() {
+        this(DEFAULT_SIGMA, DEFAULT_LOW, DEFAULT_HIGH);
+    }//constructor
+
+    /**
+     * Create a detector.
+     * @param sig Gaussian standard deviation in pixels (0 for no smoothing)
+     * @param lo gradient magnitude below which nothing is an edge
+     * @param hi gradient magnitude at or above which a maximum is
+     *        always an edge
+     */
+    public Canny(final double sig, final double lo, final double hi) {
+        if (sig < 0 || lo < 0 || hi < lo) {
+            throw new IllegalArgumentException("Bad Canny settings: sigma " + sig
+                + ", thresholds " + lo + " and " + hi);
+        }
+        sigma = sig;
+        low   = lo;
+        high  = hi;
+    }//constructor
+
+    /**
+     * Find the edges of an image.
+     * @param ip the image
+     * @return edge pixels as white
+     */
+    public synchronized BinaryImage detect(final ImgProvider ip) {
+        ip.ensureLoaded();
+        final int w = ip.pixwidth;
+        final int h = ip.pixheight;
+        allocate(w * h);
+        toGray(ip, w, h);
+        smooth(w, h);
+        gradient(w, h);
+        suppress(w, h);
+        hysteresis(w, h);
+        final BinaryImage edges = new BinaryImage(w, h);
+        Parallel.forBands(h, GRAIN, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                long[] out = edges.bits[y];
+                for (int x = 0, i = y * w; x < w; x++, i++) {
+                    if (state[i] == STRONG) out[x >> 6] |= 1L << x;
+                }
+            }
+        });
+        return edges;
+    }//detect
+
+    /**
+     * Find the edges of an image with the default settings.
+     * @param ip the image
+     * @return an image with white edges on black
+     */
+    public static ImgProvider edges(final ImgProvider ip) {
+        return new Canny().detect(ip).toImgProvider();
+    }//edges
+
+    /**
+     * Make sure the buffers hold at least n pixels.
+     * @param n the number of pixels
+     */
+    private void allocate(final int n) {
+        if (gray.length >= n) return;
+        gray  = new float[n];
+        blur  = new float[n];
+        mag   = new float[n];
+        dir   = new byte[n];
+        state = new byte[n];
+    }//allocate
+
+    /**
+     * Stage 0: average the color planes into gray.
+     * @param ip the image
+     * @param w the width
+     * @param h the height
+     */
+    private void toGray(final ImgProvider ip, final int w, final int h) {
+        final short[][] r = ip.red;
+        final short[][] g = ip.green;
+        final short[][] b = ip.blue;
+        Parallel.forBands(h, GRAIN, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                for (int x = 0, i = y * w; x < w; x++, i++) {
+                    gray[i] = (r[y][x] + g[y][x] + b[y][x]) / 3f;
+                }
+            }
+        });
+    }//toGray
+
+    /**
+     * Stage 1: separable Gaussian blur of gray, in place.
+     * @param w the width
+     * @param h the height
+     */
+    private void smooth(final int w, final int h) {
+        final int radius = (int) Math.ceil(KERNEL_SIGMAS * sigma);
+        if (radius == 0) return;
+        final float[] k = new float[2 * radius + 1];
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            k[i + radius] = (float) Math.exp(-(i * i) / (2 * sigma * sigma));
+            sum += k[i + radius];
+        }
+        for (int i = 0; i < k.length; i++) k[i] /= sum;
+        Parallel.forBands(h, GRAIN, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                int row = y * w;
+                for (int x = 0; x < w; x++) {
+                    float acc = 0;
+                    for (int j = -radius; j <= radius; j++) {
+                        int xx = Math.min(w - 1, Math.max(0, x + j));
+                        acc += k[j + radius] * gray[row + xx];
+                    }
+                    blur[row + x] = acc;
+                }
+            }
+        });
+        Parallel.forBands(h, GRAIN, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                int row = y * w;
+                Arrays.fill(gray, row, row + w, 0f);
+                for (int j = -radius; j <= radius; j++) {
+                    int src = Math.min(h - 1, Math.max(0, y + j)) * w;
+                    float kj = k[j + radius];
+                    for (int x = 0; x < w; x++) gray[row + x] += kj * blur[src + x];
+                }
+            }
+        });
+    }//smooth
+
+    /**
+     * Stage 2: Sobel gradient magnitude and direction sector.
+     * Sector 0 is a horizontal gradient, 2 vertical, 1 and 3 the diagonals.
+     * @param w the width
+     * @param h the height
+     */
+    private void gradient(final int w, final int h) {
+        Parallel.forBands(h, GRAIN, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                int up = Math.max(0, y - 1) * w;
+                int mid = y * w;
+                int dn = Math.min(h - 1, y + 1) * w;
+                for (int x = 0; x < w; x++) {
+                    int l = Math.max(0, x - 1);
+                    int r = Math.min(w - 1, x + 1);
+                    float gx = (gray[up + r] + 2 * gray[mid + r] + gray[dn + r])
+                             - (gray[up + l] + 2 * gray[mid + l] + gray[dn + l]);
+                    float gy = (gray[dn + l] + 2 * gray[dn + x] + gray[dn + r])
+                             - (gray[up + l] + 2 * gray[up + x] + gray[up + r]);
+                    mag[mid + x] = (float) Math.sqrt(gx * gx + gy * gy);
+                    float ax = Math.abs(gx);
+                    float ay = Math.abs(gy);
+                    byte sector;
+                    if (ay <= ax * TAN_22)      sector = 0;
+                    else if (ay >= ax * TAN_67) sector = 2;
+                    else if (gx * gy > 0)       sector = 1;
+                    else                        sector = 3;
+                    dir[mid + x] = sector;
+                }
+            }
+        });
+    }//gradient
+
+    /**
+     * Stage 3: keep only pixels whose magnitude is a maximum across the
+     * edge, classifying them as weak or strong.  The image border is
+     * never an edge.
+     * @param w the width
+     * @param h the height
+     */
+    private void suppress(final int w, final int h) {
+        final int[] offset = {1, w + 1, w, w - 1};
+        Parallel.forBands(h, GRAIN, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                for (int x = 0, i = y * w; x < w; x++, i++) {
+                    byte s = NOT_EDGE;
+                    if (x > 0 && y > 0 && x < w - 1 && y < h - 1) {
+                        float m = mag[i];
+                        int d = offset[dir[i]];
+                        if (m >= low && m > mag[i - d] && m >= mag[i + d]) {
+                            s = (m >= high) ? STRONG : WEAK;
+                        }
+                    }
+                    state[i] = s;
+                }
+            }
+        });
+    }//suppress
+
+    /**
+     * Stage 4: promote weak pixels connected to strong ones, repeating
+     * parallel passes until nothing changes.  Bands may see each other's
+     * promotions early; that only speeds things up, since a pixel is
+     * never demoted.
+     * @param w the width
+     * @param h the height
+     */
+    private void hysteresis(final int w, final int h) {
+        final boolean[] changed = new boolean[1];
+        boolean forward = true;
+        do {
+            changed[0] = false;
+            final boolean fwd = forward;
+            Parallel.forBands(h, GRAIN, (lo, hi) -> {
+                boolean any = false;
+                for (int k = lo; k < hi; k++) {
+                    int y = fwd ? k : lo + hi - 1 - k;
+                    for (int j = 0; j < w; j++) {
+                        int x = fwd ? j : w - 1 - j;
+                        int i = y * w + x;
+                        if (state[i] != WEAK) continue;
+                        if (touchesStrong(i, x, y, w, h)) {
+                            state[i] = STRONG;
+                            any = true;
+                        }
+                    }
+                }
+                if (any) changed[0] = true;
+            });
+            forward = !forward;
+        } while (changed[0]);
+    }//hysteresis
+
+    /**
+     * Whether any of a pixel's eight neighbors is a confirmed edge.
+     * @param i the pixel's index
+     * @param x its column
+     * @param y its row
+     * @param w the width
+     * @param h the height
+     * @return true if a neighbor is STRONG
+     */
+    private boolean touchesStrong(final int i, final int x, final int y,
+                                  final int w, final int h) {
+        for (int dy = -1; dy <= 1; dy++) {
+            if (y + dy < 0 || y + dy >= h) continue;
+            for (int dx = -1; dx <= 1; dx++) {
+                if (x + dx < 0 || x + dx >= w) continue;
+                if (state[i + dy * w + dx] == STRONG) return true;
+            }
+        }
+        return false;
+    }//touchesStrong
+}//Canny
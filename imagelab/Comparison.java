@@ -0,0 +1,369 @@
+package imagelab;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Comparison measures how far an image is from an expected (golden)
+ * image: exact equality, the largest and mean absolute error of each
+ * channel, PSNR over red, green and blue, and SSIM of the luminance.
+ * Identical images are recognized by equal content hashes, confirmed by
+ * comparing the pixels; otherwise everything is gathered in one pass
+ * over 64x64 tiles in parallel, SSIM using the 8x8 windows inside each
+ * tile.  A heatmap of where the images differ can be drawn on request.
+ * <p>
+ * Images of different sizes are never equal; they get the worst
+ * possible scores and no heatmap.
+ * <p>
+ * The main method compares files without opening any windows, for
+ * regression suites.
+ * @version 1.0
+ */
+public final class Comparison {
+    /** Channel number of red. */
+    public static final int RED = 0;
+    /** Channel number of green. */
+    public static final int GREEN = 1;
+    /** Channel number of blue. */
+    public static final int BLUE = 2;
+    /** Channel number of alpha. */
+    public static final int ALPHA = 3;
+
+    /** Side of a tile. */
+    private static final int TILE = 64;
+    /** Side of an SSIM window. */
+    private static final int WINDOW = 8;
+    /** SSIM stabilizer for the means, (0.01 * 255)^2. */
+    private static final double C1 = 6.5025;
+    /** SSIM stabilizer for the variances, (0.03 * 255)^2. */
+    private static final double C2 = 58.5225;
+    /** Largest channel value. */
+    private static final int PEAK = 255;
+
+    /** The expected image. */
+    private final ImgProvider expected;
+    /** The image being checked. */
+    private final ImgProvider actual;
+    /** Whether the images have the same size. */
+    private final boolean sameSize;
+    /** Largest absolute error per channel. */
+    private final int[] maxError = new int[4];
+    /** Mean absolute error per channel. */
+    private final double[] meanError = new double[4];
+    /** Peak signal to noise ratio in decibels. */
+    private final double psnr;
+    /** Mean structural similarity of the luminance. */
+    private final double ssim;
+
+    /**
+     * Compare two images.
+     * @param exp the expected image
+     * @param act the image being checked
+     */
+    public Comparison(final ImgProvider exp, final ImgProvider act) {
+        expected = exp;
+        actual = act;
+        exp.ensureLoaded();
+        act.ensureLoaded();
+        sameSize = exp.pixwidth == act.pixwidth && exp.pixheight == act.pixheight;
+        if (!sameSize) {
+            Arrays.fill(maxError, PEAK);
+            Arrays.fill(meanError, PEAK);
+            psnr = 0;
+            ssim = 0;
+            return;
+        }
+        if (Arrays.equals(ContentHash.hash128(exp), ContentHash.hash128(act))
+            && Arrays.equals(exp.pix, act.pix)) {
+            // identical, confirmed pixel by pixel, so skip measuring
+            psnr = Double.POSITIVE_INFINITY;
+            ssim = 1;
+            return;
+        }
+        final int w = exp.pixwidth;
+        final int h = exp.pixheight;
+        final int tx = (w + TILE - 1) / TILE;
+        final int ty = (h + TILE - 1) / TILE;
+        // per tile: max and sum of |error| for 4 channels, squared RGB error,
+        // SSIM sum and window count
+        final long[][] sums = new long[tx * ty][];
+        final double[] ssimSum = new double[tx * ty];
+        final int[] windows = new int[tx * ty];
+        Parallel.forEach(tx * ty, (t, unused) -> {
+            int x0 = (t % tx) * TILE;
+            int y0 = (t / tx) * TILE;
+            int x1 = Math.min(w, x0 + TILE);
+            int y1 = Math.min(h, y0 + TILE);
+            long[] s = new long[9];
+            short[][][] pe = {exp.red, exp.green, exp.blue, exp.alpha};
+            short[][][] pa = {act.red, act.green, act.blue, act.alpha};
+            for (int c = 0; c < 4; c++) {
+                long max = 0;
+                long sum = 0;
+                long sq = 0;
+                for (int y = y0; y < y1; y++) {
+                    short[] re = pe[c][y];
+                    short[] ra = pa[c][y];
+                    for (int x = x0; x < x1; x++) {
+                        int d = Math.abs(re[x] - ra[x]);
+                        if (d > max) max = d;
+                        sum += d;
+                        sq += d * d;
+                    }
+                }
+                s[c] = max;
+                s[4 + c] = sum;
+                if (c < ALPHA) s[8] += sq;
+            }
+            sums[t] = s;
+            for (int wy = y0; wy < y1; wy += WINDOW) {
+                for (int wx = x0; wx < x1; wx += WINDOW) {
+                    ssimSum[t] += windowSsim(exp, act, wx, wy,
+                                             Math.min(x1, wx + WINDOW), Math.min(y1, wy + WINDOW));
+                    windows[t]++;
+                }
+            }
+        });
+        long sq = 0;
+        long[] sum = new long[4];
+        double ss = 0;
+        int nw = 0;
+        for (int t = 0; t < sums.length; t++) {
+            for (int c = 0; c < 4; c++) {
+                maxError[c] = (int) Math.max(maxError[c], sums[t][c]);
+                sum[c] += sums[t][4 + c];
+            }
+            sq += sums[t][8];
+            ss += ssimSum[t];
+            nw += windows[t];
+        }
+        double n = (double) w * h;
+        for (int c = 0; c < 4; c++) meanError[c] = (n == 0) ? 0 : sum[c] / n;
+        double mse = (n == 0) ? 0 : sq / (3 * n);
+        psnr = (mse == 0) ? Double.POSITIVE_INFINITY : 10 * Math.log10(PEAK * PEAK / mse);
+        ssim = (nw == 0) ? 1 : ss / nw;
+    }//constructor
+
+    /**
+     * SSIM of the luminance over one window.
+     * @param a one image
+     * @param b the other image
+     * @param x0 left column
+     * @param y0 top row
+     * @param x1 one past the right column
+     * @param y1 one past the bottom row
+     * @return the window's SSIM
+     */
+    private static double windowSsim(final ImgProvider a, final ImgProvider b,
+                                     final int x0, final int y0, final int x1, final int y1) {
+        double sa = 0, sb = 0, saa = 0, sbb = 0, sab = 0;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                double la = luma(a, x, y);
+                double lb = luma(b, x, y);
+                sa += la;
+                sb += lb;
+                saa += la * la;
+                sbb += lb * lb;
+                sab += la * lb;
+            }
+        }
+        double n = (x1 - x0) * (y1 - y0);
+        double ma = sa / n;
+        double mb = sb / n;
+        double va = saa / n - ma * ma;
+        double vb = sbb / n - mb * mb;
+        double cov = sab / n - ma * mb;
+        return ((2 * ma * mb + C1) * (2 * cov + C2))
+             / ((ma * ma + mb * mb + C1) * (va + vb + C2));
+    }//windowSsim
+
+    /**
+     * Rec. 601 luminance of a pixel.
+     * @param ip the image
+     * @param x the column
+     * @param y the row
+     * @return the luminance, 0 to 255
+     */
+    private static double luma(final ImgProvider ip, final int x, final int y) {
+        return 0.299 * ip.red[y][x] + 0.587 * ip.green[y][x] + 0.114 * ip.blue[y][x];
+    }//luma
+
+    /**
+     * Whether the images are the same size.
+     * @return true if they are
+     */
+    public boolean isSameSize() { return sameSize; }
+
+    /**
+     * Whether the images are exactly equal, alpha included.
+     * @return true if every sample matches
+     */
+    public boolean isIdentical() {
+        return sameSize && maxError[RED] == 0 && maxError[GREEN] == 0
+            && maxError[BLUE] == 0 && maxError[ALPHA] == 0;
+    }//isIdentical
+
+    /**
+     * Retrieve the largest absolute error of a channel.
+     * @param channel RED, GREEN, BLUE or ALPHA
+     * @return the error, 0 to 255
+     */
+    public int getMaxError(final int channel) { return maxError[channel]; }
+
+    /**
+     * Retrieve the mean absolute error of a channel.
+     * @param channel RED, GREEN, BLUE or ALPHA
+     * @return the error, 0 to 255
+     */
+    public double getMeanError(final int channel) { return meanError[channel]; }
+
+    /**
+     * Retrieve the peak signal to noise ratio over red, green and blue.
+     * @return decibels; infinite for identical colors
+     */
+    public double getPsnr() { return psnr; }
+
+    /**
+     * Retrieve the mean structural similarity of the luminance.
+     * @return 1 for identical, lower for less alike
+     */
+    public double getSsim() { return ssim; }
+
+    /**
+     * Draw where the images differ: black where they agree, through red
+     * and yellow to white for the largest channel difference.
+     * @return the heatmap, the size of the images
+     */
+    public ImgProvider heatmap() {
+        if (!sameSize) throw new IllegalStateException("Images differ in size");
+        final int w = expected.pixwidth;
+        final int h = expected.pixheight;
+        final short[][] r = new short[h][w];
+        final short[][] g = new short[h][w];
+        final short[][] b = new short[h][w];
+        final short[][] a = new short[h][w];
+        Parallel.forBands(h, TILE / 4, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                for (int x = 0; x < w; x++) {
+                    int d = Math.max(Math.max(Math.abs(expected.red[y][x] - actual.red[y][x]),
+                                              Math.abs(expected.green[y][x] - actual.green[y][x])),
+                                     Math.max(Math.abs(expected.blue[y][x] - actual.blue[y][x]),
+                                              Math.abs(expected.alpha[y][x] - actual.alpha[y][x])));
+                    int heat = 3 * d;
+                    r[y][x] = (short) Math.min(PEAK, heat);
+                    g[y][x] = (short) Math.min(PEAK, Math.max(0, heat - PEAK));
+                    b[y][x] = (short) Math.max(0, heat - 2 * PEAK);
+                    a[y][x] = PEAK;
+                }
+            }
+        });
+        ImgProvider ip = new ImgProvider();
+        ip.setPlanes(r, g, b, a);
+        return ip;
+    }//heatmap
+
+    /**
+     * One line summing up the comparison.
+     * @return the summary
+     */
+    @Override
+    public String toString() {
+        if (!sameSize) {
+            return "size " + actual.pixwidth + "x" + actual.pixheight + ", expected "
+                + expected.pixwidth + "x" + expected.pixheight;
+        }
+        return String.format("max %d/%d/%d/%d mean %.3f/%.3f/%.3f/%.3f psnr %.2f ssim %.5f",
+            maxError[RED], maxError[GREEN], maxError[BLUE], maxError[ALPHA],
+            meanError[RED], meanError[GREEN], meanError[BLUE], meanError[ALPHA], psnr, ssim);
+    }//toString
+
+    /**
+     * Compare images without a display.
+     * <pre>
+     * java imagelab.Comparison [--psnr DB] [--ssim S] [--heatmaps DIR] EXPECTED ACTUAL
+     * </pre>
+     * EXPECTED and ACTUAL are two image files, or two directories whose
+     * files are matched by name.  Without thresholds only identical
+     * images pass; with them, an image passes when it meets every
+     * threshold given.  Heatmaps of failures go to DIR.  One line is
+     * printed per image and the exit status is 1 if any failed.
+     * @param args the options and paths
+     * @throws IOException if a directory cannot be listed
+     */
+    public static void main(final String[] args) throws IOException {
+        ImgProvider.setHeadless(true);
+        double minPsnr = Double.NaN;
+        double minSsim = Double.NaN;
+        File heatDir = null;
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--psnr") && i + 1 < args.length) {
+                minPsnr = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--ssim") && i + 1 < args.length) {
+                minSsim = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--heatmaps") && i + 1 < args.length) {
+                heatDir = new File(args[++i]);
+            } else {
+                paths.add(args[i]);
+            }
+        }
+        if (paths.size() != 2) {
+            System.err.println("usage: java imagelab.Comparison [--psnr DB] [--ssim S]"
+                + " [--heatmaps DIR] EXPECTED ACTUAL");
+            System.exit(2);
+        }
+        final File exp = new File(paths.get(0));
+        final File act = new File(paths.get(1));
+        final List<String> names = new ArrayList<String>();
+        if (exp.isDirectory()) {
+            String[] listed = exp.list();
+            if (listed == null) throw new IOException("Cannot list " + exp);
+            Arrays.sort(listed);
+            for (String name : listed) {
+                if (new File(exp, name).isFile()) names.add(name);
+            }
+        } else {
+            names.add("");
+        }
+        final String[] lines = new String[names.size()];
+        final boolean[] failed = new boolean[names.size()];
+        final double psnrBar = minPsnr;
+        final double ssimBar = minSsim;
+        final File heat = heatDir;
+        if (heat != null) heat.mkdirs();
+        Parallel.forEach(names.size(), (i, unused) -> {
+            String name = names.get(i);
+            File e = name.isEmpty() ? exp : new File(exp, name);
+            File a = name.isEmpty() ? act : new File(act, name);
+            String label = name.isEmpty() ? a.getPath() : name;
+            try {
+                Comparison cmp = new Comparison(ImgProvider.read(e), ImgProvider.read(a));
+                boolean thresholds = !Double.isNaN(psnrBar) || !Double.isNaN(ssimBar);
+                boolean pass = cmp.isIdentical() || (thresholds && cmp.isSameSize()
+                    && (Double.isNaN(psnrBar) || cmp.getPsnr() >= psnrBar)
+                    && (Double.isNaN(ssimBar) || cmp.getSsim() >= ssimBar));
+                failed[i] = !pass;
+                lines[i] = (pass ? "PASS " : "FAIL ") + label
+                    + (cmp.isIdentical() ? " identical" : " " + cmp);
+                if (!pass && heat != null && cmp.isSameSize()) {
+                    String base = new File(label).getName();
+                    cmp.heatmap().write(new File(heat, base.replaceAll("\\.[^.]*$", "") + ".png"));
+                }
+            } catch (IOException ioe) {
+                failed[i] = true;
+                lines[i] = "FAIL " + label + " " + ioe.getMessage();
+            }
+        });
+        int fails = 0;
+        for (int i = 0; i < lines.length; i++) {
+            System.out.println(lines[i]);
+            if (failed[i]) fails++;
+        }
+        System.out.println((lines.length - fails) + " passed, " + fails + " failed");
+        System.exit(fails == 0 ? 0 : 1);
+    }//main
+}//Comparison
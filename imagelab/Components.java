@@ -0,0 +1,281 @@
+package imagelab;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Components finds the connected regions (blobs) of white pixels in a
+ * binary image and measures them.
+ * Labeling is a parallel union-find: the image is cut into strips of
+ * rows, each strip is scanned and its pixels joined on its own, then the
+ * pairs of rows where strips meet are joined, and finally every pixel is
+ * given the number of its region.  Regions are numbered from 1 in the
+ * order their first pixel is met scanning left to right, top to bottom;
+ * 0 marks the background.
+ * @version 1.0
+ */
+public final class Components {
+    /** Fewest rows worth a strip of their own. */
+    private static final int MIN_STRIP = 16;
+    /** Marks a background pixel in the union-find forest. */
+    private static final int NONE = -1;
+    /** Golden-ratio step used to spread label hues apart. */
+    private static final float HUE_STEP = 0.618034f;
+
+    /** Image width. */
+    private final int width;
+    /** Image height. */
+    private final int height;
+    /** Region number of every pixel; 0 is background. */
+    private final int[][] labels;
+    /** Number of regions. */
+    private final int count;
+    /** Pixels in each region, indexed by region number. */
+    private final long[] area;
+    /** Bounding box corners of each region, indexed by region number. */
+    private final int[] minX, minY, maxX, maxY;
+    /** Sums of pixel coordinates of each region, for centroids. */
+    private final long[] sumX, sumY;
+
+    /**
+     * Label the white pixels of a binary image.
+     * @param bi the binary image
+     * @param eight true if diagonal neighbors are connected,
+     *        false if only horizontal and vertical neighbors are
+     * @throws IllegalArgumentException if the image has more pixels than
+     *         the union-find forest, an int-indexed array, can hold
+     */
+    public Components(final BinaryImage bi, final boolean eight) {
+        width  = bi.getWidth();
+        height = bi.getHeight();
+        if ((long) width * height > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many pixels to label: " + width + "x" + height);
+        }
+        labels = new int[height][width];
+        final int[] parent = new int[width * height];
+        final int strips = Math.max(1, Math.min(Parallel.THREADS * 2, height / MIN_STRIP));
+        final int[] start = new int[strips + 1];
+        for (int s = 0; s <= strips; s++) start[s] = (int) ((long) height * s / strips);
+
+        // 1. join pixels within each strip
+        Parallel.forEach(strips, (s, unused) -> {
+            for (int y = start[s]; y < start[s + 1]; y++) {
+                for (int x = 0; x < width; x++) {
+                    int i = y * width + x;
+                    if (!bi.get(x, y)) {
+                        parent[i] = NONE;
+                        continue;
+                    }
+                    parent[i] = i;
+                    if (x > 0 && parent[i - 1] != NONE) union(parent, i, i - 1);
+                    if (y > start[s]) {
+                        joinAbove(parent, x, y, eight);
+                    }
+                }
+            }
+        });
+
+        // 2. join across the rows where strips meet
+        for (int s = 1; s < strips; s++) {
+            int y = start[s];
+            for (int x = 0; x < width; x++) {
+                if (parent[y * width + x] != NONE) joinAbove(parent, x, y, eight);
+            }
+        }
+
+        // 3. number the roots in scan order; each root is its region's first pixel
+        final int[] roots = new int[strips];
+        Parallel.forEach(strips, (s, unused) -> {
+            int n = 0;
+            for (int i = start[s] * width; i < start[s + 1] * width; i++) {
+                if (parent[i] == i) n++;
+            }
+            roots[s] = n;
+        });
+        final int[] first = new int[strips];
+        int total = 0;
+        for (int s = 0; s < strips; s++) {
+            first[s] = total + 1;
+            total += roots[s];
+        }
+        count = total;
+        Parallel.forEach(strips, (s, unused) -> {
+            int next = first[s];
+            for (int i = start[s] * width; i < start[s + 1] * width; i++) {
+                if (parent[i] == i) labels[i / width][i % width] = next++;
+            }
+        });
+        // roots now hold their numbers; copy them to the other pixels
+        Parallel.forEach(strips, (s, unused) -> {
+            for (int y = start[s]; y < start[s + 1]; y++) {
+                int[] out = labels[y];
+                for (int x = 0, i = y * width; x < width; x++, i++) {
+                    if (parent[i] != NONE && parent[i] != i) {
+                        int root = find(parent, i);
+                        out[x] = labels[root / width][root % width];
+                    }
+                }
+            }
+        });
+
+        // 4. measure
+        area = new long[count + 1];
+        minX = new int[count + 1];
+        minY = new int[count + 1];
+        maxX = new int[count + 1];
+        maxY = new int[count + 1];
+        sumX = new long[count + 1];
+        sumY = new long[count + 1];
+        Arrays.fill(minX, Integer.MAX_VALUE);
+        Arrays.fill(minY, Integer.MAX_VALUE);
+        for (int y = 0; y < height; y++) {
+            int[] row = labels[y];
+            for (int x = 0; x < width; x++) {
+                int id = row[x];
+                if (id == 0) continue;
+                area[id]++;
+                sumX[id] += x;
+                sumY[id] += y;
+                if (x < minX[id]) minX[id] = x;
+                if (x > maxX[id]) maxX[id] = x;
+                if (y < minY[id]) minY[id] = y;
+                maxY[id] = y;
+            }
+        }
+    }//constructor
+
+    /**
+     * Threshold an image and label the white regions, using
+     * eight-way connectivity.
+     * @param ip the image
+     * @param threshold the smallest gray value counted as white
+     * @return the labeled regions
+     */
+    public static Components of(final ImgProvider ip, final int threshold) {
+        return new Components(BinaryImage.fromImage(ip, threshold), true);
+    }//of
+
+    /**
+     * Join foreground pixel (x, y) with its foreground neighbors in the row above.
+     * @param parent the union-find forest
+     * @param x the column
+     * @param y the row (greater than 0)
+     * @param eight whether diagonal neighbors count
+     */
+    private void joinAbove(final int[] parent, final int x, final int y, final boolean eight) {
+        int i = y * width + x;
+        int up = i - width;
+        if (parent[up] != NONE) union(parent, i, up);
+        if (eight) {
+            if (x > 0 && parent[up - 1] != NONE) union(parent, i, up - 1);
+            if (x < width - 1 && parent[up + 1] != NONE) union(parent, i, up + 1);
+        }
+    }//joinAbove
+
+    /**
+     * Find the root of a pixel's tree without changing the forest,
+     * so that many threads may search it at once.
+     * @param parent the union-find forest
+     * @param i the pixel index
+     * @return the root's pixel index
+     */
+    private static int find(final int[] parent, final int i) {
+        int p = i;
+        while (parent[p] != p) p = parent[p];
+        return p;
+    }//find
+
+    /**
+     * Join the trees of two pixels.  The root with the smaller index
+     * survives, so every root is the first pixel of its region.
+     * @param parent the union-find forest
+     * @param a one pixel index
+     * @param b the other pixel index
+     */
+    private static void union(final int[] parent, final int a, final int b) {
+        int ra = a;
+        while (parent[ra] != ra) {
+            parent[ra] = parent[parent[ra]];
+            ra = parent[ra];
+        }
+        int rb = b;
+        while (parent[rb] != rb) {
+            parent[rb] = parent[parent[rb]];
+            rb = parent[rb];
+        }
+        if (ra < rb) parent[rb] = ra;
+        else if (rb < ra) parent[ra] = rb;
+    }//union
+
+    /**
+     * Retrieve the number of regions.
+     * @return the number of regions
+     */
+    public int getCount() { return count; }
+
+    /**
+     * Retrieve the label plane (not a copy).
+     * @return region numbers per pixel, 0 for background
+     */
+    public int[][] getLabels() { return labels; }
+
+    /**
+     * Retrieve the size of a region.
+     * @param id the region number, 1 to getCount()
+     * @return the number of pixels in the region
+     */
+    public long getArea(final int id) { return area[id]; }
+
+    /**
+     * Retrieve the bounding box of a region.
+     * @param id the region number, 1 to getCount()
+     * @return the smallest rectangle holding the region
+     */
+    public Rectangle getBounds(final int id) {
+        return new Rectangle(minX[id], minY[id], maxX[id] - minX[id] + 1, maxY[id] - minY[id] + 1);
+    }//getBounds
+
+    /**
+     * Retrieve the x-coordinate of a region's centroid.
+     * @param id the region number, 1 to getCount()
+     * @return the mean column of the region's pixels
+     */
+    public double getCentroidX(final int id) { return (double) sumX[id] / area[id]; }
+
+    /**
+     * Retrieve the y-coordinate of a region's centroid.
+     * @param id the region number, 1 to getCount()
+     * @return the mean row of the region's pixels
+     */
+    public double getCentroidY(final int id) { return (double) sumY[id] / area[id]; }
+
+    /**
+     * Draw the regions, each in its own color, on a black background.
+     * @return the rendered image
+     */
+    public ImgProvider render() {
+        final int[] palette = new int[count + 1];
+        for (int id = 1; id <= count; id++) {
+            palette[id] = Color.HSBtoRGB((id * HUE_STEP) % 1f, 0.8f, 1f);
+        }
+        final short[][] r = new short[height][width];
+        final short[][] g = new short[height][width];
+        final short[][] b = new short[height][width];
+        final short[][] a = new short[height][width];
+        Parallel.forBands(height, MIN_STRIP, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                for (int x = 0; x < width; x++) {
+                    int rgb = palette[labels[y][x]];
+                    r[y][x] = (short) ((rgb >> 16) & 255);
+                    g[y][x] = (short) ((rgb >> 8) & 255);
+                    b[y][x] = (short) (rgb & 255);
+                    a[y][x] = 255;
+                }
+            }
+        });
+        ImgProvider ip = new ImgProvider();
+        ip.setPlanes(r, g, b, a);
+        return ip;
+    }//render
+}//Components
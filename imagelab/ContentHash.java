@@ -0,0 +1,405 @@
+package imagelab;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * ContentHash computes hashes of an image's pixels: exact content
+ * hashes for telling identical images apart from different ones, and
+ * perceptual hashes for finding near duplicates.
+ * <p>
+ * The exact hash is 128 bits, non-cryptographic.  The packed pix buffer
+ * is cut into fixed-size chunks that are hashed in parallel with four
+ * independent xxHash64-style lanes each; the chunk hashes and the
+ * image's size are then folded together in order.  Chunks do not depend
+ * on the number of processors, so an image always hashes to the same
+ * value.  The 64-bit hash is the low half of the 128-bit one.
+ * <p>
+ * The perceptual hashes are 64 bits.  dHash compares neighboring cells
+ * of a 9x8 thumbnail; pHash compares the low frequencies of a 32x32
+ * thumbnail's cosine transform with their median.  Near duplicates
+ * differ in only a few bits; see {@link #distance}.
+ * <p>
+ * All hashes are remembered by the ImgProvider and forgotten when its
+ * pixels change, so asking again is free.
+ * <p>
+ * A file's bytes can be hashed the same way, for recognizing an image
+ * file that has already been decoded without decoding it again.
+ * @version 1.2
+ */
+public final class ContentHash {
+    /** Pixels per chunk. */
+    static final int CHUNK = 1 << 16;
+    /** Bytes per chunk of a file. */
+    static final int FILE_CHUNK = 1 << 20;
+    /** Largest Hamming distance between perceptual hashes of near duplicates. */
+    public static final int NEAR_DUPLICATE_BITS = 10;
+
+    /** xxHash64 primes. */
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    /** xxHash64 primes. */
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    /** xxHash64 primes. */
+    private static final long P3 = 0x165667B19E3779F9L;
+    /** xxHash64 primes. */
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    /** xxHash64 primes. */
+    private static final long P5 = 0x27D4EB2F165667C5L;
+    /** Side of the pHash thumbnail. */
+    private static final int PHASH_SIDE = 32;
+    /** Side of the block of low frequencies pHash keeps. */
+    private static final int PHASH_KEEP = 8;
+
+    /** Utility class; not instantiated. */
+    private ContentHash() { }
+
+    /** The hashes remembered for one image's pixels. */
+    static final class Digest {
+        /** Low half of the content hash. */
+        final long lo;
+        /** High half of the content hash. */
+        final long hi;
+        /** dHash, once computed. */
+        volatile Long dHash;
+        /** pHash, once computed. */
+        volatile Long pHash;
+
+        /**
+         * Remember a content hash.
+         * @param low the low half
+         * @param high the high half
+         */
+        Digest(final long low, final long high) {
+            lo = low;
+            hi = high;
+        }
+    }//Digest
+
+    /**
+     * The 64-bit hash of an image's pixels, alpha included.
+     * @param ip the image
+     * @return the hash
+     */
+    public static long hash64(final ImgProvider ip) {
+        return digest(ip).lo;
+    }//hash64
+
+    /**
+     * The 128-bit hash of an image's pixels, alpha included.
+     * @param ip the image
+     * @return the low and high halves of the hash
+     */
+    public static long[] hash128(final ImgProvider ip) {
+        Digest d = digest(ip);
+        return new long[] {d.lo, d.hi};
+    }//hash128
+
+    /**
+     * The 128-bit hash as 32 hexadecimal digits, for use as a key or file name.
+     * @param ip the image
+     * @return the hash, high half first
+     */
+    public static String hex(final ImgProvider ip) {
+        Digest d = digest(ip);
+        return String.format("%016x%016x", d.hi, d.lo);
+    }//hex
+
+    /**
+     * The difference hash: for each row of a 9x8 gray thumbnail, whether
+     * each cell is brighter than the one to its right.
+     * @param ip the image
+     * @return 64 bits, one per comparison
+     */
+    public static long dHash(final ImgProvider ip) {
+        Digest d = digest(ip);
+        Long cached = d.dHash;
+        if (cached != null) return cached;
+        double[][] t = thumbnail(ip, 9, 8);
+        long bits = 0;
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                bits = (bits << 1) | (t[y][x] > t[y][x + 1] ? 1 : 0);
+            }
+        }
+        d.dHash = bits;
+        return bits;
+    }//dHash
+
+    /**
+     * The DCT hash: which of the lowest 8x8 frequencies (but the constant
+     * term) of a 32x32 gray thumbnail lie above their median.
+     * @param ip the image
+     * @return 64 bits, one per frequency
+     */
+    public static long pHash(final ImgProvider ip) {
+        Digest d = digest(ip);
+        Long cached = d.pHash;
+        if (cached != null) return cached;
+        final int n = PHASH_SIDE;
+        double[][] t = thumbnail(ip, n, n);
+        double[][] cos = new double[PHASH_KEEP][n];
+        for (int u = 0; u < PHASH_KEEP; u++) {
+            for (int x = 0; x < n; x++) cos[u][x] = Math.cos((2 * x + 1) * u * Math.PI / (2 * n));
+        }
+        // rows first, then columns, keeping only the low frequencies
+        double[][] rows = new double[n][PHASH_KEEP];
+        for (int y = 0; y < n; y++) {
+            for (int u = 0; u < PHASH_KEEP; u++) {
+                double s = 0;
+                for (int x = 0; x < n; x++) s += t[y][x] * cos[u][x];
+                rows[y][u] = s;
+            }
+        }
+        double[] freq = new double[PHASH_KEEP * PHASH_KEEP];
+        for (int v = 0; v < PHASH_KEEP; v++) {
+            for (int u = 0; u < PHASH_KEEP; u++) {
+                double s = 0;
+                for (int y = 0; y < n; y++) s += rows[y][u] * cos[v][y];
+                freq[v * PHASH_KEEP + u] = s;
+            }
+        }
+        double[] sorted = Arrays.copyOfRange(freq, 1, freq.length);
+        Arrays.sort(sorted);
+        double median = sorted[sorted.length / 2];
+        long bits = 0;
+        for (int i = 0; i < freq.length; i++) {
+            bits = (bits << 1) | (i > 0 && freq[i] > median ? 1 : 0);
+        }
+        d.pHash = bits;
+        return bits;
+    }//pHash
+
+    /**
+     * The number of bits in which two perceptual hashes differ.
+     * @param a one hash
+     * @param b the other hash
+     * @return the Hamming distance, 0 to 64
+     */
+    public static int distance(final long a, final long b) {
+        return Long.bitCount(a ^ b);
+    }//distance
+
+    /**
+     * Whether two images look alike, judged by their pHashes.
+     * @param a one image
+     * @param b the other image
+     * @return true if the pHashes differ in at most NEAR_DUPLICATE_BITS bits
+     */
+    public static boolean nearDuplicates(final ImgProvider a, final ImgProvider b) {
+        return distance(pHash(a), pHash(b)) <= NEAR_DUPLICATE_BITS;
+    }//nearDuplicates
+
+    /**
+     * The remembered hashes of an image, computing the content hash if
+     * the pixels have changed since it was last asked for.
+     * @param ip the image
+     * @return the digest
+     */
+    static Digest digest(final ImgProvider ip) {
+        ip.ensureLoaded();
+        Digest d = ip.digest;
+        if (d == null) {
+            long[] h = hash(ip.pix, ip.pixwidth, ip.pixheight);
+            d = new Digest(h[0], h[1]);
+            ip.digest = d;
+        }
+        return d;
+    }//digest
+
+    /**
+     * Hash packed pixels.
+     * @param pix the pixels
+     * @param w the width
+     * @param h the height
+     * @return the low and high halves of the 128-bit hash
+     */
+    static long[] hash(final int[] pix, final int w, final int h) {
+        final int n = w * h;
+        final int chunks = (n + CHUNK - 1) / CHUNK;
+        final long[] part = new long[2 * chunks];
+        Parallel.forEach(chunks, (c, unused) -> {
+            int lo = c * CHUNK;
+            chunk(pix, lo, Math.min(n, lo + CHUNK), part, 2 * c);
+        });
+        return fold(part, (long) w << 32 | (h & 0xFFFFFFFFL), n);
+    }//hash
+
+    /**
+     * Hash the contents of a file, in chunks mapped and hashed in parallel.
+     * @param file the file
+     * @return the 128-bit hash as 32 hexadecimal digits, high half first
+     * @throws IOException if the file cannot be read
+     */
+    public static String hex(final File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = ch.size();
+            final int chunks = (int) ((size + FILE_CHUNK - 1) / FILE_CHUNK);
+            final long[] part = new long[2 * chunks];
+            final IOException[] failure = new IOException[1];
+            Parallel.forEach(chunks, (c, unused) -> {
+                long lo = (long) c * FILE_CHUNK;
+                try {
+                    ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, lo,
+                                            Math.min(FILE_CHUNK, size - lo));
+                    try {
+                        chunk(buf.order(ByteOrder.LITTLE_ENDIAN), part, 2 * c);
+                    } finally {
+                        OffHeapPixels.free(buf);        //so the file can be deleted or replaced
+                    }
+                } catch (IOException ioe) {
+                    failure[0] = ioe;
+                }
+            });
+            if (failure[0] != null) throw failure[0];
+            long[] h = fold(part, size, size);
+            return String.format("%016x%016x", h[1], h[0]);
+        }
+    }//hex
+
+    /**
+     * Fold chunk hashes together in order.
+     * @param part the two hashes of each chunk
+     * @param size the size of what was hashed, mixed in first
+     * @param n the number of items hashed, mixed in last
+     * @return the low and high halves of the 128-bit hash
+     */
+    private static long[] fold(final long[] part, final long size, final long n) {
+        long a = P5 + size;
+        long b = P1 - size;
+        for (int c = 0; c < part.length / 2; c++) {
+            a = Long.rotateLeft(a ^ round(0, part[2 * c]), 27) * P1 + P4;
+            b = Long.rotateLeft(b ^ round(0, part[2 * c + 1]), 31) * P2 + P3;
+        }
+        long lo = avalanche(a ^ n);
+        long hi = avalanche(b + lo);
+        return new long[] {lo, hi};
+    }//fold
+
+    /**
+     * Hash one chunk with four lanes of xxHash64 rounds, one pixel per
+     * lane, and merge the lanes two different ways.
+     * @param pix the pixels
+     * @param lo first pixel
+     * @param hi one past the last pixel
+     * @param out receives the chunk's two hashes
+     * @param at where in out to put them
+     */
+    private static void chunk(final int[] pix, final int lo, final int hi,
+                              final long[] out, final int at) {
+        long v1 = P1 + P2;
+        long v2 = P2;
+        long v3 = 0;
+        long v4 = -P1;
+        int i = lo;
+        for (; i + 4 <= hi; i += 4) {
+            v1 = round(v1, pix[i]);
+            v2 = round(v2, pix[i + 1]);
+            v3 = round(v3, pix[i + 2]);
+            v4 = round(v4, pix[i + 3]);
+        }
+        long a = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+               + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+        long b = (v1 * P3 ^ Long.rotateLeft(v3, 29)) + (v2 * P4 ^ Long.rotateLeft(v4, 37));
+        for (; i < hi; i++) {
+            a = Long.rotateLeft(a ^ (pix[i] * P1), 23) * P2 + P3;
+            b = Long.rotateLeft(b ^ (pix[i] * P2), 19) * P1 + P4;
+        }
+        out[at] = avalanche(a + (hi - lo));
+        out[at + 1] = avalanche(b - (hi - lo));
+    }//chunk
+
+    /**
+     * Hash one chunk of bytes with four lanes of xxHash64 rounds, eight
+     * bytes per lane, merged as for pixels.
+     * @param buf the bytes, from position to limit
+     * @param out receives the chunk's two hashes
+     * @param at where in out to put them
+     */
+    private static void chunk(final ByteBuffer buf, final long[] out, final int at) {
+        long v1 = P1 + P2;
+        long v2 = P2;
+        long v3 = 0;
+        long v4 = -P1;
+        final int n = buf.remaining();
+        int i = buf.position();
+        final int end = i + n;
+        for (; i + 32 <= end; i += 32) {
+            v1 = round(v1, buf.getLong(i));
+            v2 = round(v2, buf.getLong(i + 8));
+            v3 = round(v3, buf.getLong(i + 16));
+            v4 = round(v4, buf.getLong(i + 24));
+        }
+        long a = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+               + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+        long b = (v1 * P3 ^ Long.rotateLeft(v3, 29)) + (v2 * P4 ^ Long.rotateLeft(v4, 37));
+        for (; i < end; i++) {
+            a = Long.rotateLeft(a ^ (buf.get(i) * P1), 23) * P2 + P3;
+            b = Long.rotateLeft(b ^ (buf.get(i) * P2), 19) * P1 + P4;
+        }
+        out[at] = avalanche(a + n);
+        out[at + 1] = avalanche(b - n);
+    }//chunk
+
+    /**
+     * One xxHash64 round.
+     * @param acc the lane
+     * @param input the value folded in
+     * @return the new lane
+     */
+    private static long round(final long acc, final long input) {
+        return Long.rotateLeft(acc + input * P2, 31) * P1;
+    }//round
+
+    /**
+     * xxHash64's final mix, so every input bit affects every output bit.
+     * @param h the value
+     * @return the mixed value
+     */
+    static long avalanche(final long h) {
+        long x = h;
+        x ^= x >>> 33;
+        x *= P2;
+        x ^= x >>> 29;
+        x *= P3;
+        x ^= x >>> 32;
+        return x;
+    }//avalanche
+
+    /**
+     * Shrink the image to a small gray thumbnail by averaging the pixels
+     * that fall in each cell, one band of thumbnail rows per task.
+     * @param ip the image
+     * @param tw thumbnail width
+     * @param th thumbnail height
+     * @return mean gray level of each cell
+     */
+    private static double[][] thumbnail(final ImgProvider ip, final int tw, final int th) {
+        final int w = ip.pixwidth;
+        final int h = ip.pixheight;
+        final int[] pix = ip.pix;
+        final double[][] t = new double[th][tw];
+        Parallel.forEach(th, (ty, unused) -> {
+            int y0 = (int) ((long) ty * h / th);
+            int y1 = Math.max(y0 + 1, (int) ((long) (ty + 1) * h / th));
+            for (int tx = 0; tx < tw; tx++) {
+                int x0 = (int) ((long) tx * w / tw);
+                int x1 = Math.max(x0 + 1, (int) ((long) (tx + 1) * w / tw));
+                long sum = 0;
+                for (int y = y0; y < Math.min(h, y1); y++) {
+                    for (int x = x0; x < Math.min(w, x1); x++) {
+                        int p = pix[y * w + x];
+                        sum += ((p >> 16) & 255) + ((p >> 8) & 255) + (p & 255);
+                    }
+                }
+                long cells = (long) (Math.min(h, y1) - y0) * (Math.min(w, x1) - x0);
+                t[ty][tx] = (cells == 0) ? 0 : sum / (3.0 * cells);
+            }
+        });
+        return t;
+    }//thumbnail
+}//ContentHash
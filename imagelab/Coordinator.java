@@ -0,0 +1,522 @@
+package imagelab;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Coordinator shares out a directory of images among {@link Worker}s on
+ * other JVMs, over plain TCP, and gathers their results.
+ * <pre>
+ *   java Run --coordinate PORT IN_DIR OUT_DIR CHAIN [--format png] [--shard N]
+ *   java Run --work HOST:PORT [--threads N]          (on each machine, as many as wanted)
+ * </pre>
+ * The images are cut into shards of a few images each.  Every worker
+ * connection is given a shard of its own and pulls its images one at a
+ * time, each sent with its bytes, so workers need no shared file system.
+ * When the shards run out, an idle worker steals the second half of the
+ * images still waiting in the busiest worker's shard.
+ * <p>
+ * Workers send heartbeats while they filter.  A connection that falls
+ * silent for longer than the timeout is taken for dead: its image in
+ * progress and the rest of its shard go back on the queue for others
+ * (an image lost three times is given up on).  Only the coordinator
+ * writes results, each under a name fixed by its input (the base name
+ * with the output format's extension), first to a temporary file that
+ * is renamed into place only by the first outcome to claim its image; a
+ * late answer from a worker taken for dead is thrown away.  So every
+ * input yields exactly one output however workers come and go.  Only
+ * files named as images ImageLab can read are taken; others, such as
+ * READMEs and sidecars, are left alone.
+ * Throughput, for the whole batch and per worker, is printed at the end.
+ * @version 1.0
+ */
+public final class Coordinator {
+    /** Worker to coordinator: introduce itself (then its name). */
+    static final byte HELLO = 'H';
+    /** Coordinator to worker: the job (then chain, format and heartbeat interval). */
+    static final byte JOB = 'J';
+    /** Worker to coordinator: ask for an image. */
+    static final byte NEXT = 'N';
+    /** Coordinator to worker: an image (then its id, name, length and bytes). */
+    static final byte IMAGE = 'I';
+    /** Coordinator to worker: nothing now, ask again later (then milliseconds). */
+    static final byte WAIT = 'W';
+    /** Coordinator to worker: the batch is finished. */
+    static final byte DONE = 'D';
+    /** Worker to coordinator: a result (then id, filtering nanoseconds, length and bytes). */
+    static final byte RESULT = 'R';
+    /** Worker to coordinator: an image could not be filtered (then id and message). */
+    static final byte FAIL = 'F';
+    /** Worker to coordinator: still alive. */
+    static final byte BEAT = 'B';
+
+    /** Times an image may be lost with its worker before it is given up. */
+    private static final int MAX_ATTEMPTS = 3;
+    /** How long an idle worker waits before asking again, in milliseconds. */
+    private static final int IDLE_MS = 200;
+
+    /** One image to process. */
+    private static final class Task {
+        /** Its number. */
+        final int id;
+        /** The input. */
+        final File in;
+        /** The output. */
+        final File out;
+        /** Times it has been handed out. */
+        int attempts;
+        /** Set once its result is written or it is given up. */
+        boolean finished;
+
+        /**
+         * Create a task.
+         * @param i its number
+         * @param src the input
+         * @param dst the output
+         */
+        Task(final int i, final File src, final File dst) {
+            id = i;
+            in = src;
+            out = dst;
+        }//constructor
+    }//Task
+
+    /** A worker connection and what it holds. */
+    private final class Conn implements Runnable {
+        /** The socket. */
+        private final Socket socket;
+        /** Its name, from its hello. */
+        String name = "?";
+        /** Its shard: images waiting, not yet sent. */
+        final ArrayDeque<Task> shard = new ArrayDeque<Task>();
+        /** The image it is filtering, or null. */
+        Task current;
+        /** Images it finished. */
+        long images;
+        /** Time it spent filtering, in nanoseconds. */
+        long nanos;
+
+        /**
+         * Adopt a connection.
+         * @param s the socket
+         */
+        Conn(final Socket s) {
+            socket = s;
+        }//constructor
+
+        @Override
+        public void run() {
+            try {
+                socket.setSoTimeout(timeoutMs);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                if (in.readByte() != HELLO) throw new IOException("Not a worker");
+                name = in.readUTF();
+                out.writeByte(JOB);
+                out.writeUTF(chain);
+                out.writeUTF(format);
+                out.writeInt(heartbeatMs);
+                out.flush();
+                while (true) {
+                    byte m = in.readByte();
+                    if (m == BEAT) continue;
+                    if (m == NEXT) {
+                        if (!serve(out)) return;
+                    } else if (m == RESULT) {
+                        int id = in.readInt();
+                        long ns = in.readLong();
+                        byte[] bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                        finished(this, id, ns, bytes, null);
+                    } else if (m == FAIL) {
+                        int id = in.readInt();
+                        finished(this, id, 0, null, in.readUTF());
+                    } else {
+                        throw new IOException("Unknown message " + m);
+                    }
+                }
+            } catch (IOException ioe) {
+                lost(this, ioe);
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ioe) {
+                    // gone anyway
+                }
+            }
+        }//run
+
+        /**
+         * Answer a request for work.
+         * @param out the connection
+         * @return false once the batch is finished
+         * @throws IOException if the connection fails
+         */
+        private boolean serve(final DataOutputStream out) throws IOException {
+            Task t = next(this);
+            if (t == null) {
+                boolean over = isFinished();
+                out.writeByte(over ? DONE : WAIT);
+                if (!over) out.writeInt(IDLE_MS);
+                out.flush();
+                return !over;
+            }
+            byte[] bytes;
+            try {
+                bytes = Files.readAllBytes(t.in.toPath());
+            } catch (IOException ioe) {
+                finished(this, t.id, 0, null, "cannot read: " + ioe.getMessage());
+                out.writeByte(WAIT);
+                out.writeInt(0);
+                out.flush();
+                return true;
+            }
+            synchronized (Coordinator.this) {
+                bytesIn += bytes.length;
+            }
+            out.writeByte(IMAGE);
+            out.writeInt(t.id);
+            out.writeUTF(t.in.getName());
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.flush();
+            return true;
+        }//serve
+    }//Conn
+
+    /** The filter chain, as {@link FilterChain#parse} reads it. */
+    private final String chain;
+    /** The output format. */
+    private final String format;
+    /** How often workers send heartbeats, in milliseconds. */
+    private final int heartbeatMs;
+    /** How long a connection may stay silent, in milliseconds. */
+    private final int timeoutMs;
+    /** Every task, by id. */
+    private final List<Task> tasks = new ArrayList<Task>();
+    /** Shards not yet given to a worker. */
+    private final ArrayDeque<ArrayDeque<Task>> shards = new ArrayDeque<ArrayDeque<Task>>();
+    /** Every connection ever made. */
+    private final List<Conn> conns = new ArrayList<Conn>();
+    /** Tasks finished, written or given up. */
+    private int finishedCount;
+    /** Tasks given up, with the reason. */
+    private final List<String> failures = new ArrayList<String>();
+    /** Images handed to another worker after theirs was lost. */
+    private int reassigned;
+    /** Images stolen from another worker's shard. */
+    private int stolen;
+    /** Bytes sent to workers. */
+    private long bytesIn;
+    /** Bytes of results written. */
+    private long bytesOut;
+
+    /**
+     * Plan a batch.
+     * @param inDir the images
+     * @param outDir where the results go
+     * @param chainSpec the filters to run
+     * @param outFormat the output format, for instance png
+     * @param shardSize images per shard
+     * @param heartbeat how often workers send heartbeats, in milliseconds
+     * @throws IOException if the input directory cannot be listed
+     */
+    public Coordinator(final File inDir, final File outDir, final String chainSpec, final String outFormat,
+                       final int shardSize, final int heartbeat) throws IOException {
+        FilterChain.parse(chainSpec);                   // fail now on a bad chain
+        chain = chainSpec;
+        format = outFormat.toLowerCase();
+        heartbeatMs = heartbeat;
+        timeoutMs = 5 * heartbeat;
+        String[] names = inDir.list();
+        if (names == null) throw new IOException("Cannot list " + inDir);
+        Arrays.sort(names);
+        List<String> images = new ArrayList<String>();
+        for (String n : names) {
+            File f = new File(inDir, n);
+            if (f.isFile() && Loader.isImage(f)) images.add(n);    // not README, sidecars or hidden files
+        }
+        Set<String> bases = new HashSet<String>();
+        Set<String> clash = new HashSet<String>();
+        for (String n : images) {
+            if (!bases.add(base(n))) clash.add(base(n));
+        }
+        if (!outDir.isDirectory() && !outDir.mkdirs()) throw new IOException("Cannot create " + outDir);
+        ArrayDeque<Task> shard = new ArrayDeque<Task>();
+        for (String n : images) {
+            File f = new File(inDir, n);
+            String outName = (clash.contains(base(n)) ? n : base(n)) + "." + format;
+            Task t = new Task(tasks.size(), f, new File(outDir, outName));
+            tasks.add(t);
+            shard.add(t);
+            if (shard.size() == Math.max(1, shardSize)) {
+                shards.add(shard);
+                shard = new ArrayDeque<Task>();
+            }
+        }
+        if (!shard.isEmpty()) shards.add(shard);
+    }//constructor
+
+    /**
+     * A file name without its extension.
+     * @param name the name
+     * @return the part before the last dot
+     */
+    private static String base(final String name) {
+        int dot = name.lastIndexOf('.');
+        return (dot <= 0) ? name : name.substring(0, dot);
+    }//base
+
+    /**
+     * Choose the next image for a worker: from its own shard, else a new
+     * shard, else half of what waits in the fullest shard of another.
+     * @param c the worker
+     * @return the task, or null if there is none to give now
+     */
+    private synchronized Task next(final Conn c) {
+        if (c.shard.isEmpty() && !shards.isEmpty()) c.shard.addAll(shards.poll());
+        if (c.shard.isEmpty()) {
+            Conn victim = null;
+            for (Conn o : conns) {
+                if (o != c && (victim == null || o.shard.size() > victim.shard.size())) victim = o;
+            }
+            if (victim != null && !victim.shard.isEmpty()) {
+                int n = (victim.shard.size() + 1) / 2;
+                ArrayDeque<Task> taken = new ArrayDeque<Task>();
+                for (int i = 0; i < n; i++) taken.addFirst(victim.shard.pollLast());
+                c.shard.addAll(taken);
+                stolen += n;
+            }
+        }
+        Task t = c.shard.poll();
+        if (t != null) {
+            t.attempts++;
+            c.current = t;
+        }
+        return t;
+    }//next
+
+    /**
+     * Record the outcome of an image: write its result under its final
+     * name, or note why it failed.  The result is written to a temporary
+     * file first and the image then claimed under the lock, so of two
+     * outcomes for one image (a worker taken for dead may still answer
+     * after its image went to another) only the first is ever renamed
+     * into place; later ones are deleted unseen.
+     * @param c the worker
+     * @param id the image
+     * @param ns time spent filtering
+     * @param bytes the encoded result, or null if it failed
+     * @param why the failure, or null
+     */
+    private void finished(final Conn c, final int id, final long ns, final byte[] bytes, final String why) {
+        Task t;
+        synchronized (this) {
+            if (id < 0 || id >= tasks.size()) return;
+            t = tasks.get(id);
+            if (c.current == t) c.current = null;
+            if (t.finished) return;
+        }
+        String failure = why;
+        File tmp = null;
+        if (bytes != null) {
+            tmp = new File(t.out.getParentFile(), "." + t.out.getName() + "." + c.hashCode() + ".part");
+            try {
+                Files.write(tmp.toPath(), bytes);
+            } catch (IOException ioe) {
+                failure = "cannot write " + t.out + ": " + ioe.getMessage();
+            }
+        }
+        synchronized (this) {
+            boolean claimed = !t.finished;
+            t.finished = true;                          // claimed: no other outcome is written
+            if (!claimed) {
+                if (tmp != null) tmp.delete();
+                return;
+            }
+        }
+        if (tmp != null && failure == null) {
+            try {
+                try {
+                    Files.move(tmp.toPath(), t.out.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                               StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException amnse) {
+                    Files.move(tmp.toPath(), t.out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException ioe) {
+                failure = "cannot write " + t.out + ": " + ioe.getMessage();
+            }
+        }
+        if (failure != null && tmp != null) tmp.delete();
+        synchronized (this) {
+            finishedCount++;
+            if (failure != null) {
+                failures.add(t.in.getName() + ": " + failure);
+            } else {
+                c.images++;
+                c.nanos += ns;
+                bytesOut += bytes.length;
+            }
+            notifyAll();
+        }
+    }//finished
+
+    /**
+     * Take back the work of a worker that has gone.
+     * @param c the worker
+     * @param why how it was lost
+     */
+    private synchronized void lost(final Conn c, final IOException why) {
+        ArrayDeque<Task> back = new ArrayDeque<Task>();
+        Task t = c.current;
+        c.current = null;
+        if (t != null && !t.finished) {
+            if (t.attempts >= MAX_ATTEMPTS) {
+                t.finished = true;
+                finishedCount++;
+                failures.add(t.in.getName() + ": lost with its worker " + t.attempts + " times");
+            } else {
+                back.add(t);
+            }
+        }
+        back.addAll(c.shard);
+        c.shard.clear();
+        if (!back.isEmpty()) {
+            reassigned += back.size();
+            shards.addFirst(back);
+            if (!isFinished()) {
+                System.err.println("Worker " + c.name + " lost (" + why + "); "
+                    + back.size() + " images reassigned");
+            }
+        }
+        notifyAll();
+    }//lost
+
+    /**
+     * Whether every image is finished.
+     * @return true once all are written or given up
+     */
+    private synchronized boolean isFinished() {
+        return finishedCount == tasks.size();
+    }//isFinished
+
+    /**
+     * Accept workers on a port until every image is finished.
+     * @param port the port
+     * @return a summary of the batch
+     * @throws IOException if the port cannot be bound
+     */
+    public String run(final int port) throws IOException {
+        long start = System.nanoTime();
+        try (ServerSocket server = new ServerSocket(port)) {
+            Thread acceptor = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try {
+                        Socket s = server.accept();
+                        Conn c = new Conn(s);
+                        synchronized (this) {
+                            conns.add(c);
+                        }
+                        Thread t = new Thread(c, "ImageLab coordinator " + s.getRemoteSocketAddress());
+                        t.setDaemon(true);
+                        t.start();
+                    } catch (SocketException se) {
+                        return;                         // closed
+                    } catch (IOException ioe) {
+                        System.err.println("Accept failed: " + ioe);
+                    }
+                }
+            }, "ImageLab coordinator");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            synchronized (this) {
+                while (!isFinished()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            try {
+                Thread.sleep(2L * IDLE_MS);              // let waiting workers hear DONE
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return summary(System.nanoTime() - start);
+    }//run
+
+    /**
+     * Sum up the batch.
+     * @param elapsed its length in nanoseconds
+     * @return the summary, several lines
+     */
+    private synchronized String summary(final long elapsed) {
+        double s = elapsed / 1e9;
+        int done = tasks.size() - failures.size();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d images in %.1f s (%.2f/s), %d failed, %d reassigned, %d stolen;"
+            + " %.1f MB in, %.1f MB out%n", done, s, done / Math.max(s, 1e-9), failures.size(),
+            reassigned, stolen, bytesIn / 1048576.0, bytesOut / 1048576.0));
+        for (Conn c : conns) {
+            sb.append(String.format("  %s: %d images, %.1f s filtering, %.2f/s%n", c.name, c.images,
+                c.nanos / 1e9, c.images / Math.max(s, 1e-9)));
+        }
+        for (String f : failures) sb.append("  failed ").append(f).append(System.lineSeparator());
+        return sb.toString();
+    }//summary
+
+    /**
+     * Run a batch.
+     * <pre>
+     * java Run --coordinate PORT IN_DIR OUT_DIR CHAIN [--format png] [--shard N] [--heartbeat MS]
+     * </pre>
+     * Prints the summary and exits with status 1 if any image failed.
+     * @param args the port, directories, chain and options
+     * @throws IOException if the batch cannot be set up
+     */
+    public static void main(final String[] args) throws IOException {
+        String format = "png";
+        int shard = 8;
+        int heartbeat = 1000;
+        List<String> rest = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--format") && i + 1 < args.length) {
+                format = args[++i];
+            } else if (args[i].equals("--shard") && i + 1 < args.length) {
+                shard = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--heartbeat") && i + 1 < args.length) {
+                heartbeat = Integer.parseInt(args[++i]);
+            } else if (!args[i].equals("--coordinate")) {
+                rest.add(args[i]);
+            }
+        }
+        if (rest.size() != 4) {
+            System.err.println("usage: java Run --coordinate PORT IN_DIR OUT_DIR CHAIN"
+                + " [--format png] [--shard N] [--heartbeat MS]");
+            System.exit(2);
+        }
+        Coordinator c = new Coordinator(new File(rest.get(1)), new File(rest.get(2)), rest.get(3),
+                                        format, shard, heartbeat);
+        System.out.print(c.run(Integer.parseInt(rest.get(0))));
+        System.exit(c.failures.isEmpty() ? 0 : 1);
+    }//main
+}//Coordinator
@@ -0,0 +1,214 @@
+package imagelab;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DiskCache is a directory of images kept in ImageLab's raw format, each
+ * in a file named by a hash of its key.  It holds two kinds of entry:
+ * decoded image files, keyed by the content hash of the file's bytes,
+ * and filter results, as the disk tier of {@link FilterCache}.  Since
+ * the directory outlives the program, a batch run again over mostly
+ * unchanged inputs neither decodes nor filters them a second time.
+ * <p>
+ * Entries are written under a temporary name and renamed into place, so
+ * any number of programs may share a directory and none ever reads half
+ * an entry.  Reading an entry sets its modification time, which serves
+ * as its last access time; when the entries outgrow the size cap the
+ * least recently used are deleted until they fit again.
+ * <p>
+ * The shared cache lives in the directory named by the system property
+ * imagelab.cache.dir (default: none, so no disk cache) and is capped at
+ * imagelab.cache.disk.mb megabytes (default 2048).
+ * @version 1.0
+ */
+public final class DiskCache implements FilterCache.Tier {
+    /** File name ending of entries. */
+    static final String ENTRY = RawImage.EXTENSION;
+    /** File name ending of entries being written. */
+    static final String PARTIAL = ".part";
+    /** Temporary files older than this (ms) were left by a program that died. */
+    private static final long STALE = 60 * 60 * 1000L;
+    /** Trimming stops once entries fit in this fraction of the cap. */
+    private static final double LOW_WATER = 0.9;
+
+    /** The shared cache, created on first use. */
+    private static DiskCache shared;
+    /** Whether the shared cache has been looked for. */
+    private static boolean sharedChecked;
+
+    /** Where the entries are. */
+    private final File dir;
+    /** Most bytes the entries may take. */
+    private final long cap;
+    /** Bytes the entries take, as far as this program knows; -1 before the first scan. */
+    private final AtomicLong used = new AtomicLong(-1);
+
+    /**
+     * Open a cache directory, creating it if needed.
+     * @param directory where the entries go
+     * @param capBytes the most bytes the entries may take
+     */
+    public DiskCache(final File directory, final long capBytes) {
+        dir = directory;
+        cap = capBytes;
+        dir.mkdirs();
+    }//constructor
+
+    /**
+     * Retrieve the cache shared by the whole program.
+     * @return the shared cache, or null if imagelab.cache.dir is not set
+     */
+    public static synchronized DiskCache getShared() {
+        if (!sharedChecked) {
+            String name = System.getProperty("imagelab.cache.dir");
+            if (name != null) {
+                shared = new DiskCache(new File(name), Long.getLong("imagelab.cache.disk.mb", 2048) << 20);
+            }
+            sharedChecked = true;
+        }
+        return shared;
+    }//getShared
+
+    /**
+     * Replace the shared cache.
+     * @param cache the new shared cache, or null for none
+     */
+    public static synchronized void setShared(final DiskCache cache) {
+        shared = cache;
+        sharedChecked = true;
+    }//setShared
+
+    /**
+     * Read an image file, using the decoded planes kept from an earlier
+     * read of a file with the same bytes if there are any.
+     * @param file the image file
+     * @return the image
+     * @throws IOException if the file cannot be read or decoded
+     */
+    public ImgProvider decode(final File file) throws IOException {
+        String key = "decode|" + ContentHash.hex(file);
+        ImgProvider ip = get(key);
+        if (ip == null) {
+            ip = ImgProvider.decode(file);
+            put(key, ip);
+        }
+        ip.imgName = file.getPath();
+        return ip;
+    }//decode
+
+    /**
+     * The file of a key: the first 128 bits of its SHA-256, in hexadecimal.
+     * @param key the key
+     * @return the file
+     */
+    File fileOf(final String key) {
+        try {
+            byte[] sha = MessageDigest.getInstance("SHA-256").digest(
+                key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < 16; i++) name.append(String.format("%02x", sha[i]));
+            return new File(dir, name.append(ENTRY).toString());
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException("SHA-256 is missing", nsae);
+        }
+    }//fileOf
+
+    @Override
+    public ImgProvider get(final String key) {
+        File f = fileOf(key);
+        if (!f.isFile()) return null;
+        f.setLastModified(System.currentTimeMillis());
+        try {
+            return RawImage.read(f);
+        } catch (IOException ioe) {
+            return null;                        // deleted meanwhile, or damaged: a miss
+        }
+    }//get
+
+    @Override
+    public void put(final String key, final ImgProvider ip) {
+        File f = fileOf(key);
+        if (f.isFile()) {                       // someone else got there first
+            f.setLastModified(System.currentTimeMillis());
+            return;
+        }
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(f.getName(), PARTIAL, dir);
+            RawImage.write(ip, tmp, true);     // on disk before it is published
+            long size = tmp.length();
+            try {
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (used.get() < 0 || used.addAndGet(size) > cap) trim();
+        } catch (IOException ioe) {
+            if (tmp != null) tmp.delete();      // a cache may always decline to keep something
+        }
+    }//put
+
+    /**
+     * Delete least recently used entries until they fit well under the
+     * cap, along with temporary files left by programs that died.  The
+     * directory is scanned afresh, since other programs may share it.
+     */
+    synchronized void trim() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        long now = System.currentTimeMillis();
+        long total = 0;
+        int n = 0;
+        final long[] stamp = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            File f = files[i];
+            if (f.getName().endsWith(PARTIAL)) {
+                if (now - f.lastModified() > STALE) f.delete();
+            } else if (f.getName().endsWith(ENTRY)) {
+                stamp[i] = f.lastModified();
+                total += f.length();
+                order[n++] = i;
+            }
+        }
+        if (total > cap) {
+            Integer[] entries = Arrays.copyOf(order, n);
+            Arrays.sort(entries, Comparator.comparingLong(i -> stamp[i]));
+            for (int k = 0; k < n && total > cap * LOW_WATER; k++) {
+                File f = files[entries[k]];
+                long size = f.length();
+                if (f.delete()) total -= size;  // in use elsewhere may refuse; leave it
+            }
+        }
+        used.set(total);
+    }//trim
+
+    /**
+     * Bytes the entries take.
+     * @return their total size, as of the last scan and this program's writes since
+     */
+    public long size() {
+        if (used.get() < 0) trim();
+        return used.get();
+    }//size
+
+    /**
+     * Describe the cache.
+     * @return its directory, size and cap
+     */
+    @Override
+    public String toString() {
+        return String.format("DiskCache %s: %d of %d MB", dir, size() >> 20, cap >> 20);
+    }//toString
+}//DiskCache
@@ -62,12 +62,16 @@ public class DisplayImage extends ILFrame {
         setUndecorated(false);
         setBackground(new Color(255,255,255));
         improvider  = imp;
-        int[] pix = imp.pix;
-        int[] showpix = pix;
-        int pixheight = imp.pixheight;
-        int pixwidth  = imp.pixwidth;
-        img = getToolkit().createImage(
-                new MemoryImageSource(pixwidth, pixheight, showpix, 0, pixwidth));
+        if (imp.isOffHeap()) {
+            img = imp.img;                      //reads the off-heap pixels directly
+        } else {
+            int[] pix = imp.pix;
+            int[] showpix = pix;
+            int pixheight = imp.pixheight;
+            int pixwidth  = imp.pixwidth;
+            img = getToolkit().createImage(
+                    new MemoryImageSource(pixwidth, pixheight, showpix, 0, pixwidth));
+        }
         pane        = new DisPanel(img);
         getContentPane().add(pane,"Center");
         int width;
@@ -0,0 +1,273 @@
+package imagelab;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Dither reduces an image to black and white, or to a palette, by error
+ * diffusion: each pixel is set to the nearest available color and the
+ * difference is spread over neighbors not yet visited.
+ * <p>
+ * Error diffusion looks sequential, but a pixel only depends on pixels
+ * above it and a few columns to its right.  Rows are therefore run on
+ * all processors as a skewed wavefront: each thread takes the next row
+ * and follows the row above a few pixels behind, waiting whenever it
+ * catches up.  Every error buffer has a single writer and errors are
+ * kept as exact integers, so the result is the same as dithering one
+ * row after another on one thread.
+ * @version 1.0
+ */
+public final class Dither {
+    /** Pixels done between progress checks. */
+    private static final int BLOCK = 64;
+    /** Smallest band of rows worth giving to another thread. */
+    private static final int GRAIN = 32;
+    /** The black and white palette. */
+    private static final Palette BW = new Palette(new int[] {0x000000, 0xFFFFFF});
+
+    /** Utility class; not instantiated. */
+    private Dither() { }
+
+    /** Error diffusion patterns. */
+    public enum Kernel {
+        /** Floyd and Steinberg: four neighbors, sixteenths. */
+        FLOYD_STEINBERG("Floyd-Steinberg", 16, new int[][] {
+            {1, 0, 7}, {-1, 1, 3}, {0, 1, 5}, {1, 1, 1}}),
+        /** Atkinson: six neighbors, eighths; a quarter of the error is dropped. */
+        ATKINSON("Atkinson", 8, new int[][] {
+            {1, 0, 1}, {2, 0, 1}, {-1, 1, 1}, {0, 1, 1}, {1, 1, 1}, {0, 2, 1}}),
+        /** Sierra: ten neighbors over three rows, thirty-seconds. */
+        SIERRA("Sierra", 32, new int[][] {
+            {1, 0, 5}, {2, 0, 3},
+            {-2, 1, 2}, {-1, 1, 4}, {0, 1, 5}, {1, 1, 4}, {2, 1, 2},
+            {-1, 2, 2}, {0, 2, 3}, {1, 2, 2}});
+
+        /** Name shown to the user. */
+        private final String label;
+        /** Sum the weights are divided by. */
+        final int divisor;
+        /** Neighbors receiving error, as {dx, dy, weight}; dy is 0 to 2. */
+        final int[][] taps;
+        /** How far right of a pixel the row above must have got before it. */
+        final int reach1;
+        /** How far right of a pixel the row two above must have got. */
+        final int reach2;
+
+        /**
+         * Create a kernel.
+         * @param name the name shown to the user
+         * @param div the divisor
+         * @param t the taps
+         */
+        Kernel(final String name, final int div, final int[][] t) {
+            label = name;
+            divisor = div;
+            taps = t;
+            int r1 = 0;
+            int r2 = 0;
+            for (int[] tap : t) {
+                if (tap[1] == 1) r1 = Math.max(r1, -tap[0]);
+                if (tap[1] == 2) r2 = Math.max(r2, -tap[0]);
+            }
+            reach1 = r1;
+            reach2 = r2;
+        }
+
+        @Override
+        public String toString() { return label; }
+    }//Kernel
+
+    /**
+     * Dither an image to black and white.
+     * @param ip the image
+     * @param kernel the diffusion pattern
+     * @return white where the dithered pixel is white
+     */
+    public static BinaryImage blackAndWhite(final ImgProvider ip, final Kernel kernel) {
+        return blackAndWhite(ip, kernel, Parallel.THREADS);
+    }//blackAndWhite
+
+    /**
+     * Dither an image to a palette.
+     * @param ip the image
+     * @param pal the palette
+     * @param kernel the diffusion pattern
+     * @return the dithered image
+     */
+    public static IndexedImage toPalette(final ImgProvider ip, final Palette pal,
+                                         final Kernel kernel) {
+        return toPalette(ip, pal, kernel, Parallel.THREADS);
+    }//toPalette
+
+    /**
+     * Dither an image to black and white on a given number of threads;
+     * one thread gives the sequential reference.
+     * @param ip the image
+     * @param kernel the diffusion pattern
+     * @param threads the number of rows in flight at once
+     * @return white where the dithered pixel is white
+     */
+    static BinaryImage blackAndWhite(final ImgProvider ip, final Kernel kernel,
+                                     final int threads) {
+        ip.ensureLoaded();
+        final int w = ip.pixwidth;
+        final int h = ip.pixheight;
+        final short[][] gray = new short[h][w];
+        Parallel.forBands(h, GRAIN, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                for (int x = 0; x < w; x++) {
+                    gray[y][x] = (short) ((ip.red[y][x] + ip.green[y][x] + ip.blue[y][x]) / 3);
+                }
+            }
+        });
+        final byte[][] idx = diffuse(new short[][][] {gray, gray, gray}, w, h, BW, kernel, threads);
+        final BinaryImage out = new BinaryImage(w, h);
+        Parallel.forBands(h, GRAIN, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                long[] bits = out.bits[y];
+                for (int x = 0; x < w; x++) {
+                    if (idx[y][x] != 0) bits[x >> 6] |= 1L << x;
+                }
+            }
+        });
+        return out;
+    }//blackAndWhite
+
+    /**
+     * Dither an image to a palette on a given number of threads;
+     * one thread gives the sequential reference.
+     * @param ip the image
+     * @param pal the palette
+     * @param kernel the diffusion pattern
+     * @param threads the number of rows in flight at once
+     * @return the dithered image
+     */
+    static IndexedImage toPalette(final ImgProvider ip, final Palette pal,
+                                  final Kernel kernel, final int threads) {
+        ip.ensureLoaded();
+        byte[][] idx = diffuse(new short[][][] {ip.red, ip.green, ip.blue},
+                               ip.pixwidth, ip.pixheight, pal, kernel, threads);
+        return new IndexedImage(pal, idx);
+    }//toPalette
+
+    /**
+     * Run error diffusion as a wavefront.
+     * Row y reads error from two buffers: one filled by row y - 1 and
+     * one by row y - 2.  Error along its own row stays with its thread.
+     * Buffers live in a ring and a row waits, before it starts, until
+     * the row that last used its slots has finished.
+     * @param src the red, green and blue planes (the same plane thrice for gray)
+     * @param w the width
+     * @param h the height
+     * @param pal the palette
+     * @param kernel the diffusion pattern
+     * @param threads the number of rows in flight at once
+     * @return palette indices
+     */
+    private static byte[][] diffuse(final short[][][] src, final int w, final int h,
+                                    final Palette pal, final Kernel kernel, final int threads) {
+        final int workers = Math.max(1, Math.min(threads, h));
+        final int ring = workers + 3;
+        final int stride = 3 * (w + 4);              // two columns of margin each side
+        final int[][] fromAbove = new int[ring][stride];
+        final int[][] fromTwoAbove = new int[ring][stride];
+        final AtomicIntegerArray done = new AtomicIntegerArray(h);
+        final AtomicInteger nextRow = new AtomicInteger();
+        final byte[][] idx = new byte[h][w];
+        Parallel.Band worker = (unused, unused2) -> {
+            final int[] own = new int[stride];
+            for (int y = nextRow.getAndIncrement(); y < h; y = nextRow.getAndIncrement()) {
+                if (y + 2 - ring >= 0) waitFor(done, y + 2 - ring, w);
+                diffuseRow(src, y, w, h, pal, kernel, own,
+                           fromAbove[y % ring], fromTwoAbove[y % ring],
+                           fromAbove[(y + 1) % ring], fromTwoAbove[(y + 2) % ring],
+                           idx[y], done);
+            }
+        };
+        if (workers == 1) {
+            worker.run(0, 1);
+        } else {
+            Parallel.forEach(workers, worker);
+        }
+        return idx;
+    }//diffuse
+
+    /**
+     * Dither one row, keeping behind the rows above.
+     * @param src the color planes
+     * @param y the row
+     * @param w the width
+     * @param h the height
+     * @param pal the palette
+     * @param kernel the diffusion pattern
+     * @param own scratch for error along this row
+     * @param in1 error sent by row y - 1
+     * @param in2 error sent by row y - 2
+     * @param out1 error for row y + 1, written here only
+     * @param out2 error for row y + 2, written here only
+     * @param out the row's palette indices
+     * @param done pixels finished in each row
+     */
+    private static void diffuseRow(final short[][][] src, final int y, final int w, final int h,
+                                   final Palette pal, final Kernel kernel, final int[] own,
+                                   final int[] in1, final int[] in2,
+                                   final int[] out1, final int[] out2,
+                                   final byte[] out, final AtomicIntegerArray done) {
+        Arrays.fill(own, 0);
+        if (y + 1 < h) Arrays.fill(out1, 0);
+        if (y + 2 < h) Arrays.fill(out2, 0);
+        final int div = kernel.divisor;
+        final int[][] taps = kernel.taps;
+        final short[] rs = src[0][y];
+        final short[] gs = src[1][y];
+        final short[] bs = src[2][y];
+        final int[] err = new int[3];
+        for (int x0 = 0; x0 < w; x0 += BLOCK) {
+            final int x1 = Math.min(w, x0 + BLOCK);
+            if (y > 0) waitFor(done, y - 1, Math.min(w, x1 + kernel.reach1));
+            if (y > 1) waitFor(done, y - 2, Math.min(w, x1 + kernel.reach2));
+            for (int x = x0; x < x1; x++) {
+                int at = 3 * (x + 2);
+                int r = clamp(rs[x] + (own[at]     + in1[at]     + in2[at])     / div);
+                int g = clamp(gs[x] + (own[at + 1] + in1[at + 1] + in2[at + 1]) / div);
+                int b = clamp(bs[x] + (own[at + 2] + in1[at + 2] + in2[at + 2]) / div);
+                int i = pal.nearest(r, g, b);
+                int c = pal.getColor(i);
+                out[x] = (byte) i;
+                err[0] = r - ((c >> 16) & 255);
+                err[1] = g - ((c >> 8) & 255);
+                err[2] = b - (c & 255);
+                for (int[] tap : taps) {
+                    int[] dst = (tap[1] == 0) ? own : (tap[1] == 1) ? out1 : out2;
+                    int to = 3 * (x + 2 + tap[0]);
+                    dst[to]     += err[0] * tap[2];
+                    dst[to + 1] += err[1] * tap[2];
+                    dst[to + 2] += err[2] * tap[2];
+                }
+            }
+            done.set(y, x1);
+        }
+    }//diffuseRow
+
+    /**
+     * Wait, yielding the processor, until a row has finished enough pixels.
+     * @param done pixels finished in each row
+     * @param row the row to wait for
+     * @param upTo the number of pixels needed
+     */
+    private static void waitFor(final AtomicIntegerArray done, final int row, final int upTo) {
+        while (done.get(row) < upTo) {
+            Thread.yield();
+        }
+    }//waitFor
+
+    /**
+     * Clamp to the range of a color channel.
+     * @param v the value
+     * @return v limited to 0 to 255
+     */
+    private static int clamp(final int v) {
+        return (v < 0) ? 0 : (v > 255) ? 255 : v;
+    }//clamp
+}//Dither
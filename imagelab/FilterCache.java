@@ -0,0 +1,215 @@
+package imagelab;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * FilterCache remembers filter results so that applying the same filter
+ * with the same settings to an unchanged image costs nothing the second
+ * time.  A result is keyed by the content hashes of the input images,
+ * the filter's class and its settings.
+ * <p>
+ * Results are held in memory up to a budget in bytes, least recently
+ * used first out.  An optional second tier keeps results on disk; what
+ * memory evicts is written there and found again on a later miss.
+ * Filters that mark themselves {@link NonDeterministic} are always run.
+ * Only filters that cost much more than a pass over the image go through
+ * the shared cache.  A miss hashes every pixel and keeps a full-size copy,
+ * and a hit still copies pix, so flips, right-angle rotations, channel
+ * swaps, thresholds and differences are cheaper to compute again.
+ * <p>
+ * Each caller receives its own ImgProvider sharing the cached planes, so
+ * results must be treated as read-only (as ImageLab's engines do).
+ * The shared cache takes its budget in megabytes from the system
+ * property imagelab.cache.mb (default: an eighth of the heap); its disk
+ * tier is the shared {@link DiskCache}, if there is one.
+ * @version 1.0
+ */
+public final class FilterCache {
+    /** Bytes held per pixel by an ImgProvider: four short planes and pix. */
+    static final int BYTES_PER_PIXEL = 4 * 2 + 4;
+
+    /** A second, slower place to keep results. */
+    public interface Tier {
+        /**
+         * Look up a result.
+         * @param key the result's key
+         * @return the image, or null if it is not kept
+         */
+        ImgProvider get(String key);
+
+        /**
+         * Keep a result.
+         * @param key the result's key
+         * @param ip the image
+         */
+        void put(String key, ImgProvider ip);
+    }//Tier
+
+    /** The shared cache, created on first use. */
+    private static FilterCache shared;
+
+    /** Memory budget in bytes. */
+    private final long budget;
+    /** The disk tier, or null. */
+    private final Tier disk;
+    /** Results in memory, least recently used first. */
+    private final LinkedHashMap<String, ImgProvider> memory =
+        new LinkedHashMap<String, ImgProvider>(16, 0.75f, true);
+    /** Bytes held in memory. */
+    private long used;
+    /** Lookups answered from memory. */
+    private long hits;
+    /** Lookups answered from disk. */
+    private long diskHits;
+    /** Lookups that ran the filter. */
+    private long misses;
+
+    /**
+     * Create a cache.
+     * @param budgetBytes the most memory results may use
+     * @param diskTier where evicted results go, or null for none
+     */
+    public FilterCache(final long budgetBytes, final Tier diskTier) {
+        budget = budgetBytes;
+        disk = diskTier;
+    }//constructor
+
+    /**
+     * Retrieve the cache shared by the whole program.
+     * @return the shared cache
+     */
+    public static synchronized FilterCache getShared() {
+        if (shared == null) {
+            long mb = Long.getLong("imagelab.cache.mb", Runtime.getRuntime().maxMemory() >> 23);
+            shared = new FilterCache(mb << 20, DiskCache.getShared());
+        }
+        return shared;
+    }//getShared
+
+    /**
+     * Replace the shared cache, for example to give it a disk tier.
+     * @param cache the new shared cache
+     */
+    public static synchronized void setShared(final FilterCache cache) {
+        shared = cache;
+    }//setShared
+
+    /**
+     * Apply a one-image filter through the cache.
+     * @param filter the filter (its class identifies it)
+     * @param input the image filtered
+     * @param compute runs the filter, on a miss
+     * @param params the filter's settings
+     * @return the result
+     */
+    public ImgProvider apply(final Object filter, final ImgProvider input,
+                             final Supplier<ImgProvider> compute, final Object... params) {
+        return apply(filter, new ImgProvider[] {input}, compute, params);
+    }//apply
+
+    /**
+     * Apply a filter of several images through the cache.
+     * @param filter the filter (its class identifies it)
+     * @param inputs the images filtered
+     * @param compute runs the filter, on a miss
+     * @param params the filter's settings
+     * @return the result
+     */
+    public ImgProvider apply(final Object filter, final ImgProvider[] inputs,
+                             final Supplier<ImgProvider> compute, final Object... params) {
+        if (filter instanceof NonDeterministic) return compute.get();
+        String key = key(filter.getClass(), inputs, params);
+        ImgProvider found;
+        synchronized (this) {
+            found = memory.get(key);
+            if (found != null) hits++;
+        }
+        if (found == null && disk != null) {
+            found = disk.get(key);
+            if (found != null) {
+                synchronized (this) { diskHits++; }
+                remember(key, found);
+            }
+        }
+        if (found == null) {
+            synchronized (this) { misses++; }
+            found = compute.get();
+            if (found == null) return null;
+            remember(key, found);
+        }
+        return found.twin();
+    }//apply
+
+    /**
+     * Build the key of a result.
+     * @param filter the filter's class
+     * @param inputs the images filtered
+     * @param params the filter's settings
+     * @return the key
+     */
+    static String key(final Class<?> filter, final ImgProvider[] inputs, final Object[] params) {
+        StringBuilder sb = new StringBuilder(filter.getName());
+        for (ImgProvider ip : inputs) sb.append('|').append(ContentHash.hex(ip));
+        for (Object p : params) sb.append('|').append(p);
+        return sb.toString();
+    }//key
+
+    /**
+     * Keep a result in memory, evicting the least recently used ones
+     * (to the disk tier, if there is one) to stay within budget.
+     * @param key the key
+     * @param ip the result
+     */
+    private void remember(final String key, final ImgProvider ip) {
+        long size = sizeOf(ip);
+        if (size > budget) {
+            if (disk != null) disk.put(key, ip);
+            return;
+        }
+        Map<String, ImgProvider> evicted = new LinkedHashMap<String, ImgProvider>();
+        synchronized (this) {
+            ImgProvider old = memory.put(key, ip);
+            if (old != null) used -= sizeOf(old);
+            used += size;
+            Iterator<Map.Entry<String, ImgProvider>> it = memory.entrySet().iterator();
+            while (used > budget && it.hasNext()) {
+                Map.Entry<String, ImgProvider> e = it.next();
+                if (e.getKey().equals(key)) continue;
+                used -= sizeOf(e.getValue());
+                evicted.put(e.getKey(), e.getValue());
+                it.remove();
+            }
+        }
+        if (disk != null) {
+            for (Map.Entry<String, ImgProvider> e : evicted.entrySet()) disk.put(e.getKey(), e.getValue());
+        }
+    }//remember
+
+    /**
+     * Memory held by an image.
+     * @param ip the image
+     * @return its size in bytes
+     */
+    static long sizeOf(final ImgProvider ip) {
+        return (long) ip.pixwidth * ip.pixheight * BYTES_PER_PIXEL;
+    }//sizeOf
+
+    /** Forget everything held in memory. */
+    public synchronized void clear() {
+        memory.clear();
+        used = 0;
+    }//clear
+
+    /**
+     * Summarize the cache's use so far.
+     * @return counts of hits, disk hits and misses, and memory in use
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("FilterCache: %d hits, %d disk hits, %d misses, %d results in %d of %d MB",
+            hits, diskHits, misses, memory.size(), used >> 20, budget >> 20);
+    }//toString
+}//FilterCache
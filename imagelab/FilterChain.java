@@ -0,0 +1,133 @@
+package imagelab;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * FilterChain runs a sequence of the menu's filters on an image without
+ * a screen, answering their questions from settings given in advance.
+ * A chain is written as filters separated by commas, each a filter class
+ * name from the filters directory followed by its answers, separated by
+ * colons, in the order the filter asks its questions:
+ * <pre>
+ *   Median:2,Threshold:128,Dither:Floyd-Steinberg:16
+ * </pre>
+ * A missing or empty answer takes the question's default.  Only filters
+ * of one image ({@link ImageFilter}) can be chained.  A fresh instance of
+ * each filter is made every time the chain is applied, so one chain may
+ * be applied on several threads at once.
+ * @version 1.0
+ */
+public final class FilterChain {
+    /** What a filter class name may look like. */
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    /** The filter classes, in order. */
+    private final List<Class<? extends ImageFilter>> filters;
+    /** The answers each filter is given. */
+    private final List<List<String>> answers;
+
+    /**
+     * Create a chain.
+     * @param f the filter classes
+     * @param a the answers for each
+     */
+    private FilterChain(final List<Class<? extends ImageFilter>> f, final List<List<String>> a) {
+        filters = f;
+        answers = a;
+    }//constructor
+
+    /**
+     * Read a chain.
+     * @param spec the chain, for example "Median:2,Threshold:128"
+     * @return the chain
+     * @throws IllegalArgumentException if a filter does not exist or is not a one-image filter
+     */
+    public static FilterChain parse(final String spec) {
+        List<Class<? extends ImageFilter>> f = new ArrayList<Class<? extends ImageFilter>>();
+        List<List<String>> a = new ArrayList<List<String>>();
+        for (String step : spec.split(",")) {
+            if (step.trim().isEmpty()) continue;
+            String[] parts = step.split(":", -1);
+            f.add(filterClass(parts[0].trim()));
+            a.add(Collections.unmodifiableList(Arrays.asList(parts).subList(1, parts.length)));
+        }
+        if (f.isEmpty()) throw new IllegalArgumentException("No filters in chain: " + spec);
+        return new FilterChain(f, a);
+    }//parse
+
+    /**
+     * Look up a filter class by name.
+     * @param name the class name, without its package
+     * @return the class
+     * @throws IllegalArgumentException if there is no such one-image filter
+     */
+    private static Class<? extends ImageFilter> filterClass(final String name) {
+        if (!NAME.matcher(name).matches()) throw new IllegalArgumentException("Not a filter name: " + name);
+        Class<?> cl;
+        try {
+            cl = Class.forName(ImageLab.FILTER_DIR + "." + name);
+        } catch (ClassNotFoundException cnfe) {
+            throw new IllegalArgumentException("No filter " + name);
+        }
+        if (!ImageFilter.class.isAssignableFrom(cl)) {
+            throw new IllegalArgumentException(name + " is not a one-image filter");
+        }
+        return cl.asSubclass(ImageFilter.class);
+    }//filterClass
+
+    /**
+     * Retrieve the number of filters in the chain.
+     * @return how many filters it runs
+     */
+    public int size() { return filters.size(); }
+
+    /**
+     * Run the chain.  Images are not shown while it runs if ImageLab is
+     * headless (see {@link ImgProvider#setHeadless}).
+     * @param ip the image; left unchanged
+     * @return the result of the last filter
+     * @throws IllegalArgumentException if a filter rejects its settings
+     */
+    public ImgProvider apply(final ImgProvider ip) {
+        ImgProvider current = ip;
+        for (int i = 0; i < filters.size(); i++) {
+            ImageFilter f;
+            try {
+                f = filters.get(i).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException roe) {
+                throw new IllegalStateException("Cannot create filter " + filters.get(i).getSimpleName(), roe);
+            }
+            ImageLab.answerWith(answers.get(i));
+            try {
+                f.filter(current);
+            } finally {
+                ImageLab.answerWith(null);
+            }
+            ImgProvider result = f.getImgProvider();
+            if (result == null) {
+                throw new IllegalArgumentException(filters.get(i).getSimpleName() + " produced no image");
+            }
+            current = result;
+        }
+        return current;
+    }//apply
+
+    /**
+     * The chain in the form {@link #parse} reads.
+     * @return the chain
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < filters.size(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append(filters.get(i).getSimpleName());
+            for (String a : answers.get(i)) sb.append(':').append(a);
+        }
+        return sb.toString();
+    }//toString
+}//FilterChain
@@ -0,0 +1,404 @@
+package imagelab;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HotFolder watches a folder and runs a {@link FilterChain} on each image
+ * that appears in it or changes, writing the results to another folder.
+ * <pre>
+ *   java Run --watch IN_DIR OUT_DIR CHAIN [--format png] [--threads N] [--settle MS]
+ * </pre>
+ * The folder is watched with a WatchService rather than rescanned.  A
+ * file is taken only once it has settled: no events for it and the same
+ * size and modification time over a settling interval (default one
+ * second), so a scanner still writing it is not caught halfway.  Files
+ * already there at start are treated as new.  At most a given number of
+ * images are filtered at once; a file that changes again while it is
+ * being filtered is taken again afterwards.
+ * <p>
+ * Work already done is remembered in a manifest in the output folder,
+ * one line per result, keyed by the input's content hash, the chain and
+ * the output format.  A file whose key is in the manifest and whose
+ * output still exists is skipped, so restarting the watcher or touching
+ * a file costs only a hash, and the same image arriving under another
+ * name has the earlier result copied rather than filtered again.  Results
+ * are written to a hidden temporary file and renamed into place.
+ * <p>
+ * A result is named after the whole name of its input, so scan.jpg
+ * becomes scan.jpg.png: in a folder whose contents keep changing, base
+ * names alone (as {@link Coordinator} uses for a fixed batch) could not
+ * be kept apart for scan.jpg and a scan.png that arrives later.  Only
+ * files named as images ImageLab can read are taken; hidden files and
+ * other files, such as sidecars and partial downloads, are ignored.  The
+ * output folder may not be the watched folder or inside it, since every
+ * result would be taken as a new image.
+ * @version 1.0
+ */
+public final class HotFolder implements Closeable {
+    /** Name of the manifest in the output folder. */
+    static final String MANIFEST = ".imagelab-manifest";
+
+    /** A file waiting to settle. */
+    private static final class Pending {
+        /** When it last had an event or was seen to change. */
+        long since;
+        /** Its size when last looked at; -1 before the first look. */
+        long size = -1;
+        /** Its modification time when last looked at. */
+        long modified = -1;
+
+        /**
+         * Start waiting.
+         * @param now the time of the event
+         */
+        Pending(final long now) {
+            since = now;
+        }//constructor
+    }//Pending
+
+    /** The folder watched. */
+    private final Path in;
+    /** Where results go. */
+    private final File out;
+    /** The filters. */
+    private final FilterChain chain;
+    /** The output format. */
+    private final String format;
+    /** How long a file must stay unchanged, in milliseconds. */
+    private final long settleMs;
+    /** The watch service. */
+    private final WatchService watcher;
+    /** Filters images, a bounded number at once. */
+    private final ExecutorService pool;
+    /** Checks waiting files. */
+    private final ScheduledExecutorService ticker;
+    /** Files waiting to settle; guarded by this. */
+    private final Map<Path, Pending> waiting = new HashMap<Path, Pending>();
+    /** Files being filtered; guarded by this. */
+    private final Set<Path> busy = new HashSet<Path>();
+    /** Files that changed while being filtered; guarded by this. */
+    private final Set<Path> again = new HashSet<Path>();
+    /** Work done, as manifest lines (key, tab, output name); guarded by itself. */
+    private final Set<String> done = new HashSet<String>();
+    /** An output name for each key done; guarded by done. */
+    private final Map<String, String> results = new HashMap<String, String>();
+    /** Appends to the manifest; guarded by done. */
+    private final PrintWriter manifest;
+    /** Images filtered. */
+    private final AtomicLong filtered = new AtomicLong();
+    /** Images skipped as already done. */
+    private final AtomicLong skipped = new AtomicLong();
+    /** Images that could not be filtered. */
+    private final AtomicLong failed = new AtomicLong();
+    /** The thread taking events. */
+    private Thread events;
+
+    /**
+     * Prepare to watch a folder; {@link #start} starts.
+     * @param inDir the folder to watch
+     * @param outDir where results go, created if needed
+     * @param filters the filters to run
+     * @param outFormat the output format, for instance png
+     * @param threads most images filtered at once
+     * @param settle how long a file must stay unchanged, in milliseconds
+     * @throws IOException if the folder cannot be watched or the manifest read
+     * @throws IllegalArgumentException if outDir is the watched folder or inside it
+     */
+    public HotFolder(final File inDir, final File outDir, final FilterChain filters, final String outFormat,
+                     final int threads, final long settle) throws IOException {
+        if (outDir.getCanonicalFile().toPath().startsWith(inDir.getCanonicalFile().toPath())) {
+            // each result is an image too, and would be filtered again without end
+            throw new IllegalArgumentException("The output folder " + outDir
+                + " must not be inside the watched folder " + inDir);
+        }
+        in = inDir.toPath();
+        out = outDir;
+        chain = filters;
+        format = outFormat.toLowerCase();
+        settleMs = settle;
+        if (!out.isDirectory() && !out.mkdirs()) throw new IOException("Cannot create " + out);
+        File mf = new File(out, MANIFEST);
+        if (mf.exists()) {
+            try (BufferedReader r = new BufferedReader(new FileReader(mf))) {
+                for (String line = r.readLine(); line != null; line = r.readLine()) {
+                    int tab = line.lastIndexOf('\t');
+                    if (tab <= 0) continue;
+                    done.add(line);
+                    results.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+        }
+        manifest = new PrintWriter(new FileWriter(mf, true));
+        watcher = FileSystems.getDefault().newWatchService();
+        in.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "ImageLab hot folder");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ImageLab hot folder ticker");
+            t.setDaemon(true);
+            return t;
+        });
+    }//constructor
+
+    /** Take the files already there and start watching for more. */
+    public synchronized void start() {
+        ImgProvider.setHeadless(true);
+        scan();
+        events = new Thread(this::watch, "ImageLab hot folder watcher");
+        events.setDaemon(true);
+        events.start();
+        long tick = Math.max(10, settleMs / 4);
+        ticker.scheduleWithFixedDelay(this::tick, tick, tick, TimeUnit.MILLISECONDS);
+    }//start
+
+    /** Take events until closed. */
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> ev : key.pollEvents()) {
+                    if (ev.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        scan();                         // events were lost: look at everything
+                    } else {
+                        changed(in.resolve((Path) ev.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    System.err.println("No longer watching " + in);
+                    return;
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // closed
+        }
+    }//watch
+
+    /** Treat every file in the folder as changed. */
+    private void scan() {
+        File[] files = in.toFile().listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (f.isFile()) changed(f.toPath());
+        }
+    }//scan
+
+    /**
+     * Note that a file was created or modified, starting its settling over.
+     * @param p the file
+     */
+    private synchronized void changed(final Path p) {
+        if (!Loader.isImage(p.toFile())) return;          //sidecars, partial files, hidden files
+        Pending w = waiting.get(p);
+        if (w == null) {
+            waiting.put(p, new Pending(System.currentTimeMillis()));
+        } else {
+            w.since = System.currentTimeMillis();
+        }
+    }//changed
+
+    /** Hand on the files that have settled. */
+    private synchronized void tick() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<Path, Pending>> it = waiting.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Path, Pending> e = it.next();
+            Pending w = e.getValue();
+            if (now - w.since < settleMs) continue;
+            File f = e.getKey().toFile();
+            if (!f.isFile()) {
+                it.remove();                            // deleted or moved away
+                continue;
+            }
+            long size = f.length();
+            long modified = f.lastModified();
+            if (size != w.size || modified != w.modified) {
+                w.size = size;                          // still changing: look again later
+                w.modified = modified;
+                w.since = now;
+                continue;
+            }
+            it.remove();
+            final Path p = e.getKey();
+            if (!busy.add(p)) {
+                again.add(p);
+                continue;
+            }
+            pool.execute(() -> process(p));
+        }
+    }//tick
+
+    /**
+     * Filter one settled file, unless the manifest says it is done.  The
+     * same image under a new name has the earlier result copied.
+     * @param p the file
+     */
+    private void process(final Path p) {
+        File f = p.toFile();
+        try {
+            String key = ContentHash.hex(f) + "|" + chain + "|" + format;
+            File target = new File(out, f.getName() + "." + format);
+            String line = key + "\t" + target.getName();
+            String previous;
+            boolean same;
+            synchronized (done) {
+                previous = results.get(key);
+                same = done.contains(line);
+            }
+            File earlier = (previous == null) ? null : new File(out, previous);
+            if (same && target.exists()) {
+                skipped.incrementAndGet();
+                System.out.println(f.getName() + ": already done");
+                return;
+            }
+            File tmp = File.createTempFile("." + target.getName(), "." + format, out);
+            try {
+                if (earlier != null && earlier.exists()) {
+                    Files.copy(earlier.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    skipped.incrementAndGet();          // same image under another name
+                } else {
+                    chain.apply(ImgProvider.read(f)).write(tmp);
+                    filtered.incrementAndGet();
+                }
+                try {
+                    Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                               StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException amnse) {
+                    Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+            synchronized (done) {
+                if (done.add(line)) {
+                    manifest.println(line);
+                    manifest.flush();
+                }
+                results.put(key, target.getName());
+            }
+            System.out.println(f.getName() + " -> " + target.getName());
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            System.err.println(f.getName() + ": " + e);
+        } finally {
+            synchronized (this) {
+                busy.remove(p);
+                if (again.remove(p)) changed(p);
+            }
+        }
+    }//process
+
+    /**
+     * Retrieve how many images have been filtered.
+     * @return images written
+     */
+    public long getFiltered() { return filtered.get(); }
+
+    /**
+     * Retrieve how many images were not filtered because the manifest had them.
+     * @return images skipped
+     */
+    public long getSkipped() { return skipped.get(); }
+
+    /**
+     * Retrieve how many images could not be filtered.
+     * @return failures
+     */
+    public long getFailed() { return failed.get(); }
+
+    /**
+     * Whether nothing is waiting to settle or being filtered.
+     * @return true when idle
+     */
+    public synchronized boolean isIdle() {
+        return waiting.isEmpty() && busy.isEmpty();
+    }//isIdle
+
+    /**
+     * Stop watching, letting images being filtered finish.
+     * @throws IOException if the watch service cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        ticker.shutdownNow();
+        watcher.close();
+        pool.shutdown();
+        try {
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (done) {
+            manifest.close();
+        }
+    }//close
+
+    /**
+     * Watch a folder until the process is stopped.
+     * <pre>
+     * java Run --watch IN_DIR OUT_DIR CHAIN [--format png] [--threads N] [--settle MS]
+     * </pre>
+     * @param args the folders, chain and options
+     * @throws IOException if the folder cannot be watched
+     */
+    public static void main(final String[] args) throws IOException {
+        String format = "png";
+        int threads = Parallel.THREADS;
+        long settle = 1000;
+        List<String> rest = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--format") && i + 1 < args.length) {
+                format = args[++i];
+            } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--settle") && i + 1 < args.length) {
+                settle = Long.parseLong(args[++i]);
+            } else if (!args[i].equals("--watch")) {
+                rest.add(args[i]);
+            }
+        }
+        if (rest.size() != 3) {
+            System.err.println("usage: java Run --watch IN_DIR OUT_DIR CHAIN"
+                + " [--format png] [--threads N] [--settle MS]");
+            System.exit(2);
+        }
+        HotFolder hf = new HotFolder(new File(rest.get(0)), new File(rest.get(1)),
+                                     FilterChain.parse(rest.get(2)), format, threads, settle);
+        hf.start();
+        System.out.println("Watching " + rest.get(0) + "; results in " + rest.get(1));
+        try {
+            hf.events.join();                           // until the folder goes away
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }//main
+}//HotFolder
@@ -0,0 +1,28 @@
+package imagelab;
+/**
+ * The ImageFilter2 interface describes filters that combine two images,
+ * such as blends, masks, differences and alpha compositing.
+ * ImageLab passes the selected image as the first source and asks the
+ * user to pick the second from the other open images.
+ * @version 1.0
+ */
+public interface ImageFilter2 {
+    /**
+     * Does the actual filtering.
+     * @param first the selected image
+     * @param second the other image picked by the user
+     */
+    void filter(ImgProvider first, ImgProvider second);
+
+    /**
+     * Returns the filtered image.
+     * @return the filtered image
+     */
+    ImgProvider getImgProvider();
+
+    /**
+     * Returns the label to be used in the Filter menu.
+     * @return the name of this filter
+     */
+    String getMenuLabel();
+}
@@ -11,8 +11,11 @@ import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.swing.filechooser.FileSystemView;
 import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
 /**
@@ -23,7 +26,7 @@ import java.util.ArrayList;
  *  [TODO: User interface to allow displaying images a line or pixel at a time.
  *  @author Dr. Aaron Gordon
  *  @author Dr. Jody Paul
- *  @version 1.8.1
+ *  @version 1.8.2
  */
 public class ImageLab {
     /** Version Identification. */
@@ -44,6 +47,9 @@ public class ImageLab {
     /** Holds the actual filter objects. */
     static List<ImageFilter> filters;
 
+    /** Holds the filters that combine two images. */
+    static List<ImageFilter2> filters2;
+
     /** The current image provider. */
     static ImgProvider impro;
 
@@ -53,18 +59,27 @@ public class ImageLab {
     /** Accessible menu bar for ImageLab. */
     public static JMenuBar menubar;
 
+    /** Answers given in advance to this thread's questions, or null to ask the user. */
+    private static final ThreadLocal<Iterator<String>> ANSWERS = new ThreadLocal<Iterator<String>>();
+
     /**
      * Application entry point.
-     * @param args ignored
+     * @param args image files to open at once, if any
      */
     public static void main(final String [] args) {
         ImageLab ilab = new ImageLab();
+        if (args.length > 0) {
+            List<File> files = new ArrayList<File>();
+            for (String a : args) files.add(new File(a));
+            open(files);
+        }
     }
 
     /** Constructor. */
     public ImageLab() {
         theLab  = this;
         filters = new ArrayList<ImageFilter>();
+        filters2 = new ArrayList<ImageFilter2>();
         frame   = new JFrame(VERSION);
         Container cpane = frame.getContentPane();
 
@@ -166,9 +181,11 @@ public class ImageLab {
                     Class<?>[] interfaces = cl.getInterfaces();
                     //System.out.println("Number of interfaces is " + interfaces.length);
                     boolean isFilter = false;
+                    boolean isFilter2 = false;
                     for (int j=0; j<interfaces.length; j++) {
                         //System.out.println("------->>>>>>>>>>" + interfaces[j].getName());
                         isFilter |= interfaces[j].getName().equals("imagelab.ImageFilter");
+                        isFilter2 |= interfaces[j].getName().equals("imagelab.ImageFilter2");
                     }//for ja
                     if (isFilter) {
                         ifilter = (ImageFilter) cl.getDeclaredConstructor().newInstance();
@@ -179,6 +196,13 @@ public class ImageLab {
                         jmi.addActionListener(makeActionListener(
                                 (filters.get(filters.size() - 1))));
                     } //if
+                    if (isFilter2) {
+                        ImageFilter2 ifilter2 = (ImageFilter2) cl.getDeclaredConstructor().newInstance();
+                        filters2.add(ifilter2);
+                        JMenuItem jmi = new JMenuItem(ifilter2.getMenuLabel());
+                        filter.add(jmi);
+                        jmi.addActionListener(makeActionListener2(ifilter2));
+                    } //if
                 } catch (Exception bigEx) {
                     System.err.println("Error in buildMenus, k = " + k);
                     System.err.println(">>> " + bigEx);
@@ -229,6 +253,11 @@ public class ImageLab {
             filterMenu.add(jmi);
             jmi.addActionListener(makeActionListener(filters.get(i)));
         }
+        for (int i = 0; i < filters2.size(); i++) {
+            JMenuItem jmi = new JMenuItem(filters2.get(i).getMenuLabel());
+            filterMenu.add(jmi);
+            jmi.addActionListener(makeActionListener2(filters2.get(i)));
+        }
         return filterMenu;
     }
 
@@ -246,35 +275,120 @@ public class ImageLab {
                     return;
                 }
                 //System.out.println("Using impro number " + impro.getid());
-                theFilter.filter(impro);
-                impro = theFilter.getImgProvider();
+                ImgProvider source = impro;
+                theFilter.filter(source);
+                if (source.offHeap != null) source.parkOffHeap();   //done with its heap copy
+                ImgProvider result = theFilter.getImgProvider();
+                if (result == null) return;     //filter was cancelled
+                impro = result;
                 impro.setLab(theLab);
                 images.add(impro);
             }};
     }//makeActionListener
 
     /**
-     * Create an ActionListener for opening an image file.
+     * Builds a dedicated ActionListener for a filter that combines two
+     * images: the selected image and one the user picks from the others
+     * that are open.
+     * @param imf the ImageFilter2 for which to make the ActionListener
+     */
+    public static ActionListener makeActionListener2(ImageFilter2 imf) {
+        final ImageFilter2 theFilter = imf;
+        final JFrame myframe = frame;
+        return new ActionListener() {
+            public void actionPerformed(ActionEvent ev) {
+                if (impro == null) {
+                    JOptionPane.showMessageDialog(myframe,"You must first select an image");
+                    return;
+                }
+                List<ImgProvider> others = new ArrayList<ImgProvider>(images);
+                others.remove(impro);
+                if (others.isEmpty()) {
+                    JOptionPane.showMessageDialog(myframe,"Open a second image to combine with");
+                    return;
+                }
+                String[] names = new String[others.size()];
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = (i + 1) + ": " + others.get(i).getName();
+                }
+                String picked = askChoice("Combine with which image?", names);
+                if (picked == null) return;
+                ImgProvider first = impro;
+                ImgProvider second = others.get(Arrays.asList(names).indexOf(picked));
+                theFilter.filter(first, second);
+                if (first.offHeap != null) first.parkOffHeap();     //done with their heap copies
+                if (second.offHeap != null) second.parkOffHeap();
+                ImgProvider result = theFilter.getImgProvider();
+                if (result == null) return;     //filter was cancelled
+                impro = result;
+                impro.setLab(theLab);
+                images.add(impro);
+            }};
+    }//makeActionListener2
+
+    /**
+     * Create an ActionListener for opening image files.
+     * Several may be picked at once; see {@link #open}.
      */
     public static ActionListener makeOpenListener() {
         return new ActionListener() {       
             public void actionPerformed(ActionEvent e) {
-                ImgProvider improvider;                 //an imgProvider to hold the image
                 FileDialog fd;
-                fd = new FileDialog(frame,"Pick an image",FileDialog.LOAD);
+                fd = new FileDialog(frame,"Pick images",FileDialog.LOAD);
+                fd.setMultipleMode(true);
                 fd.setVisible(true);
-                String theFile = fd.getFile();
-                String theDir = fd.getDirectory();
-                //System.out.println("The file's name is " + theDir + theFile);
-                improvider = new ImgProvider(theDir + theFile);
-                improvider.setLab(theLab);
-                improvider.showImage(theDir + theFile); 
-                images.add(improvider);
-                impro = improvider;             //current image provider is set
+                open(Arrays.asList(fd.getFiles()));     //empty if cancelled
             }//actionPerformed
         };
     }// makeOpenListener
 
+    /**
+     * Open image files, decoding them several at once (see {@link Loader}).
+     * Each is shown as soon as it is ready, so windows may appear in a
+     * different order than the files were given; the last to appear
+     * becomes the current image.  Everything but opening the window,
+     * including moving large pixels off the heap, is done on the loader's
+     * threads, so the event thread stays free.  The files that follow in
+     * the folder are read ahead.  Files too large to open whole are shown
+     * as a preview (see {@link ImgProvider#getTiled}).  Files that cannot
+     * be opened are listed in one message once the rest are done.
+     * Returns without waiting.
+     * @param files the image files
+     */
+    public static void open(final List<File> files) {
+        final List<String> failures = new ArrayList<String>();
+        Loader.getShared().loadAll(files, new Loader.Receiver() {
+            public void loaded(final File file, final ImgProvider ip) {
+                TiledImage full = ip.getTiled();
+                final String title = (full == null) ? file.getPath()
+                    : file.getPath() + " (preview of " + full.getWidth() + "x" + full.getHeight() + ")";
+                ip.setLab(theLab);
+                try {
+                    ip.prepareShow(title);
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    failed(file, e);
+                    return;
+                }
+                SwingUtilities.invokeLater(() -> {
+                    ip.showPrepared(title);
+                    images.add(ip);
+                    impro = ip;                 //current image provider is set
+                });
+            }
+            public void failed(final File file, final Throwable why) {
+                synchronized (failures) {
+                    failures.add(file.getName() + ": " + why.getMessage());
+                }
+            }
+        }).thenRun(() -> {
+            synchronized (failures) {
+                if (failures.isEmpty()) return;
+                final String message = "Cannot open:\n" + String.join("\n", failures);
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(frame, message));
+            }
+        });
+    }//open
+
     /** 
      * Marks an image as the one in focus.
      * @param ip The ImgProvider responsible for the image
@@ -285,11 +399,12 @@ public class ImageLab {
     }//setActive
 
     /** 
-     * Marks an image as no longer the focus.
+     * Marks an image as no longer the focus; its window has closed.
      * @param ip The ImgProvider responsible for the image
      */
     public void setInactive(ImgProvider ip) {
         if (impro == ip) impro = null;
+        images.remove(ip);
     }//setInactive
 
     /**
@@ -325,4 +440,87 @@ public class ImageLab {
             }//actionPerformed
         };//new ActionListener
     }//makeSaveListener
+
+    /**
+     * Ask the user for a number, for filters that take a parameter.
+     * Answered without asking if this thread was given {@link #answerWith answers}.
+     * @param question the prompt to show
+     * @param initial the value offered by default
+     * @param min the smallest acceptable value
+     * @param max the largest acceptable value
+     * @return the number entered, or null if the user cancelled
+     *         or entered something unacceptable
+     */
+    public static Double askNumber(String question, double initial, double min, double max) {
+        Iterator<String> given = ANSWERS.get();
+        if (given != null) {
+            String a = given.hasNext() ? given.next().trim() : "";
+            if (a.isEmpty()) return initial;
+            double value;
+            try {
+                value = Double.parseDouble(a);
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException(question + ": not a number: " + a);
+            }
+            if (value < min || value > max) {
+                throw new IllegalArgumentException(question + ": " + a + " is not from " + min + " to " + max);
+            }
+            return value;
+        }
+        String answer = JOptionPane.showInputDialog(frame, question,
+                (initial == Math.rint(initial)) ? Long.toString((long) initial)
+                                                : Double.toString(initial));
+        if (answer == null) return null;
+        try {
+            double value = Double.parseDouble(answer.trim());
+            if (value >= min && value <= max) return value;
+        } catch (NumberFormatException nfe) {
+            //fall through to the complaint below
+        }
+        JOptionPane.showMessageDialog(frame, "Please enter a number from "
+                + min + " to " + max);
+        return null;
+    }//askNumber
+
+    /**
+     * Ask the user to pick one of several options, for filters that
+     * offer a choice of method.  Answered without asking, by an
+     * option's name, if this thread was given {@link #answerWith answers}.
+     * @param <T> the type of the options
+     * @param question the prompt to show
+     * @param options the choices, shown by their toString
+     * @return the option picked, or null if the user cancelled
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T askChoice(String question, T[] options) {
+        Iterator<String> given = ANSWERS.get();
+        if (given != null) {
+            String a = given.hasNext() ? given.next().trim() : "";
+            if (a.isEmpty()) return options[0];
+            for (T option : options) {
+                if (option.toString().equalsIgnoreCase(a)) return option;
+            }
+            throw new IllegalArgumentException(question + ": no choice " + a
+                + " among " + Arrays.toString(options));
+        }
+        return (T) JOptionPane.showInputDialog(frame, question, VERSION,
+                JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
+    }//askChoice
+
+    /**
+     * Answer the questions filters ask on this thread from a list instead
+     * of dialogs, so they can run without a screen.  Each question takes
+     * the next answer in turn; an empty or missing answer takes the
+     * question's default.  Answers that do not fit the question throw
+     * IllegalArgumentException.
+     * @param answers the answers, in the order the questions are asked,
+     *                or null to go back to asking the user
+     */
+    public static void answerWith(List<String> answers) {
+        if (answers == null) {
+            ANSWERS.remove();
+        } else {
+            ANSWERS.set(answers.iterator());
+        }
+    }//answerWith
 }//ImageLab
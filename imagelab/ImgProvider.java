@@ -11,6 +11,8 @@ import java.io.*;
 /**
  * ImgProvider is responsible for managing a single image
  * (loading, filtration, rendering, etc.).
+ * Of a multi-frame file such as an animated GIF only the first frame is
+ * loaded; {@link Animation} works on all of them.
  * @author Dr. Aaron Gordon
  * @author Dr. Jody Paul
  * @version 1.1
@@ -20,6 +22,8 @@ public class ImgProvider extends JComponent {
     private static final long serialVersionUID = 11L;
     static Thread playThread;
     static boolean  all;
+    /** true when images are never to be shown on screen (batch and server use). */
+    private static volatile boolean headless = GraphicsEnvironment.isHeadless();
     /** true if this ImgProvider currently holds an image; false otherwise. */
     boolean         isLoaded;
     /** Image height in pixels. */
@@ -44,6 +48,14 @@ public class ImgProvider extends JComponent {
     protected static int count = 0;
     /** Identification used to distinguish one ImgProvider from another. */
     protected int id;
+    /** Cached hashes of pix; set to null whenever the pixels change. */
+    volatile ContentHash.Digest digest;
+    /** The pixels kept off the heap while this image is shown, or null. */
+    OffHeapPixels offHeap;
+    /** The digest of the pixels kept off the heap. */
+    ContentHash.Digest offHeapDigest;
+    /** The full image, when this is a preview of one too large to hold; else null. */
+    TiledImage tiled;
     protected ImageLab lab;
 
     /** No-argument constructor.  Sets name to empty string. */
@@ -95,6 +107,7 @@ public class ImgProvider extends JComponent {
         }//for row
         separateColors();
         isLoaded = true;
+        digest = null;
     }//setBWImage
 
     /** 
@@ -122,6 +135,23 @@ public class ImgProvider extends JComponent {
 
     /** Read in the image. */
     public void readinImage() {
+        if (offHeap != null) {                          //back onto the heap to be worked on
+            ContentHash.Digest same = offHeapDigest;
+            setPixels(offHeap.load(), offHeap.width, offHeap.height);
+            digest = same;
+            return;
+        }
+        File raw = new File(imgName);
+        if (RawImage.isRaw(raw)) {                      //mapped, no decoding (and no trimming)
+            try {
+                ImgProvider ip = RawImage.read(raw);
+                setPlanes(ip.red, ip.green, ip.blue, ip.alpha, ip.pix);
+                if (all) showPix("Original in Color");
+            } catch (IOException ioe) {
+                System.err.println("ImgProvider:readinImage: " + ioe.getMessage());
+            }
+            return;
+        }
         img = getToolkit().getImage(imgName);
         if (img==null) System.err.println("\n\n**ImgProvider: getImage: img is null!!! ***\n\n");
         int width   = img.getWidth(null)  - xinc;
@@ -138,6 +168,7 @@ public class ImgProvider extends JComponent {
         pixwidth = img.getWidth(null)-xinc;
         pixheight = img.getHeight(null)-yinc;
         isLoaded = true;
+        digest = null;
         separateColors();
         //System.out.println("pix width and height are: " + pixwidth + ",  " + pixheight);
         if (all) showPix("Original in Color");      //display original picture
@@ -155,7 +186,11 @@ public class ImgProvider extends JComponent {
         yinc = y;
     }//setTrim
     
-    /** Convert from color to gray scale (black and white). */
+    /**
+     * Convert from color to gray scale (black and white), planes as well
+     * as pix, so that the content hash of pix still describes what the
+     * engines read.
+     */
     private void toBW() {
         int  alpha, red, green, blue, black;
     
@@ -175,6 +210,8 @@ public class ImgProvider extends JComponent {
             num = (num << 8) + black;
             pix[i] = num;
         }
+        separateColors();   //new planes: the old ones may be shared with a twin
+        digest = null;
         if (all) showPix("Black and White");
         try { Thread.sleep(300);}catch(Exception e){}
     }//toBW
@@ -190,16 +227,46 @@ public class ImgProvider extends JComponent {
      * @param name The title for the window.
      */
     public void showPix(String name) {
-        //System.out.println("ImgProvider:showPix:  before readIn");
-        if (!isLoaded) readinImage();
-        //System.out.println("ImgProvider:showPix:  after readIn");
-        img = getToolkit().createImage(
-                new MemoryImageSource(pixwidth, pixheight, pix, 0, pixwidth));
+        prepareShow(name);
+        if (headless) return;
         //System.out.println("ImgProvider:showPix:  before displayImage");
         DisplayImage dis = new DisplayImage(this,name,true);
         //System.out.println("ImgProvider:showPix:  after displayImage");
         try { Thread.sleep(100);}catch(Exception e){}       //make sure image has time to display
     }//showPix
+
+    /**
+     * Get this image ready to be shown: read in, moved off the heap if it
+     * is large, and made into the Image a window draws.  Opens no window,
+     * so it may run on any thread, leaving only {@link #showPrepared} for
+     * the event thread.
+     * @param name The title for the window.
+     */
+    void prepareShow(String name) {
+        //System.out.println("ImgProvider:showPix:  before readIn");
+        if (!isLoaded) readinImage();
+        setName(name);                                  //lets other windows refer to this one
+        if (headless) return;                           //nowhere to show it
+        //System.out.println("ImgProvider:showPix:  after readIn");
+        if (OffHeapPixels.wanted(pixwidth, pixheight)) parkOffHeap();
+        if (isLoaded) {
+            img = getToolkit().createImage(
+                    new MemoryImageSource(pixwidth, pixheight, pix, 0, pixwidth));
+        } else {
+            img = offHeap.toImage();                    //shown straight from off-heap memory
+        }
+    }//prepareShow
+
+    /**
+     * Open the window of an image readied by {@link #prepareShow}, on the
+     * event thread.  Its pixels are all there already, so there is no
+     * waiting for them to be drawn.
+     * @param name The title for the window.
+     */
+    void showPrepared(String name) {
+        if (headless) return;
+        DisplayImage dis = new DisplayImage(this,name,true);
+    }//showPrepared
         
     /**
      * Pull the image apart into its RGB and Alpha components.
@@ -259,13 +326,306 @@ public class ImgProvider extends JComponent {
             }//for c
         }//for r
         isLoaded = true;
+        digest = null;
     }//setColors
-    
+
+    /**
+     * Adopt the given planes as this image's RGB and Alpha components
+     * without copying them, and rebuild pix from them.
+     * For use by ImageLab engines that have just allocated the planes
+     * and will not touch them again.
+     * @param rd 2D array that represents the image's red component
+     * @param g  2D array that represents the image's green component
+     * @param b  2D array that represents the image's blue component
+     * @param al 2D array that represents the image's alpha channel
+     */
+    void setPlanes(short[][] rd, short[][] g, short[][] b, short[][] al) {
+        pixheight = rd.length;
+        pixwidth  = (pixheight == 0) ? 0 : rd[0].length;
+        red   = rd;
+        green = g;
+        blue  = b;
+        alpha = al;
+        final int width = pixwidth;
+        final int[] packed = new int[pixwidth * pixheight];
+        Parallel.forBands(pixheight, 16, (lo, hi) -> {
+            for (int r = lo; r < hi; r++) {
+                short[] ar = al[r], rr = rd[r], gr = g[r], br = b[r];
+                int spot = r * width;
+                for (int c = 0; c < width; c++) {
+                    packed[spot++] = ((ar[c] & 255) << 24) | ((rr[c] & 255) << 16)
+                                   | ((gr[c] & 255) << 8) | (br[c] & 255);
+                }//for c
+            }//for r
+        });
+        setPlanes(rd, g, b, al, packed);
+    }//setPlanes
+
+    /**
+     * Adopt color and alpha planes and the matching packed pixels,
+     * all without copying, for engines that build both at once.
+     * @param rd 2D array that represents the image's red component
+     * @param g  2D array that represents the image's green component
+     * @param b  2D array that represents the image's blue component
+     * @param al 2D array that represents the image's alpha channel
+     * @param packed the same pixels as ARGB ints, row by row
+     */
+    void setPlanes(short[][] rd, short[][] g, short[][] b, short[][] al, int[] packed) {
+        pixheight = rd.length;
+        pixwidth  = (pixheight == 0) ? 0 : rd[0].length;
+        red   = rd;
+        green = g;
+        blue  = b;
+        alpha = al;
+        pix = packed;
+        isLoaded = true;
+        digest = null;
+    }//setPlanes
+
+    /**
+     * Choose whether images are shown on screen.  When headless,
+     * showPix only names the image, so filters can run in batch jobs.
+     * @param on true to never open windows
+     */
+    public static void setHeadless(boolean on) {
+        headless = on;
+    }//setHeadless
+
+    /**
+     * Whether images are kept off screen.
+     * @return true if showPix opens no windows
+     */
+    public static boolean isHeadless() {
+        return headless;
+    }//isHeadless
+
+    /**
+     * Read an image file without involving the screen.  ImageLab raw
+     * files are mapped; others are decoded, unless there is a shared
+     * disk cache and the file has been read before.
+     * @param file the image file
+     * @return the loaded image
+     * @throws IOException if the file cannot be read or decoded
+     */
+    public static ImgProvider read(File file) throws IOException {
+        if (RawImage.isRaw(file)) return RawImage.read(file);
+        DiskCache cache = DiskCache.getShared();
+        return (cache == null) ? decode(file) : cache.decode(file);
+    }//read
+
+    /**
+     * Decode an image file with ImageIO.
+     * @param file the image file
+     * @return the loaded image
+     * @throws IOException if the file cannot be read or decoded
+     */
+    static ImgProvider decode(File file) throws IOException {
+        BufferedImage bi = ImageIO.read(file);
+        if (bi == null) throw new IOException("Not a readable image: " + file);
+        ImgProvider ip = new ImgProvider(file.getPath());
+        ip.setPixels(bi.getRGB(0, 0, bi.getWidth(), bi.getHeight(), null, 0, bi.getWidth()),
+                     bi.getWidth(), bi.getHeight());
+        return ip;
+    }//decode
+
+    /**
+     * Decode an image with ImageIO from a stream, which is left open.
+     * @param in the encoded image, in any format ImageIO reads
+     * @return the loaded image
+     * @throws IOException if it cannot be read or decoded
+     */
+    public static ImgProvider read(InputStream in) throws IOException {
+        BufferedImage bi = ImageIO.read(in);
+        if (bi == null) throw new IOException("Not a readable image");
+        ImgProvider ip = new ImgProvider();
+        ip.setPixels(bi.getRGB(0, 0, bi.getWidth(), bi.getHeight(), null, 0, bi.getWidth()),
+                     bi.getWidth(), bi.getHeight());
+        return ip;
+    }//read
+
+    /**
+     * Write this image losslessly with ImageIO, as PNG unless the file
+     * name asks for another format ImageIO knows, or in ImageLab's raw
+     * format if it ends in .ilr.
+     * @param file the file to write
+     * @throws IOException if writing fails
+     */
+    public void write(File file) throws IOException {
+        ensureLoaded();
+        String name = file.getName();
+        if (name.toLowerCase().endsWith(RawImage.EXTENSION)) {
+            RawImage.write(this, file);
+            return;
+        }
+        int dot = name.lastIndexOf('.');
+        String format = (dot < 0) ? "png" : name.substring(dot + 1).toLowerCase();
+        if (!ImageIO.write(toBufferedImage(format), format, file)) {
+            throw new IOException("No ImageIO writer for " + format);
+        }
+    }//write
+
+    /**
+     * Encode this image with ImageIO onto a stream, which is left open.
+     * @param out where the encoded image goes
+     * @param format an ImageIO format name such as png or jpg
+     * @throws IOException if there is no writer for the format or writing fails
+     */
+    public void write(OutputStream out, String format) throws IOException {
+        ensureLoaded();
+        String f = format.toLowerCase();
+        if (!ImageIO.write(toBufferedImage(f), f, out)) {
+            throw new IOException("No ImageIO writer for " + format);
+        }
+    }//write
+
+    /**
+     * Copy the pixels into a BufferedImage suited to a format: RGB for
+     * formats without alpha, ARGB otherwise.
+     * @param format the lower-case format name
+     * @return the image
+     */
+    private BufferedImage toBufferedImage(String format) {
+        boolean opaque = format.equals("jpg") || format.equals("jpeg") || format.equals("bmp");
+        BufferedImage bufim = new BufferedImage(pixwidth, pixheight,
+                opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        bufim.setRGB(0, 0, pixwidth, pixheight, pix, 0, pixwidth);
+        return bufim;
+    }//toBufferedImage
+
+    /**
+     * Adopt packed ARGB pixels without copying and split them into planes.
+     * @param argb the pixels, row by row
+     * @param width the width
+     * @param height the height
+     */
+    void setPixels(int[] argb, int width, int height) {
+        pix = argb;
+        pixwidth = width;
+        pixheight = height;
+        final short[][] al = new short[height][width];
+        final short[][] rd = new short[height][width];
+        final short[][] gr = new short[height][width];
+        final short[][] bl = new short[height][width];
+        Parallel.forBands(height, 16, (lo, hi) -> {
+            for (int r = lo; r < hi; r++) {
+                int spot = r * width;
+                for (int c = 0; c < width; c++) {
+                    int num = argb[spot++];
+                    al[r][c] = (short) ((num >>> 24) & 255);
+                    rd[r][c] = (short) ((num >> 16) & 255);
+                    gr[r][c] = (short) ((num >> 8) & 255);
+                    bl[r][c] = (short) (num & 255);
+                }//for c
+            }//for r
+        });
+        alpha = al;
+        red = rd;
+        green = gr;
+        blue = bl;
+        isLoaded = true;
+        digest = null;
+    }//setPixels
+
+    /**
+     * Make a new ImgProvider that shares this image's planes and has its
+     * own copy of pix, for handing out an image that must not change
+     * while the copy is filtered or shown.  The planes must be treated
+     * as read-only by both.
+     * @return the twin
+     */
+    ImgProvider twin() {
+        ensureLoaded();
+        ImgProvider ip = new ImgProvider(imgName);
+        ip.pixwidth  = pixwidth;
+        ip.pixheight = pixheight;
+        ip.red   = red;
+        ip.green = green;
+        ip.blue  = blue;
+        ip.alpha = alpha;
+        ip.pix   = pix.clone();
+        ip.digest = digest;
+        ip.isLoaded = true;
+        return ip;
+    }//twin
+
+    /**
+     * Move the pixels off the heap, leaving only the width and height,
+     * until something needs them again.  If they are already off the
+     * heap and have not changed since, the heap copy is simply dropped;
+     * if they have changed, they stay on the heap.
+     */
+    void parkOffHeap() {
+        if (!isLoaded) return;
+        ContentHash.Digest d = ContentHash.digest(this);
+        if (offHeap == null) {
+            offHeap = new OffHeapPixels(pix, pixwidth, pixheight);
+            offHeapDigest = d;
+        } else if (d != offHeapDigest) {
+            return;
+        }
+        pix = null;
+        red = green = blue = alpha = null;
+        isLoaded = false;
+    }//parkOffHeap
+
+    /**
+     * Whether this image's pixels are currently kept off the heap.
+     * @return true if they are
+     */
+    public boolean isOffHeap() {
+        return offHeap != null && !isLoaded;
+    }//isOffHeap
+
+    /**
+     * Choose which images are kept off the heap while shown.
+     * @param bytes the size of packed pixels from which images go off the
+     *   heap; 0 for all images, negative for none
+     */
+    public static void setOffHeapThreshold(long bytes) {
+        OffHeapPixels.setThreshold(bytes);
+    }//setOffHeapThreshold
+
+    /**
+     * Free the off-heap memory of this image now, as when its window
+     * closes, rather than when the collector gets to it.  Unless its
+     * pixels are on the heap at the time, the image is empty afterwards.
+     * The temporary tiled image behind a preview is deleted too.
+     */
+    public void release() {
+        if (tiled != null) {
+            try {
+                tiled.delete();
+            } catch (IOException ioe) {
+                System.err.println("ImgProvider:release: " + ioe.getMessage());
+            }
+            tiled = null;
+        }
+        if (offHeap == null) return;
+        offHeap.release();
+        offHeap = null;
+        offHeapDigest = null;
+    }//release
+
+    /**
+     * Retrieve the full image when this is a reduced preview of an image
+     * too large to open whole (see {@link Loader}).
+     * @return the tiled image, or null if this image is complete
+     */
+    public TiledImage getTiled() {
+        return tiled;
+    }//getTiled
+
+    /** Read in the image if that has not already happened. */
+    void ensureLoaded() {
+        if (!isLoaded) readinImage();
+    }//ensureLoaded
+
     /**
      * Retrieve the image's green component.
      * @return A 2D array of values from 0 to 255.
      */
     public short[][] getRed() {
+        ensureLoaded();
         int nrows = red.length;
         int ncols = red[0].length;
         short [] [] redcp = new short[nrows][ncols];
@@ -280,6 +640,7 @@ public class ImgProvider extends JComponent {
      * @return A 2D array of values from 0 to 255.
      */
     public short[][] getGreen() {
+        ensureLoaded();
         int nrows = green.length;
         int ncols = green[0].length;
         short [] [] thecopy = new short[nrows][ncols];
@@ -294,6 +655,7 @@ public class ImgProvider extends JComponent {
      * @return A 2D array of values from 0 to 255.
      */
     public short[][] getBlue() {
+        ensureLoaded();
         int nrows = blue.length;
         int ncols = blue[0].length;
         short [] [] thecopy = new short[nrows][ncols];
@@ -308,6 +670,7 @@ public class ImgProvider extends JComponent {
      * @return A 2D array with values from 0 to 255.
      */
     public short[][] getAlpha() {
+        ensureLoaded();
         int nrows = alpha.length;
         int ncols = alpha[0].length;
         short [] [] al = new short[nrows][ncols];
@@ -351,6 +714,7 @@ public class ImgProvider extends JComponent {
             ImageLab.impro = null;
         }
         else                System.err.println("*** error ** ImgProvider:setInactive - no lab");
+        release();                                      //window gone: free off-heap pixels now
     }//setInactive
     
     /**
@@ -366,27 +730,42 @@ public class ImgProvider extends JComponent {
         JFrame myframe = new JFrame();      //to have a parent
         fd = new JFileChooser();
         int returnVal = fd.showSaveDialog(myframe);
-        String fname;
         File  theFile;
         if(returnVal != JFileChooser.APPROVE_OPTION) {
             JOptionPane.showMessageDialog(myframe,"Encountered a problem in ImgProvider.save()" +
                     "\n- Please try again.");
             return;
         }
-        fname = fd.getSelectedFile().getName();
         theFile = fd.getSelectedFile();
-    
-        BufferedImage bufim = new BufferedImage(pixwidth,pixheight,BufferedImage.TYPE_INT_RGB);
-        bufim.setRGB(0,0,pixwidth,pixheight,pix,0,pixwidth);
-    
         try {
-            if (!ImageIO.write(bufim,"jpeg",theFile))
-                    System.err.println("Couldn't write file - save failed");
+            if (!saveTo(theFile)) System.err.println("Couldn't write file - save failed");
             //else System.out.println("File written");
         } catch (IOException ioe) {
             System.err.println("Attempt to save file failed.");
         }//catch
     }//save
+
+    /**
+     * Save this image as File &gt; Save does: in ImageLab's raw format if
+     * the name ends in .ilr, otherwise as JPEG.  An image whose pixels
+     * are off the heap is brought back for the write and put back after.
+     * @param theFile the file to write
+     * @return false if there is no JPEG writer
+     * @throws IOException if writing fails
+     */
+    boolean saveTo(File theFile) throws IOException {
+        boolean parked = isOffHeap();
+        ensureLoaded();
+        try {
+            if (theFile.getName().toLowerCase().endsWith(RawImage.EXTENSION)) {
+                RawImage.write(this, theFile);
+                return true;
+            }
+            return ImageIO.write(toBufferedImage("jpg"), "jpeg", theFile);
+        } finally {
+            if (parked) parkOffHeap();                  //back off the heap, as it was
+        }
+    }//saveTo
     
     /**
      * Used by ImageLab to render an image as sound.
@@ -0,0 +1,124 @@
+package imagelab;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * IndexedImage is an image stored as one palette index per pixel,
+ * as produced by color quantization.  It can be expanded back into an
+ * ImgProvider or turned into an indexed BufferedImage, ready for
+ * ImageIO to write as GIF or 8-bit PNG.
+ * @version 1.0
+ */
+public final class IndexedImage {
+    /** Smallest band of rows worth giving to another thread. */
+    private static final int GRAIN = 32;
+
+    /** The palette. */
+    private final Palette palette;
+    /** Palette index of each pixel (read as unsigned). */
+    private final byte[][] index;
+
+    /**
+     * Wrap a plane of palette indices.
+     * @param pal the palette
+     * @param idx the palette index of each pixel; adopted, not copied
+     */
+    public IndexedImage(final Palette pal, final byte[][] idx) {
+        palette = pal;
+        index = idx;
+    }//constructor
+
+    /**
+     * Map every pixel of an image to its palette entry through the
+     * palette's lookup cube.
+     * @param ip the image
+     * @param pal the palette
+     * @return the indexed image
+     */
+    public static IndexedImage map(final ImgProvider ip, final Palette pal) {
+        ip.ensureLoaded();
+        final int w = ip.pixwidth;
+        final short[][] r = ip.red;
+        final short[][] g = ip.green;
+        final short[][] b = ip.blue;
+        final byte[][] idx = new byte[ip.pixheight][w];
+        Parallel.forBands(ip.pixheight, GRAIN, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                byte[] out = idx[y];
+                for (int x = 0; x < w; x++) {
+                    out[x] = (byte) pal.nearest(r[y][x], g[y][x], b[y][x]);
+                }
+            }
+        });
+        return new IndexedImage(pal, idx);
+    }//map
+
+    /**
+     * Retrieve the palette.
+     * @return the palette
+     */
+    public Palette getPalette() { return palette; }
+
+    /**
+     * Retrieve the index plane (not a copy); read entries with & 255.
+     * @return the palette index of each pixel
+     */
+    public byte[][] getIndices() { return index; }
+
+    /**
+     * Expand into an opaque full-color image.
+     * @return the image
+     */
+    public ImgProvider toImgProvider() {
+        final int h = index.length;
+        final int w = index[0].length;
+        final short[][] r = new short[h][w];
+        final short[][] g = new short[h][w];
+        final short[][] b = new short[h][w];
+        final short[][] a = new short[h][w];
+        Parallel.forBands(h, GRAIN, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                for (int x = 0; x < w; x++) {
+                    int c = palette.getColor(index[y][x] & 255);
+                    r[y][x] = (short) ((c >> 16) & 255);
+                    g[y][x] = (short) ((c >> 8) & 255);
+                    b[y][x] = (short) (c & 255);
+                    a[y][x] = 255;
+                }
+            }
+        });
+        ImgProvider ip = new ImgProvider();
+        ip.setPlanes(r, g, b, a);
+        return ip;
+    }//toImgProvider
+
+    /**
+     * Build an 8-bit indexed BufferedImage sharing this palette.
+     * @return the image
+     */
+    public BufferedImage toBufferedImage() {
+        int n = palette.size();
+        byte[] rs = new byte[n];
+        byte[] gs = new byte[n];
+        byte[] bs = new byte[n];
+        for (int i = 0; i < n; i++) {
+            int c = palette.getColor(i);
+            rs[i] = (byte) (c >> 16);
+            gs[i] = (byte) (c >> 8);
+            bs[i] = (byte) c;
+        }
+        IndexColorModel model = new IndexColorModel(8, n, rs, gs, bs);
+        int h = index.length;
+        int w = index[0].length;
+        BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, model);
+        WritableRaster raster = bi.getRaster();
+        int[] row = new int[w];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) row[x] = index[y][x] & 255;
+            raster.setSamples(0, y, w, 1, 0, row);
+        }
+        return bi;
+    }//toBufferedImage
+}//IndexedImage
@@ -0,0 +1,288 @@
+package imagelab;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+
+/**
+ * Loader reads several image files at once.  Each file is read from disk
+ * on one pool and decoded on another no larger than the number of
+ * processors, so a slow disk and a slow decoder overlap and many files
+ * do not crowd out each other's processor time.  Results are handed on
+ * as each one is ready, not in the order asked for.
+ * <p>
+ * After a batch, the files that follow the last of it in its folder are
+ * read ahead, so opening the next few is already done when they are
+ * asked for.  A read-ahead image is used only if its file has not changed
+ * since, and at most {@link #AHEAD} of them are kept.
+ * <p>
+ * A file too large to open whole (see {@link TiledImage#needsTiling}) is
+ * imported into a temporary tiled image and loaded as a preview of it.
+ * @version 1.0
+ */
+public final class Loader {
+    /** Threads that read files. */
+    static final int READERS = Integer.getInteger("imagelab.load.readers", 4);
+    /** Files read ahead after a batch. */
+    static final int AHEAD = Integer.getInteger("imagelab.load.ahead", 4);
+    /** The file name suffixes ImageIO can read, in lower case. */
+    private static final Set<String> SUFFIXES = suffixes();
+
+    /** The loader the menus use. */
+    private static Loader shared;
+
+    /** Reads files from disk. */
+    private final ExecutorService io;
+    /** Decodes what was read. */
+    private final ExecutorService cpu;
+    /** Images read ahead, oldest first; guarded by itself. */
+    private final Map<File, Ahead> ahead = new LinkedHashMap<File, Ahead>();
+
+    /** An image read ahead, with what its file looked like. */
+    private static final class Ahead {
+        /** The file's length when it was read. */
+        final long length;
+        /** The file's modification time when it was read. */
+        final long modified;
+        /** The image, once it is decoded. */
+        final CompletableFuture<ImgProvider> image;
+
+        /**
+         * Note an image being read ahead.
+         * @param f the file
+         * @param ip the image to come
+         */
+        Ahead(final File f, final CompletableFuture<ImgProvider> ip) {
+            length = f.length();
+            modified = f.lastModified();
+            image = ip;
+        }//constructor
+
+        /**
+         * Whether the file is as it was when read.
+         * @param f the file
+         * @return true if the image may be used
+         */
+        boolean current(final File f) {
+            return f.length() == length && f.lastModified() == modified;
+        }//current
+    }//Ahead
+
+    /**
+     * Create a loader.
+     * @param readers threads to read files with
+     * @param decoders threads to decode with
+     */
+    public Loader(final int readers, final int decoders) {
+        io = pool(Math.max(1, readers), "ImageLab read");
+        cpu = pool(Math.max(1, decoders), "ImageLab decode");
+    }//constructor
+
+    /**
+     * Create a pool of daemon threads.
+     * @param n how many threads
+     * @param name what to call them
+     * @return the pool
+     */
+    private static ExecutorService pool(final int n, final String name) {
+        return Executors.newFixedThreadPool(n, r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }//pool
+
+    /**
+     * Retrieve the loader the menus use, creating it when first needed.
+     * @return the shared loader
+     */
+    public static synchronized Loader getShared() {
+        if (shared == null) shared = new Loader(READERS, Parallel.THREADS);
+        return shared;
+    }//getShared
+
+    /**
+     * Start loading one file, or take it from those read ahead.
+     * @param file the image file
+     * @return the image to come; fails with the IOException if it cannot be read
+     */
+    public CompletableFuture<ImgProvider> load(final File file) {
+        final File f = file.getAbsoluteFile();
+        synchronized (ahead) {
+            Ahead a = ahead.remove(f);
+            if (a != null && a.current(f)) return a.image;
+        }
+        return fresh(f);
+    }//load
+
+    /**
+     * Start loading one file from disk.
+     * @param f the image file, as an absolute path
+     * @return the image to come
+     */
+    private CompletableFuture<ImgProvider> fresh(final File f) {
+        if (!RawImage.isRaw(f) && TiledImage.needsTiling(f)) {
+            return CompletableFuture.supplyAsync(() -> {   //too large to hold: tiles and a preview
+                try {
+                    return TiledImage.openLarge(f);
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            }, cpu).handle(Loader::unwrap);
+        }
+        if (RawImage.isRaw(f) || DiskCache.getShared() != null) {
+            return CompletableFuture.supplyAsync(() -> {   //mapped or cached: no reading to overlap
+                try {
+                    return ImgProvider.read(f);
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            }, cpu).handle(Loader::unwrap);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return Files.readAllBytes(f.toPath());
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }, io).thenApplyAsync(bytes -> {
+            try {
+                ImgProvider ip = ImgProvider.read(new ByteArrayInputStream(bytes));
+                ip.imgName = f.getPath();
+                return ip;
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(new IOException(f + ": " + ioe.getMessage(), ioe));
+            }
+        }, cpu).handle(Loader::unwrap);
+    }//fresh
+
+    /**
+     * Undo the wrapping of an IOException thrown inside a stage.
+     * @param ip the image, if it loaded
+     * @param t what went wrong, or null
+     * @return the image
+     */
+    private static ImgProvider unwrap(final ImgProvider ip, final Throwable t) {
+        if (t == null) return ip;
+        Throwable c = (t instanceof CompletionException && t.getCause() != null) ? t.getCause() : t;
+        if (c instanceof UncheckedIOException) c = c.getCause();
+        throw new CompletionException(c);
+    }//unwrap
+
+    /**
+     * Load several files at once, then read ahead past the last of them.
+     * @param files the image files
+     * @param r told of each file as it finishes, on a loader thread
+     * @return completes when every file has been handed to r
+     */
+    public CompletableFuture<Void> loadAll(final List<File> files, final Receiver r) {
+        List<CompletableFuture<ImgProvider>> loads = new ArrayList<CompletableFuture<ImgProvider>>();
+        for (final File f : files) {
+            loads.add(load(f).whenComplete((ip, t) -> {
+                if (t == null) {
+                    r.loaded(f, ip);
+                } else {
+                    Throwable c = (t instanceof CompletionException && t.getCause() != null) ? t.getCause() : t;
+                    r.failed(f, c);
+                }
+            }));
+        }
+        if (!files.isEmpty()) readAhead(files.get(files.size() - 1), files);
+        return CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[0]))
+                                .handle((v, t) -> null);
+    }//loadAll
+
+    /** What to do with each file of {@link #loadAll}. */
+    public interface Receiver {
+        /**
+         * A file has loaded.
+         * @param file the file
+         * @param ip its image
+         */
+        void loaded(File file, ImgProvider ip);
+
+        /**
+         * A file could not be loaded.
+         * @param file the file
+         * @param why what went wrong, usually an IOException
+         */
+        void failed(File file, Throwable why);
+    }//Receiver
+
+    /**
+     * Start reading the images that follow a file in its folder, by name,
+     * dropping the oldest read-ahead images beyond {@link #AHEAD}.
+     * @param last the file to read past
+     * @param skip files not to read ahead, being loaded already
+     */
+    public void readAhead(final File last, final List<File> skip) {
+        if (AHEAD <= 0) return;
+        File f = last.getAbsoluteFile();
+        File dir = f.getParentFile();
+        File[] listing = (dir == null) ? null : dir.listFiles();
+        if (listing == null) return;
+        Arrays.sort(listing);
+        Set<File> busy = new HashSet<File>();
+        for (File s : skip) busy.add(s.getAbsoluteFile());
+        List<File> next = new ArrayList<File>();
+        for (File c : listing) {
+            if (next.size() == AHEAD) break;
+            if (c.compareTo(f) > 0 && c.isFile() && isImage(c) && !busy.contains(c)
+                && (RawImage.isRaw(c) || !TiledImage.needsTiling(c))) {
+                next.add(c);                            //not large ones: they are costly to guess wrong
+            }
+        }
+        synchronized (ahead) {
+            for (File c : next) {
+                Ahead a = ahead.remove(c);
+                if (a == null || !a.current(c)) a = new Ahead(c, fresh(c));
+                ahead.put(c, a);                        //now the newest
+            }
+            Iterator<File> it = ahead.keySet().iterator();
+            while (ahead.size() > AHEAD && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+    }//readAhead
+
+    /**
+     * Whether a file's name marks it as an image ImageLab can read.
+     * @param f the file
+     * @return true for ImageIO's suffixes and ImageLab raw files
+     */
+    static boolean isImage(final File f) {
+        String n = f.getName().toLowerCase(Locale.ROOT);
+        if (n.startsWith(".")) return false;
+        if (n.endsWith(RawImage.EXTENSION)) return true;
+        int dot = n.lastIndexOf('.');
+        return dot > 0 && SUFFIXES.contains(n.substring(dot + 1));
+    }//isImage
+
+    /**
+     * Collect the suffixes ImageIO can read.
+     * @return them, in lower case
+     */
+    private static Set<String> suffixes() {
+        Set<String> s = new HashSet<String>();
+        for (String x : ImageIO.getReaderFileSuffixes()) s.add(x.toLowerCase(Locale.ROOT));
+        return Collections.unmodifiableSet(s);
+    }//suffixes
+}//Loader
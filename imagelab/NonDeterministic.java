@@ -0,0 +1,9 @@
+package imagelab;
+/**
+ * Marker for filters whose output may differ between runs on the same
+ * image with the same settings (random noise, the clock, outside data).
+ * FilterCache never remembers or reuses the results of such filters.
+ * @version 1.0
+ */
+public interface NonDeterministic {
+}
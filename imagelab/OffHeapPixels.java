@@ -0,0 +1,211 @@
+package imagelab;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * OffHeapPixels keeps an image's packed ARGB pixels in direct buffers,
+ * outside the Java heap, so that large images held open cost the heap
+ * (and the garbage collector) nothing.  The pixels are copied back onto
+ * the heap only while something works on them.
+ * <p>
+ * The pixels are split into chunks of whole rows, each at most 1 GB, so
+ * images beyond a direct buffer's 2 GB limit can be stored.  Direct
+ * memory is limited by the JVM option -XX:MaxDirectMemorySize, which
+ * defaults to the heap size and should be raised to match the working
+ * set.  {@link #release} frees the memory at once instead of waiting for
+ * the collector; nothing may use the pixels after that.  Direct buffers
+ * are used rather than the foreign-memory API because ImageLab is held
+ * to Java 8; on such JVMs, without invokeCleaner, the collector frees them.
+ * <p>
+ * Images of at least imagelab.offheap.mb megabytes of pixels (system
+ * property, default 64) go off the heap when shown.
+ * @version 1.0
+ */
+final class OffHeapPixels {
+    /** Most bytes per chunk. */
+    private static final int CHUNK_BYTES = 1 << 30;
+    /** Smallest band of rows worth giving to another thread. */
+    private static final int GRAIN = 64;
+    /** Size in bytes from which images go off the heap; negative for never. */
+    private static volatile long threshold = Long.getLong("imagelab.offheap.mb", 64) << 20;
+    /** Direct memory held by all stores. */
+    private static final AtomicLong IN_USE = new AtomicLong();
+    /** sun.misc.Unsafe.invokeCleaner, if this JVM has it. */
+    private static final Method CLEANER;
+    /** The Unsafe instance to invoke it on. */
+    private static final Object UNSAFE;
+
+    static {
+        Method m = null;
+        Object u = null;
+        try {
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            u = f.get(null);
+            m = c.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            m = null;                           // freed by the collector instead
+        }
+        CLEANER = m;
+        UNSAFE = u;
+    }
+
+    /** Width in pixels. */
+    final int width;
+    /** Height in pixels. */
+    final int height;
+    /** Rows per chunk. */
+    private final int rowsPer;
+    /** The chunks, as allocated. */
+    private final ByteBuffer[] chunks;
+    /** int views of the chunks. */
+    private final IntBuffer[] ints;
+    /** Set once the memory is freed. */
+    private volatile boolean released;
+
+    /**
+     * Copy pixels off the heap.
+     * @param pix the packed ARGB pixels, row by row
+     * @param w the width
+     * @param h the height
+     */
+    OffHeapPixels(final int[] pix, final int w, final int h) {
+        width = w;
+        height = h;
+        rowsPer = Math.max(1, CHUNK_BYTES / 4 / Math.max(1, w));
+        int n = (h + rowsPer - 1) / rowsPer;
+        chunks = new ByteBuffer[n];
+        ints = new IntBuffer[n];
+        for (int c = 0; c < n; c++) {
+            int rows = Math.min(rowsPer, h - c * rowsPer);
+            chunks[c] = ByteBuffer.allocateDirect(rows * w * 4).order(ByteOrder.nativeOrder());
+            ints[c] = chunks[c].asIntBuffer();
+            IN_USE.addAndGet(chunks[c].capacity());
+        }
+        Parallel.forBands(h, GRAIN, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                IntBuffer dst = ints[y / rowsPer].duplicate();
+                dst.position((y % rowsPer) * w);
+                dst.put(pix, y * w, w);
+            }
+        });
+    }//constructor
+
+    /**
+     * Whether an image of this size should be kept off the heap.
+     * @param w the width
+     * @param h the height
+     * @return true if its pixels reach the threshold
+     */
+    static boolean wanted(final int w, final int h) {
+        long t = threshold;
+        return t >= 0 && (long) w * h * 4 >= t;
+    }//wanted
+
+    /**
+     * Change the size from which images go off the heap.
+     * @param bytes the size of the packed pixels; 0 for all images, negative for none
+     */
+    static void setThreshold(final long bytes) {
+        threshold = bytes;
+    }//setThreshold
+
+    /**
+     * Direct memory held for pixels by all images.
+     * @return bytes in use
+     */
+    static long inUse() {
+        return IN_USE.get();
+    }//inUse
+
+    /**
+     * Copy the pixels back onto the heap.
+     * @return the packed ARGB pixels, row by row
+     */
+    int[] load() {
+        check();
+        final int w = width;
+        final int[] pix = new int[w * height];
+        Parallel.forBands(height, GRAIN, (lo, hi) -> {
+            for (int y = lo; y < hi; y++) {
+                IntBuffer src = ints[y / rowsPer].duplicate();
+                src.position((y % rowsPer) * w);
+                src.get(pix, y * w, w);
+            }
+        });
+        return pix;
+    }//load
+
+    /**
+     * A displayable image that reads the pixels where they are.
+     * @return the image
+     */
+    Image toImage() {
+        check();
+        DataBuffer db = new DataBuffer(DataBuffer.TYPE_INT, width * height) {
+            @Override
+            public int getElem(final int bank, final int i) {
+                if (released) return 0;         // window closing; nothing left to show
+                int c = i / width / rowsPer;
+                return ints[c].get(i - c * rowsPer * width);
+            }
+
+            @Override
+            public void setElem(final int bank, final int i, final int val) {
+                throw new UnsupportedOperationException("Off-heap pixels are read-only");
+            }
+        };
+        DirectColorModel cm = (DirectColorModel) ColorModel.getRGBdefault();
+        SinglePixelPackedSampleModel sm = new SinglePixelPackedSampleModel(
+            DataBuffer.TYPE_INT, width, height, cm.getMasks());
+        WritableRaster raster = Raster.createWritableRaster(sm, db, null);
+        return new BufferedImage(cm, raster, false, null);
+    }//toImage
+
+    /** Free the memory now.  Harmless if already freed. */
+    synchronized void release() {
+        if (released) return;
+        released = true;
+        for (int c = 0; c < chunks.length; c++) {
+            IN_USE.addAndGet(-chunks[c].capacity());
+            free(chunks[c]);
+            chunks[c] = null;
+            ints[c] = null;
+        }
+    }//release
+
+    /**
+     * Free a direct or mapped buffer now instead of when it is collected.
+     * An unmapped file can be deleted, truncated or replaced at once, which
+     * Windows refuses while a mapping is alive.  Nothing may use the buffer,
+     * or any view of it, afterwards.
+     * @param buf the buffer, as allocated or mapped (not a view of one)
+     */
+    static void free(final ByteBuffer buf) {
+        if (CLEANER == null || buf == null) return;    // left to the collector
+        try {
+            CLEANER.invoke(UNSAFE, buf);
+        } catch (ReflectiveOperationException roe) {
+            // left to the collector
+        }
+    }//free
+
+    /** Fail cleanly instead of touching freed memory. */
+    private void check() {
+        if (released) throw new IllegalStateException("Off-heap pixels already released");
+    }//check
+}//OffHeapPixels
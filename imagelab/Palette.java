@@ -0,0 +1,108 @@
+package imagelab;
+
+/**
+ * Palette is a list of up to 256 colors together with a lookup cube
+ * that maps any color to (nearly) its nearest palette entry in one
+ * array access.  The cube has 32 cells per channel; each cell holds the
+ * palette entry nearest the cell's center, worked out in parallel when
+ * the palette is made.
+ * @version 1.0
+ */
+public final class Palette {
+    /** Largest number of colors in a palette. */
+    public static final int MAX_COLORS = 256;
+    /** Bits of each channel used to index the cube. */
+    static final int CUBE_BITS = 5;
+    /** Cells along each side of the cube. */
+    static final int SIDE = 1 << CUBE_BITS;
+    /** Low bits of a channel dropped when indexing the cube. */
+    static final int DROP = 8 - CUBE_BITS;
+
+    /** Red, green and blue of each entry, packed as 0xRRGGBB. */
+    private final int[] colors;
+    /** Nearest palette entry for each cube cell. */
+    private final byte[] cube;
+
+    /**
+     * Create a palette.
+     * @param rgb the colors, packed as 0xRRGGBB; 1 to 256 of them
+     */
+    public Palette(final int[] rgb) {
+        if (rgb.length < 1 || rgb.length > MAX_COLORS) {
+            throw new IllegalArgumentException("A palette holds 1 to " + MAX_COLORS
+                + " colors, not " + rgb.length);
+        }
+        colors = rgb.clone();
+        cube = new byte[SIDE * SIDE * SIDE];
+        final int half = 1 << (DROP - 1);
+        Parallel.forBands(SIDE, 1, (lo, hi) -> {
+            for (int r = lo; r < hi; r++) {
+                for (int g = 0; g < SIDE; g++) {
+                    for (int b = 0; b < SIDE; b++) {
+                        cube[cell(r, g, b)] = (byte) exactNearest((r << DROP) + half,
+                                (g << DROP) + half, (b << DROP) + half);
+                    }
+                }
+            }
+        });
+    }//constructor
+
+    /**
+     * Index of the cube cell holding a 5-bit-per-channel color.
+     * @param r5 red, 0 to 31
+     * @param g5 green, 0 to 31
+     * @param b5 blue, 0 to 31
+     * @return the cell index
+     */
+    static int cell(final int r5, final int g5, final int b5) {
+        return (r5 << (2 * CUBE_BITS)) | (g5 << CUBE_BITS) | b5;
+    }//cell
+
+    /**
+     * Retrieve the number of colors.
+     * @return the palette size
+     */
+    public int size() { return colors.length; }
+
+    /**
+     * Retrieve one color.
+     * @param i the palette index
+     * @return the color, packed as 0xRRGGBB
+     */
+    public int getColor(final int i) { return colors[i]; }
+
+    /**
+     * Find the palette entry for a color using the lookup cube.
+     * @param r red, 0 to 255
+     * @param g green, 0 to 255
+     * @param b blue, 0 to 255
+     * @return the palette index
+     */
+    public int nearest(final int r, final int g, final int b) {
+        return cube[cell(r >> DROP, g >> DROP, b >> DROP)] & 255;
+    }//nearest
+
+    /**
+     * Find the palette entry closest to a color by checking every entry.
+     * @param r red
+     * @param g green
+     * @param b blue
+     * @return the palette index
+     */
+    public int exactNearest(final int r, final int g, final int b) {
+        int best = 0;
+        int bestDist = Integer.MAX_VALUE;
+        for (int i = 0; i < colors.length; i++) {
+            int c = colors[i];
+            int dr = ((c >> 16) & 255) - r;
+            int dg = ((c >> 8) & 255) - g;
+            int db = (c & 255) - b;
+            int dist = dr * dr + dg * dg + db * db;
+            if (dist < bestDist) {
+                bestDist = dist;
+                best = i;
+            }
+        }
+        return best;
+    }//exactNearest
+}//Palette
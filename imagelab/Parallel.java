@@ -0,0 +1,70 @@
+package imagelab;
+
+import java.util.stream.IntStream;
+
+/**
+ * Parallel runs image loops across all available processors.
+ * The index range of a loop (usually rows) is cut into contiguous
+ * bands so that every task walks memory that lies close together.
+ * @version 1.0
+ */
+public final class Parallel {
+    /** Number of processors available for image loops. */
+    public static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    /** Bands created per processor, so uneven bands still balance out. */
+    private static final int BANDS_PER_THREAD = 4;
+
+    /** Utility class; not instantiated. */
+    private Parallel() { }
+
+    /**
+     * The body of a banded loop.
+     * Called once per band with the half-open index range [lo, hi).
+     */
+    public interface Band {
+        /**
+         * Process the indices lo (inclusive) through hi (exclusive).
+         * @param lo first index of the band
+         * @param hi one past the last index of the band
+         */
+        void run(int lo, int hi);
+    }
+
+    /**
+     * Run body over the range [0, n) split into bands of at least
+     * grain indices.  Small ranges run directly on the calling thread.
+     * Returns only after every band has finished.
+     * @param n the number of indices to process
+     * @param grain the smallest band worth handing to another thread
+     * @param body the loop body
+     */
+    public static void forBands(final int n, final int grain, final Band body) {
+        if (n <= 0) return;
+        int g = Math.max(1, grain);
+        int bands = Math.min(THREADS * BANDS_PER_THREAD, (n + g - 1) / g);
+        if (bands <= 1 || THREADS == 1) {
+            body.run(0, n);
+            return;
+        }
+        final int nb = bands;
+        IntStream.range(0, nb).parallel().forEach(b ->
+            body.run((int) ((long) n * b / nb), (int) ((long) n * (b + 1) / nb)));
+    }//forBands
+
+    /**
+     * Run body once for every index in [0, n), in parallel.
+     * Each index is treated as a unit of work of its own (a tile,
+     * a frame, a plane) and may be handed to any thread.
+     * @param n the number of work units
+     * @param body the loop body; receives the range [i, i + 1)
+     */
+    public static void forEach(final int n, final Band body) {
+        if (n <= 0) return;
+        if (n == 1 || THREADS == 1) {
+            for (int i = 0; i < n; i++) body.run(i, i + 1);
+            return;
+        }
+        IntStream.range(0, n).parallel().forEach(i -> body.run(i, i + 1));
+    }//forEach
+}//Parallel
@@ -0,0 +1,579 @@
+package imagelab;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Pipeline runs a sequence of items (usually image files) through a chain
+ * of stages, each with its own pool of threads, so that decoding,
+ * filtering and encoding of different items overlap.
+ * <pre>
+ *   Pipeline&lt;String&gt; p = Pipeline.of(frames)
+ *       .stage("decode", 2, 4, ImgProvider::read)
+ *       .stage("filter", 4, 4, ip -&gt; RankFilter.median(ip, 2))
+ *       .stage("measure", 1, 4, ip -&gt; ContentHash.hex(ip));
+ *   p.run(System.out::println);
+ *   System.out.println(p.getStats());
+ * </pre>
+ * {@link #sequence} builds the usual decode, filter and encode pipeline
+ * for a directory of frames.
+ * <p>
+ * Stages are joined by bounded queues.  A stage whose next queue is full
+ * waits, so a slow stage holds back the ones before it instead of letting
+ * work pile up, and memory stays at the items the queues and threads
+ * hold.  When output is ordered, items leave the pipeline in the order
+ * they entered it; the number of items in flight is capped so that the
+ * reordering buffer is bounded too.
+ * <p>
+ * Each stage counts the items it has done, the time its threads spent
+ * working and waiting on the next stage, and the depth of the queue in
+ * front of it; see {@link Stats}.  These can be read while it runs.
+ * A step that returns null drops the item.  The first step to fail
+ * stops the whole run.
+ * @param <T> the type of the items the last stage puts out
+ * @version 1.0
+ */
+public final class Pipeline<T> {
+    /** Marks the end of the items in a queue. */
+    private static final Item END = new Item(-1, null);
+    /** How often the caller checks for failures while it waits, in milliseconds. */
+    private static final long POLL_MS = 50;
+
+    /**
+     * The work of one stage.
+     * @param <A> what it takes
+     * @param <B> what it gives
+     */
+    public interface Step<A, B> {
+        /**
+         * Process one item.
+         * @param in the item
+         * @return the result, or null to drop the item
+         * @throws IOException if it fails
+         */
+        B apply(A in) throws IOException;
+    }//Step
+
+    /** Counters for one stage; safe to read while the pipeline runs. */
+    public static final class Stats {
+        /** The stage's name. */
+        private final String name;
+        /** Its threads. */
+        private final int threads;
+        /** Size of the queue in front of it. */
+        private final int capacity;
+        /** Items finished. */
+        private final AtomicLong done = new AtomicLong();
+        /** Time spent working, summed over threads. */
+        private final AtomicLong busyNanos = new AtomicLong();
+        /** Time spent waiting for room in the next queue, summed over threads. */
+        private final AtomicLong blockedNanos = new AtomicLong();
+        /** Deepest the queue in front has been. */
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        /** The queue in front, while running. */
+        private volatile BlockingQueue<Item> queue;
+        /** When the run started. */
+        private volatile long startNanos;
+        /** When the run ended, or 0 while it runs. */
+        private volatile long endNanos;
+
+        /**
+         * Create the counters of a stage.
+         * @param n its name
+         * @param t its threads
+         * @param c the size of its queue
+         */
+        Stats(final String n, final int t, final int c) {
+            name = n;
+            threads = t;
+            capacity = c;
+        }//constructor
+
+        /** Zero the counters for a new run. */
+        void reset() {
+            done.set(0);
+            busyNanos.set(0);
+            blockedNanos.set(0);
+            maxDepth.set(0);
+            startNanos = System.nanoTime();
+            endNanos = 0;
+        }//reset
+
+        /**
+         * Retrieve the stage's name.
+         * @return the name
+         */
+        public String getName() { return name; }
+
+        /**
+         * Retrieve the number of threads the stage runs.
+         * @return its threads
+         */
+        public int getThreads() { return threads; }
+
+        /**
+         * Retrieve the number of items the stage has finished.
+         * @return items done
+         */
+        public long getDone() { return done.get(); }
+
+        /**
+         * Retrieve how many items wait in front of the stage now.
+         * @return the queue depth
+         */
+        public int getQueueDepth() {
+            BlockingQueue<Item> q = queue;
+            return (q == null) ? 0 : q.size();
+        }//getQueueDepth
+
+        /**
+         * Retrieve the most items that have waited in front of the stage.
+         * @return the deepest the queue has been
+         */
+        public int getMaxQueueDepth() { return maxDepth.get(); }
+
+        /**
+         * Retrieve the size of the queue in front of the stage.
+         * @return its capacity
+         */
+        public int getQueueCapacity() { return capacity; }
+
+        /**
+         * Retrieve the stage's throughput so far.
+         * @return items per second since the run started
+         */
+        public double getThroughput() {
+            double s = seconds();
+            return (s > 0) ? done.get() / s : 0;
+        }//getThroughput
+
+        /**
+         * Retrieve the share of its threads' time the stage spent working.
+         * @return 0 to 1
+         */
+        public double getUtilization() {
+            double s = seconds();
+            return (s > 0) ? busyNanos.get() / 1e9 / s / threads : 0;
+        }//getUtilization
+
+        /**
+         * Retrieve the share of its threads' time the stage spent waiting
+         * for the next stage to make room (backpressure).
+         * @return 0 to 1
+         */
+        public double getBlocked() {
+            double s = seconds();
+            return (s > 0) ? blockedNanos.get() / 1e9 / s / threads : 0;
+        }//getBlocked
+
+        /**
+         * The time the current or last run has taken.
+         * @return seconds
+         */
+        private double seconds() {
+            long start = startNanos;
+            if (start == 0) return 0;
+            long end = endNanos;
+            return (((end == 0) ? System.nanoTime() : end) - start) / 1e9;
+        }//seconds
+
+        /**
+         * Note that a queue may have grown.
+         * @param depth its depth after a put
+         */
+        void depth(final int depth) {
+            int m = maxDepth.get();
+            while (depth > m && !maxDepth.compareAndSet(m, depth)) m = maxDepth.get();
+        }//depth
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d thread%s, %d done, %.1f/s, busy %.0f%%, blocked %.0f%%, queue %d/%d (most %d)",
+                name, threads, (threads == 1) ? "" : "s", getDone(), getThroughput(),
+                100 * getUtilization(), 100 * getBlocked(), getQueueDepth(), capacity, getMaxQueueDepth());
+        }//toString
+    }//Stats
+
+    /** An item on its way through, numbered in order of entry. */
+    private static final class Item {
+        /** Its place in the input. */
+        final long seq;
+        /** Its current value; null once dropped. */
+        final Object value;
+
+        /**
+         * Create an item.
+         * @param s its place in the input
+         * @param v its value
+         */
+        Item(final long s, final Object v) {
+            seq = s;
+            value = v;
+        }//constructor
+    }//Item
+
+    /** A stage: its step, its size and its counters. */
+    private static final class Stage {
+        /** The work. */
+        final Step<Object, Object> step;
+        /** Its counters. */
+        final Stats stats;
+
+        /**
+         * Create a stage.
+         * @param s the work
+         * @param st its counters
+         */
+        Stage(final Step<Object, Object> s, final Stats st) {
+            step = s;
+            stats = st;
+        }//constructor
+    }//Stage
+
+    /** The items fed in. */
+    private final Iterable<?> source;
+    /** The stages, first to last. */
+    private final List<Stage> stages;
+    /** Whether items leave in the order they came. */
+    private final boolean ordered;
+    /** Set while running. */
+    private final AtomicInteger running = new AtomicInteger();
+
+    /**
+     * Create a pipeline.
+     * @param src the items fed in
+     * @param st the stages
+     * @param ord whether output keeps input order
+     */
+    private Pipeline(final Iterable<?> src, final List<Stage> st, final boolean ord) {
+        source = src;
+        stages = st;
+        ordered = ord;
+    }//constructor
+
+    /**
+     * Start a pipeline with no stages yet; output is ordered.
+     * @param <T> the type of the items
+     * @param items the items to feed in, read as they are needed
+     * @return the pipeline
+     */
+    public static <T> Pipeline<T> of(final Iterable<? extends T> items) {
+        return new Pipeline<T>(items, Collections.<Stage>emptyList(), true);
+    }//of
+
+    /**
+     * Add a stage after the current last one.
+     * @param <R> the type of item it gives
+     * @param name its name, for metrics and thread names
+     * @param threads the threads it runs, at least 1
+     * @param queue how many items may wait in front of it, at least 1
+     * @param step its work
+     * @return the longer pipeline; this one is unchanged
+     */
+    @SuppressWarnings("unchecked")
+    public <R> Pipeline<R> stage(final String name, final int threads, final int queue,
+                                 final Step<? super T, ? extends R> step) {
+        if (threads < 1 || queue < 1) throw new IllegalArgumentException("A stage needs a thread and a queue");
+        List<Stage> st = new ArrayList<Stage>(stages);
+        st.add(new Stage((Step<Object, Object>) (Step<?, ?>) step, new Stats(name, threads, queue)));
+        return new Pipeline<R>(source, st, ordered);
+    }//stage
+
+    /**
+     * Choose whether items leave in the order they entered (the default)
+     * or as soon as they are done.
+     * @param inOrder true to keep input order
+     * @return a pipeline with the same stages and that ordering
+     */
+    public Pipeline<T> ordered(final boolean inOrder) {
+        return new Pipeline<T>(source, stages, inOrder);
+    }//ordered
+
+    /**
+     * Retrieve the counters of each stage, first to last.
+     * @return the stages' counters
+     */
+    public List<Stats> getStats() {
+        List<Stats> all = new ArrayList<Stats>();
+        for (Stage s : stages) all.add(s.stats);
+        return all;
+    }//getStats
+
+    /**
+     * Run every item through and gather the results.
+     * @return the results, in input order if the pipeline is ordered
+     * @throws IOException if a step fails
+     */
+    public List<T> run() throws IOException {
+        final List<T> out = new ArrayList<T>();
+        run(out::add);
+        return out;
+    }//run
+
+    /**
+     * Run every item through, handing each result to a sink on the
+     * calling thread.
+     * @param sink receives the results, in input order if the pipeline is ordered
+     * @throws IOException if a step fails
+     */
+    @SuppressWarnings("unchecked")
+    public void run(final Consumer<? super T> sink) throws IOException {
+        if (!running.compareAndSet(0, 1)) throw new IllegalStateException("Pipeline already running");
+        int n = stages.size();
+        List<BlockingQueue<Item>> queues = new ArrayList<BlockingQueue<Item>>();
+        int window = 0;
+        for (Stage s : stages) {
+            queues.add(new ArrayBlockingQueue<Item>(s.stats.capacity));
+            window += s.stats.capacity + s.stats.threads;
+        }
+        queues.add(new ArrayBlockingQueue<Item>(Math.max(1, window)));
+        final Semaphore inFlight = new Semaphore(Math.max(1, window));
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<ExecutorService> pools = new ArrayList<ExecutorService>();
+        try {
+            for (int i = 0; i < n; i++) {
+                Stage s = stages.get(i);
+                s.stats.reset();
+                s.stats.queue = queues.get(i);
+                pools.add(start(s, queues.get(i), queues.get(i + 1),
+                                (i + 1 < n) ? stages.get(i + 1).stats : null, failure));
+            }
+            pools.add(feed(queues.get(0), (n > 0) ? stages.get(0).stats : null, inFlight, failure));
+            BlockingQueue<Item> last = queues.get(n);
+            HashMap<Long, Object> early = new HashMap<Long, Object>();
+            long next = 0;
+            while (true) {
+                Item it = last.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (failure.get() != null) break;
+                if (it == null) continue;
+                if (it == END) break;
+                if (!ordered) {
+                    if (it.value != null) sink.accept((T) it.value);
+                    inFlight.release();
+                    continue;
+                }
+                early.put(it.seq, it.value);
+                while (early.containsKey(next)) {
+                    Object v = early.remove(next++);
+                    if (v != null) sink.accept((T) v);
+                    inFlight.release();
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, new IOException("Interrupted", ie));
+        } finally {
+            for (ExecutorService p : pools) p.shutdownNow();
+            for (Stage s : stages) {
+                s.stats.endNanos = System.nanoTime();
+                s.stats.queue = null;
+            }
+            running.set(0);
+        }
+        Throwable t = failure.get();
+        if (t == null) return;
+        if (t instanceof IOException) throw (IOException) t;
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        throw new IOException(t);
+    }//run
+
+    /**
+     * Start the thread that feeds the items in, numbering them and
+     * waiting whenever too many are in flight.
+     * @param first the first queue
+     * @param firstStats the first stage's counters, or null if there are no stages
+     * @param inFlight permits for items in flight
+     * @param failure where a failure is recorded
+     * @return the feeder's pool
+     */
+    private ExecutorService feed(final BlockingQueue<Item> first, final Stats firstStats,
+                                 final Semaphore inFlight, final AtomicReference<Throwable> failure) {
+        ExecutorService pool = pool("feed", 1);
+        pool.execute(() -> {
+            try {
+                long seq = 0;
+                for (Object x : source) {
+                    inFlight.acquire();
+                    put(first, new Item(seq++, x), firstStats);
+                }
+                first.put(END);
+            } catch (InterruptedException ie) {
+                // stopped
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        });
+        return pool;
+    }//feed
+
+    /**
+     * Start a stage's threads.  Each takes an item, works on it and passes
+     * it on.  The end marker is put back for the stage's other threads;
+     * the last of them to stop passes it on.
+     * @param s the stage
+     * @param in the queue in front of it
+     * @param out the queue after it
+     * @param outStats the next stage's counters, or null if it is the last
+     * @param failure where a failure is recorded
+     * @return the stage's pool
+     */
+    private static ExecutorService start(final Stage s, final BlockingQueue<Item> in,
+                                         final BlockingQueue<Item> out, final Stats outStats,
+                                         final AtomicReference<Throwable> failure) {
+        final Stats st = s.stats;
+        final AtomicInteger live = new AtomicInteger(st.threads);
+        ExecutorService pool = pool(st.name, st.threads);
+        for (int k = 0; k < st.threads; k++) {
+            pool.execute(() -> {
+                try {
+                    while (true) {
+                        Item it = in.take();
+                        if (it == END) {
+                            in.put(END);
+                            if (live.decrementAndGet() == 0) out.put(END);
+                            return;
+                        }
+                        Object r = null;
+                        if (it.value != null) {
+                            long t0 = System.nanoTime();
+                            r = s.step.apply(it.value);
+                            st.busyNanos.addAndGet(System.nanoTime() - t0);
+                            st.done.incrementAndGet();
+                        }
+                        long t1 = System.nanoTime();
+                        put(out, new Item(it.seq, r), outStats);
+                        st.blockedNanos.addAndGet(System.nanoTime() - t1);
+                    }
+                } catch (InterruptedException ie) {
+                    // stopped
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+        }
+        return pool;
+    }//start
+
+    /**
+     * Put an item in a queue, waiting for room, and note its depth.
+     * @param q the queue
+     * @param it the item
+     * @param st the counters of the stage the queue feeds, or null
+     * @throws InterruptedException if stopped while waiting
+     */
+    private static void put(final BlockingQueue<Item> q, final Item it, final Stats st)
+            throws InterruptedException {
+        q.put(it);
+        if (st != null) st.depth(q.size());
+    }//put
+
+    /**
+     * Create a pool of daemon threads for a stage.
+     * @param name the stage's name
+     * @param threads the number of threads
+     * @return the pool
+     */
+    private static ExecutorService pool(final String name, final int threads) {
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "ImageLab " + name);
+            t.setDaemon(true);
+            return t;
+        });
+    }//pool
+
+    /**
+     * A pipeline that decodes image files, applies an engine to each and
+     * writes the results to a directory under the same base names.  As
+     * with {@link Coordinator}, inputs that share a base name (a.jpg and
+     * a.png) keep their whole names instead (a.jpg.png and a.png.png), so
+     * no result overwrites another.
+     * @param files the images, for instance the frames of a time-lapse
+     * @param outDir where to write the results
+     * @param ext the extension, and so the format, of the results (png, jpg, ilr...)
+     * @param op the engine, for example ip -> RankFilter.median(ip, 2)
+     * @param decoders threads decoding
+     * @param filters threads running the engine
+     * @param encoders threads encoding
+     * @return the pipeline, ordered; running it gives the files written
+     * @throws IllegalArgumentException if two files, or two results, would have the same name
+     */
+    public static Pipeline<File> sequence(final List<File> files, final File outDir, final String ext,
+                                          final UnaryOperator<ImgProvider> op, final int decoders,
+                                          final int filters, final int encoders) {
+        final Map<File, String> outNames = outNames(files, ext);
+        return Pipeline.of(files)
+            .stage("decode", decoders, 2 * decoders, (File f) -> {
+                ImgProvider ip = ImgProvider.read(f);
+                ip.imgName = outNames.get(f);
+                return ip;
+            })
+            .stage("filter", filters, 2 * filters, ip -> {
+                ImgProvider r = op.apply(ip);
+                r.imgName = ip.imgName;
+                return r;
+            })
+            .stage("encode", encoders, 2 * encoders, ip -> {
+                File out = new File(outDir, ip.imgName);
+                ip.write(out);
+                return out;
+            });
+    }//sequence
+
+    /**
+     * Name the result of each file: its base name with the extension, or
+     * its whole name with the extension where base names clash.
+     * @param files the images
+     * @param ext the extension of the results
+     * @return the name of each file's result
+     * @throws IllegalArgumentException if two files, or two results, would have the same name
+     */
+    static Map<File, String> outNames(final List<File> files, final String ext) {
+        Set<String> names = new HashSet<String>();
+        Set<String> bases = new HashSet<String>();
+        Set<String> clash = new HashSet<String>();
+        for (File f : files) {
+            if (!names.add(f.getName())) {
+                throw new IllegalArgumentException("Two images are named " + f.getName());
+            }
+            if (!bases.add(base(f.getName()))) clash.add(base(f.getName()));
+        }
+        Map<File, String> out = new HashMap<File, String>();
+        Set<String> taken = new HashSet<String>();
+        for (File f : files) {
+            String b = base(f.getName());
+            String name = (clash.contains(b) ? f.getName() : b) + "." + ext;
+            if (!taken.add(name)) throw new IllegalArgumentException("Two results would be named " + name);
+            out.put(f, name);
+        }
+        return out;
+    }//outNames
+
+    /**
+     * A file name without its extension.
+     * @param name the name
+     * @return the part before the last dot
+     */
+    private static String base(final String name) {
+        int dot = name.lastIndexOf('.');
+        return (dot <= 0) ? name : name.substring(0, dot);
+    }//base
+}//Pipeline
@@ -0,0 +1,372 @@
+package imagelab;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Quantizer reduces an image to a palette of a few colors.
+ * Both strategies start from a color histogram with 32 levels per
+ * channel, which is built in parallel (one partial histogram per strip
+ * of rows, then summed), and both give each palette entry the mean color
+ * of the pixels it stands for.
+ * <ul>
+ * <li>Median cut repeatedly splits the most populous box of colors
+ *     across its longest side at the median pixel.</li>
+ * <li>Octree files every histogram cell in an 8-way tree of color
+ *     space and folds the smallest branches together until few enough
+ *     leaves are left.</li>
+ * </ul>
+ * Pixels are then mapped through the palette's lookup cube.
+ * @version 1.0
+ */
+public final class Quantizer {
+    /** Number of histogram cells. */
+    static final int CELLS = Palette.SIDE * Palette.SIDE * Palette.SIDE;
+    /** Fewest rows worth a strip of their own when counting colors. */
+    private static final int MIN_STRIP = 64;
+
+    /** Utility class; not instantiated. */
+    private Quantizer() { }
+
+    /** Ways to choose a palette. */
+    public enum Method {
+        /** Heckbert's median cut. */
+        MEDIAN_CUT,
+        /** Gervautz and Purgathofer's octree. */
+        OCTREE
+    }
+
+    /**
+     * Reduce an image to at most the given number of colors.
+     * @param ip the image
+     * @param colors the palette size, 1 to 256
+     * @param method how to choose the palette
+     * @return the image as palette indices
+     */
+    public static IndexedImage quantize(final ImgProvider ip, final int colors,
+                                        final Method method) {
+        return IndexedImage.map(ip, palette(ip, colors, method));
+    }//quantize
+
+    /**
+     * Choose a palette for an image.
+     * @param ip the image
+     * @param colors the largest palette size wanted, 1 to 256
+     * @param method how to choose the palette
+     * @return the palette
+     */
+    public static Palette palette(final ImgProvider ip, final int colors, final Method method) {
+        if (colors < 1 || colors > Palette.MAX_COLORS) {
+            throw new IllegalArgumentException("Cannot make a palette of " + colors + " colors");
+        }
+        Histogram hist = new Histogram(ip);
+        return (method == Method.OCTREE) ? octree(hist, colors) : medianCut(hist, colors);
+    }//palette
+
+    /** Pixel counts and color sums for each cell of the 32x32x32 cube. */
+    static final class Histogram {
+        /** Pixels per cell. */
+        final long[] count = new long[CELLS];
+        /** Sum of red per cell. */
+        final long[] sumR = new long[CELLS];
+        /** Sum of green per cell. */
+        final long[] sumG = new long[CELLS];
+        /** Sum of blue per cell. */
+        final long[] sumB = new long[CELLS];
+
+        /**
+         * Count the colors of an image.
+         * @param ip the image
+         */
+        Histogram(final ImgProvider ip) {
+            ip.ensureLoaded();
+            final int h = ip.pixheight;
+            final int w = ip.pixwidth;
+            final short[][] r = ip.red;
+            final short[][] g = ip.green;
+            final short[][] b = ip.blue;
+            final int strips = Math.max(1, Math.min(Parallel.THREADS, h / MIN_STRIP));
+            final long[][] partial = new long[strips][];
+            Parallel.forEach(strips, (s, unused) -> {
+                // count, red, green and blue sums of each cell, side by side
+                long[] part = new long[4 * CELLS];
+                for (int y = (int) ((long) h * s / strips); y < (long) h * (s + 1) / strips; y++) {
+                    for (int x = 0; x < w; x++) {
+                        int c = 4 * cellOf(r[y][x], g[y][x], b[y][x]);
+                        part[c]++;
+                        part[c + 1] += r[y][x];
+                        part[c + 2] += g[y][x];
+                        part[c + 3] += b[y][x];
+                    }
+                }
+                partial[s] = part;
+            });
+            for (long[] part : partial) {
+                for (int c = 0; c < CELLS; c++) {
+                    count[c] += part[4 * c];
+                    sumR[c] += part[4 * c + 1];
+                    sumG[c] += part[4 * c + 2];
+                    sumB[c] += part[4 * c + 3];
+                }
+            }
+        }//constructor
+
+        /**
+         * The cell of a color.
+         * @param r red
+         * @param g green
+         * @param b blue
+         * @return the cell index
+         */
+        static int cellOf(final int r, final int g, final int b) {
+            return Palette.cell(r >> Palette.DROP, g >> Palette.DROP, b >> Palette.DROP);
+        }//cellOf
+    }//Histogram
+
+    /**
+     * Pack a mean color.
+     * @param n pixel count (positive)
+     * @param r sum of red
+     * @param g sum of green
+     * @param b sum of blue
+     * @return the mean color as 0xRRGGBB
+     */
+    static int mean(final long n, final long r, final long g, final long b) {
+        int mr = (int) ((r + n / 2) / n);
+        int mg = (int) ((g + n / 2) / n);
+        int mb = (int) ((b + n / 2) / n);
+        return (mr << 16) | (mg << 8) | mb;
+    }//mean
+
+    /** A box of histogram cells, bounds inclusive, for median cut. */
+    private static final class Box {
+        /** Lowest and highest cell coordinate on each axis (r, g, b). */
+        final int[] lo = new int[3];
+        /** Highest cell coordinate on each axis. */
+        final int[] hi = new int[3];
+        /** Pixels inside the box. */
+        long count;
+    }//Box
+
+    /**
+     * Shrink a box to the cells that hold pixels and recount it.
+     * @param hist the histogram
+     * @param box the box
+     */
+    private static void shrink(final Histogram hist, final Box box) {
+        int[] lo = {Palette.SIDE, Palette.SIDE, Palette.SIDE};
+        int[] hi = {-1, -1, -1};
+        long n = 0;
+        for (int r = box.lo[0]; r <= box.hi[0]; r++) {
+            for (int g = box.lo[1]; g <= box.hi[1]; g++) {
+                for (int b = box.lo[2]; b <= box.hi[2]; b++) {
+                    long c = hist.count[Palette.cell(r, g, b)];
+                    if (c == 0) continue;
+                    n += c;
+                    int[] at = {r, g, b};
+                    for (int k = 0; k < 3; k++) {
+                        lo[k] = Math.min(lo[k], at[k]);
+                        hi[k] = Math.max(hi[k], at[k]);
+                    }
+                }
+            }
+        }
+        box.count = n;
+        if (n > 0) {
+            System.arraycopy(lo, 0, box.lo, 0, 3);
+            System.arraycopy(hi, 0, box.hi, 0, 3);
+        }
+    }//shrink
+
+    /**
+     * Choose a palette by median cut.
+     * @param hist the histogram
+     * @param colors the largest palette size
+     * @return the palette
+     */
+    static Palette medianCut(final Histogram hist, final int colors) {
+        List<Box> boxes = new ArrayList<Box>();
+        Box all = new Box();
+        for (int k = 0; k < 3; k++) all.hi[k] = Palette.SIDE - 1;
+        shrink(hist, all);
+        boxes.add(all);
+        while (boxes.size() < colors) {
+            Box pick = null;
+            int axis = 0;
+            for (Box b : boxes) {
+                int longest = 0;
+                for (int k = 1; k < 3; k++) {
+                    if (b.hi[k] - b.lo[k] > b.hi[longest] - b.lo[longest]) longest = k;
+                }
+                if (b.hi[longest] == b.lo[longest]) continue;     // a single cell
+                if (pick == null || b.count > pick.count) {
+                    pick = b;
+                    axis = longest;
+                }
+            }
+            if (pick == null) break;                               // nothing left to split
+            // count pixels in each slice across the chosen axis
+            long[] slice = new long[Palette.SIDE];
+            for (int r = pick.lo[0]; r <= pick.hi[0]; r++) {
+                for (int g = pick.lo[1]; g <= pick.hi[1]; g++) {
+                    for (int b = pick.lo[2]; b <= pick.hi[2]; b++) {
+                        int at = (axis == 0) ? r : (axis == 1) ? g : b;
+                        slice[at] += hist.count[Palette.cell(r, g, b)];
+                    }
+                }
+            }
+            long seen = 0;
+            int cut = pick.lo[axis];
+            while (cut < pick.hi[axis] - 1 && seen + slice[cut] < pick.count / 2) {
+                seen += slice[cut++];
+            }
+            Box upper = new Box();
+            System.arraycopy(pick.lo, 0, upper.lo, 0, 3);
+            System.arraycopy(pick.hi, 0, upper.hi, 0, 3);
+            upper.lo[axis] = cut + 1;
+            pick.hi[axis] = cut;
+            shrink(hist, pick);
+            shrink(hist, upper);
+            boxes.add(upper);
+        }
+        int[] rgb = new int[boxes.size()];
+        for (int i = 0; i < rgb.length; i++) {
+            Box b = boxes.get(i);
+            long n = 0, sr = 0, sg = 0, sb = 0;
+            for (int r = b.lo[0]; r <= b.hi[0]; r++) {
+                for (int g = b.lo[1]; g <= b.hi[1]; g++) {
+                    for (int bl = b.lo[2]; bl <= b.hi[2]; bl++) {
+                        int c = Palette.cell(r, g, bl);
+                        n += hist.count[c];
+                        sr += hist.sumR[c];
+                        sg += hist.sumG[c];
+                        sb += hist.sumB[c];
+                    }
+                }
+            }
+            rgb[i] = (n == 0) ? 0 : mean(n, sr, sg, sb);
+        }
+        return new Palette(rgb);
+    }//medianCut
+
+    /** A node of the color octree. */
+    private static final class Node {
+        /** Depth in the tree; the root is 0. */
+        final int level;
+        /** Children, or null for a leaf. */
+        Node[] kids;
+        /** Pixels at or below this node. */
+        long count;
+        /** Color sums at or below this node. */
+        long sumR, sumG, sumB;
+
+        /**
+         * Create a node.
+         * @param lvl depth in the tree
+         */
+        Node(final int lvl) {
+            level = lvl;
+        }
+    }//Node
+
+    /**
+     * Choose a palette with an octree.
+     * @param hist the histogram
+     * @param colors the largest palette size
+     * @return the palette
+     */
+    static Palette octree(final Histogram hist, final int colors) {
+        final int depth = Palette.CUBE_BITS;
+        Node root = new Node(0);
+        List<List<Node>> inner = new ArrayList<List<Node>>();
+        for (int d = 0; d < depth; d++) inner.add(new ArrayList<Node>());
+        int leaves = 0;
+        for (int c = 0; c < CELLS; c++) {
+            long n = hist.count[c];
+            if (n == 0) continue;
+            int r = c >> (2 * depth);
+            int g = (c >> depth) & (Palette.SIDE - 1);
+            int b = c & (Palette.SIDE - 1);
+            Node node = root;
+            for (int d = 0; ; d++) {
+                node.count += n;
+                node.sumR += hist.sumR[c];
+                node.sumG += hist.sumG[c];
+                node.sumB += hist.sumB[c];
+                if (d == depth) break;
+                if (node.kids == null) {
+                    node.kids = new Node[8];
+                    inner.get(d).add(node);
+                }
+                int bit = depth - 1 - d;
+                int k = (((r >> bit) & 1) << 2) | (((g >> bit) & 1) << 1) | ((b >> bit) & 1);
+                if (node.kids[k] == null) {
+                    node.kids[k] = new Node(d + 1);
+                    if (d + 1 == depth) leaves++;
+                }
+                node = node.kids[k];
+            }
+        }
+        // Fold the least populous branches, deepest first, into leaves.
+        for (int d = depth - 1; d >= 0 && leaves > colors; d--) {
+            List<Node> level = inner.get(d);
+            level.sort(Comparator.comparingLong(nd -> nd.count));
+            for (Node nd : level) {
+                if (leaves <= colors) break;
+                int kids = 0;
+                for (Node k : nd.kids) if (k != null) kids++;
+                if (leaves - (kids - 1) >= colors) {
+                    nd.kids = null;
+                    leaves -= kids - 1;
+                } else {
+                    leaves -= mergeSmallest(nd, leaves - colors + 1);
+                }
+            }
+        }
+        List<Integer> rgb = new ArrayList<Integer>();
+        collect(root, rgb);
+        int[] pal = new int[rgb.size()];
+        for (int i = 0; i < pal.length; i++) pal[i] = rgb.get(i);
+        return new Palette(pal.length == 0 ? new int[] {0} : pal);
+    }//octree
+
+    /**
+     * Merge the least populous leaves below a node into one, for when
+     * folding the whole node would leave too few colors.
+     * @param node a node whose children are all leaves
+     * @param n how many children to merge, at least 2
+     * @return the number of leaves removed
+     */
+    private static int mergeSmallest(final Node node, final int n) {
+        Node[] kids = node.kids.clone();
+        Arrays.sort(kids, Comparator.nullsLast(Comparator.comparingLong((Node k) -> k.count)));
+        Node merged = new Node(node.level + 1);
+        for (int i = 0; i < n; i++) {
+            merged.count += kids[i].count;
+            merged.sumR  += kids[i].sumR;
+            merged.sumG  += kids[i].sumG;
+            merged.sumB  += kids[i].sumB;
+        }
+        Node[] keep = new Node[8];
+        keep[0] = merged;
+        System.arraycopy(kids, n, keep, 1, 8 - n);
+        node.kids = keep;
+        return n - 1;
+    }//mergeSmallest
+
+    /**
+     * Gather the mean colors of the leaves below a node.
+     * @param node the node
+     * @param out receives the colors
+     */
+    private static void collect(final Node node, final List<Integer> out) {
+        if (node.count == 0) return;
+        if (node.kids == null) {
+            out.add(mean(node.count, node.sumR, node.sumG, node.sumB));
+            return;
+        }
+        for (Node k : node.kids) if (k != null) collect(k, out);
+    }//collect
+}//Quantizer
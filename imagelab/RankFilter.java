@@ -0,0 +1,255 @@
+package imagelab;
+
+import java.util.Arrays;
+
+/**
+ * RankFilter replaces each pixel with a chosen rank (median, percentile,
+ * minimum or maximum) of the square window of pixels around it.
+ * Windows are clipped at the edges of the image.
+ * The work per pixel does not depend on the radius: following Perreault
+ * and Hebert, every column keeps a histogram of the window rows, and the
+ * window histogram is updated by adding the column entering on the right
+ * and subtracting the one leaving on the left.  Histograms have two tiers
+ * (16 coarse bins of 16 fine bins each); a fine tier is brought up to date
+ * only when the search for the rank actually needs it.
+ * The image is cut into horizontal strips that are filtered in parallel.
+ * Samples must lie in the range 0 to 255.
+ * @version 1.0
+ */
+public final class RankFilter {
+    /** Number of distinct sample values. */
+    static final int LEVELS = 256;
+    /** Number of fine bins per coarse bin, and of coarse bins. */
+    static final int SPAN = 16;
+    /** Percentile that selects the median. */
+    public static final double MEDIAN = 50;
+    /** Fewest rows worth a strip of their own. */
+    private static final int MIN_STRIP = 32;
+
+    /** Utility class; not instantiated. */
+    private RankFilter() { }
+
+    /**
+     * Median filter the color planes of an image; alpha is left as is.
+     * @param ip the source image
+     * @param radius the window is 2*radius+1 pixels square
+     * @return the filtered image
+     */
+    public static ImgProvider median(final ImgProvider ip, final int radius) {
+        return percentile(ip, radius, MEDIAN);
+    }//median
+
+    /**
+     * Replace each pixel by the darkest pixel of its window.
+     * @param ip the source image
+     * @param radius the window is 2*radius+1 pixels square
+     * @return the filtered image
+     */
+    public static ImgProvider minimum(final ImgProvider ip, final int radius) {
+        return percentile(ip, radius, 0);
+    }//minimum
+
+    /**
+     * Replace each pixel by the brightest pixel of its window.
+     * @param ip the source image
+     * @param radius the window is 2*radius+1 pixels square
+     * @return the filtered image
+     */
+    public static ImgProvider maximum(final ImgProvider ip, final int radius) {
+        return percentile(ip, radius, 100);
+    }//maximum
+
+    /**
+     * Rank filter the color planes of an image; alpha is left as is.
+     * @param ip the source image
+     * @param radius the window is 2*radius+1 pixels square
+     * @param pct which rank to take, as a percentile from 0 (minimum)
+     *        through 50 (median) to 100 (maximum)
+     * @return the filtered image
+     */
+    public static ImgProvider percentile(final ImgProvider ip, final int radius,
+                                         final double pct) {
+        ip.ensureLoaded();
+        ImgProvider result = new ImgProvider();
+        result.setPlanes(rankPlane(ip.red, radius, pct),
+                         rankPlane(ip.green, radius, pct),
+                         rankPlane(ip.blue, radius, pct),
+                         ip.getAlpha());
+        return result;
+    }//percentile
+
+    /**
+     * The position, counting from 0, of the wanted sample among n sorted
+     * samples.  For n samples and percentile pct this is
+     * floor((n - 1) * pct / 100), so the median of an even count is the
+     * lower of the two middle samples.
+     * @param n the number of samples in the window
+     * @param pct the percentile
+     * @return the index of the wanted sample
+     */
+    static int target(final int n, final double pct) {
+        return (int) Math.floor((n - 1) * pct / 100.0);
+    }//target
+
+    /**
+     * Rank filter one plane.
+     * @param src the plane (not modified)
+     * @param radius the window is 2*radius+1 pixels square
+     * @param pct the percentile, 0 to 100
+     * @return the filtered plane
+     */
+    public static short[][] rankPlane(final short[][] src, final int radius, final double pct) {
+        if (pct < 0 || pct > 100) {
+            throw new IllegalArgumentException("Percentile " + pct + " is not between 0 and 100");
+        }
+        final int h = src.length;
+        final int w = src[0].length;
+        final short[][] dst = new short[h][w];
+        final int strips = Math.max(1, Math.min(Parallel.THREADS, h / MIN_STRIP));
+        Parallel.forEach(strips, (s, unused) -> {
+            int lo = (int) ((long) h * s / strips);
+            int hi = (int) ((long) h * (s + 1) / strips);
+            new Strip(src, dst, Math.max(0, radius), pct).run(lo, hi);
+        });
+        return dst;
+    }//rankPlane
+
+    /** The histograms and state for filtering one strip of rows. */
+    private static final class Strip {
+        /** Source plane. */
+        private final short[][] src;
+        /** Destination plane. */
+        private final short[][] dst;
+        /** Window radius. */
+        private final int r;
+        /** Wanted percentile. */
+        private final double pct;
+        /** Image width. */
+        private final int w;
+        /** Image height. */
+        private final int h;
+        /** Fine column histograms, LEVELS per column. */
+        private final int[] colFine;
+        /** Coarse column histograms, SPAN per column. */
+        private final int[] colCoarse;
+        /** Fine window histogram. */
+        private final int[] fine = new int[LEVELS];
+        /** Coarse window histogram. */
+        private final int[] coarse = new int[SPAN];
+        /** Window column each fine segment was last brought up to date for. */
+        private final int[] fresh = new int[SPAN];
+
+        /**
+         * Prepare to filter part of a plane.
+         * @param s the source plane
+         * @param d the destination plane
+         * @param radius the window radius
+         * @param p the percentile
+         */
+        Strip(final short[][] s, final short[][] d, final int radius, final double p) {
+            src = s;
+            dst = d;
+            r = radius;
+            pct = p;
+            h = s.length;
+            w = s[0].length;
+            colFine = new int[w * LEVELS];
+            colCoarse = new int[w * SPAN];
+        }//constructor
+
+        /**
+         * Add (sign 1) or remove (sign -1) a source row from the column histograms.
+         * @param row the source row; ignored if outside the plane
+         * @param sign 1 to add, -1 to remove
+         */
+        private void columnRow(final int row, final int sign) {
+            if (row < 0 || row >= h) return;
+            short[] in = src[row];
+            for (int c = 0; c < w; c++) {
+                int v = in[c];
+                colFine[c * LEVELS + v] += sign;
+                colCoarse[c * SPAN + (v >> 4)] += sign;
+            }
+        }//columnRow
+
+        /**
+         * Add (sign 1) or remove (sign -1) a column's coarse histogram
+         * to or from the window's.
+         * @param c the column; ignored if outside the plane
+         * @param sign 1 to add, -1 to remove
+         */
+        private void coarseColumn(final int c, final int sign) {
+            if (c < 0 || c >= w) return;
+            for (int b = 0, i = c * SPAN; b < SPAN; b++, i++) coarse[b] += sign * colCoarse[i];
+        }//coarseColumn
+
+        /**
+         * Add (sign 1) or remove (sign -1) one segment of a column's fine
+         * histogram to or from the window's.
+         * @param c the column; ignored if outside the plane
+         * @param b the coarse bin whose fine segment is wanted
+         * @param sign 1 to add, -1 to remove
+         */
+        private void fineColumn(final int c, final int b, final int sign) {
+            if (c < 0 || c >= w) return;
+            int base = b * SPAN;
+            for (int k = 0, i = c * LEVELS + base; k < SPAN; k++, i++) {
+                fine[base + k] += sign * colFine[i];
+            }
+        }//fineColumn
+
+        /**
+         * Bring fine segment b up to date for the window centered on column x.
+         * @param b the coarse bin
+         * @param x the window's center column
+         */
+        private void refresh(final int b, final int x) {
+            int last = fresh[b];
+            if (last == x) return;
+            if (x - last > 2 * r + 1) {
+                // no overlap with the old window: rebuild the segment
+                Arrays.fill(fine, b * SPAN, (b + 1) * SPAN, 0);
+                for (int c = x - r; c <= x + r; c++) fineColumn(c, b, 1);
+            } else {
+                for (int c = last + 1; c <= x; c++) {
+                    fineColumn(c + r, b, 1);
+                    fineColumn(c - r - 1, b, -1);
+                }
+            }
+            fresh[b] = x;
+        }//refresh
+
+        /**
+         * Filter rows lo (inclusive) through hi (exclusive).
+         * @param lo first row
+         * @param hi one past the last row
+         */
+        void run(final int lo, final int hi) {
+            for (int row = lo - r; row < lo + r; row++) columnRow(row, 1);
+            for (int y = lo; y < hi; y++) {
+                columnRow(y + r, 1);
+                if (y > lo) columnRow(y - r - 1, -1);
+                int rowsIn = Math.min(h - 1, y + r) - Math.max(0, y - r) + 1;
+                Arrays.fill(coarse, 0);
+                Arrays.fill(fresh, Integer.MIN_VALUE / 2);
+                for (int c = 0; c <= r; c++) coarseColumn(c, 1);
+                short[] out = dst[y];
+                for (int x = 0; x < w; x++) {
+                    if (x > 0) {
+                        coarseColumn(x + r, 1);
+                        coarseColumn(x - r - 1, -1);
+                    }
+                    int colsIn = Math.min(w - 1, x + r) - Math.max(0, x - r) + 1;
+                    int t = target(rowsIn * colsIn, pct);
+                    int b = 0;
+                    int seen = 0;
+                    while (seen + coarse[b] <= t) seen += coarse[b++];
+                    refresh(b, x);
+                    int v = b * SPAN;
+                    while (seen + fine[v] <= t) seen += fine[v++];
+                    out[x] = (short) v;
+                }//for x
+            }//for y
+        }//run
+    }//Strip
+}//RankFilter
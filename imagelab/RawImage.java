@@ -0,0 +1,254 @@
+package imagelab;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * RawImage reads and writes ImageLab's own raw image format, which is
+ * laid out so that a file can be memory-mapped and its planes used
+ * without decoding.  The disk cache keeps its entries in it, and
+ * ImgProvider reads and writes files named *.ilr in it, so a large
+ * working image can be put aside and reopened without JPEG or PNG
+ * coding either way.
+ * <pre>
+ *  offset  size  field
+ *       0     8  magic "ILRAW" 0 0 1
+ *       8     4  format version (1)
+ *      12     4  width
+ *      16     4  height
+ *      20     4  layout (0: one byte per sample, one plane per channel)
+ *      24     4  number of planes (4: red, green, blue, alpha)
+ *      28     4  reserved, 0
+ *      32    32  file offset of each plane, as longs
+ * </pre>
+ * All numbers are big-endian.  Each plane holds width * height bytes,
+ * row by row, and starts on a 4096-byte boundary so it can be mapped on
+ * its own.
+ * @version 1.0
+ */
+public final class RawImage {
+    /** The first eight bytes of every raw image file. */
+    static final byte[] MAGIC = {'I', 'L', 'R', 'A', 'W', 0, 0, 1};
+    /** Format version written. */
+    static final int VERSION = 1;
+    /** Layout code: byte planes. */
+    static final int PLANAR_BYTES = 0;
+    /** Planes per image. */
+    static final int PLANES = 4;
+    /** Header length in bytes. */
+    static final int HEADER = 64;
+    /** Alignment of plane data in bytes. */
+    static final int ALIGN = 4096;
+    /** Customary file name extension. */
+    public static final String EXTENSION = ".ilr";
+    /** Smallest band of rows worth giving to another thread. */
+    private static final int GRAIN = 64;
+
+    /** Utility class; not instantiated. */
+    private RawImage() { }
+
+    /**
+     * Whether a file starts like a raw image.
+     * @param file the file
+     * @return true if it has the raw image magic number
+     */
+    public static boolean isRaw(final File file) {
+        if (!file.isFile() || file.length() < HEADER) return false;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] head = new byte[MAGIC.length];
+            raf.readFully(head);
+            return Arrays.equals(head, MAGIC);
+        } catch (IOException ioe) {
+            return false;
+        }
+    }//isRaw
+
+    /**
+     * Where plane p of a w x h image starts.
+     * @param p the plane number
+     * @param w the width
+     * @param h the height
+     * @return its file offset
+     */
+    static long planeOffset(final int p, final int w, final int h) {
+        long planeSize = align((long) w * h);
+        return align(HEADER) + p * planeSize;
+    }//planeOffset
+
+    /**
+     * Round up to the plane alignment.
+     * @param n a byte count
+     * @return the next multiple of ALIGN
+     */
+    static long align(final long n) {
+        return (n + ALIGN - 1) / ALIGN * ALIGN;
+    }//align
+
+    /**
+     * Read a raw image by mapping the file.
+     * @param file the file
+     * @return the image
+     * @throws IOException if the file cannot be read or is not a raw image
+     */
+    public static ImgProvider read(final File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel ch = raf.getChannel()) {
+            ByteBuffer head = ByteBuffer.allocate(HEADER);
+            while (head.hasRemaining() && ch.read(head, head.position()) > 0) { }
+            checkHeader(head, file, ch.size());
+            final int w = head.getInt(12);
+            final int h = head.getInt(16);
+            final short[][][] planes = new short[PLANES][h][w];
+            final int[] packed = new int[w * h];
+            final MappedByteBuffer[] maps = new MappedByteBuffer[PLANES];
+            try {
+                for (int p = 0; p < PLANES; p++) {
+                    // each plane is mapped on its own, so files beyond 2 GB are fine
+                    maps[p] = ch.map(FileChannel.MapMode.READ_ONLY, head.getLong(32 + 8 * p), (long) w * h);
+                }
+                Parallel.forBands(h, GRAIN, (lo, hi) -> {
+                    byte[][] rows = new byte[PLANES][w];
+                    ByteBuffer[] src = new ByteBuffer[PLANES];
+                    for (int p = 0; p < PLANES; p++) {
+                        src[p] = maps[p].duplicate();
+                        src[p].position(lo * w);
+                    }
+                    for (int y = lo; y < hi; y++) {
+                        for (int p = 0; p < PLANES; p++) src[p].get(rows[p]);
+                        unpack(rows, planes, y, packed, w);
+                    }
+                });
+            } finally {
+                for (MappedByteBuffer m : maps) OffHeapPixels.free(m);     //so the file can be replaced
+            }
+            ImgProvider ip = new ImgProvider(file.getPath());
+            ip.setPlanes(planes[0], planes[1], planes[2], planes[3], packed);
+            return ip;
+        }
+    }//read
+
+    /**
+     * Widen one row of each plane into the image's planes and pixels.
+     * @param rows the rows read, red, green, blue and alpha
+     * @param planes the image's planes
+     * @param y the row number
+     * @param packed the image's ARGB pixels
+     * @param w the width
+     */
+    private static void unpack(final byte[][] rows, final short[][][] planes, final int y,
+                               final int[] packed, final int w) {
+        byte[] r = rows[0], g = rows[1], b = rows[2], a = rows[3];
+        short[] oR = planes[0][y], oG = planes[1][y], oB = planes[2][y], oA = planes[3][y];
+        int spot = y * w;
+        for (int x = 0; x < w; x++) {
+            int rr = r[x] & 255, gg = g[x] & 255, bb = b[x] & 255, aa = a[x] & 255;
+            oR[x] = (short) rr;
+            oG[x] = (short) gg;
+            oB[x] = (short) bb;
+            oA[x] = (short) aa;
+            packed[spot++] = (aa << 24) | (rr << 16) | (gg << 8) | bb;
+        }
+    }//unpack
+
+    /**
+     * Check that a header describes a raw image this version can read.
+     * @param head the header
+     * @param file the file, for messages
+     * @param size the file's length
+     * @throws IOException if it does not
+     */
+    static void checkHeader(final ByteBuffer head, final File file, final long size)
+            throws IOException {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (size < HEADER || head.get(i) != MAGIC[i]) {
+                throw new IOException("Not an ImageLab raw image: " + file);
+            }
+        }
+        long w = head.getInt(12);
+        long h = head.getInt(16);
+        boolean ok = head.getInt(8) == VERSION && head.getInt(20) == PLANAR_BYTES
+            && head.getInt(24) == PLANES && w >= 0 && h >= 0 && w * h <= Integer.MAX_VALUE;
+        for (int p = 0; ok && p < PLANES; p++) {
+            long at = head.getLong(32 + 8 * p);
+            ok = at >= HEADER && at + w * h <= size;
+        }
+        if (!ok) throw new IOException("Unsupported or damaged raw image: " + file);
+    }//checkHeader
+
+    /**
+     * Write an image in the raw format.  The file is sized first and each
+     * plane mapped and filled in place, one band of rows per task, so the
+     * samples go straight into the page cache with no write buffer between.
+     * @param ip the image
+     * @param file the file to write
+     * @throws IOException if writing fails
+     */
+    public static void write(final ImgProvider ip, final File file) throws IOException {
+        write(ip, file, false);
+    }//write
+
+    /**
+     * Write an image in the raw format, optionally making sure it has
+     * reached the disk before returning, as a file about to be renamed
+     * into place must.
+     * @param ip the image
+     * @param file the file to write
+     * @param durable true to force the file to the disk
+     * @throws IOException if writing fails
+     */
+    static void write(final ImgProvider ip, final File file, final boolean durable) throws IOException {
+        ip.ensureLoaded();
+        final int w = ip.pixwidth;
+        final int h = ip.pixheight;
+        final short[][][] planes = {ip.red, ip.green, ip.blue, ip.alpha};
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel ch = raf.getChannel()) {
+            raf.setLength(0);
+            raf.setLength(planeOffset(PLANES - 1, w, h) + (long) w * h);
+            ByteBuffer head = header(w, h);
+            while (head.hasRemaining()) ch.write(head, head.position());
+            for (int p = 0; p < PLANES; p++) {
+                if (w == 0 || h == 0) break;
+                final MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_WRITE,
+                    planeOffset(p, w, h), (long) w * h);
+                final short[][] plane = planes[p];
+                try {
+                    Parallel.forBands(h, GRAIN, (lo, hi) -> {
+                        ByteBuffer dst = map.duplicate();
+                        dst.position(lo * w);
+                        byte[] row = new byte[w];
+                        for (int y = lo; y < hi; y++) {
+                            short[] in = plane[y];
+                            for (int x = 0; x < w; x++) row[x] = (byte) in[x];
+                            dst.put(row);
+                        }
+                    });
+                    if (durable) map.force();
+                } finally {
+                    OffHeapPixels.free(map);
+                }
+            }
+            if (durable) ch.force(true);
+        }
+    }//write
+
+    /**
+     * Build the header of a w x h image.
+     * @param w the width
+     * @param h the height
+     * @return the header, ready to write
+     */
+    static ByteBuffer header(final int w, final int h) {
+        ByteBuffer head = ByteBuffer.allocate(HEADER);
+        head.put(MAGIC).putInt(VERSION).putInt(w).putInt(h)
+            .putInt(PLANAR_BYTES).putInt(PLANES).putInt(0);
+        for (int p = 0; p < PLANES; p++) head.putLong(planeOffset(p, w, h));
+        head.flip();
+        return head;
+    }//header
+}//RawImage
@@ -0,0 +1,335 @@
+package imagelab;
+
+import java.util.Arrays;
+
+/**
+ * Resample changes the size of an image or rotates it by an arbitrary
+ * angle, interpolating new pixel values with a choice of kernel.
+ * Resizing is separable: one horizontal and one vertical pass, each
+ * driven by a table of fixed-point weights computed once per output
+ * column or row.  When shrinking, the kernel is widened by the reduction
+ * factor so every source pixel contributes (antialiasing).
+ * Rows are processed in parallel; all four planes are resampled.
+ * @version 1.0
+ */
+public final class Resample {
+    /** Fractional bits in the fixed-point filter weights. */
+    static final int WBITS = 14;
+    /** The fixed-point value of a weight of 1.0. */
+    static final int ONE = 1 << WBITS;
+    /** Extra fractional bits kept between the two passes. */
+    static final int IBITS = 6;
+    /** Sub-pixel positions tabulated for rotation. */
+    static final int PHASES = 64;
+    /** Smallest band of rows worth giving to another thread. */
+    private static final int GRAIN = 8;
+    /** Largest sample value. */
+    private static final int MAXVAL = 255;
+
+    /** Utility class; not instantiated. */
+    private Resample() { }
+
+    /** Interpolation kernels, from fastest to sharpest. */
+    public enum Kernel {
+        /** Triangle filter (linear interpolation); support 1. */
+        BILINEAR(1.0) {
+            double weight(final double x) {
+                double ax = Math.abs(x);
+                return (ax < 1.0) ? 1.0 - ax : 0.0;
+            }
+        },
+        /** Keys cubic convolution with a = -0.5; support 2. */
+        BICUBIC(2.0) {
+            double weight(final double x) {
+                final double a = -0.5;
+                double ax = Math.abs(x);
+                if (ax < 1.0) return ((a + 2) * ax - (a + 3)) * ax * ax + 1;
+                if (ax < 2.0) return ((a * ax - 5 * a) * ax + 8 * a) * ax - 4 * a;
+                return 0.0;
+            }
+        },
+        /** Lanczos windowed sinc with three lobes; support 3. */
+        LANCZOS(3.0) {
+            double weight(final double x) {
+                double ax = Math.abs(x);
+                if (ax < 1e-9) return 1.0;
+                if (ax >= support) return 0.0;
+                double px = Math.PI * x;
+                return support * Math.sin(px) * Math.sin(px / support) / (px * px);
+            }
+        };
+
+        /** Half-width of the kernel in source pixels (at scale 1). */
+        final double support;
+
+        /**
+         * Create a kernel.
+         * @param supp the half-width of the kernel
+         */
+        Kernel(final double supp) {
+            support = supp;
+        }
+
+        /**
+         * Evaluate the kernel.
+         * @param x distance from the kernel center, in pixels
+         * @return the (unnormalized) weight at x
+         */
+        abstract double weight(double x);
+    }//Kernel
+
+    /**
+     * Precomputed weights for one axis of a resize.
+     * Output position i reads source positions index[i*taps + k]
+     * (already clamped to the image) with weight weight[i*taps + k].
+     */
+    static final class Table {
+        /** Number of taps per output position. */
+        final int taps;
+        /** Source index of each tap. */
+        final int[] index;
+        /** Fixed-point weight of each tap; each group sums to ONE. */
+        final int[] weight;
+
+        /**
+         * Build the table for resampling srcLen samples to dstLen.
+         * @param srcLen the source length
+         * @param dstLen the destination length
+         * @param kernel the interpolation kernel
+         */
+        Table(final int srcLen, final int dstLen, final Kernel kernel) {
+            double scale = (double) dstLen / srcLen;
+            double stretch = Math.min(1.0, scale);     // widen kernel when shrinking
+            double support = kernel.support / stretch;
+            taps = (int) Math.ceil(2 * support) + 1;
+            index = new int[dstLen * taps];
+            weight = new int[dstLen * taps];
+            double[] w = new double[taps];
+            for (int i = 0; i < dstLen; i++) {
+                double center = (i + 0.5) / scale - 0.5;
+                int left = (int) Math.floor(center - support) + 1;
+                double sum = 0;
+                for (int k = 0; k < taps; k++) {
+                    w[k] = kernel.weight((left + k - center) * stretch);
+                    sum += w[k];
+                }
+                for (int k = 0; k < taps; k++) {
+                    index[i * taps + k] = Math.min(srcLen - 1, Math.max(0, left + k));
+                }
+                quantize(w, sum, weight, i * taps);
+            }//for i
+        }//constructor
+    }//Table
+
+    /**
+     * Scale w so it sums to ONE, convert it to fixed point, and
+     * store it at out[at..].  Rounding error goes to the largest tap,
+     * so flat areas stay exactly flat.
+     * @param w the raw weights
+     * @param sum the sum of the raw weights
+     * @param out destination array
+     * @param at offset within out
+     */
+    static void quantize(final double[] w, final double sum, final int[] out, final int at) {
+        int total = 0;
+        int big = 0;
+        for (int k = 0; k < w.length; k++) {
+            out[at + k] = (int) Math.round(w[k] / sum * ONE);
+            total += out[at + k];
+            if (w[k] > w[big]) big = k;
+        }
+        out[at + big] += ONE - total;
+    }//quantize
+
+    /**
+     * Resize an image.
+     * @param ip the source image
+     * @param width the new width in pixels
+     * @param height the new height in pixels
+     * @param kernel the interpolation kernel
+     * @return the resized image
+     * @throws IllegalArgumentException if width or height is not positive
+     */
+    public static ImgProvider resize(final ImgProvider ip, final int width,
+                                     final int height, final Kernel kernel) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Cannot resize to " + width + "x" + height);
+        }
+        ip.ensureLoaded();
+        Table horiz = new Table(ip.pixwidth, width, kernel);
+        Table vert  = new Table(ip.pixheight, height, kernel);
+        ImgProvider result = new ImgProvider();
+        result.setPlanes(resizePlane(ip.red, horiz, vert),
+                         resizePlane(ip.green, horiz, vert),
+                         resizePlane(ip.blue, horiz, vert),
+                         resizePlane(ip.alpha, horiz, vert));
+        return result;
+    }//resize
+
+    /**
+     * Shrink (or enlarge) an image to fit within a box, keeping its
+     * proportions.  Convenient for thumbnails.
+     * @param ip the source image
+     * @param maxWidth the width of the box
+     * @param maxHeight the height of the box
+     * @param kernel the interpolation kernel
+     * @return the resized image
+     */
+    public static ImgProvider fit(final ImgProvider ip, final int maxWidth,
+                                  final int maxHeight, final Kernel kernel) {
+        ip.ensureLoaded();
+        double scale = Math.min((double) maxWidth / ip.pixwidth,
+                                (double) maxHeight / ip.pixheight);
+        int w = Math.max(1, (int) Math.round(ip.pixwidth * scale));
+        int h = Math.max(1, (int) Math.round(ip.pixheight * scale));
+        return resize(ip, w, h, kernel);
+    }//fit
+
+    /**
+     * Resample one plane with the given axis tables.
+     * @param src the source plane
+     * @param horiz weights for the horizontal pass
+     * @param vert weights for the vertical pass
+     * @return the resampled plane
+     */
+    static short[][] resizePlane(final short[][] src, final Table horiz, final Table vert) {
+        final int srcH = src.length;
+        final int dstW = horiz.index.length / horiz.taps;
+        final int dstH = vert.index.length / vert.taps;
+        final int[][] mid = new int[srcH][dstW];
+        final int hshift = WBITS - IBITS;
+        final int hround = 1 << (hshift - 1);
+        final int htaps = horiz.taps;
+        Parallel.forBands(srcH, GRAIN, (lo, hi) -> {
+            for (int r = lo; r < hi; r++) {
+                short[] in = src[r];
+                int[] out = mid[r];
+                for (int x = 0, t = 0; x < dstW; x++) {
+                    int acc = 0;
+                    for (int k = 0; k < htaps; k++, t++) {
+                        acc += in[horiz.index[t]] * horiz.weight[t];
+                    }
+                    out[x] = (acc + hround) >> hshift;
+                }
+            }
+        });
+        final short[][] dst = new short[dstH][dstW];
+        final int vshift = WBITS + IBITS;
+        final int vround = 1 << (vshift - 1);
+        final int vtaps = vert.taps;
+        Parallel.forBands(dstH, GRAIN, (lo, hi) -> {
+            int[] acc = new int[dstW];
+            for (int y = lo; y < hi; y++) {
+                Arrays.fill(acc, vround);
+                for (int k = 0, t = y * vtaps; k < vtaps; k++, t++) {
+                    int[] in = mid[vert.index[t]];
+                    int w = vert.weight[t];
+                    if (w == 0) continue;
+                    for (int x = 0; x < dstW; x++) acc[x] += in[x] * w;
+                }
+                short[] out = dst[y];
+                for (int x = 0; x < dstW; x++) out[x] = clamp(acc[x] >> vshift);
+            }
+        });
+        return dst;
+    }//resizePlane
+
+    /**
+     * Rotate an image by an arbitrary angle about its center.
+     * The result is enlarged to hold the whole rotated image; corners
+     * that fall outside the source are fully transparent.
+     * @param ip the source image
+     * @param degrees the angle of rotation, clockwise
+     * @param kernel the interpolation kernel
+     * @return the rotated image
+     */
+    public static ImgProvider rotate(final ImgProvider ip, final double degrees,
+                                     final Kernel kernel) {
+        ip.ensureLoaded();
+        final int srcW = ip.pixwidth;
+        final int srcH = ip.pixheight;
+        double rad = Math.toRadians(degrees);
+        final double cos = Math.cos(rad);
+        final double sin = Math.sin(rad);
+        final int dstW = Math.max(1, (int) Math.ceil(Math.abs(srcW * cos) + Math.abs(srcH * sin) - 1e-6));
+        final int dstH = Math.max(1, (int) Math.ceil(Math.abs(srcW * sin) + Math.abs(srcH * cos) - 1e-6));
+        final int radius = (int) Math.ceil(kernel.support);
+        final int taps = 2 * radius;
+        final int[] table = phaseTable(kernel, radius);
+        final short[][][] src = {ip.red, ip.green, ip.blue, ip.alpha};
+        final short[][][] dst = new short[src.length][dstH][dstW];
+        final double scx = srcW / 2.0;
+        final double scy = srcH / 2.0;
+        final double dcx = dstW / 2.0;
+        final double dcy = dstH / 2.0;
+        final int round = 1 << (2 * WBITS - 1);
+        Parallel.forBands(dstH, GRAIN, (lo, hi) -> {
+            int[] xs = new int[taps];
+            int[] ys = new int[taps];
+            for (int y = lo; y < hi; y++) {
+                double dy = y + 0.5 - dcy;
+                for (int x = 0; x < dstW; x++) {
+                    double dx = x + 0.5 - dcx;
+                    // inverse rotation maps the destination pixel back into the source
+                    double sx = cos * dx + sin * dy + scx - 0.5;
+                    double sy = -sin * dx + cos * dy + scy - 0.5;
+                    if (sx < -0.5 || sy < -0.5 || sx >= srcW - 0.5 || sy >= srcH - 0.5) continue;
+                    int ix = (int) Math.floor(sx);
+                    int iy = (int) Math.floor(sy);
+                    int px = (int) ((sx - ix) * PHASES) * taps;
+                    int py = (int) ((sy - iy) * PHASES) * taps;
+                    for (int k = 0; k < taps; k++) {
+                        xs[k] = Math.min(srcW - 1, Math.max(0, ix - radius + 1 + k));
+                        ys[k] = Math.min(srcH - 1, Math.max(0, iy - radius + 1 + k));
+                    }
+                    for (int p = 0; p < src.length; p++) {
+                        long acc = round;
+                        for (int j = 0; j < taps; j++) {
+                            short[] row = src[p][ys[j]];
+                            int racc = 0;
+                            for (int k = 0; k < taps; k++) racc += row[xs[k]] * table[px + k];
+                            acc += (long) racc * table[py + j];
+                        }
+                        dst[p][y][x] = clamp((int) (acc >> (2 * WBITS)));
+                    }
+                }//for x
+            }//for y
+        });
+        ImgProvider result = new ImgProvider();
+        result.setPlanes(dst[0], dst[1], dst[2], dst[3]);
+        return result;
+    }//rotate
+
+    /**
+     * Tabulate fixed-point kernel weights for PHASES sub-pixel offsets.
+     * Row p holds the weights of taps at -radius+1 .. radius relative to
+     * the sample's integer position, for a fractional offset of p/PHASES.
+     * @param kernel the interpolation kernel
+     * @param radius taps on each side of the sample position
+     * @return the table, PHASES rows of 2*radius weights
+     */
+    static int[] phaseTable(final Kernel kernel, final int radius) {
+        int taps = 2 * radius;
+        int[] table = new int[PHASES * taps];
+        double[] w = new double[taps];
+        for (int p = 0; p < PHASES; p++) {
+            double frac = (double) p / PHASES;
+            double sum = 0;
+            for (int k = 0; k < taps; k++) {
+                w[k] = kernel.weight(k - radius + 1 - frac);
+                sum += w[k];
+            }
+            quantize(w, sum, table, p * taps);
+        }
+        return table;
+    }//phaseTable
+
+    /**
+     * Clamp a value to the legal sample range.
+     * @param v the value
+     * @return v limited to 0..255
+     */
+    static short clamp(final int v) {
+        return (short) ((v < 0) ? 0 : (v > MAXVAL) ? MAXVAL : v);
+    }//clamp
+}//Resample
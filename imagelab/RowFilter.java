@@ -0,0 +1,25 @@
+package imagelab;
+
+/**
+ * A RowFilter computes an image a band of rows at a time from the
+ * corresponding input rows and a few rows of context above and below,
+ * so it can run on a {@link RowSource} without the whole image.
+ * @version 1.0
+ */
+public interface RowFilter {
+    /**
+     * How many rows above and below an output row its value depends on.
+     * @return the number of rows of context needed on each side
+     */
+    int getReach();
+
+    /**
+     * Compute a band of output rows.  The input holds the band's own rows
+     * and up to getReach() rows on each side of it, fewer at the top and
+     * bottom of the image.
+     * @param in the input rows, packed ARGB, top to bottom
+     * @param above how many rows of in come before the band's first row
+     * @param out receives the band's rows, each as wide as the input's
+     */
+    void filter(int[][] in, int above, int[][] out);
+}
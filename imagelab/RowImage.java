@@ -0,0 +1,188 @@
+package imagelab;
+
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * RowImage presents a {@link RowSource} to an ImageWriter as a
+ * RenderedImage whose rows are read only when the writer asks for them.
+ * Writers that ask for rows top to bottom (PNG and TIFF) are served
+ * from a window of recent rows, so the image is never whole in memory;
+ * for any other writer, the remaining rows are all read on first request.
+ * @version 1.0
+ */
+final class RowImage implements RenderedImage {
+    /** Height of the strips offered as tiles. */
+    private static final int STRIP = 16;
+
+    /** Where the rows come from. */
+    private final RowSource source;
+    /** Width. */
+    private final int width;
+    /** Height. */
+    private final int height;
+    /** Whether the writer is known to ask for rows in order. */
+    private final boolean streaming;
+    /** The color model offered. */
+    private final DirectColorModel cm;
+    /** Rows held, first to last. */
+    private int[][] held = new int[0][];
+    /** Number of the first row held. */
+    private int heldLo;
+    /** Number of rows held. */
+    private int heldCount;
+
+    /**
+     * Present a source to a writer.
+     * @param src the rows
+     * @param inOrder true if the writer asks for rows top to bottom
+     * @param opaque true to offer RGB, false for ARGB
+     */
+    RowImage(final RowSource src, final boolean inOrder, final boolean opaque) {
+        source = src;
+        width = src.getWidth();
+        height = src.getHeight();
+        streaming = inOrder;
+        cm = opaque ? new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF)
+                    : (DirectColorModel) ColorModel.getRGBdefault();
+    }//constructor
+
+    /**
+     * Make sure rows lo to hi - 1 are held, reading forward as needed and
+     * dropping rows above lo if the writer works in order.
+     * @param lo first row wanted
+     * @param hi one past the last row wanted
+     */
+    private synchronized void hold(final int lo, final int hi) {
+        if (!streaming && heldCount == 0 && height > 0) {
+            need(height);                       // all of it, once
+        }
+        if (lo < heldLo) {
+            throw new IllegalStateException("Row " + lo + " was requested after it was passed");
+        }
+        if (streaming && lo > heldLo) {
+            int drop = Math.min(lo - heldLo, heldCount);
+            System.arraycopy(held, drop, held, 0, heldCount - drop);
+            heldCount -= drop;
+            heldLo += drop;
+            if (heldCount == 0) heldLo = lo;
+        }
+        need(hi - heldLo);
+    }//hold
+
+    /**
+     * Read forward until n rows are held.
+     * @param n the number of rows
+     */
+    private void need(final int n) {
+        if (n > held.length) held = Arrays.copyOf(held, Math.max(n, 2 * held.length));
+        try {
+            while (heldCount < n) {
+                int[] row = new int[width];
+                source.next(row);
+                held[heldCount++] = row;
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }//need
+
+    @Override
+    public Raster getData(final Rectangle rect) {
+        Rectangle r = rect.intersection(new Rectangle(0, 0, width, height));
+        int[] data = new int[Math.max(1, r.width * r.height)];
+        synchronized (this) {
+            hold(r.y, r.y + r.height);
+            for (int y = 0; y < r.height; y++) {
+                System.arraycopy(held[r.y + y - heldLo], r.x, data, y * r.width, r.width);
+            }
+        }
+        SampleModel sm = new SinglePixelPackedSampleModel(DataBufferInt.TYPE_INT,
+            Math.max(1, r.width), Math.max(1, r.height), cm.getMasks());
+        return Raster.createWritableRaster(sm, new DataBufferInt(data, data.length), new Point(r.x, r.y));
+    }//getData
+
+    @Override
+    public Raster getData() {
+        return getData(new Rectangle(0, 0, width, height));
+    }//getData
+
+    @Override
+    public Raster getTile(final int tileX, final int tileY) {
+        return getData(new Rectangle(0, tileY * STRIP, width, Math.min(STRIP, height - tileY * STRIP)));
+    }//getTile
+
+    @Override
+    public WritableRaster copyData(final WritableRaster raster) {
+        WritableRaster out = (raster != null) ? raster
+            : cm.createCompatibleWritableRaster(width, height);
+        out.setRect(getData(out.getBounds()));
+        return out;
+    }//copyData
+
+    @Override
+    public Vector<RenderedImage> getSources() { return null; }
+
+    @Override
+    public Object getProperty(final String name) { return Image.UndefinedProperty; }
+
+    @Override
+    public String[] getPropertyNames() { return null; }
+
+    @Override
+    public ColorModel getColorModel() { return cm; }
+
+    @Override
+    public SampleModel getSampleModel() {
+        return new SinglePixelPackedSampleModel(DataBufferInt.TYPE_INT, width, STRIP, cm.getMasks());
+    }
+
+    @Override
+    public int getWidth() { return width; }
+
+    @Override
+    public int getHeight() { return height; }
+
+    @Override
+    public int getMinX() { return 0; }
+
+    @Override
+    public int getMinY() { return 0; }
+
+    @Override
+    public int getNumXTiles() { return 1; }
+
+    @Override
+    public int getNumYTiles() { return (height + STRIP - 1) / STRIP; }
+
+    @Override
+    public int getMinTileX() { return 0; }
+
+    @Override
+    public int getMinTileY() { return 0; }
+
+    @Override
+    public int getTileWidth() { return width; }
+
+    @Override
+    public int getTileHeight() { return STRIP; }
+
+    @Override
+    public int getTileGridXOffset() { return 0; }
+
+    @Override
+    public int getTileGridYOffset() { return 0; }
+}//RowImage
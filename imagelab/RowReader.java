@@ -0,0 +1,380 @@
+package imagelab;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import org.w3c.dom.Node;
+
+/**
+ * RowReader streams an image file's rows out of an ImageReader as it
+ * decodes them.  The reader runs on its own thread and decodes into a
+ * destination whose storage is a ring of a few rows; as each row is
+ * reported finished it is copied out into a bounded queue, which
+ * {@link #next} takes from.  Decoding thus overlaps whatever consumes
+ * the rows, and memory stays at a few dozen rows.
+ * <p>
+ * This works for readers that finish rows top to bottom: non-interlaced
+ * PNG and non-progressive JPEG.  Other files are decoded whole and
+ * their rows handed out from memory.  An image whose samples would not
+ * fit one Java array is decoded as a few tall regions in turn; ImageIO
+ * decodes each from the top of the file, so that costs a few passes
+ * over the file rather than one.
+ * @version 1.0
+ */
+final class RowReader implements RowSource {
+    /** Rows in the decoding ring; more than any reader finishes at once. */
+    private static final int RING = 64;
+    /** Finished rows waiting to be taken. */
+    private static final int QUEUED = 32;
+    /** Marks the end of the rows, or a failure. */
+    private static final int[] END = new int[0];
+    /** Most data elements of one decoded region; lowered by tests. */
+    static int chunkElements = Integer.MAX_VALUE;
+
+    /** The file, for messages. */
+    private final File file;
+    /** Width. */
+    private final int width;
+    /** Height. */
+    private final int height;
+    /** Finished rows. */
+    private final BlockingQueue<int[]> rows = new ArrayBlockingQueue<int[]>(QUEUED);
+    /** The decoding thread. */
+    private final Thread decoder;
+    /** Why decoding stopped early, if it did. */
+    private volatile Throwable failure;
+    /** Set when the consumer has gone. */
+    private volatile boolean closed;
+    /** Rows taken so far. */
+    private int taken;
+    /** Rows decoded per region. */
+    private final int chunk;
+
+    /**
+     * Start decoding.
+     * @param f the file
+     * @param in the file, opened
+     * @param reader a reader set to read it
+     * @param spec the type to decode into
+     * @param rowsPerRegion how many rows to decode at a time
+     * @throws IOException if the image's size cannot be read
+     */
+    private RowReader(final File f, final ImageInputStream in, final ImageReader reader,
+                      final ImageTypeSpecifier spec, final int rowsPerRegion) throws IOException {
+        file = f;
+        width = reader.getWidth(0);
+        height = reader.getHeight(0);
+        chunk = rowsPerRegion;
+        final ImageReadParam param = reader.getDefaultReadParam();
+        final Updates updates = new Updates();
+        reader.addIIOReadUpdateListener(updates);
+        decoder = new Thread(() -> {
+            try {
+                for (int y = 0; y < height && !closed; y += chunk) {
+                    int n = Math.min(chunk, height - y);
+                    if (n < height) param.setSourceRegion(new Rectangle(0, y, width, n));
+                    param.setDestination(ringImage(spec, width, n));
+                    updates.expected = 0;
+                    reader.read(0, param);
+                }
+            } catch (Throwable t) {
+                if (!closed) failure = t;
+            } finally {
+                reader.dispose();
+                try {
+                    in.close();
+                } catch (IOException ioe) {
+                    // nothing more to read from it anyway
+                }
+                try {
+                    rows.put(END);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "ImageLab row reader");
+        decoder.setDaemon(true);
+        decoder.start();
+    }//constructor
+
+    /**
+     * Open an image file as a source of rows.
+     * @param f the file, in any format ImageIO reads
+     * @return its rows
+     * @throws IOException if the file cannot be read
+     */
+    static RowSource open(final File f) throws IOException {
+        RowSource rows = stream(f);
+        return (rows != null) ? rows : RowStream.of(ImgProvider.decode(f));
+    }//open
+
+    /**
+     * Open an image file as a source of rows decoded as they are taken.
+     * @param f the file, in any format ImageIO reads
+     * @return its rows, or null if its reader does not finish rows in order
+     * @throws IOException if the file cannot be read
+     */
+    static RowReader stream(final File f) throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(f);
+        Iterator<ImageReader> readers = (in == null) ? null : ImageIO.getImageReaders(in);
+        if (readers == null || !readers.hasNext()) {
+            if (in != null) in.close();
+            throw new IOException("Not a readable image: " + f);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(in, false, false);             // regions after the first seek back
+        boolean started = false;
+        try {
+            ImageTypeSpecifier spec = reader.getImageTypes(0).next();
+            int w = reader.getWidth(0);
+            int h = reader.getHeight(0);
+            int rowElements = stride(spec.getSampleModel(w, 1));
+            if (topToBottom(reader) && rowElements <= chunkElements) {
+                int rows = Math.max(1, Math.min(h, chunkElements / rowElements));
+                RowReader rr = new RowReader(f, in, reader, spec, rows);
+                started = true;
+                return rr;
+            }
+        } finally {
+            if (!started) {
+                reader.dispose();
+                in.close();
+            }
+        }
+        return null;
+    }//stream
+
+    /**
+     * Whether a reader finishes the image's rows in order, top to bottom.
+     * @param reader the reader, set to its input
+     * @return true for non-interlaced PNG and non-progressive JPEG
+     * @throws IOException if the metadata cannot be read
+     */
+    private static boolean topToBottom(final ImageReader reader) throws IOException {
+        String format = reader.getFormatName().toLowerCase();
+        IIOMetadata meta = reader.getImageMetadata(0);
+        if (meta == null || meta.getNativeMetadataFormatName() == null) return false;
+        Node root = meta.getAsTree(meta.getNativeMetadataFormatName());
+        if (format.equals("png")) {
+            Node ihdr = find(root, "IHDR");
+            return ihdr != null && "none".equals(attribute(ihdr, "interlaceMethod"));
+        }
+        if (format.equals("jpeg")) {
+            Node sof = find(root, "sof");
+            String process = (sof == null) ? null : attribute(sof, "process");
+            return "0".equals(process) || "1".equals(process);
+        }
+        return false;
+    }//topToBottom
+
+    /**
+     * Find the first metadata node of a given name.
+     * @param node where to start
+     * @param name the node name
+     * @return the node, or null
+     */
+    private static Node find(final Node node, final String name) {
+        if (name.equals(node.getNodeName())) return node;
+        for (Node c = node.getFirstChild(); c != null; c = c.getNextSibling()) {
+            Node found = find(c, name);
+            if (found != null) return found;
+        }
+        return null;
+    }//find
+
+    /**
+     * Read a metadata attribute.
+     * @param node the node
+     * @param name the attribute name
+     * @return its value, or null
+     */
+    private static String attribute(final Node node, final String name) {
+        Node a = (node.getAttributes() == null) ? null : node.getAttributes().getNamedItem(name);
+        return (a == null) ? null : a.getNodeValue();
+    }//attribute
+
+    /**
+     * Data elements per row of a sample model.
+     * @param sm the sample model
+     * @return its scanline stride
+     */
+    private static int stride(final SampleModel sm) {
+        if (sm instanceof ComponentSampleModel) return ((ComponentSampleModel) sm).getScanlineStride();
+        if (sm instanceof MultiPixelPackedSampleModel) {
+            return ((MultiPixelPackedSampleModel) sm).getScanlineStride();
+        }
+        if (sm instanceof SinglePixelPackedSampleModel) {
+            return ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+        }
+        return sm.getNumDataElements() * sm.getWidth();
+    }//stride
+
+    /**
+     * A destination image the size of the region decoded whose storage
+     * holds only the last RING rows written.
+     * @param spec the type the reader decodes into
+     * @param w the width
+     * @param h the height
+     * @return the image
+     */
+    private static BufferedImage ringImage(final ImageTypeSpecifier spec, final int w, final int h) {
+        SampleModel sm = spec.getSampleModel(w, h);
+        final int ringSize = stride(sm) * RING;     // not "size": DataBuffer has a field of that name
+        final int[] ring = new int[ringSize];
+        DataBuffer db = new DataBuffer(sm.getDataType(), stride(sm) * h) {
+            @Override
+            public int getElem(final int bank, final int i) {
+                return ring[i % ringSize];
+            }
+
+            @Override
+            public void setElem(final int bank, final int i, final int val) {
+                ring[i % ringSize] = val;
+            }
+        };
+        WritableRaster raster = Raster.createWritableRaster(sm, db, null);
+        ColorModel cm = spec.getColorModel();
+        return new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+    }//ringImage
+
+    /** Copies each finished row out of the ring and queues it. */
+    private final class Updates implements IIOReadUpdateListener {
+        /** The next row of the region expected. */
+        int expected;
+
+        @Override
+        public void imageUpdate(final ImageReader source, final BufferedImage img,
+                                final int minX, final int minY, final int w, final int h,
+                                final int periodX, final int periodY, final int[] bands) {
+            if (closed) {
+                source.abort();
+                return;
+            }
+            if (minX != 0 || w != width || periodX != 1 || periodY != 1 || minY > expected) {
+                throw new IllegalStateException("Rows of " + file + " are not decoded in order");
+            }
+            for (int y = Math.max(minY, expected); y < minY + h; y++) {       // region rows
+                int[] row = new int[width];
+                copyRow(img, y, row);
+                try {
+                    rows.put(row);
+                } catch (InterruptedException ie) {
+                    source.abort();
+                    return;
+                }
+            }
+            expected = Math.max(expected, minY + h);
+        }
+
+        @Override
+        public void passStarted(final ImageReader source, final BufferedImage img, final int pass,
+                                final int minPass, final int maxPass, final int minX, final int minY,
+                                final int periodX, final int periodY, final int[] bands) { }
+
+        @Override
+        public void passComplete(final ImageReader source, final BufferedImage img) { }
+
+        @Override
+        public void thumbnailPassStarted(final ImageReader source, final BufferedImage thumb,
+                                         final int pass, final int minPass, final int maxPass,
+                                         final int minX, final int minY, final int periodX,
+                                         final int periodY, final int[] bands) { }
+
+        @Override
+        public void thumbnailUpdate(final ImageReader source, final BufferedImage thumb,
+                                    final int minX, final int minY, final int w, final int h,
+                                    final int periodX, final int periodY, final int[] bands) { }
+
+        @Override
+        public void thumbnailPassComplete(final ImageReader source, final BufferedImage thumb) { }
+    }//Updates
+
+    /**
+     * Convert one row of the ring to packed ARGB, directly for 8-bit
+     * interleaved sRGB and through the color model otherwise.
+     * @param img the ring image
+     * @param y the row
+     * @param row receives the pixels
+     */
+    private void copyRow(final BufferedImage img, final int y, final int[] row) {
+        SampleModel sm = img.getSampleModel();
+        ColorModel cm = img.getColorModel();
+        int bands = sm.getNumBands();
+        if (sm instanceof PixelInterleavedSampleModel && cm instanceof ComponentColorModel
+                && sm.getDataType() == DataBuffer.TYPE_BYTE && cm.getColorSpace().isCS_sRGB()
+                && !cm.isAlphaPremultiplied() && (bands == 3 || bands == 4)) {
+            PixelInterleavedSampleModel pism = (PixelInterleavedSampleModel) sm;
+            int[] off = pism.getBandOffsets();
+            int ps = pism.getPixelStride();
+            DataBuffer db = img.getRaster().getDataBuffer();
+            int at = y * pism.getScanlineStride();
+            for (int x = 0; x < width; x++, at += ps) {
+                int a = (bands == 4) ? db.getElem(at + off[3]) : 255;
+                row[x] = (a << 24) | (db.getElem(at + off[0]) << 16)
+                       | (db.getElem(at + off[1]) << 8) | db.getElem(at + off[2]);
+            }
+        } else {
+            img.getRGB(0, y, width, 1, row, 0, width);
+        }
+    }//copyRow
+
+    @Override
+    public int getWidth() { return width; }
+
+    @Override
+    public int getHeight() { return height; }
+
+    @Override
+    public void next(final int[] row) throws IOException {
+        if (taken >= height) throw new IOException("No rows left in " + file);
+        int[] r;
+        try {
+            r = rows.take();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted reading " + file, ie);
+        }
+        if (r == END) {
+            rows.offer(END);                    // keep answering the same way
+            Throwable t = failure;
+            throw (t instanceof IOException) ? (IOException) t
+                : new IOException("Could not decode " + file, t);
+        }
+        System.arraycopy(r, 0, row, 0, width);
+        taken++;
+    }//next
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            while (decoder.isAlive()) {
+                rows.clear();                   // unblock the decoder so it sees closed
+                decoder.join(10);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }//close
+}//RowReader
@@ -0,0 +1,31 @@
+package imagelab;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A RowSource delivers an image one row at a time, top to bottom, as
+ * packed ARGB pixels, so the image need never be in memory all at once.
+ * See {@link RowStream} for sources, filtering and sinks.
+ * @version 1.0
+ */
+public interface RowSource extends Closeable {
+    /**
+     * Retrieve the width.
+     * @return the width of every row
+     */
+    int getWidth();
+
+    /**
+     * Retrieve the height.
+     * @return the number of rows
+     */
+    int getHeight();
+
+    /**
+     * Deliver the next row.
+     * @param row receives getWidth() packed ARGB pixels
+     * @throws IOException if the row cannot be read, or all have been
+     */
+    void next(int[] row) throws IOException;
+}
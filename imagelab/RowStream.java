@@ -0,0 +1,356 @@
+package imagelab;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.function.UnaryOperator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * RowStream runs images through filters as streams of rows, from a file
+ * to a file, holding only the rows each stage needs at once.  Memory is
+ * proportional to the width times the filters' reach rather than to the
+ * whole image, so many large images can be processed at the same time.
+ * <pre>
+ *   try (RowSource in = RowStream.read(new File("scan.jpg"))) {
+ *       RowStream.write(RowStream.filter(in, RowStream.engine(ip -> RankFilter.median(ip, 2), 2)),
+ *                       new File("clean.png"));
+ *   }
+ * </pre>
+ * Sources are image files (streamed while decoding where the format
+ * allows, see {@link RowReader}), ImageLab raw files (mapped) and
+ * ImgProviders.  Sinks are ImageWriters (streamed for PNG and TIFF),
+ * raw files and ImgProviders.
+ * @version 1.0
+ */
+public final class RowStream {
+    /** Output rows a filter stage computes at a time. */
+    static final int BAND = 64;
+
+    /** Utility class; not instantiated. */
+    private RowStream() { }
+
+    /**
+     * Open an image file as a stream of rows.
+     * @param file the file: an ImageLab raw file or any format ImageIO reads
+     * @return its rows
+     * @throws IOException if it cannot be read
+     */
+    public static RowSource read(final File file) throws IOException {
+        if (RawImage.isRaw(file)) return new RawRows(file);
+        return RowReader.open(file);
+    }//read
+
+    /**
+     * Stream the rows of an image in memory.
+     * @param ip the image
+     * @return its rows
+     */
+    public static RowSource of(final ImgProvider ip) {
+        ip.ensureLoaded();
+        final int[] pix = ip.pix;
+        final int w = ip.pixwidth;
+        final int h = ip.pixheight;
+        return new RowSource() {
+            private int y;
+
+            @Override
+            public int getWidth() { return w; }
+
+            @Override
+            public int getHeight() { return h; }
+
+            @Override
+            public void next(final int[] row) throws IOException {
+                if (y >= h) throw new IOException("No rows left");
+                System.arraycopy(pix, y++ * w, row, 0, w);
+            }
+
+            @Override
+            public void close() { }
+        };
+    }//of
+
+    /**
+     * Stream rows through a filter.
+     * @param source the input rows
+     * @param f the filter
+     * @return the filtered rows; closing them closes the source
+     */
+    public static RowSource filter(final RowSource source, final RowFilter f) {
+        return new FilterRows(source, f);
+    }//filter
+
+    /**
+     * Use an ImageLab engine as a row filter.  It is given each band of
+     * rows with reach rows of context as a small image and must return
+     * an image of the same size.  If its result at a pixel depends only
+     * on pixels within reach rows, the output is the same as applying it
+     * to the whole image.
+     * @param op the engine, for example ip -> RankFilter.median(ip, 2)
+     * @param reach how many rows above and below it looks
+     * @return the row filter
+     */
+    public static RowFilter engine(final UnaryOperator<ImgProvider> op, final int reach) {
+        return new RowFilter() {
+            @Override
+            public int getReach() { return reach; }
+
+            @Override
+            public void filter(final int[][] in, final int above, final int[][] out) {
+                int w = in[0].length;
+                int[] pix = new int[in.length * w];
+                for (int y = 0; y < in.length; y++) System.arraycopy(in[y], 0, pix, y * w, w);
+                ImgProvider ip = new ImgProvider();
+                ip.setPixels(pix, w, in.length);
+                ImgProvider r = op.apply(ip);
+                r.ensureLoaded();
+                if (r.pixwidth != w || r.pixheight != in.length) {
+                    throw new IllegalArgumentException("A row filter engine must keep the size of the image");
+                }
+                for (int y = 0; y < out.length; y++) System.arraycopy(r.pix, (above + y) * w, out[y], 0, w);
+            }
+        };
+    }//engine
+
+    /**
+     * Write a stream of rows to a file: an ImageLab raw file if its name
+     * ends in .ilr, otherwise with ImageIO in the format its name asks for
+     * (PNG if none).  PNG, TIFF and raw files are written as the rows
+     * arrive; other formats need the whole image first.
+     * @param source the rows; read to the end but not closed
+     * @param file the file to write
+     * @throws IOException if reading or writing fails
+     */
+    public static void write(final RowSource source, final File file) throws IOException {
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(RawImage.EXTENSION)) {
+            writeRaw(source, file);
+            return;
+        }
+        int dot = name.lastIndexOf('.');
+        String format = (dot < 0) ? "png" : name.substring(dot + 1);
+        boolean opaque = format.equals("jpg") || format.equals("jpeg") || format.equals("bmp");
+        boolean inOrder = format.equals("png") || format.equals("tif") || format.equals("tiff");
+        RowImage img = new RowImage(source, inOrder, opaque);
+        try {
+            if (!ImageIO.write(img, format, file)) {
+                throw new IOException("No ImageIO writer for " + format);
+            }
+        } catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+    }//write
+
+    /**
+     * Write a stream of rows in ImageLab's raw format, each row going
+     * straight into the mapped planes.
+     * @param source the rows
+     * @param file the file to write
+     * @throws IOException if reading or writing fails
+     */
+    static void writeRaw(final RowSource source, final File file) throws IOException {
+        int w = source.getWidth();
+        int h = source.getHeight();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel ch = raf.getChannel()) {
+            raf.setLength(0);
+            raf.setLength(RawImage.planeOffset(RawImage.PLANES - 1, w, h) + (long) w * h);
+            ByteBuffer head = RawImage.header(w, h);
+            while (head.hasRemaining()) ch.write(head, head.position());
+            MappedByteBuffer[] planes = new MappedByteBuffer[RawImage.PLANES];
+            try {
+                for (int p = 0; p < RawImage.PLANES; p++) {
+                    planes[p] = ch.map(FileChannel.MapMode.READ_WRITE, RawImage.planeOffset(p, w, h), (long) w * h);
+                }
+                int[] row = new int[w];
+                byte[] bytes = new byte[w];
+                for (int y = 0; y < h; y++) {
+                    source.next(row);
+                    for (int p = 0; p < RawImage.PLANES; p++) {
+                        int shift = (p == 3) ? 24 : 16 - 8 * p;      // red, green, blue, alpha
+                        for (int x = 0; x < w; x++) bytes[x] = (byte) (row[x] >> shift);
+                        planes[p].put(bytes);
+                    }
+                }
+            } finally {
+                for (MappedByteBuffer m : planes) OffHeapPixels.free(m);
+            }
+        }
+    }//writeRaw
+
+    /**
+     * Gather a stream of rows into an image in memory.
+     * @param source the rows; read to the end but not closed
+     * @return the image
+     * @throws IOException if reading fails
+     */
+    public static ImgProvider collect(final RowSource source) throws IOException {
+        int w = source.getWidth();
+        int h = source.getHeight();
+        int[] pix = new int[w * h];
+        int[] row = new int[w];
+        for (int y = 0; y < h; y++) {
+            source.next(row);
+            System.arraycopy(row, 0, pix, y * w, w);
+        }
+        ImgProvider ip = new ImgProvider();
+        ip.setPixels(pix, w, h);
+        return ip;
+    }//collect
+
+    /**
+     * A filter stage: keeps a window of input rows and computes BAND
+     * output rows at a time.
+     */
+    private static final class FilterRows implements RowSource {
+        /** The input. */
+        private final RowSource source;
+        /** The filter. */
+        private final RowFilter filter;
+        /** Width. */
+        private final int w;
+        /** Height. */
+        private final int h;
+        /** Rows of context on each side. */
+        private final int reach;
+        /** Input rows held, first to last. */
+        private final int[][] window;
+        /** Number of the first input row held. */
+        private int windowLo;
+        /** Number of input rows held. */
+        private int windowCount;
+        /** Output rows computed. */
+        private final int[][] band;
+        /** Number of the first output row computed. */
+        private int bandLo;
+        /** Number of output rows computed. */
+        private int bandCount;
+        /** Output rows handed out from the band. */
+        private int bandPos;
+
+        /**
+         * Create a stage.
+         * @param src the input
+         * @param f the filter
+         */
+        FilterRows(final RowSource src, final RowFilter f) {
+            source = src;
+            filter = f;
+            w = src.getWidth();
+            h = src.getHeight();
+            reach = Math.max(0, f.getReach());
+            window = new int[Math.min(h, BAND + 2 * reach)][w];
+            band = new int[Math.min(h, BAND)][w];
+        }//constructor
+
+        @Override
+        public int getWidth() { return w; }
+
+        @Override
+        public int getHeight() { return h; }
+
+        @Override
+        public void next(final int[] row) throws IOException {
+            if (bandPos == bandCount) compute();
+            System.arraycopy(band[bandPos++], 0, row, 0, w);
+        }//next
+
+        /**
+         * Compute the next band: slide the window down, reading the input
+         * rows it lacks, and run the filter.
+         * @throws IOException if the input fails or has no rows left
+         */
+        private void compute() throws IOException {
+            int y0 = bandLo + bandCount;
+            if (y0 >= h) throw new IOException("No rows left");
+            int n = Math.min(band.length, h - y0);
+            int lo = Math.max(0, y0 - reach);
+            int hi = Math.min(h, y0 + n + reach);
+            int drop = Math.min(lo - windowLo, windowCount);
+            if (drop > 0) {
+                int[][] spare = Arrays.copyOf(window, drop);                 // recycled below
+                System.arraycopy(window, drop, window, 0, windowCount - drop);
+                System.arraycopy(spare, 0, window, windowCount - drop, drop);
+                windowCount -= drop;
+            }
+            windowLo = lo;
+            while (windowLo + windowCount < hi) source.next(window[windowCount++]);
+            int[][] out = (n == band.length) ? band : Arrays.copyOf(band, n);
+            filter.filter(Arrays.copyOf(window, windowCount), y0 - lo, out);
+            bandLo = y0;
+            bandCount = n;
+            bandPos = 0;
+        }//compute
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }//close
+    }//FilterRows
+
+    /** Rows of an ImageLab raw file, read from its mapped planes. */
+    private static final class RawRows implements RowSource {
+        /** Width. */
+        private final int w;
+        /** Height. */
+        private final int h;
+        /** The planes: red, green, blue and alpha; null once closed. */
+        private ByteBuffer[] planes = new ByteBuffer[RawImage.PLANES];
+        /** One row of each plane. */
+        private final byte[][] bytes;
+        /** Rows read. */
+        private int y;
+
+        /**
+         * Map a raw file.
+         * @param file the file
+         * @throws IOException if it cannot be read or is not a raw image
+         */
+        RawRows(final File file) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                 FileChannel ch = raf.getChannel()) {
+                ByteBuffer head = ByteBuffer.allocate(RawImage.HEADER);
+                while (head.hasRemaining() && ch.read(head, head.position()) > 0) { }
+                RawImage.checkHeader(head, file, ch.size());
+                w = head.getInt(12);
+                h = head.getInt(16);
+                for (int p = 0; p < RawImage.PLANES; p++) {
+                    planes[p] = ch.map(FileChannel.MapMode.READ_ONLY, head.getLong(32 + 8 * p), (long) w * h);
+                }
+            }
+            bytes = new byte[RawImage.PLANES][w];
+        }//constructor
+
+        @Override
+        public int getWidth() { return w; }
+
+        @Override
+        public int getHeight() { return h; }
+
+        @Override
+        public void next(final int[] row) throws IOException {
+            if (y >= h || planes == null) throw new IOException("No rows left");
+            for (int p = 0; p < RawImage.PLANES; p++) planes[p].get(bytes[p]);
+            byte[] r = bytes[0], g = bytes[1], b = bytes[2], a = bytes[3];
+            for (int x = 0; x < w; x++) {
+                row[x] = (a[x] & 255) << 24 | (r[x] & 255) << 16 | (g[x] & 255) << 8 | (b[x] & 255);
+            }
+            y++;
+        }//next
+
+        @Override
+        public void close() {
+            if (planes == null) return;
+            for (ByteBuffer m : planes) OffHeapPixels.free(m);     //so the file can be replaced
+            planes = null;
+        }//close
+    }//RawRows
+}//RowStream
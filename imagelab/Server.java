@@ -0,0 +1,524 @@
+package imagelab;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Server offers ImageLab's filters over HTTP, so other programs can use
+ * them without starting a JVM per image.
+ * <pre>
+ *   java Run --serve 8080 [--concurrency N] [--memory MB]
+ *
+ *   curl --data-binary @in.jpg "http://localhost:8080/filter?chain=Median:2,Threshold:128&amp;format=png" -o out.png
+ *   curl http://localhost:8080/metrics
+ * </pre>
+ * POST /filter takes an image as the request body and a {@link FilterChain}
+ * and output format (png by default) as query parameters, and streams the
+ * encoded result back.  GET /metrics reports counters and latencies as
+ * plain text, and GET /health answers "ok".
+ * <p>
+ * Two limits keep the server responsive under load.  Each request first
+ * reserves memory against a budget (default: half the heap): for the
+ * upload, by its Content-Length, before reading it, and then for the
+ * image, estimated from the dimensions in the file's header.  Requests
+ * that would never fit get 413 and those that do not fit yet wait
+ * briefly, then get 503.  Only then does a request wait briefly for one
+ * of a given number of turns to decode, filter and encode (default: one
+ * per processor), and is turned away with 503 if none comes, so slow
+ * uploads never hold a turn.  Responses of
+ * 503 carry Retry-After.  Requests run on a fixed pool of threads large
+ * enough to answer metrics and refusals while the limit is reached.
+ * @version 1.0
+ */
+public final class Server {
+    /** How long a request waits for a turn or for memory, in milliseconds. */
+    private static final long WAIT_MS = Long.getLong("imagelab.serve.wait.ms", 2000);
+    /** The largest upload accepted, in bytes. */
+    private static final long MAX_UPLOAD = Long.getLong("imagelab.serve.upload.mb", 256) << 20;
+    /** Bytes reserved per pixel: the input, the output and a filter's working copy. */
+    private static final long BYTES_PER_PIXEL = 3L * FilterCache.BYTES_PER_PIXEL;
+    /** Latencies kept for percentiles. */
+    private static final int LATENCIES = 1024;
+
+    /** The HTTP server. */
+    private final HttpServer http;
+    /** The threads requests run on. */
+    private final ExecutorService pool;
+    /** Turns to filter. */
+    private final Semaphore turns;
+    /** Most requests filtering at once. */
+    private final int concurrency;
+    /** Memory budget in bytes. */
+    private final long budget;
+    /** Memory reserved by requests in progress; guarded by this. */
+    private long reserved;
+    /** Requests received. */
+    private final AtomicLong requests = new AtomicLong();
+    /** Requests answered with an image. */
+    private final AtomicLong served = new AtomicLong();
+    /** Requests refused for want of a turn. */
+    private final AtomicLong busy = new AtomicLong();
+    /** Requests refused for want of memory. */
+    private final AtomicLong noMemory = new AtomicLong();
+    /** Requests refused as malformed. */
+    private final AtomicLong bad = new AtomicLong();
+    /** Requests that failed while filtering or writing. */
+    private final AtomicLong failed = new AtomicLong();
+    /** Latencies of served requests in nanoseconds, most recent last; guarded by itself. */
+    private final long[] latencies = new long[LATENCIES];
+    /** Latencies recorded, ever. */
+    private long recorded;
+
+    /**
+     * Create a server; {@link #start} starts it.
+     * @param port the port to listen on
+     * @param maxConcurrent most requests filtering at once
+     * @param memoryBytes memory budget for images in progress
+     * @throws IOException if the port cannot be bound
+     */
+    public Server(final int port, final int maxConcurrent, final long memoryBytes) throws IOException {
+        concurrency = Math.max(1, maxConcurrent);
+        budget = memoryBytes;
+        turns = new Semaphore(concurrency, true);
+        http = HttpServer.create(new InetSocketAddress(port), 0);
+        pool = Executors.newFixedThreadPool(2 * concurrency + 2, r -> {
+            Thread t = new Thread(r, "ImageLab server");
+            t.setDaemon(true);
+            return t;
+        });
+        http.setExecutor(pool);
+        http.createContext("/filter", this::filter);
+        http.createContext("/metrics", ex -> {
+            requests.incrementAndGet();
+            reply(ex, 200, "text/plain", metrics());
+        });
+        http.createContext("/health", ex -> reply(ex, 200, "text/plain", "ok\n"));
+    }//constructor
+
+    /** Start answering requests. */
+    public void start() {
+        ImgProvider.setHeadless(true);
+        http.start();
+    }//start
+
+    /**
+     * Stop answering requests.
+     * @param delaySeconds how long to let requests in progress finish
+     */
+    public void stop(final int delaySeconds) {
+        http.stop(delaySeconds);
+        pool.shutdownNow();
+    }//stop
+
+    /**
+     * Retrieve the port the server listens on.
+     * @return the port
+     */
+    public int getPort() {
+        return http.getAddress().getPort();
+    }//getPort
+
+    /**
+     * Handle POST /filter.
+     * @param ex the exchange
+     * @throws IOException if the reply cannot be sent
+     */
+    private void filter(final HttpExchange ex) throws IOException {
+        long start = System.nanoTime();
+        requests.incrementAndGet();
+        try {
+            if (!ex.getRequestMethod().equals("POST")) {
+                ex.getResponseHeaders().set("Allow", "POST");
+                reply(ex, 405, "text/plain", "POST an image\n");
+                return;
+            }
+            Map<String, String> q = query(ex.getRequestURI().getRawQuery());
+            FilterChain chain;
+            String format = q.getOrDefault("format", "png").toLowerCase();
+            try {
+                chain = FilterChain.parse(q.getOrDefault("chain", ""));
+            } catch (IllegalArgumentException iae) {
+                bad.incrementAndGet();
+                reply(ex, 400, "text/plain", iae.getMessage() + "\n");
+                return;
+            }
+            if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+                bad.incrementAndGet();
+                reply(ex, 400, "text/plain", "No writer for format " + format + "\n");
+                return;
+            }
+            run(ex, chain, format, start);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            reply(ex, 503, "text/plain", "Shutting down\n");
+        } finally {
+            ex.close();
+        }
+    }//filter
+
+    /**
+     * Admit, read, filter and answer one request.  The upload is admitted
+     * against the memory budget by its declared length before it is read,
+     * and the image's pixels once its header is known; a turn is taken only
+     * to decode, filter and encode, so slow uploads hold memory but never
+     * keep others from filtering.
+     * @param ex the exchange
+     * @param chain the filters
+     * @param format the output format
+     * @param start when the request arrived
+     * @throws IOException if the reply cannot be sent
+     * @throws InterruptedException if stopped while waiting for memory or a turn
+     */
+    private void run(final HttpExchange ex, final FilterChain chain, final String format,
+                     final long start) throws IOException, InterruptedException {
+        long length = contentLength(ex);
+        if (length < 0) {
+            bad.incrementAndGet();
+            reply(ex, 411, "text/plain", "Send the image with a Content-Length\n");
+            return;
+        }
+        if (length > MAX_UPLOAD) {
+            noMemory.incrementAndGet();
+            reply(ex, 413, "text/plain", "Uploads are limited to " + (MAX_UPLOAD >> 20) + " MB\n");
+            return;
+        }
+        if (length > budget) {
+            noMemory.incrementAndGet();
+            reply(ex, 413, "text/plain", "Image too large for this server\n");
+            return;
+        }
+        if (!reserve(length)) {
+            noMemory.incrementAndGet();
+            retryLater(ex, "Not enough memory free\n");
+            return;
+        }
+        long held = length;
+        try {
+            byte[] body = readBody(ex.getRequestBody(), (int) length);
+            if (body == null) {
+                bad.incrementAndGet();
+                reply(ex, 400, "text/plain", "Upload ended early\n");
+                return;
+            }
+            long pixels = pixels(body);
+            if (pixels < 0) {
+                bad.incrementAndGet();
+                reply(ex, 400, "text/plain", "Not a readable image\n");
+                return;
+            }
+            long need = pixels * BYTES_PER_PIXEL;
+            if (need + held > budget) {
+                noMemory.incrementAndGet();
+                reply(ex, 413, "text/plain", "Image too large for this server\n");
+                return;
+            }
+            if (!reserve(need)) {
+                noMemory.incrementAndGet();
+                retryLater(ex, "Not enough memory free\n");
+                return;
+            }
+            held += need;
+            if (!turns.tryAcquire(WAIT_MS, TimeUnit.MILLISECONDS)) {
+                busy.incrementAndGet();
+                retryLater(ex, "Too many requests in progress\n");
+                return;
+            }
+            try {
+                answer(ex, body, chain, format, start);
+            } finally {
+                turns.release();
+            }
+        } finally {
+            release(held);
+        }
+    }//run
+
+    /**
+     * Decode, filter and answer one admitted request, holding a turn.
+     * @param ex the exchange
+     * @param body the encoded image
+     * @param chain the filters
+     * @param format the output format
+     * @param start when the request arrived
+     * @throws IOException if the reply cannot be sent
+     */
+    private void answer(final HttpExchange ex, final byte[] body, final FilterChain chain,
+                        final String format, final long start) throws IOException {
+        ImgProvider ip;
+        try {
+            ip = ImgProvider.read(new ByteArrayInputStream(body));
+        } catch (IOException ioe) {
+            bad.incrementAndGet();
+            reply(ex, 400, "text/plain", "Cannot decode image: " + ioe.getMessage() + "\n");
+            return;
+        }
+        ImgProvider result;
+        try {
+            result = chain.apply(ip);
+        } catch (IllegalArgumentException iae) {
+            bad.incrementAndGet();
+            reply(ex, 400, "text/plain", iae.getMessage() + "\n");
+            return;
+        } catch (RuntimeException re) {
+            failed.incrementAndGet();
+            reply(ex, 500, "text/plain", "Filter failed: " + re + "\n");
+            return;
+        }
+        ex.getResponseHeaders().set("Content-Type", "image/" + format);
+        ex.sendResponseHeaders(200, 0);                 // chunked: streamed as encoded
+        try (OutputStream out = ex.getResponseBody()) {
+            result.write(out, format);
+        } catch (IOException ioe) {
+            failed.incrementAndGet();
+            throw ioe;
+        }
+        served.incrementAndGet();
+        record(System.nanoTime() - start);
+    }//answer
+
+    /**
+     * Find the declared length of a request body.
+     * @param ex the exchange
+     * @return the length, or -1 if it is not given or not a number
+     */
+    private static long contentLength(final HttpExchange ex) {
+        String len = ex.getRequestHeaders().getFirst("Content-Length");
+        try {
+            return (len == null) ? -1 : Long.parseLong(len.trim());
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }//contentLength
+
+    /**
+     * Read a request body of a known length.
+     * @param in the body
+     * @param length its declared length
+     * @return its bytes, or null if it ends early
+     * @throws IOException if it cannot be read
+     */
+    private static byte[] readBody(final InputStream in, final int length) throws IOException {
+        byte[] body = new byte[length];
+        int got = 0;
+        while (got < length) {
+            int n = in.read(body, got, length - got);
+            if (n < 0) return null;
+            got += n;
+        }
+        return body;
+    }//readBody
+
+    /**
+     * Read the size of an encoded image from its header.
+     * @param encoded the image file's bytes
+     * @return its number of pixels, or -1 if no reader recognizes it
+     */
+    private static long pixels(final byte[] encoded) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(encoded))) {
+            Iterator<ImageReader> readers = (in == null) ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) return -1;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return (long) reader.getWidth(0) * reader.getHeight(0);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }//pixels
+
+    /**
+     * Reserve memory from the budget, waiting a little for it to be free.
+     * @param bytes the memory wanted
+     * @return true if it was reserved
+     * @throws InterruptedException if stopped while waiting
+     */
+    private synchronized boolean reserve(final long bytes) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MS);
+        while (reserved + bytes > budget) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) return false;
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        reserved += bytes;
+        return true;
+    }//reserve
+
+    /**
+     * Give back reserved memory.
+     * @param bytes the memory
+     */
+    private synchronized void release(final long bytes) {
+        reserved -= bytes;
+        notifyAll();
+    }//release
+
+    /**
+     * Note how long a request took.
+     * @param nanos its latency
+     */
+    private void record(final long nanos) {
+        synchronized (latencies) {
+            latencies[(int) (recorded++ % LATENCIES)] = nanos;
+        }
+    }//record
+
+    /**
+     * The counters and latencies, one "name value" pair per line.
+     * @return the metrics
+     */
+    String metrics() {
+        long[] recent;
+        synchronized (latencies) {
+            recent = Arrays.copyOf(latencies, (int) Math.min(recorded, LATENCIES));
+        }
+        Arrays.sort(recent);
+        long mem;
+        synchronized (this) {
+            mem = reserved;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("requests ").append(requests.get()).append('\n');
+        sb.append("served ").append(served.get()).append('\n');
+        sb.append("rejected_busy ").append(busy.get()).append('\n');
+        sb.append("rejected_memory ").append(noMemory.get()).append('\n');
+        sb.append("bad_requests ").append(bad.get()).append('\n');
+        sb.append("failed ").append(failed.get()).append('\n');
+        sb.append("in_progress ").append(concurrency - turns.availablePermits()).append('\n');
+        sb.append("concurrency_limit ").append(concurrency).append('\n');
+        sb.append("memory_reserved_bytes ").append(mem).append('\n');
+        sb.append("memory_budget_bytes ").append(budget).append('\n');
+        sb.append("latency_samples ").append(recent.length).append('\n');
+        for (int p : new int[] {50, 90, 99}) {
+            sb.append("latency_ms_p").append(p).append(' ').append(millis(percentile(recent, p))).append('\n');
+        }
+        sb.append("latency_ms_max ").append(millis(recent.length == 0 ? 0 : recent[recent.length - 1])).append('\n');
+        return sb.toString();
+    }//metrics
+
+    /**
+     * Pick a percentile from sorted values.
+     * @param sorted the values, smallest first
+     * @param p the percentile, 0 to 100
+     * @return the value, or 0 if there are none
+     */
+    private static long percentile(final long[] sorted, final int p) {
+        if (sorted.length == 0) return 0;
+        int i = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }//percentile
+
+    /**
+     * Format nanoseconds as milliseconds.
+     * @param nanos the time
+     * @return the milliseconds, to one decimal
+     */
+    private static String millis(final long nanos) {
+        return String.format("%.1f", nanos / 1e6);
+    }//millis
+
+    /**
+     * Split a raw query string into decoded parameters.
+     * @param raw the query, or null
+     * @return the parameters; the last of repeated names wins
+     */
+    private static Map<String, String> query(final String raw) {
+        Map<String, String> q = new HashMap<String, String>();
+        if (raw == null) return q;
+        try {
+            for (String pair : raw.split("&")) {
+                if (pair.isEmpty()) continue;
+                int eq = pair.indexOf('=');
+                String k = (eq < 0) ? pair : pair.substring(0, eq);
+                String v = (eq < 0) ? "" : pair.substring(eq + 1);
+                q.put(URLDecoder.decode(k, "UTF-8"), URLDecoder.decode(v, "UTF-8"));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // malformed escapes: keep what was read
+        }
+        return q;
+    }//query
+
+    /**
+     * Refuse a request for now.
+     * @param ex the exchange
+     * @param why the reason
+     * @throws IOException if the reply cannot be sent
+     */
+    private static void retryLater(final HttpExchange ex, final String why) throws IOException {
+        ex.getResponseHeaders().set("Retry-After", "1");
+        reply(ex, 503, "text/plain", why);
+    }//retryLater
+
+    /**
+     * Send a whole reply and close the exchange.
+     * @param ex the exchange
+     * @param status the status code
+     * @param type the content type
+     * @param text the body
+     * @throws IOException if it cannot be sent
+     */
+    private static void reply(final HttpExchange ex, final int status, final String type,
+                              final String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", type + "; charset=utf-8");
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }//reply
+
+    /**
+     * Run a server until the process is stopped.
+     * <pre>
+     * java Run --serve PORT [--concurrency N] [--memory MB]
+     * </pre>
+     * @param args the port and options
+     * @throws IOException if the port cannot be bound
+     */
+    public static void main(final String[] args) throws IOException {
+        int port = -1;
+        int concurrency = Parallel.THREADS;
+        long memory = Runtime.getRuntime().maxMemory() / 2;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--concurrency") && i + 1 < args.length) {
+                concurrency = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--memory") && i + 1 < args.length) {
+                memory = Long.parseLong(args[++i]) << 20;
+            } else if (args[i].equals("--serve") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (port < 0) {
+                port = Integer.parseInt(args[i]);
+            }
+        }
+        if (port < 0) {
+            System.err.println("usage: java Run --serve PORT [--concurrency N] [--memory MB]");
+            System.exit(2);
+        }
+        Server s = new Server(port, concurrency, memory);
+        s.start();
+        System.out.println("ImageLab serving on port " + s.getPort() + ", " + concurrency
+            + " at a time, " + (memory >> 20) + " MB for images");
+    }//main
+}//Server
@@ -0,0 +1,600 @@
+package imagelab;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * TiledImage holds an image too large for memory in a backing file of
+ * square tiles, and keeps only recently used tiles in memory.  Tiles are
+ * read on demand into an LRU cache with a memory cap; tiles that have
+ * been changed are written back when they leave the cache, on
+ * {@link #flush} and on {@link #close}.
+ * <p>
+ * Regions come out and go back in as ImgProviders, so ImageLab's engines
+ * work on a tiled image piece by piece.  {@link #map} applies a
+ * tile-safe operation, one whose result at each pixel depends only on
+ * the pixels within a fixed margin around it, to every tile in
+ * parallel, handing it each tile with that margin around it.
+ * <p>
+ * The backing file starts with a 64-byte header:
+ * <pre>
+ *  offset  size  field
+ *       0     8  magic "ILTILE" 0 1
+ *       8     4  format version (1)
+ *      12     4  width
+ *      16     4  height
+ *      20     4  tile side, in pixels
+ * </pre>
+ * followed by the tiles, row by row, each side * side packed ARGB ints
+ * (big-endian), padded to full size at the right and bottom edges.
+ * The cache's cap is imagelab.tiles.mb megabytes (system property,
+ * default 256).
+ * @version 1.0
+ */
+public final class TiledImage implements Closeable {
+    /** Side of a tile in pixels. */
+    public static final int TILE = 256;
+    /** Customary file name extension. */
+    public static final String EXTENSION = ".ilt";
+    /** The first eight bytes of every tile file. */
+    static final byte[] MAGIC = {'I', 'L', 'T', 'I', 'L', 'E', 0, 1};
+    /** Format version written. */
+    static final int VERSION = 1;
+    /** Header length in bytes. */
+    static final int HEADER = 64;
+    /** Bytes per tile. */
+    private static final int TILE_BYTES = 4 * TILE * TILE;
+    /** Longest side of the preview shown of a large image. */
+    static final int PREVIEW = 4096;
+
+    /** A tile in memory. */
+    private static final class Tile {
+        /** Its pixels, packed ARGB, row by row. */
+        final int[] pix = new int[TILE * TILE];
+        /** Whether it differs from the backing file. */
+        boolean dirty;
+    }//Tile
+
+    /** The backing file. */
+    private final File file;
+    /** The backing file, open. */
+    private final RandomAccessFile raf;
+    /** Its channel. */
+    private final FileChannel ch;
+    /** Image width. */
+    private final int width;
+    /** Image height. */
+    private final int height;
+    /** Tiles per row. */
+    private final int across;
+    /** Rows of tiles. */
+    private final int down;
+    /** Most tiles kept in memory. */
+    private final int capTiles;
+    /** Tiles in memory by number, least recently used first. */
+    private final LinkedHashMap<Integer, Tile> cache = new LinkedHashMap<Integer, Tile>(16, 0.75f, true);
+    /** Transfer buffer for tile I/O. */
+    private final ByteBuffer io = ByteBuffer.allocate(TILE_BYTES);
+    /** Tiles read from the file. */
+    private long reads;
+    /** Tiles written to the file. */
+    private long writes;
+
+    /**
+     * Open a backing file.
+     * @param backing the file
+     * @param w the width
+     * @param h the height
+     * @param capBytes most memory for tiles
+     * @param fresh true to create the file, false to open an existing one
+     * @throws IOException if the file cannot be opened or is not a tile file
+     */
+    private TiledImage(final File backing, final int w, final int h, final long capBytes,
+                       final boolean fresh) throws IOException {
+        file = backing;
+        raf = new RandomAccessFile(backing, "rw");
+        ch = raf.getChannel();
+        try {
+            if (fresh) {
+                raf.setLength(0);
+                ByteBuffer head = ByteBuffer.allocate(HEADER);
+                head.put(MAGIC).putInt(VERSION).putInt(w).putInt(h).putInt(TILE);
+                head.clear();
+                while (head.hasRemaining()) ch.write(head, head.position());
+                width = w;
+                height = h;
+            } else {
+                ByteBuffer head = ByteBuffer.allocate(HEADER);
+                while (head.hasRemaining() && ch.read(head, head.position()) > 0) { }
+                byte[] magic = new byte[MAGIC.length];
+                head.flip();
+                head.get(magic);
+                if (!Arrays.equals(magic, MAGIC) || head.getInt() != VERSION) {
+                    throw new IOException("Not an ImageLab tile file: " + backing);
+                }
+                width = head.getInt();
+                height = head.getInt();
+                if (head.getInt() != TILE || width < 0 || height < 0) {
+                    throw new IOException("Unsupported tile file: " + backing);
+                }
+            }
+            across = (width + TILE - 1) / TILE;
+            down = (height + TILE - 1) / TILE;
+            if (fresh) raf.setLength(HEADER + (long) across * down * TILE_BYTES);     // sparse: reads as zeros
+            capTiles = (int) Math.max(Parallel.THREADS + 1, Math.min(Integer.MAX_VALUE, capBytes / TILE_BYTES));
+        } catch (IOException ioe) {
+            raf.close();
+            throw ioe;
+        }
+    }//constructor
+
+    /**
+     * Create a transparent black tiled image.
+     * @param backing the backing file, replaced if it exists
+     * @param w the width
+     * @param h the height
+     * @return the image
+     * @throws IOException if the file cannot be created
+     */
+    public static TiledImage create(final File backing, final int w, final int h) throws IOException {
+        return new TiledImage(backing, w, h, defaultCap(), true);
+    }//create
+
+    /**
+     * Open a tiled image kept earlier.
+     * @param backing the backing file
+     * @return the image
+     * @throws IOException if the file cannot be read or is not a tile file
+     */
+    public static TiledImage open(final File backing) throws IOException {
+        return new TiledImage(backing, 0, 0, defaultCap(), false);
+    }//open
+
+    /**
+     * Decode an image file into a tiled image, one band of tile rows at
+     * a time, so the whole image is never in memory.  PNG and JPEG files
+     * whose rows are decoded in order are read once, top to bottom (see
+     * {@link RowReader}); other files are read a band at a time, which
+     * for formats that cannot seek to a band decodes from the top again
+     * for each band.
+     * @param image the image file, in any format ImageIO reads
+     * @param backing the backing file, replaced if it exists
+     * @return the image
+     * @throws IOException if the file cannot be read or decoded
+     */
+    public static TiledImage importImage(final File image, final File backing) throws IOException {
+        try (RowReader rows = RowReader.stream(image)) {
+            if (rows != null) {
+                int w = rows.getWidth();
+                int h = rows.getHeight();
+                TiledImage t = create(backing, w, h);
+                try {
+                    int[] band = new int[w * TILE];
+                    int[] row = new int[w];
+                    for (int y = 0; y < h; y += TILE) {
+                        int n = Math.min(TILE, h - y);
+                        for (int i = 0; i < n; i++) {
+                            rows.next(row);
+                            System.arraycopy(row, 0, band, i * w, w);
+                        }
+                        t.setRGB(0, y, w, n, band, 0, w);
+                    }
+                    t.flush();
+                } catch (IOException | RuntimeException e) {
+                    t.close();
+                    throw e;
+                }
+                return t;
+            }
+        }
+        try (ImageInputStream in = ImageIO.createImageInputStream(image)) {
+            ImageReader reader = readerFor(in, image);
+            try {
+                int w = reader.getWidth(0);
+                int h = reader.getHeight(0);
+                TiledImage t = create(backing, w, h);
+                int[] band = new int[w * TILE];
+                ImageReadParam param = reader.getDefaultReadParam();
+                for (int y = 0; y < h; y += TILE) {
+                    int rows = Math.min(TILE, h - y);
+                    param.setSourceRegion(new Rectangle(0, y, w, rows));
+                    BufferedImage bi = reader.read(0, param);
+                    bi.getRGB(0, 0, w, rows, band, 0, w);
+                    t.setRGB(0, y, w, rows, band, 0, w);
+                }
+                t.flush();
+                return t;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }//importImage
+
+    /**
+     * Open an image file too large to hold, as ImageLab's File &gt; Open
+     * does: it is imported into a temporary tiled image, and what is
+     * returned is a reduced preview for showing, holding the tiled image
+     * (see {@link ImgProvider#getTiled}).  Releasing the preview deletes
+     * the temporary file.
+     * @param image the image file
+     * @return the preview
+     * @throws IOException if the file cannot be read or the tiles written
+     */
+    static ImgProvider openLarge(final File image) throws IOException {
+        File backing = File.createTempFile("imagelab", EXTENSION);
+        backing.deleteOnExit();
+        TiledImage t;
+        try {
+            t = importImage(image, backing);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(backing.toPath());
+            throw e;
+        }
+        ImgProvider ip = t.preview(Integer.getInteger("imagelab.tiled.preview", PREVIEW));
+        ip.imgName = image.getPath();
+        ip.tiled = t;
+        return ip;
+    }//openLarge
+
+    /**
+     * Whether an image file is too large to open whole.
+     * @param image the image file
+     * @return true if it has more than imagelab.tiled.mp megapixels
+     *   (system property, default 100); false if it cannot be read
+     */
+    public static boolean needsTiling(final File image) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(image)) {
+            ImageReader reader = readerFor(in, image);
+            try {
+                long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+                return pixels > Long.getLong("imagelab.tiled.mp", 100) * 1000000;
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException ioe) {
+            return false;
+        }
+    }//needsTiling
+
+    /**
+     * Find an ImageIO reader for a file and point it at the file.
+     * @param in the file, opened as an ImageInputStream
+     * @param image the file, for messages
+     * @return the reader
+     * @throws IOException if no reader knows the format
+     */
+    private static ImageReader readerFor(final ImageInputStream in, final File image)
+            throws IOException {
+        Iterator<ImageReader> readers = (in == null) ? null : ImageIO.getImageReaders(in);
+        if (readers == null || !readers.hasNext()) {
+            throw new IOException("Not a readable image: " + image);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(in, true, true);
+        return reader;
+    }//readerFor
+
+    /**
+     * The memory cap for tiles of new tiled images.
+     * @return bytes
+     */
+    static long defaultCap() {
+        return Long.getLong("imagelab.tiles.mb", 256) << 20;
+    }//defaultCap
+
+    /**
+     * Retrieve the width.
+     * @return the width in pixels
+     */
+    public int getWidth() { return width; }
+
+    /**
+     * Retrieve the height.
+     * @return the height in pixels
+     */
+    public int getHeight() { return height; }
+
+    /**
+     * The tile with a given number, read in if it is not in memory.
+     * Must be called holding this object's lock.
+     * @param n the tile number
+     * @return the tile
+     */
+    private Tile tile(final int n) {
+        Tile t = cache.get(n);
+        if (t != null) return t;
+        t = new Tile();
+        try {
+            io.clear();
+            long at = HEADER + (long) n * TILE_BYTES;
+            while (io.hasRemaining() && ch.read(io, at + io.position()) > 0) { }
+            io.clear();
+            io.asIntBuffer().get(t.pix);
+            reads++;
+            cache.put(n, t);
+            Iterator<Map.Entry<Integer, Tile>> it = cache.entrySet().iterator();
+            while (cache.size() > capTiles) {
+                Map.Entry<Integer, Tile> e = it.next();
+                if (e.getValue().dirty) writeBack(e.getKey(), e.getValue());
+                it.remove();
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Tile " + n + " of " + file, ioe);
+        }
+        return t;
+    }//tile
+
+    /**
+     * Write a changed tile to the backing file.
+     * @param n the tile number
+     * @param t the tile
+     * @throws IOException if writing fails
+     */
+    private void writeBack(final int n, final Tile t) throws IOException {
+        io.clear();
+        io.asIntBuffer().put(t.pix);
+        long at = HEADER + (long) n * TILE_BYTES;
+        while (io.hasRemaining()) ch.write(io, at + io.position());
+        t.dirty = false;
+        writes++;
+    }//writeBack
+
+    /**
+     * Check that a rectangle lies within the image.
+     * @param x left column
+     * @param y top row
+     * @param w width
+     * @param h height
+     */
+    private void checkBounds(final int x, final int y, final int w, final int h) {
+        if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > width || y + h > height) {
+            throw new IllegalArgumentException("Region " + w + "x" + h + " at " + x + "," + y
+                + " is not within " + width + "x" + height);
+        }
+    }//checkBounds
+
+    /**
+     * Copy pixels out of a rectangle.
+     * @param x left column
+     * @param y top row
+     * @param w width
+     * @param h height
+     * @param out receives the packed ARGB pixels
+     * @param off where in out the first pixel goes
+     * @param stride distance in out between rows
+     */
+    public synchronized void getRGB(final int x, final int y, final int w, final int h,
+                                    final int[] out, final int off, final int stride) {
+        copy(x, y, w, h, out, off, stride, false);
+    }//getRGB
+
+    /**
+     * Copy pixels into a rectangle.
+     * @param x left column
+     * @param y top row
+     * @param w width
+     * @param h height
+     * @param in the packed ARGB pixels
+     * @param off where in the first pixel is
+     * @param stride distance in in between rows
+     */
+    public synchronized void setRGB(final int x, final int y, final int w, final int h,
+                                    final int[] in, final int off, final int stride) {
+        copy(x, y, w, h, in, off, stride, true);
+    }//setRGB
+
+    /**
+     * Copy between a rectangle and an array, one tile at a time.
+     * @param x left column
+     * @param y top row
+     * @param w width
+     * @param h height
+     * @param arr the array
+     * @param off where in arr the first pixel is
+     * @param stride distance in arr between rows
+     * @param into true to copy into the image, false out of it
+     */
+    private void copy(final int x, final int y, final int w, final int h, final int[] arr,
+                      final int off, final int stride, final boolean into) {
+        checkBounds(x, y, w, h);
+        for (int ty = y / TILE; ty * TILE < y + h; ty++) {
+            int y0 = Math.max(y, ty * TILE);
+            int y1 = Math.min(y + h, (ty + 1) * TILE);
+            for (int tx = x / TILE; tx * TILE < x + w; tx++) {
+                int x0 = Math.max(x, tx * TILE);
+                int x1 = Math.min(x + w, (tx + 1) * TILE);
+                Tile t = tile(ty * across + tx);
+                for (int yy = y0; yy < y1; yy++) {
+                    int tp = (yy - ty * TILE) * TILE + (x0 - tx * TILE);
+                    int ap = off + (yy - y) * stride + (x0 - x);
+                    if (into) System.arraycopy(arr, ap, t.pix, tp, x1 - x0);
+                    else      System.arraycopy(t.pix, tp, arr, ap, x1 - x0);
+                }
+                if (into) t.dirty = true;
+            }
+        }
+    }//copy
+
+    /**
+     * Retrieve one pixel.
+     * @param x the column
+     * @param y the row
+     * @return the packed ARGB pixel
+     */
+    public synchronized int getRGB(final int x, final int y) {
+        checkBounds(x, y, 1, 1);
+        return tile(y / TILE * across + x / TILE).pix[(y % TILE) * TILE + x % TILE];
+    }//getRGB
+
+    /**
+     * Change one pixel.
+     * @param x the column
+     * @param y the row
+     * @param argb the packed ARGB pixel
+     */
+    public synchronized void setRGB(final int x, final int y, final int argb) {
+        checkBounds(x, y, 1, 1);
+        Tile t = tile(y / TILE * across + x / TILE);
+        t.pix[(y % TILE) * TILE + x % TILE] = argb;
+        t.dirty = true;
+    }//setRGB
+
+    /**
+     * Copy a rectangle out as an ImgProvider, for ImageLab's engines.
+     * @param x left column
+     * @param y top row
+     * @param w width
+     * @param h height
+     * @return the region
+     */
+    public ImgProvider getRegion(final int x, final int y, final int w, final int h) {
+        int[] pix = new int[w * h];
+        getRGB(x, y, w, h, pix, 0, w);
+        ImgProvider ip = new ImgProvider(file.getPath());
+        ip.setPixels(pix, w, h);
+        return ip;
+    }//getRegion
+
+    /**
+     * Copy an ImgProvider into the image.
+     * @param x column of its left edge
+     * @param y row of its top edge
+     * @param ip the image copied
+     */
+    public void setRegion(final int x, final int y, final ImgProvider ip) {
+        ip.ensureLoaded();
+        setRGB(x, y, ip.pixwidth, ip.pixheight, ip.pix, 0, ip.pixwidth);
+    }//setRegion
+
+    /**
+     * Copy the whole image into an ImgProvider, if it fits in memory.
+     * @return the image
+     */
+    public ImgProvider toImgProvider() {
+        if ((long) width * height > Integer.MAX_VALUE) {
+            throw new IllegalStateException(width + "x" + height + " is too large for an ImgProvider");
+        }
+        return getRegion(0, 0, width, height);
+    }//toImgProvider
+
+    /**
+     * A reduced copy for showing on screen, each pixel the nearest of the
+     * image's, read one row of tiles at a time.
+     * @param maxSide the longest side allowed
+     * @return the preview
+     */
+    public ImgProvider preview(final int maxSide) {
+        double scale = Math.min(1.0, (double) maxSide / Math.max(1, Math.max(width, height)));
+        final int pw = Math.max(1, (int) (width * scale));
+        final int ph = Math.max(1, (int) (height * scale));
+        int[] pix = new int[pw * ph];
+        int[] row = new int[width];
+        for (int py = 0; py < ph; py++) {
+            getRGB(0, (int) ((long) py * height / ph), width, 1, row, 0, width);
+            for (int px = 0; px < pw; px++) pix[py * pw + px] = row[(int) ((long) px * width / pw)];
+        }
+        ImgProvider ip = new ImgProvider(file.getPath());
+        ip.setPixels(pix, pw, ph);
+        return ip;
+    }//preview
+
+    /**
+     * Apply a tile-safe operation to every tile, in parallel, into a new
+     * tiled image.  Each call gets one tile with up to margin pixels of
+     * the image around it, and must return an image of the same size;
+     * only its tile is kept.  If the operation's result at a pixel
+     * depends only on the pixels within margin of it, the result is the
+     * same as applying it to the whole image at once.
+     * @param op the operation, for example ip -> RankFilter.median(ip, 2)
+     * @param margin how far the operation looks around each pixel
+     * @param backing the result's backing file
+     * @return the result
+     * @throws IOException if the result cannot be created or written
+     */
+    public TiledImage map(final UnaryOperator<ImgProvider> op, final int margin,
+                          final File backing) throws IOException {
+        final TiledImage out = create(backing, width, height);
+        Parallel.forEach(across * down, (n, unused) -> {
+            int x0 = n % across * TILE;
+            int y0 = n / across * TILE;
+            int x1 = Math.min(width, x0 + TILE);
+            int y1 = Math.min(height, y0 + TILE);
+            int ex0 = Math.max(0, x0 - margin);
+            int ey0 = Math.max(0, y0 - margin);
+            int ew = Math.min(width, x1 + margin) - ex0;
+            int eh = Math.min(height, y1 + margin) - ey0;
+            ImgProvider result = op.apply(getRegion(ex0, ey0, ew, eh));
+            result.ensureLoaded();
+            if (result.pixwidth != ew || result.pixheight != eh) {
+                throw new IllegalArgumentException("A tile-safe operation must keep the size of the image");
+            }
+            out.setRGB(x0, y0, x1 - x0, y1 - y0, result.pix,
+                       (y0 - ey0) * ew + (x0 - ex0), ew);
+        });
+        out.flush();
+        return out;
+    }//map
+
+    /**
+     * Write every changed tile to the backing file.
+     * @throws IOException if writing fails
+     */
+    public synchronized void flush() throws IOException {
+        for (Map.Entry<Integer, Tile> e : cache.entrySet()) {
+            if (e.getValue().dirty) writeBack(e.getKey(), e.getValue());
+        }
+    }//flush
+
+    /**
+     * Flush and close the backing file.
+     * @throws IOException if writing fails
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            cache.clear();
+            raf.close();
+        }
+    }//close
+
+    /**
+     * Close and delete the backing file, for a temporary tiled image.
+     * @throws IOException if it cannot be deleted
+     */
+    void delete() throws IOException {
+        try {
+            close();
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }//delete
+
+    /**
+     * Describe the image and its cache.
+     * @return size, tiles in memory and tile traffic so far
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("TiledImage %s: %dx%d, %d of %d tiles in memory, %d read, %d written",
+            file, width, height, cache.size(), capTiles, reads, writes);
+    }//toString
+}//TiledImage
@@ -0,0 +1,201 @@
+package imagelab;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Worker filters images for a {@link Coordinator}.  Each of its threads
+ * holds a connection of its own, asks for an image, runs the batch's
+ * {@link FilterChain} on it headlessly, sends the encoded result back and
+ * asks again, until the coordinator says the batch is done.  While it
+ * filters, a connection sends heartbeats so the coordinator knows it is
+ * alive.
+ * <pre>
+ *   java Run --work HOST:PORT [--threads N]
+ * </pre>
+ * @version 1.0
+ */
+public final class Worker {
+    /** Sends heartbeats for busy connections. */
+    private static final ScheduledExecutorService BEATS = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ImageLab heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** The coordinator's host. */
+    private final String host;
+    /** The coordinator's port. */
+    private final int port;
+    /** This worker's name. */
+    private final String name;
+
+    /**
+     * Prepare a worker.
+     * @param coordinatorHost the coordinator's host
+     * @param coordinatorPort the coordinator's port
+     */
+    public Worker(final String coordinatorHost, final int coordinatorPort) {
+        host = coordinatorHost;
+        port = coordinatorPort;
+        name = ManagementFactory.getRuntimeMXBean().getName();     // pid@host
+    }//constructor
+
+    /**
+     * Work on one connection until the batch is done.
+     * @param index which of this worker's connections it is, for its name
+     * @return the number of images filtered
+     * @throws IOException if the connection fails
+     */
+    public int work(final int index) throws IOException {
+        int images = 0;
+        try (Socket socket = new Socket(host, port)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeByte(Coordinator.HELLO);
+            out.writeUTF(name + "#" + index);
+            out.flush();
+            if (in.readByte() != Coordinator.JOB) throw new IOException("Not a coordinator");
+            FilterChain chain = FilterChain.parse(in.readUTF());
+            String format = in.readUTF();
+            int heartbeat = in.readInt();
+            while (true) {
+                synchronized (out) {
+                    out.writeByte(Coordinator.NEXT);
+                    out.flush();
+                }
+                byte m = in.readByte();
+                if (m == Coordinator.DONE) return images;
+                if (m == Coordinator.WAIT) {
+                    sleep(in.readInt());
+                    continue;
+                }
+                if (m != Coordinator.IMAGE) throw new IOException("Unknown message " + m);
+                int id = in.readInt();
+                String file = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                ScheduledFuture<?> beats = BEATS.scheduleAtFixedRate(() -> {
+                    try {
+                        synchronized (out) {
+                            out.writeByte(Coordinator.BEAT);
+                            out.flush();
+                        }
+                    } catch (IOException ioe) {
+                        // the main loop will find out
+                    }
+                }, heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+                byte[] result = null;
+                String why = null;
+                long t0 = System.nanoTime();
+                try {
+                    ImgProvider ip = chain.apply(ImgProvider.read(new ByteArrayInputStream(bytes)));
+                    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                    ip.write(buf, format);
+                    result = buf.toByteArray();
+                } catch (IOException | RuntimeException e) {
+                    why = e.toString();
+                } finally {
+                    beats.cancel(false);
+                }
+                long ns = System.nanoTime() - t0;
+                synchronized (out) {
+                    if (result != null) {
+                        out.writeByte(Coordinator.RESULT);
+                        out.writeInt(id);
+                        out.writeLong(ns);
+                        out.writeInt(result.length);
+                        out.write(result);
+                        images++;
+                    } else {
+                        out.writeByte(Coordinator.FAIL);
+                        out.writeInt(id);
+                        out.writeUTF(file + ": " + why);
+                    }
+                    out.flush();
+                }
+            }
+        } catch (EOFException eofe) {
+            return images;                              // coordinator finished and left
+        }
+    }//work
+
+    /**
+     * Pause.
+     * @param ms milliseconds
+     * @throws IOException if interrupted
+     */
+    private static void sleep(final int ms) throws IOException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", ie);
+        }
+    }//sleep
+
+    /**
+     * Work for a coordinator until its batch is done.
+     * <pre>
+     * java Run --work HOST:PORT [--threads N]
+     * </pre>
+     * @param args the coordinator's address and options
+     */
+    public static void main(final String[] args) {
+        String address = null;
+        int threads = Parallel.THREADS;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (!args[i].equals("--work")) {
+                address = args[i];
+            }
+        }
+        int colon = (address == null) ? -1 : address.lastIndexOf(':');
+        if (colon < 0) {
+            System.err.println("usage: java Run --work HOST:PORT [--threads N]");
+            System.exit(2);
+        }
+        ImgProvider.setHeadless(true);
+        final Worker w = new Worker(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        final int[] counts = new int[Math.max(1, threads)];
+        Thread[] conns = new Thread[counts.length];
+        for (int i = 0; i < conns.length; i++) {
+            final int k = i;
+            conns[i] = new Thread(() -> {
+                try {
+                    counts[k] = w.work(k);
+                } catch (ConnectException ce) {
+                    System.err.println("No coordinator at " + w.host + ":" + w.port);
+                } catch (IOException ioe) {
+                    System.err.println("Connection " + k + " failed: " + ioe);
+                }
+            }, "ImageLab worker " + i);
+            conns[i].start();
+        }
+        for (Thread t : conns) {
+            try {
+                t.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        int total = 0;
+        for (int c : counts) total += c;
+        System.out.println(w.name + ": " + total + " images");
+    }//main
+}//Worker
@@ -0,0 +1,89 @@
+package imagelab;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import org.junit.Test;
+
+/**
+ * Checks which files Animation takes for animations: GIFs of several
+ * frames only, not multi-page files of other formats.
+ * @version 1.0
+ */
+public class AnimationTest {
+    /**
+     * A small image that differs from page to page.
+     * @param page the page
+     * @return the image
+     */
+    private static BufferedImage image(final int page) {
+        BufferedImage img = new BufferedImage(8, 6, BufferedImage.TYPE_INT_RGB);
+        img.setRGB(page, page, 0xFFFFFF);
+        return img;
+    }//image
+
+    /**
+     * Write images as the pages or frames of one file.
+     * @param file the file
+     * @param format an ImageIO format name
+     * @param pages how many images
+     * @return false if there is no writer for the format
+     */
+    private static boolean write(final File file, final String format, final int pages) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) return false;
+        ImageWriter w = writers.next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            w.setOutput(out);
+            if (pages == 1) {
+                w.write(image(0));
+                return true;
+            }
+            w.prepareWriteSequence(null);
+            for (int p = 0; p < pages; p++) w.writeToSequence(new IIOImage(image(p), null, null), null);
+            w.endWriteSequence();
+        } finally {
+            w.dispose();
+        }
+        return true;
+    }//write
+
+    /** A GIF of several frames is animated; one of a single frame is not. */
+    @Test
+    public void gifs() throws IOException {
+        File f = File.createTempFile("anim", ".gif");
+        try {
+            assertTrue(write(f, "gif", 3));
+            assertTrue(Animation.isAnimated(f));
+            assertTrue(write(f, "gif", 1));
+            assertFalse(Animation.isAnimated(f));
+        } finally {
+            f.delete();
+        }
+    }
+
+    /** A multi-page TIFF and a PNG are not animations, and do not fail. */
+    @Test
+    public void otherFormats() throws IOException {
+        File png = File.createTempFile("still", ".png");
+        File tif = File.createTempFile("pages", ".tif");
+        try {
+            assertTrue(write(png, "png", 1));
+            assertFalse(Animation.isAnimated(png));
+            assumeTrue(write(tif, "tiff", 2));
+            assertFalse(Animation.isAnimated(tif));
+        } finally {
+            png.delete();
+            tif.delete();
+        }
+    }
+}//AnimationTest
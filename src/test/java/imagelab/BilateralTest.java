@@ -0,0 +1,41 @@
+package imagelab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link Bilateral} keeps its grid within bounds.
+ * @version 1.0
+ */
+public class BilateralTest {
+    /** Small sigmas on a photograph-sized image get a coarser grid that fits. */
+    @Test
+    public void largeGridIsCoarsened() {
+        assertTrue(Bilateral.cells(4000, 3000, 1, 1) > Integer.MAX_VALUE);
+        double s = Bilateral.spacing(4000, 3000, 1, 1);
+        assertTrue(s > 1);
+        assertTrue(Bilateral.cells(4000, 3000, s, 1) <= Bilateral.MAX_CELLS);
+    }
+
+    /** A grid that fits is left as asked. */
+    @Test
+    public void smallGridIsKept() {
+        assertEquals(16, Bilateral.spacing(640, 480, 16, 24), 0);
+    }
+
+    /** Sigmas of 1 on a large image filter without overflowing. */
+    @Test
+    public void smallSigmasOnLargeImage() {
+        int w = 2000;
+        int h = 1500;
+        int[] pix = new int[w * h];
+        for (int i = 0; i < pix.length; i++) pix[i] = 0xFF000000 | ((i % w) * 255 / w) * 0x010101;
+        ImgProvider ip = new ImgProvider();
+        ip.setPixels(pix, w, h);
+        ImgProvider out = Bilateral.filter(ip, 1, 1);
+        assertEquals(w, out.getWidth());
+        assertEquals(h, out.getHeight());
+    }
+}//BilateralTest
@@ -0,0 +1,112 @@
+package imagelab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks {@link BinaryImage} against {@link Morphology} on 0/255 planes
+ * and against pixel-by-pixel logic.
+ * @version 1.0
+ */
+public class BinaryImageTest {
+    /** Widths tried: around the 64-bit word boundaries. */
+    private static final int[] WIDTHS = {1, 5, 63, 64, 65, 127, 130};
+    /** Heights tried. */
+    private static final int[] HEIGHTS = {1, 7, 40};
+    /** Radii tried, including ones wider than the images. */
+    private static final int[] RADII = {0, 1, 2, 5, 31, 64, 70};
+
+    /**
+     * A random binary plane.
+     * @param w width
+     * @param h height
+     * @param rnd where the pixels come from
+     * @param white chance of a white pixel
+     * @return the plane, 0 and 255 only
+     */
+    static short[][] plane(final int w, final int h, final Random rnd, final double white) {
+        short[][] p = new short[h][w];
+        for (short[] row : p) {
+            for (int c = 0; c < w; c++) row[c] = (rnd.nextDouble() < white) ? BinaryImage.WHITE : 0;
+        }
+        return p;
+    }//plane
+
+    /**
+     * Assert two planes are the same.
+     * @param what what is being compared
+     * @param want the expected plane
+     * @param got the plane found
+     */
+    private static void same(final String what, final short[][] want, final short[][] got) {
+        assertEquals(what, want.length, got.length);
+        for (int r = 0; r < want.length; r++) assertArrayEquals(what + " row " + r, want[r], got[r]);
+    }//same
+
+    /** Erode, dilate, open and close give what Morphology gives. */
+    @Test
+    public void morphologyMatchesGrayMorphology() {
+        Random rnd = new Random(30);
+        for (int w : WIDTHS) {
+            for (int h : HEIGHTS) {
+                for (double white : new double[] {0.1, 0.5, 0.9}) {
+                    short[][] src = plane(w, h, rnd, white);
+                    BinaryImage bi = BinaryImage.fromPlane(src, 128);
+                    for (int rx : RADII) {
+                        int ry = RADII[(rx + h) % RADII.length];
+                        String what = w + "x" + h + " rx " + rx + " ry " + ry;
+                        short[][] er = Morphology.morphRect(src, rx, ry, false);
+                        short[][] di = Morphology.morphRect(src, rx, ry, true);
+                        same("erode " + what, er, bi.erode(rx, ry).toPlane());
+                        same("dilate " + what, di, bi.dilate(rx, ry).toPlane());
+                        same("open " + what, Morphology.morphRect(er, rx, ry, true),
+                             bi.open(rx, ry).toPlane());
+                        same("close " + what, Morphology.morphRect(di, rx, ry, false),
+                             bi.close(rx, ry).toPlane());
+                    }
+                }
+            }
+        }
+    }
+
+    /** The logical operations and count agree with pixel-by-pixel results. */
+    @Test
+    public void logicMatchesPixels() {
+        Random rnd = new Random(31);
+        for (int w : WIDTHS) {
+            for (int h : HEIGHTS) {
+                BinaryImage a = BinaryImage.fromPlane(plane(w, h, rnd, 0.5), 128);
+                BinaryImage b = BinaryImage.fromPlane(plane(w, h, rnd, 0.3), 128);
+                BinaryImage and = a.and(b), or = a.or(b), xor = a.xor(b), andNot = a.andNot(b), not = a.not();
+                long count = 0;
+                for (int y = 0; y < h; y++) {
+                    for (int x = 0; x < w; x++) {
+                        boolean p = a.get(x, y), q = b.get(x, y);
+                        String at = w + "x" + h + " at " + x + "," + y;
+                        assertEquals("and " + at, p && q, and.get(x, y));
+                        assertEquals("or " + at, p || q, or.get(x, y));
+                        assertEquals("xor " + at, p ^ q, xor.get(x, y));
+                        assertEquals("andNot " + at, p && !q, andNot.get(x, y));
+                        assertEquals("not " + at, !p, not.get(x, y));
+                        if (p) count++;
+                    }
+                }
+                assertEquals("count " + w + "x" + h, count, a.count());
+                assertEquals("count of not " + w + "x" + h, (long) w * h - count, not.count());
+            }
+        }
+    }
+
+    /** A plane survives the trip to bits and back. */
+    @Test
+    public void planeRoundTrip() {
+        Random rnd = new Random(32);
+        for (int w : WIDTHS) {
+            short[][] src = plane(w, 9, rnd, 0.5);
+            same("round trip " + w, src, BinaryImage.fromPlane(src, 128).toPlane());
+        }
+    }
+}//BinaryImageTest
@@ -0,0 +1,52 @@
+package imagelab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that Comparison only calls images identical when their pixels
+ * are, whatever their content hashes say.
+ * @version 1.0
+ */
+public class ComparisonTest {
+    /**
+     * A small image with a gradient.
+     * @return the image
+     */
+    private static ImgProvider image() {
+        int w = 23;
+        int h = 17;
+        int[] pix = new int[w * h];
+        for (int i = 0; i < pix.length; i++) pix[i] = 0xFF000000 | (i * 0x030201);
+        ImgProvider ip = new ImgProvider();
+        ip.setPixels(pix, w, h);
+        return ip;
+    }//image
+
+    /** Equal images are identical, with perfect scores. */
+    @Test
+    public void equalImages() {
+        Comparison cmp = new Comparison(image(), image());
+        assertTrue(cmp.isIdentical());
+        assertEquals(Double.POSITIVE_INFINITY, cmp.getPsnr(), 0);
+        assertEquals(1, cmp.getSsim(), 0);
+    }
+
+    /** Images that differ in one pixel are not identical even if their hashes collide. */
+    @Test
+    public void collidingHashes() {
+        ImgProvider exp = image();
+        int[] pix = exp.pix.clone();
+        pix[200] ^= 0x00010000;
+        ImgProvider act = new ImgProvider();
+        act.setPixels(pix, exp.pixwidth, exp.pixheight);
+        act.digest = ContentHash.digest(exp);           //as if the hashes collided
+        Comparison cmp = new Comparison(exp, act);
+        assertFalse(cmp.isIdentical());
+        assertEquals(1, cmp.getMaxError(Comparison.RED));
+        assertTrue(cmp.getPsnr() < Double.POSITIVE_INFINITY);
+    }
+}//ComparisonTest
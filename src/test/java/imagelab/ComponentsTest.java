@@ -0,0 +1,133 @@
+package imagelab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Rectangle;
+import java.util.ArrayDeque;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks {@link Components} against labeling by flood fill.
+ * @version 1.0
+ */
+public class ComponentsTest {
+    /**
+     * Label white pixels by flood fill, numbering regions in scan order.
+     * @param bi the binary image
+     * @param eight whether diagonal neighbors are connected
+     * @return the labels
+     */
+    static int[][] floodFill(final BinaryImage bi, final boolean eight) {
+        int w = bi.getWidth(), h = bi.getHeight();
+        int[][] labels = new int[h][w];
+        int next = 0;
+        ArrayDeque<int[]> todo = new ArrayDeque<int[]>();
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                if (!bi.get(x, y) || labels[y][x] != 0) continue;
+                labels[y][x] = ++next;
+                todo.add(new int[] {x, y});
+                while (!todo.isEmpty()) {
+                    int[] p = todo.poll();
+                    for (int dy = -1; dy <= 1; dy++) {
+                        for (int dx = -1; dx <= 1; dx++) {
+                            if (dx == 0 && dy == 0 || !eight && dx != 0 && dy != 0) continue;
+                            int nx = p[0] + dx, ny = p[1] + dy;
+                            if (nx < 0 || ny < 0 || nx >= w || ny >= h) continue;
+                            if (bi.get(nx, ny) && labels[ny][nx] == 0) {
+                                labels[ny][nx] = next;
+                                todo.add(new int[] {nx, ny});
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return labels;
+    }//floodFill
+
+    /**
+     * Compare labels and measurements for one image.
+     * @param what names the image
+     * @param bi the image
+     * @param eight the connectivity
+     */
+    private static void check(final String what, final BinaryImage bi, final boolean eight) {
+        int[][] want = floodFill(bi, eight);
+        Components c = new Components(bi, eight);
+        int[][] got = c.getLabels();
+        int max = 0;
+        for (int y = 0; y < want.length; y++) {
+            assertArrayEquals(what + " row " + y, want[y], got[y]);
+            for (int v : want[y]) max = Math.max(max, v);
+        }
+        assertEquals(what + " count", max, c.getCount());
+        for (int id = 1; id <= max; id++) {
+            long area = 0, sx = 0, sy = 0;
+            int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = -1, y1 = -1;
+            for (int y = 0; y < want.length; y++) {
+                for (int x = 0; x < want[y].length; x++) {
+                    if (want[y][x] != id) continue;
+                    area++;
+                    sx += x;
+                    sy += y;
+                    x0 = Math.min(x0, x);
+                    y0 = Math.min(y0, y);
+                    x1 = Math.max(x1, x);
+                    y1 = Math.max(y1, y);
+                }
+            }
+            assertEquals(what + " area " + id, area, c.getArea(id));
+            assertEquals(what + " bounds " + id, new Rectangle(x0, y0, x1 - x0 + 1, y1 - y0 + 1), c.getBounds(id));
+            assertEquals(what + " centroid x " + id, (double) sx / area, c.getCentroidX(id), 1e-9);
+            assertEquals(what + " centroid y " + id, (double) sy / area, c.getCentroidY(id), 1e-9);
+        }
+    }//check
+
+    /** Random images of several densities match flood fill, both connectivities. */
+    @Test
+    public void randomImagesMatchFloodFill() {
+        Random rnd = new Random(31);
+        int[][] sizes = {{1, 1}, {1, 50}, {50, 1}, {17, 33}, {64, 100}, {130, 257}};
+        for (int[] s : sizes) {
+            for (double white : new double[] {0.2, 0.45, 0.6, 0.9}) {
+                BinaryImage bi = BinaryImage.fromPlane(BinaryImageTest.plane(s[0], s[1], rnd, white), 128);
+                check(s[0] + "x" + s[1] + " white " + white + " 8-way", bi, true);
+                check(s[0] + "x" + s[1] + " white " + white + " 4-way", bi, false);
+            }
+        }
+    }
+
+    /** A spiral that crosses every strip boundary many times is one region. */
+    @Test
+    public void spiralCrossingStripsIsOneRegion() {
+        int n = 161;
+        BinaryImage bi = new BinaryImage(n, n);
+        int x0 = 0, y0 = 0, x1 = n - 1, y1 = n - 1;
+        while (x0 <= x1 && y0 <= y1) {
+            for (int x = x0; x <= x1; x++) bi.set(x, y0, true);
+            for (int y = y0; y <= y1; y++) bi.set(x1, y, true);
+            for (int x = x0; x <= x1; x++) bi.set(x, y1, true);
+            for (int y = y0 + 2; y <= y1; y++) bi.set(x0, y, true);
+            if (x0 + 1 <= x1) bi.set(x0 + 1, y0 + 2, true);
+            x0 += 2;
+            y0 += 2;
+            x1 -= 2;
+            y1 -= 2;
+        }
+        check("spiral 8-way", bi, true);
+        check("spiral 4-way", bi, false);
+        assertEquals(1, new Components(bi, false).getCount());
+    }
+
+    /** Empty and full images. */
+    @Test
+    public void emptyAndFull() {
+        BinaryImage bi = new BinaryImage(70, 40);
+        check("empty", bi, true);
+        check("full", bi.not(), true);
+        assertEquals(1, new Components(bi.not(), false).getCount());
+    }
+}//ComponentsTest
@@ -0,0 +1,96 @@
+package imagelab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Runs a small batch through a coordinator and a worker, checking that
+ * only images are sent out and that a result arriving after its image
+ * is finished does not replace the output.
+ * @version 1.0
+ */
+public class CoordinatorTest {
+    /**
+     * Write a small PNG.
+     * @param f the file
+     * @param seed picks the pixels
+     */
+    private static void png(final File f, final int seed) throws IOException {
+        int[] pix = new int[16 * 12];
+        for (int i = 0; i < pix.length; i++) pix[i] = 0xFF000000 | (i * seed * 0x010203);
+        ImgProvider ip = new ImgProvider();
+        ip.setPixels(pix, 16, 12);
+        try (OutputStream out = new FileOutputStream(f)) {
+            ip.write(out, "png");
+        }
+    }//png
+
+    /** Non-images are left alone and a late result is thrown away. */
+    @Test
+    public void imagesOnlyAndLateResults() throws Exception {
+        File in = Files.createTempDirectory("coordin").toFile();
+        File out = Files.createTempDirectory("coordout").toFile();
+        png(new File(in, "a.png"), 1);
+        png(new File(in, "b.png"), 2);
+        Files.write(new File(in, "README").toPath(), "notes".getBytes("UTF-8"));
+        Files.write(new File(in, "a.xmp").toPath(), "<x/>".getBytes("UTF-8"));
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        final int p = port;
+        Coordinator co = new Coordinator(in, out, "HFlip", "png", 1, 100);
+        CompletableFuture<String> batch = CompletableFuture.supplyAsync(() -> {
+            try {
+                return co.run(p);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        });
+        Thread.sleep(200);
+        assertEquals(2, new Worker("localhost", port).work(0));
+        File a = new File(out, "a.png");
+        byte[] written = Files.readAllBytes(a.toPath());
+        try (Socket late = new Socket("localhost", port)) {          // before the coordinator closes
+            DataOutputStream o = new DataOutputStream(late.getOutputStream());
+            DataInputStream i = new DataInputStream(new BufferedInputStream(late.getInputStream()));
+            o.writeByte(Coordinator.HELLO);
+            o.writeUTF("late");
+            o.flush();
+            assertEquals(Coordinator.JOB, i.readByte());
+            o.writeByte(Coordinator.RESULT);
+            o.writeInt(0);
+            o.writeLong(0);
+            o.writeInt(4);
+            o.write("LATE".getBytes("UTF-8"));
+            o.flush();
+        }
+        String summary = batch.get(10, TimeUnit.SECONDS);
+        assertTrue(summary, summary.startsWith("2 images"));
+        assertTrue(summary, summary.contains(" 0 failed"));
+        assertArrayEquals(written, Files.readAllBytes(a.toPath()));
+        String[] results = out.list();
+        Arrays.sort(results);
+        assertArrayEquals(new String[] {"a.png", "b.png"}, results);
+        for (File f : in.listFiles()) f.delete();
+        for (File f : out.listFiles()) f.delete();
+        in.delete();
+        out.delete();
+    }
+}//CoordinatorTest
@@ -0,0 +1,121 @@
+package imagelab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks that the wavefront dither gives exactly what plain row-by-row
+ * error diffusion on one thread gives.
+ * @version 1.0
+ */
+public class DitherTest {
+    /** Image sizes tried, as {width, height}. */
+    private static final int[][] SIZES = {{1, 1}, {1, 9}, {9, 1}, {3, 3}, {63, 17}, {200, 150}};
+    /** Thread counts tried for the wavefront. */
+    private static final int[] THREADS = {2, 3, 4, 8};
+    /** A small color palette. */
+    private static final Palette COLORS = new Palette(new int[] {
+        0x000000, 0xFFFFFF, 0xFF0000, 0x00FF00, 0x0000FF, 0x808080, 0xFFFF00});
+
+    /**
+     * A random image with smooth gradients, so errors travel far.
+     * @param w width
+     * @param h height
+     * @param rnd where the noise comes from
+     * @return the image
+     */
+    static ImgProvider image(final int w, final int h, final Random rnd) {
+        int[] pix = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int r = (x * 255 / Math.max(1, w - 1) + rnd.nextInt(16)) & 255;
+                int g = (y * 255 / Math.max(1, h - 1) + rnd.nextInt(16)) & 255;
+                int b = rnd.nextInt(256);
+                pix[y * w + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        ImgProvider ip = new ImgProvider();
+        ip.setPixels(pix, w, h);
+        return ip;
+    }//image
+
+    /**
+     * Textbook error diffusion, one pixel after another: errors are
+     * summed as integers and divided when a pixel is visited, and error
+     * falling outside the image is dropped.
+     * @param planes red, green and blue planes
+     * @param pal the palette
+     * @param kernel the diffusion pattern
+     * @return palette indices
+     */
+    static byte[][] reference(final short[][][] planes, final Palette pal, final Dither.Kernel kernel) {
+        int h = planes[0].length;
+        int w = planes[0][0].length;
+        int[][][] acc = new int[3][h][w];
+        byte[][] idx = new byte[h][w];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int[] v = new int[3];
+                for (int k = 0; k < 3; k++) {
+                    v[k] = Math.max(0, Math.min(255, planes[k][y][x] + acc[k][y][x] / kernel.divisor));
+                }
+                int i = pal.nearest(v[0], v[1], v[2]);
+                int c = pal.getColor(i);
+                idx[y][x] = (byte) i;
+                int[] err = {v[0] - ((c >> 16) & 255), v[1] - ((c >> 8) & 255), v[2] - (c & 255)};
+                for (int[] tap : kernel.taps) {
+                    int tx = x + tap[0];
+                    int ty = y + tap[1];
+                    if (tx < 0 || tx >= w || ty >= h) continue;
+                    for (int k = 0; k < 3; k++) acc[k][ty][tx] += err[k] * tap[2];
+                }
+            }
+        }
+        return idx;
+    }//reference
+
+    /** Dithering to a palette matches the reference on any number of threads. */
+    @Test
+    public void paletteMatchesReference() {
+        Random rnd = new Random(34);
+        for (int[] s : SIZES) {
+            ImgProvider ip = image(s[0], s[1], rnd);
+            for (Dither.Kernel kernel : Dither.Kernel.values()) {
+                byte[][] want = reference(new short[][][] {ip.red, ip.green, ip.blue}, COLORS, kernel);
+                String what = s[0] + "x" + s[1] + " " + kernel;
+                byte[][] one = Dither.toPalette(ip, COLORS, kernel, 1).getIndices();
+                for (int y = 0; y < want.length; y++) assertArrayEquals(what + " 1 thread row " + y, want[y], one[y]);
+                for (int t : THREADS) {
+                    byte[][] got = Dither.toPalette(ip, COLORS, kernel, t).getIndices();
+                    for (int y = 0; y < want.length; y++) {
+                        assertArrayEquals(what + " " + t + " threads row " + y, want[y], got[y]);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Dithering to black and white matches one thread on any number of threads. */
+    @Test
+    public void blackAndWhiteMatchesOneThread() {
+        Random rnd = new Random(35);
+        for (int[] s : SIZES) {
+            ImgProvider ip = image(s[0], s[1], rnd);
+            for (Dither.Kernel kernel : Dither.Kernel.values()) {
+                BinaryImage want = Dither.blackAndWhite(ip, kernel, 1);
+                for (int t : THREADS) {
+                    BinaryImage got = Dither.blackAndWhite(ip, kernel, t);
+                    for (int y = 0; y < s[1]; y++) {
+                        for (int x = 0; x < s[0]; x++) {
+                            assertEquals(s[0] + "x" + s[1] + " " + kernel + " " + t + " threads at " + x + "," + y,
+                                         want.get(x, y), got.get(x, y));
+                        }
+                    }
+                }
+            }
+        }
+    }
+}//DitherTest
@@ -0,0 +1,71 @@
+package imagelab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks that the filter cache never hands one image another's result,
+ * even after an image has been turned gray by getBWImage.
+ * @version 1.0
+ */
+public class FilterCacheTest {
+    /** Width of the test images. */
+    private static final int W = 19;
+    /** Height of the test images. */
+    private static final int H = 11;
+
+    /**
+     * An image whose pixels all have the same gray level but whose color
+     * depends on a seed.
+     * @param seed picks the colors
+     * @return the image
+     */
+    private static ImgProvider image(final int seed) {
+        int[] pix = new int[W * H];
+        for (int i = 0; i < pix.length; i++) {
+            int r = (i * 7 + seed * 31) % 101;
+            int g = (i * 13 + seed * 17) % 101;
+            int b = 200 - r - g;                //r + g + b is always 200
+            pix[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+        }
+        ImgProvider ip = new ImgProvider();
+        ip.setPixels(pix, W, H);
+        return ip;
+    }//image
+
+    /** After getBWImage the planes are gray too, matching pix. */
+    @Test
+    public void grayKeepsPlanesInStep() {
+        ImgProvider ip = image(1);
+        short[][] bw = ip.getBWImage();
+        short[][] red = ip.getRed();
+        short[][] blue = ip.getBlue();
+        for (int r = 0; r < H; r++) {
+            assertArrayEquals(bw[r], red[r]);
+            assertArrayEquals(bw[r], blue[r]);
+        }
+    }
+
+    /** Two images with the same gray levels get each their own result. */
+    @Test
+    public void grayImagesDoNotShareColorResults() {
+        FilterCache cache = new FilterCache(1L << 24, null);
+        ImgProvider a = image(1);
+        ImgProvider b = image(2);
+        ImgProvider untouched = image(2);
+        ImgProvider first = cache.apply(this, a, () -> Geometry.flipHorizontal(a));
+        ImgProvider second = cache.apply(this, untouched, () -> Geometry.flipHorizontal(untouched));
+        assertEquals(Geometry.flipHorizontal(image(1)).getRed()[3][4], first.getRed()[3][4]);
+        assertEquals(Geometry.flipHorizontal(image(2)).getRed()[3][4], second.getRed()[3][4]);
+        a.getBWImage();
+        b.getBWImage();
+        ImgProvider grayA = cache.apply(this, a, () -> Geometry.flipHorizontal(a));
+        ImgProvider grayB = cache.apply(this, b, () -> Geometry.flipHorizontal(b));
+        short[][] expected = Geometry.flipHorizontal(b).getRed();
+        short[][] got = grayB.getRed();
+        for (int r = 0; r < H; r++) assertArrayEquals(expected[r], got[r]);
+        assertArrayEquals(grayA.getGreen()[0], grayB.getGreen()[0]);
+    }
+}//FilterCacheTest
@@ -0,0 +1,52 @@
+package imagelab;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.Test;
+
+/**
+ * Checks that a hot folder will not write its results where it would
+ * take them as new images.
+ * @version 1.0
+ */
+public class HotFolderTest {
+    /**
+     * Try to watch a folder, expecting to be refused.
+     * @param in the watched folder
+     * @param out the output folder
+     */
+    private static void refused(final File in, final File out) throws IOException {
+        try {
+            new HotFolder(in, out, FilterChain.parse("HFlip"), "png", 1, 100).close();
+            fail("Watched " + in + " with results in " + out);
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("inside the watched folder"));
+        }
+    }//refused
+
+    /** The watched folder itself, or a folder inside it, is refused as the output. */
+    @Test
+    public void outputInsideInput() throws IOException {
+        File in = Files.createTempDirectory("hotin").toFile();
+        refused(in, in);
+        refused(in, new File(in, "out"));
+        refused(in, new File(new File(in, "a"), "b"));
+        refused(in, new File(new File(in, "x"), ".."));
+        assertTrue(in.delete());
+    }
+
+    /** A folder beside the watched one is accepted. */
+    @Test
+    public void outputBeside() throws IOException {
+        File in = Files.createTempDirectory("hotin").toFile();
+        File out = new File(in.getParentFile(), in.getName() + "-out");
+        new HotFolder(in, out, FilterChain.parse("HFlip"), "png", 1, 100).close();
+        assertTrue(new File(out, HotFolder.MANIFEST).delete());
+        assertTrue(out.delete());
+        assertTrue(in.delete());
+    }
+}//HotFolderTest
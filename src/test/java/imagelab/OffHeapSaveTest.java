@@ -0,0 +1,62 @@
+package imagelab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Test;
+
+/**
+ * Checks that an image whose pixels are off the heap, as large shown
+ * images are, can still be saved and read.
+ * @version 1.0
+ */
+public class OffHeapSaveTest {
+    /**
+     * A small image parked off the heap.
+     * @return the image
+     */
+    private static ImgProvider parked() {
+        int w = 37;
+        int h = 21;
+        int[] pix = new int[w * h];
+        for (int i = 0; i < pix.length; i++) pix[i] = 0xFF000000 | (i * 0x010305);
+        ImgProvider ip = new ImgProvider();
+        ip.setPixels(pix, w, h);
+        ip.parkOffHeap();
+        assertTrue(ip.isOffHeap());
+        return ip;
+    }//parked
+
+    /** Saving as JPEG and as raw works and leaves the pixels off the heap. */
+    @Test
+    public void saveParkedImage() throws IOException {
+        ImgProvider ip = parked();
+        File jpg = File.createTempFile("offheap", ".jpg");
+        File raw = File.createTempFile("offheap", RawImage.EXTENSION);
+        try {
+            assertTrue(ip.saveTo(jpg));
+            assertTrue(ip.isOffHeap());
+            ImgProvider back = ImgProvider.read(jpg);
+            assertEquals(37, back.getWidth());
+            assertEquals(21, back.getHeight());
+            assertTrue(ip.saveTo(raw));
+            assertTrue(ip.isOffHeap());
+            assertArrayEquals(ip.getRed()[5], ImgProvider.read(raw).getRed()[5]);
+        } finally {
+            jpg.delete();
+            raw.delete();
+        }
+    }
+
+    /** The gray image of a parked image is available. */
+    @Test
+    public void grayOfParkedImage() {
+        ImgProvider ip = parked();
+        short[][] bw = ip.getBWImage();
+        assertEquals(21, bw.length);
+        assertEquals(37, bw[0].length);
+    }
+}//OffHeapSaveTest
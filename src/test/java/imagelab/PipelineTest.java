@@ -0,0 +1,98 @@
+package imagelab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * Checks that a pipeline keeps input order, drops the items a step
+ * returns null for, stops on the first failure, and names results so
+ * that none overwrites another.
+ * @version 1.0
+ */
+public class PipelineTest {
+    /**
+     * The numbers from 0 up.
+     * @param n how many
+     * @return them
+     */
+    private static List<Integer> numbers(final int n) {
+        List<Integer> all = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++) all.add(i);
+        return all;
+    }//numbers
+
+    /** Items leave in order though the first is the slowest, and nulls are dropped. */
+    @Test
+    public void orderAndDrops() throws IOException {
+        Pipeline<Integer> p = Pipeline.of(numbers(40))
+            .stage("slow first", 4, 2, (Integer i) -> {
+                if (i == 0) {
+                    try {
+                        Thread.sleep(300);
+                    } catch (InterruptedException ie) {
+                        throw new IOException(ie);
+                    }
+                }
+                return i;
+            })
+            .stage("drop odd", 3, 2, (Integer i) -> (i % 2 == 0) ? i * 10 : null);
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 40; i += 2) expected.add(i * 10);
+        assertEquals(expected, p.run());
+        assertEquals(40, p.getStats().get(0).getDone());
+        assertEquals(40, p.getStats().get(1).getDone());
+    }
+
+    /** Unordered, every kept item still comes out once. */
+    @Test
+    public void unordered() throws IOException {
+        List<Integer> got = Pipeline.of(numbers(30))
+            .stage("same", 4, 3, (Integer i) -> i)
+            .ordered(false)
+            .run();
+        got.sort(null);
+        assertEquals(numbers(30), got);
+    }
+
+    /** The first failing step stops the run and its exception reaches the caller. */
+    @Test
+    public void failureStopsTheRun() {
+        Pipeline<Integer> p = Pipeline.of(numbers(1000))
+            .stage("fail at 7", 2, 2, (Integer i) -> {
+                if (i == 7) throw new IOException("item 7");
+                return i;
+            });
+        try {
+            p.run();
+            fail("The failure was lost");
+        } catch (IOException expected) {
+            assertEquals("item 7", expected.getMessage());
+        }
+        assertTrue(p.getStats().get(0).getDone() < 1000);
+    }
+
+    /** Base names are used unless they clash; then whole names are. */
+    @Test
+    public void resultNames() {
+        List<File> files = Arrays.asList(new File("x/a.jpg"), new File("x/a.png"), new File("y/b.tif"));
+        Map<File, String> names = Pipeline.outNames(files, "png");
+        assertEquals("a.jpg.png", names.get(files.get(0)));
+        assertEquals("a.png.png", names.get(files.get(1)));
+        assertEquals("b.png", names.get(files.get(2)));
+        try {
+            Pipeline.outNames(Arrays.asList(new File("x/a.jpg"), new File("y/a.jpg")), "png");
+            fail("Two inputs named a.jpg were accepted");
+        } catch (IllegalArgumentException expected) {
+            // as it should be
+        }
+    }
+}//PipelineTest
@@ -0,0 +1,100 @@
+package imagelab;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks {@link RankFilter} against sorting each clipped window.
+ * @version 1.0
+ */
+public class RankFilterTest {
+    /** Image sizes tried, as {width, height}; small, odd and single-pixel ones. */
+    private static final int[][] SIZES = {{1, 1}, {1, 7}, {7, 1}, {3, 5}, {13, 9}, {31, 70}, {64, 33}};
+    /** Radii tried, including ones as large as or larger than the images. */
+    private static final int[] RADII = {0, 1, 2, 3, 7, 40};
+
+    /**
+     * A plane of random samples.
+     * @param w width
+     * @param h height
+     * @param rnd where the samples come from
+     * @param levels how many distinct values to use (few makes ties likely)
+     * @return the plane
+     */
+    static short[][] plane(final int w, final int h, final Random rnd, final int levels) {
+        short[][] p = new short[h][w];
+        for (short[] row : p) {
+            for (int c = 0; c < w; c++) row[c] = (short) (rnd.nextInt(levels) * (255 / (levels - 1)));
+        }
+        return p;
+    }//plane
+
+    /**
+     * Rank filter by sorting every window.
+     * @param src the plane
+     * @param radius the window radius
+     * @param pct the percentile
+     * @return the filtered plane
+     */
+    static short[][] naive(final short[][] src, final int radius, final double pct) {
+        int h = src.length;
+        int w = src[0].length;
+        short[][] dst = new short[h][w];
+        for (int r = 0; r < h; r++) {
+            for (int c = 0; c < w; c++) {
+                int r0 = Math.max(0, r - radius), r1 = Math.min(h - 1, r + radius);
+                int c0 = Math.max(0, c - radius), c1 = Math.min(w - 1, c + radius);
+                short[] win = new short[(r1 - r0 + 1) * (c1 - c0 + 1)];
+                int n = 0;
+                for (int y = r0; y <= r1; y++) {
+                    for (int x = c0; x <= c1; x++) win[n++] = src[y][x];
+                }
+                Arrays.sort(win);
+                dst[r][c] = win[RankFilter.target(n, pct)];
+            }
+        }
+        return dst;
+    }//naive
+
+    /**
+     * Compare every size, radius and percentile.
+     * @param pct the percentile
+     */
+    private void check(final double pct) {
+        Random rnd = new Random(29);
+        for (int[] s : SIZES) {
+            for (int levels : new int[] {2, 5, 256}) {
+                short[][] src = plane(s[0], s[1], rnd, levels);
+                for (int radius : RADII) {
+                    short[][] want = naive(src, radius, pct);
+                    short[][] got = RankFilter.rankPlane(src, radius, pct);
+                    String what = s[0] + "x" + s[1] + " radius " + radius + " pct " + pct + " levels " + levels;
+                    for (int r = 0; r < want.length; r++) assertArrayEquals(what + " row " + r, want[r], got[r]);
+                }
+            }
+        }
+    }//check
+
+    /** The median matches sorting exactly. */
+    @Test
+    public void medianMatchesSorting() {
+        check(RankFilter.MEDIAN);
+    }
+
+    /** Minimum and maximum match sorting exactly. */
+    @Test
+    public void extremesMatchSorting() {
+        check(0);
+        check(100);
+    }
+
+    /** Other percentiles match sorting exactly. */
+    @Test
+    public void percentilesMatchSorting() {
+        check(10);
+        check(75);
+    }
+}//RankFilterTest
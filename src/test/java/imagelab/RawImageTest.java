@@ -0,0 +1,64 @@
+package imagelab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Test;
+
+/**
+ * Checks that raw files can be written over, read back and deleted
+ * straight after being mapped, as the disk cache and re-saving need.
+ * @version 1.0
+ */
+public class RawImageTest {
+    /**
+     * An image of a given size.
+     * @param w the width
+     * @param h the height
+     * @return the image
+     */
+    private static ImgProvider image(final int w, final int h) {
+        int[] pix = new int[w * h];
+        for (int i = 0; i < pix.length; i++) pix[i] = (i * 0x01030507) | 0x10000000;
+        ImgProvider ip = new ImgProvider();
+        ip.setPixels(pix, w, h);
+        return ip;
+    }//image
+
+    /** A file just read can be written over with a smaller image, then deleted. */
+    @Test
+    public void rewriteAfterRead() throws IOException {
+        File f = File.createTempFile("raw", RawImage.EXTENSION);
+        try {
+            RawImage.write(image(301, 77), f);
+            assertEquals(301, RawImage.read(f).getWidth());
+            ImgProvider small = image(13, 9);
+            RawImage.write(small, f, true);
+            assertArrayEquals(small.pix, RawImage.read(f).pix);
+            assertEquals(32, ContentHash.hex(f).length());
+        } finally {
+            assertTrue(f.delete());
+        }
+    }
+
+    /** Rows streamed into a raw file read back the same, and closing frees the file. */
+    @Test
+    public void streamedRows() throws IOException {
+        File f = File.createTempFile("rows", RawImage.EXTENSION);
+        try {
+            ImgProvider ip = image(64, 50);
+            RowStream.writeRaw(RowStream.of(ip), f);
+            RowSource rows = RowStream.read(f);
+            ImgProvider back = RowStream.collect(rows);
+            rows.close();
+            assertArrayEquals(ip.pix, back.pix);
+            RowStream.writeRaw(RowStream.of(image(5, 4)), f);
+            assertEquals(5, RawImage.read(f).getWidth());
+        } finally {
+            assertTrue(f.delete());
+        }
+    }
+}//RawImageTest
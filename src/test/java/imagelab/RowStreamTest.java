@@ -0,0 +1,147 @@
+package imagelab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.function.UnaryOperator;
+import org.junit.Test;
+
+/**
+ * Checks that streaming rows through a filter gives the same image as
+ * running its engine on the whole image, across band boundaries, at the
+ * top and bottom edges and for reaches beyond a band, and that a row
+ * reader stops decoding when closed.
+ * @version 1.0
+ */
+public class RowStreamTest {
+    /** Heights around and beyond a band. */
+    private static final int[] HEIGHTS = {1, 2, 5, 63, 64, 65, 129, 200};
+    /** Reaches, up to more than a band. */
+    private static final int[] REACHES = {0, 1, 3, 64, 70};
+
+    /**
+     * An image with a different value in every pixel.
+     * @param w the width
+     * @param h the height
+     * @return the image
+     */
+    private static ImgProvider image(final int w, final int h) {
+        int[] pix = new int[w * h];
+        for (int i = 0; i < pix.length; i++) pix[i] = 0xFF000000 | (i * 0x0A0705 + (i >> 3));
+        ImgProvider ip = new ImgProvider();
+        ip.setPixels(pix, w, h);
+        return ip;
+    }//image
+
+    /**
+     * An engine that makes each pixel from the pixels reach rows above and
+     * below it, clamped to the image, so any misplaced row shows.
+     * @param reach the reach
+     * @return the engine
+     */
+    private static UnaryOperator<ImgProvider> shift(final int reach) {
+        return ip -> {
+            ip.ensureLoaded();
+            int w = ip.pixwidth;
+            int h = ip.pixheight;
+            int[] out = new int[w * h];
+            for (int y = 0; y < h; y++) {
+                int up = Math.max(0, y - reach) * w;
+                int down = Math.min(h - 1, y + reach) * w;
+                for (int x = 0; x < w; x++) {
+                    out[y * w + x] = ip.pix[up + x] ^ Integer.rotateLeft(ip.pix[down + x], 7);
+                }
+            }
+            ImgProvider r = new ImgProvider();
+            r.setPixels(out, w, h);
+            return r;
+        };
+    }//shift
+
+    /**
+     * Stream an image through an engine.
+     * @param ip the image
+     * @param op the engine
+     * @param reach its reach
+     * @return the streamed result
+     */
+    private static ImgProvider streamed(final ImgProvider ip, final UnaryOperator<ImgProvider> op,
+                                        final int reach) throws IOException {
+        return RowStream.collect(RowStream.filter(RowStream.of(ip), RowStream.engine(op, reach)));
+    }//streamed
+
+    /** Each reach and height gives the whole-image result. */
+    @Test
+    public void sameAsWholeImage() throws IOException {
+        for (int h : HEIGHTS) {
+            for (int reach : REACHES) {
+                ImgProvider ip = image(9, h);
+                ImgProvider expected = shift(reach).apply(image(9, h));
+                assertArrayEquals("height " + h + ", reach " + reach,
+                                  expected.pix, streamed(ip, shift(reach), reach).pix);
+            }
+        }
+    }
+
+    /** A real engine streams to the same result, alone and chained. */
+    @Test
+    public void medianStreamsAndChains() throws IOException {
+        for (int h : new int[] {7, 64, 150}) {
+            for (int r : new int[] {1, 2, 5}) {
+                final int radius = r;
+                UnaryOperator<ImgProvider> median = ip -> RankFilter.median(ip, radius);
+                ImgProvider expected = median.apply(image(23, h));
+                assertArrayEquals("height " + h + ", radius " + r,
+                                  expected.pix, streamed(image(23, h), median, r).pix);
+                ImgProvider twice = shift(3).apply(median.apply(image(23, h)));
+                RowSource chained = RowStream.filter(
+                    RowStream.filter(RowStream.of(image(23, h)), RowStream.engine(median, r)),
+                    RowStream.engine(shift(3), 3));
+                assertArrayEquals("chained, height " + h + ", radius " + r,
+                                  twice.pix, RowStream.collect(chained).pix);
+            }
+        }
+    }
+
+    /**
+     * Count the row reader threads still running.
+     * @return how many
+     */
+    private static int readerThreads() {
+        int n = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.isAlive() && t.getName().equals("ImageLab row reader")) n++;
+        }
+        return n;
+    }//readerThreads
+
+    /** Closing a row reader part way stops its decoder. */
+    @Test
+    public void closeStopsDecoder() throws IOException, InterruptedException {
+        File f = File.createTempFile("rows", ".png");
+        try {
+            ImgProvider ip = image(300, 2000);
+            try (OutputStream out = new FileOutputStream(f)) {
+                ip.write(out, "png");
+            }
+            int before = readerThreads();
+            RowSource rows = RowReader.open(f);
+            assertTrue(rows instanceof RowReader);
+            int[] row = new int[300];
+            for (int y = 0; y < 3; y++) {
+                rows.next(row);
+                assertArrayEquals(Arrays.copyOfRange(ip.pix, y * 300, y * 300 + 300), row);
+            }
+            rows.close();
+            assertEquals(before, readerThreads());
+        } finally {
+            f.delete();
+        }
+    }
+}//RowStreamTest
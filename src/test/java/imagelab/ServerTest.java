@@ -0,0 +1,88 @@
+package imagelab;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+/**
+ * Checks that the server's turns are held only while filtering, so a
+ * stalled upload does not keep others waiting.
+ * @version 1.0
+ */
+public class ServerTest {
+    /**
+     * A small PNG.
+     * @return its bytes
+     */
+    private static byte[] png() throws IOException {
+        int[] pix = new int[40 * 30];
+        for (int i = 0; i < pix.length; i++) pix[i] = 0xFF000000 | (i * 0x010203);
+        ImgProvider ip = new ImgProvider();
+        ip.setPixels(pix, 40, 30);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ip.write(out, "png");
+        return out.toByteArray();
+    }//png
+
+    /**
+     * Post an image to the server.
+     * @param port the server's port
+     * @param body the image
+     * @return the status code
+     */
+    private static int post(final int port, final byte[] body) throws IOException {
+        HttpURLConnection c = (HttpURLConnection)
+            new URL("http://localhost:" + port + "/filter?chain=HFlip").openConnection();
+        c.setDoOutput(true);
+        c.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = c.getOutputStream()) {
+            out.write(body);
+        }
+        int status = c.getResponseCode();
+        c.disconnect();
+        return status;
+    }//post
+
+    /** With a single turn, a stalled upload does not block a complete one. */
+    @Test
+    public void stalledUploadHoldsNoTurn() throws IOException {
+        Server server = new Server(0, 1, 64L << 20);
+        server.start();
+        try (Socket stalled = new Socket("localhost", server.getPort())) {
+            OutputStream out = stalled.getOutputStream();
+            out.write(("POST /filter?chain=HFlip HTTP/1.1\r\nHost: localhost\r\n"
+                + "Content-Length: 100000\r\n\r\npartial").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            assertEquals(200, post(server.getPort(), png()));
+            assertEquals(200, post(server.getPort(), png()));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /** A body without a declared length is refused. */
+    @Test
+    public void lengthRequired() throws IOException {
+        Server server = new Server(0, 1, 64L << 20);
+        server.start();
+        try {
+            HttpURLConnection c = (HttpURLConnection)
+                new URL("http://localhost:" + server.getPort() + "/filter?chain=HFlip").openConnection();
+            c.setDoOutput(true);
+            c.setChunkedStreamingMode(1024);
+            try (OutputStream out = c.getOutputStream()) {
+                out.write(png());
+            }
+            assertEquals(411, c.getResponseCode());
+        } finally {
+            server.stop(0);
+        }
+    }
+}//ServerTest
@@ -0,0 +1,112 @@
+package imagelab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that importing into a {@link TiledImage} keeps every pixel,
+ * whichever way the file is read, and that large files open as previews.
+ * @version 1.0
+ */
+public class TiledImageTest {
+    /** Width of the test image: not a multiple of the tile side. */
+    private static final int W = 301;
+    /** Height of the test image: more than two bands of tiles. */
+    private static final int H = 700;
+
+    /** Files to delete afterwards. */
+    private File png, bmp, backing;
+
+    /**
+     * Write the test image as PNG and BMP.
+     * @throws IOException if it cannot be written
+     */
+    @Before
+    public void write() throws IOException {
+        BufferedImage argb = new BufferedImage(W, H, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage rgb = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < H; y++) {
+            for (int x = 0; x < W; x++) {
+                int p = (((x * y) & 255) << 24) | ((x & 255) << 16) | ((y & 255) << 8) | ((x ^ y) & 255);
+                argb.setRGB(x, y, p);
+                rgb.setRGB(x, y, p);
+            }
+        }
+        png = File.createTempFile("tiled", ".png");
+        bmp = File.createTempFile("tiled", ".bmp");
+        backing = File.createTempFile("tiled", TiledImage.EXTENSION);
+        assertTrue(ImageIO.write(argb, "png", png));
+        assertTrue(ImageIO.write(rgb, "bmp", bmp));
+    }
+
+    /** Remove the files and restore settings. */
+    @After
+    public void clean() {
+        RowReader.chunkElements = Integer.MAX_VALUE;
+        png.delete();
+        bmp.delete();
+        backing.delete();
+    }
+
+    /**
+     * Import a file and compare it with decoding it whole.
+     * @param f the image file
+     * @throws IOException if it cannot be read
+     */
+    private void check(final File f) throws IOException {
+        ImgProvider want = ImgProvider.decode(f);
+        try (TiledImage t = TiledImage.importImage(f, backing)) {
+            assertEquals(W, t.getWidth());
+            assertEquals(H, t.getHeight());
+            int[] row = new int[W];
+            for (int y = 0; y < H; y++) {
+                t.getRGB(0, y, W, 1, row, 0, W);
+                for (int x = 0; x < W; x++) {
+                    assertEquals(f.getName() + " at " + x + "," + y, want.pix[y * W + x], row[x]);
+                }
+            }
+        }
+    }//check
+
+    /** A PNG read in one pass keeps every pixel. */
+    @Test
+    public void importStreamed() throws IOException {
+        check(png);
+    }
+
+    /** A PNG read as several regions keeps every pixel. */
+    @Test
+    public void importStreamedInRegions() throws IOException {
+        RowReader.chunkElements = 4 * W * 97;
+        check(png);
+    }
+
+    /** A format read a band at a time keeps every pixel. */
+    @Test
+    public void importByBands() throws IOException {
+        check(bmp);
+    }
+
+    /** A large file opens as a preview holding the tiles, deleted on release. */
+    @Test
+    public void openLargeGivesPreview() throws IOException {
+        ImgProvider ip = TiledImage.openLarge(png);
+        TiledImage full = ip.getTiled();
+        assertNotNull(full);
+        assertEquals(W, full.getWidth());
+        assertEquals(H, full.getHeight());
+        assertTrue(Math.max(ip.getWidth(), ip.getHeight()) <= TiledImage.PREVIEW);
+        assertEquals(png.getPath(), ip.imgName);
+        ip.release();
+        assertEquals(null, ip.getTiled());
+    }
+}//TiledImageTest